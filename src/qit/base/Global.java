@@ -55,6 +55,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.io.FileUtils;
+import qit.base.cli.CliCache;
 import qit.base.structs.DataType;
 import qit.base.structs.Integers;
 import qit.base.utils.PathUtils;
@@ -104,6 +105,15 @@ public class Global
     // this indicates whether output should be dumped when an error occurs
     private static boolean DUMP = false;
 
+    // this specifies an optional directory for caching module results
+    private static String CACHE = null;
+
+    // this specifies the maximum size of the module cache in megabytes
+    private static long CACHE_LIMIT = 10240;
+
+    // this indicates whether cached inputs are identified by size and modification time instead of contents
+    private static boolean CACHE_FAST = false;
+
     // this specifies the pipeline hostname
     public static String PIPELINE_HOST = "cranium.loni.usc.edu";
 
@@ -113,6 +123,9 @@ public class Global
     // this specifies that obj will be treated as minc instead of lightwave
     public static boolean MINC = false;
 
+    // this specifies the number of threads used to parse and compress large files
+    public static int IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     static
     {
         Set<Class<?>> numerics = Sets.newHashSet();
@@ -232,6 +245,21 @@ public class Global
         Global.DUMP = v;
     }
 
+    public static CliCache getCache()
+    {
+        if (Global.CACHE == null)
+        {
+            return null;
+        }
+
+        return new CliCache(Global.CACHE).withLimit(Global.CACHE_LIMIT * 1024L * 1024L).withFast(Global.CACHE_FAST);
+    }
+
+    public static void setCache(String dn)
+    {
+        Global.CACHE = dn;
+    }
+
     public static boolean getPreserve()
     {
         return Global.PRESERVE;
@@ -406,6 +434,28 @@ public class Global
             Global.DUMP = true;
         }
 
+        if (argv.contains("--cache"))
+        {
+            int idx = argv.indexOf("--cache");
+            argv.remove(idx);
+            Global.CACHE = argv.remove(idx);
+            Logging.info("caching module results in " + Global.CACHE);
+        }
+
+        if (argv.contains("--cache-limit"))
+        {
+            int idx = argv.indexOf("--cache-limit");
+            argv.remove(idx);
+            Global.CACHE_LIMIT = Long.valueOf(argv.remove(idx));
+            Logging.info("setting module cache limit to " + Global.CACHE_LIMIT + " MB");
+        }
+
+        if (argv.remove("--cache-fast"))
+        {
+            Logging.info("identifying cached inputs by size and modification time");
+            Global.CACHE_FAST = true;
+        }
+
         if (argv.contains("--dtype"))
         {
             int idx = argv.indexOf("--dtype");
@@ -442,6 +492,14 @@ public class Global
             MINC = true;
         }
 
+        if (argv.contains("--io-threads"))
+        {
+            int idx = argv.indexOf("--io-threads");
+            argv.remove(idx);
+            IO_THREADS = Integer.valueOf(argv.remove(idx));
+            Logging.info("setting io threads to " + IO_THREADS);
+        }
+
         if (argv.remove("--trkimage"))
         {
             Logging.info("setting trk image coordinate mode");
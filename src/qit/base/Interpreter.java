@@ -50,19 +50,47 @@
 
 package qit.base;
 
-import java.io.File;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
-import org.apache.commons.lang3.StringUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.python.core.Py;
+import org.python.core.PyList;
 import org.python.core.PyObject;
+import org.python.core.PyString;
+import org.python.core.PyStringMap;
+import org.python.core.PySystemState;
 import org.python.util.PythonInterpreter;
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
+import qit.base.utils.ModuleIndex;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-/** a jython interpreter */
+/**
+ * a jython interpreter.  Every class in the toolkit is available by its simple
+ * name, but the classes are only imported when a script first uses them, as
+ * importing thousands of classes dominates the startup time of short scripts.
+ * Each interpreter has its own system state, so several interpreters can run
+ * scripts in parallel (see InterpreterPool).
+ */
 public class Interpreter
 {
+    // the fully qualified class names by simple name
+    private static Map<String, String> names = null;
+
+    // the classes that have been imported by any interpreter
+    private static Map<String, PyObject> imported = new ConcurrentHashMap<>();
+
+    // the module path and loaded modules of each interpreter when it was built
+    private static Map<PythonInterpreter, PyObject[]> initial = Collections.synchronizedMap(new WeakHashMap<>());
+
     public static void interactive()
     {
         Logging.info("loading interactive console");
@@ -71,7 +99,14 @@ public class Interpreter
         String scripts = Global.getScriptsDir();
         String sep = File.separator;
         String console = root + sep + "lib" + sep + "modules" + sep + "jythonconsole-0.0.7";
-        
+
+        // the console completes names from the namespace, so import everything
+        Namespace namespace = (Namespace) interp.getLocals();
+        for (String name : names().keySet())
+        {
+            namespace.__finditem__(name);
+        }
+
         interp.exec("sys.path.append(\"" + scripts + "\")");
         interp.exec("sys.path.append(\"" + console + "\")");
         interp.exec("import console");
@@ -80,47 +115,192 @@ public class Interpreter
 
     public static PythonInterpreter build()
     {
-        PythonInterpreter interp = new PythonInterpreter();
+        PySystemState.initialize();
+        PythonInterpreter interp = new PythonInterpreter(null, new PySystemState());
+        interp.exec("import sys");
+        initial.put(interp, new PyObject[]{interp.eval("list(sys.path)"), interp.eval("dict(sys.modules)")});
+        reset(interp);
+
+        return interp;
+    }
+
+    /**
+     * give an interpreter a new namespace and restore its module path and
+     * loaded modules, so scripts do not see the variables, path entries, or
+     * imports of previous scripts run by the same interpreter
+     */
+    public static void reset(PythonInterpreter interp)
+    {
+        PyObject[] state = initial.get(interp);
+        if (state != null)
+        {
+            // a plain namespace, so the names below are not resolved as classes
+            interp.setLocals(new PyStringMap());
+            interp.set("path", state[0]);
+            interp.set("modules", state[1]);
+            interp.exec(String.join("\n",
+                    "import sys",
+                    "sys.path[:] = path",
+                    "for name in [n for n in sys.modules.keys() if n not in modules]:",
+                    "    del sys.modules[name]",
+                    "sys.modules.update(modules)"));
+        }
 
+        interp.setLocals(new Namespace());
         interp.set("__name__", "__main__");
         interp.exec("import sys");
+        interp.set("parallel_map", Py.java2py(Interpreter.class).__getattr__("parallelMap"));
 
-//        Reflections.log = null; // turn off messages
-        Reflections reflections = new Reflections("qit", new SubTypesScanner(false));
-        Set<Class<? extends Object>> classes = reflections.getSubTypesOf(Object.class);
-        for (Class<? extends Object> cla : classes)
+        PyObject localvars = interp.getLocals();
+        interp.set("localvars", localvars);
+    }
+
+    public static PyList parallelMap(PyObject func, PyObject items)
+    {
+        return parallelMap(func, items, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * apply a function to each item using a pool of threads, e.g. for running
+     * a module on each subject, and return the results in the order of the items
+     */
+    public static PyList parallelMap(PyObject func, PyObject items, int threads)
+    {
+        List<PyObject> values = Lists.newArrayList(items.asIterable());
+        PyList out = new PyList();
+
+        if (threads <= 1 || values.size() <= 1)
         {
-            String name = cla.getName();
-            if (name.contains("$"))
+            for (PyObject value : values)
             {
-                continue;
+                out.append(func.__call__(value));
             }
 
-            List<String> tokens = Arrays.asList(StringUtils.split(name, '.'));
-            int s = tokens.size();
+            return out;
+        }
+
+        // the workers use the system state of the calling interpreter, e.g. for imports
+        PySystemState state = Py.getSystemState();
+
+        List<Callable<PyObject>> tasks = Lists.newArrayList();
+        for (PyObject value : values)
+        {
+            tasks.add(() ->
+            {
+                Py.setSystemState(state);
+                return func.__call__(value);
+            });
+        }
 
-            if (s < 2)
+        ExecutorService exec = Executors.newFixedThreadPool(Math.min(threads, values.size()));
+        try
+        {
+            for (Future<PyObject> future : exec.invokeAll(tasks))
+            {
+                out.append(future.get());
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // pass errors back to the script, e.g. so they can be caught there
+            if (e.getCause() instanceof RuntimeException)
             {
-                continue;
+                throw (RuntimeException) e.getCause();
             }
 
-            String p = s == 2 ? tokens.get(0) : StringUtils.join(tokens.subList(0, s - 1), ".");
-            String n = tokens.get(s - 1);
-            String cmd = "from " + p + " import " + n;
+            throw new RuntimeException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            exec.shutdown();
+        }
 
-            try
+        return out;
+    }
+
+    private synchronized static Map<String, String> names()
+    {
+        if (names == null)
+        {
+            Map<String, String> map = Maps.newHashMap();
+            for (String name : ModuleIndex.classes())
             {
-                interp.exec(cmd);
+                int idx = name.lastIndexOf('.');
+                if (idx > 0)
+                {
+                    map.putIfAbsent(name.substring(idx + 1), name);
+                }
             }
-            catch (RuntimeException e)
+
+            names = map;
+        }
+
+        return names;
+    }
+
+    private static PyObject resolve(String name)
+    {
+        PyObject out = imported.get(name);
+        if (out != null)
+        {
+            return out;
+        }
+
+        String full = names().get(name);
+        if (full == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            out = Py.java2py(Class.forName(full, false, Interpreter.class.getClassLoader()));
+            imported.put(name, out);
+
+            return out;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            Logging.info("warning: failed to import: " + full);
+            return null;
+        }
+    }
+
+    /**
+     * a namespace that imports a toolkit class when its name is first used
+     */
+    private static class Namespace extends PyStringMap
+    {
+        @Override
+        public PyObject __finditem__(String key)
+        {
+            PyObject out = super.__finditem__(key);
+
+            if (out == null)
             {
-                Logging.info("warning: command failed: " + cmd);
+                out = resolve(key);
+                if (out != null)
+                {
+                    this.__setitem__(key, out);
+                }
             }
+
+            return out;
         }
 
-        PyObject localvars = interp.getLocals();
-        interp.set("localvars", localvars);
+        @Override
+        public PyObject __finditem__(PyObject key)
+        {
+            if (key instanceof PyString)
+            {
+                return this.__finditem__(((PyString) key).internedString());
+            }
 
-        return interp;
+            return super.__finditem__(key);
+        }
     }
 }
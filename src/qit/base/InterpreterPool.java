@@ -0,0 +1,150 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base;
+
+import com.google.common.collect.Lists;
+import org.python.util.PythonInterpreter;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * a pool of jython interpreters for running scripts in parallel.  The
+ * interpreters are created up front, and each script is given an idle
+ * interpreter with a fresh namespace, so scripts do not share variables.
+ */
+public class InterpreterPool
+{
+    private BlockingQueue<PythonInterpreter> idle;
+    private List<PythonInterpreter> all = Lists.newArrayList();
+
+    public InterpreterPool(int size)
+    {
+        Global.assume(size > 0, "invalid interpreter pool size: " + size);
+
+        Logging.info(String.format("starting %d interpreters", size));
+        this.idle = new ArrayBlockingQueue<>(size);
+
+        List<Callable<PythonInterpreter>> tasks = Lists.newArrayList();
+        for (int i = 0; i < size; i++)
+        {
+            tasks.add(Interpreter::build);
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(size);
+        try
+        {
+            for (Future<PythonInterpreter> future : exec.invokeAll(tasks))
+            {
+                PythonInterpreter interp = future.get();
+                this.all.add(interp);
+                this.idle.add(interp);
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+
+    public int size()
+    {
+        return this.all.size();
+    }
+
+    /**
+     * run a job with an idle interpreter, and wait if there are none
+     */
+    public void run(Consumer<PythonInterpreter> job)
+    {
+        PythonInterpreter interp;
+        try
+        {
+            interp = this.idle.take();
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        try
+        {
+            Interpreter.reset(interp);
+            job.accept(interp);
+        }
+        finally
+        {
+            this.idle.add(interp);
+        }
+    }
+
+    public void close()
+    {
+        for (PythonInterpreter interp : this.all)
+        {
+            interp.cleanup();
+        }
+
+        this.all.clear();
+        this.idle.clear();
+    }
+}
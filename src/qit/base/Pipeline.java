@@ -0,0 +1,531 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import qit.base.annot.ModuleInput;
+import qit.base.annot.ModuleOptional;
+import qit.base.annot.ModuleOutput;
+import qit.base.annot.ModuleParameter;
+import qit.base.utils.JsonUtils;
+import qit.base.utils.ModuleUtils;
+import qit.base.utils.PathUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * a directed acyclic graph of module invocations that pass datasets in memory.
+ * Each step names a module, its parameters, and its inputs, which are either
+ * filenames or references to the output of another step written as
+ * "@step.field".  Steps run as soon as the steps they depend on are finished,
+ * so independent branches run concurrently, and only the outputs that are
+ * explicitly listed are written to disk.  An intermediate dataset is released
+ * once its last consumer has finished.
+ *
+ * When a dataset has several consumers, each one gets its own copy except the
+ * last to start, which takes the original, so steps never see each other's
+ * changes.  Sharing can be enabled to skip the copies when no module in the
+ * pipeline modifies its inputs.
+ */
+public class Pipeline
+{
+    public static final String REFERENCE = "@";
+
+    private List<Step> steps = Lists.newArrayList();
+    private int threads = 1;
+    private boolean share = false;
+
+    public Pipeline withThreads(int v)
+    {
+        this.threads = v;
+
+        return this;
+    }
+
+    /**
+     * @param v pass the same dataset to every consumer, which is only safe if no module modifies its inputs
+     */
+    public Pipeline withShare(boolean v)
+    {
+        this.share = v;
+
+        return this;
+    }
+
+    /**
+     * add a step to the pipeline
+     *
+     * @param name a unique identifier for the step
+     * @param module a module with its parameters set
+     * @param inputs a map from input fields to filenames or step references
+     * @param outputs a map from output fields to the filenames they are written to
+     * @return this pipeline
+     */
+    public Pipeline withStep(String name, Module module, Map<String, String> inputs, Map<String, String> outputs)
+    {
+        Global.assume(name != null && name.length() > 0 && !name.contains("."), "invalid step name: " + name);
+        Global.assume(module != null, "no module was given for step: " + name);
+
+        for (Step step : this.steps)
+        {
+            Global.assume(!step.name.equals(name), "duplicate step name: " + name);
+        }
+
+        Step step = new Step();
+        step.name = name;
+        step.module = module;
+
+        for (String key : inputs.keySet())
+        {
+            Field field = field(module, key);
+            Global.assume(field != null && field.getAnnotation(ModuleInput.class) != null, String.format("step %s has no input named: %s", name, key));
+            step.inputs.put(key, inputs.get(key));
+        }
+
+        for (String key : outputs.keySet())
+        {
+            Field field = field(module, key);
+            Global.assume(field != null && field.getAnnotation(ModuleOutput.class) != null, String.format("step %s has no output named: %s", name, key));
+            step.outputs.put(key, outputs.get(key));
+        }
+
+        this.steps.add(step);
+
+        return this;
+    }
+
+    public Pipeline run()
+    {
+        Map<String, Step> lookup = Maps.newHashMap();
+        for (Step step : this.steps)
+        {
+            lookup.put(step.name, step);
+        }
+
+        Map<Step, Integer> waiting = Maps.newHashMap();
+        for (Step step : this.steps)
+        {
+            for (Field field : ModuleUtils.inputs(step.module))
+            {
+                boolean optional = field.getAnnotation(ModuleOptional.class) != null;
+                boolean given = step.inputs.containsKey(field.getName()) || ModuleUtils.value(step.module, field) != null;
+                Global.assume(optional || given, String.format("step %s is missing input: %s", step.name, field.getName()));
+            }
+
+            for (String value : step.inputs.values())
+            {
+                if (value.startsWith(REFERENCE))
+                {
+                    Step producer = producer(lookup, value);
+                    String output = value.substring(value.indexOf(".") + 1);
+                    Field field = field(producer.module, output);
+                    Global.assume(field != null && field.getAnnotation(ModuleOutput.class) != null, String.format("step %s has no output named: %s", producer.name, output));
+
+                    producer.remaining.put(output, producer.remaining.getOrDefault(output, 0) + 1);
+                    producer.unclaimed.put(output, producer.unclaimed.getOrDefault(output, 0) + 1);
+
+                    if (step.depends.add(producer))
+                    {
+                        producer.dependents.add(step);
+                    }
+                }
+                else
+                {
+                    Global.assume(PathUtils.exists(value), String.format("step %s input file not found: %s", step.name, value));
+                }
+            }
+
+            waiting.put(step, step.depends.size());
+        }
+
+        Queue<Step> ready = new LinkedList<>();
+        for (Step step : this.steps)
+        {
+            if (step.depends.size() == 0)
+            {
+                ready.add(step);
+            }
+        }
+
+        Global.assume(acyclic(ready, waiting), "pipeline steps contain a cycle");
+
+        Logging.info(String.format("running pipeline with %d steps", this.steps.size()));
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, this.threads));
+        CompletionService<Step> service = new ExecutorCompletionService<>(exec);
+
+        try
+        {
+            int running = 0;
+            int finished = 0;
+            while (finished < this.steps.size())
+            {
+                while (!ready.isEmpty())
+                {
+                    Step next = ready.poll();
+                    service.submit(() -> this.execute(lookup, next));
+                    running += 1;
+                }
+
+                Global.assume(running > 0, "pipeline stalled (report this as a bug)");
+
+                Step done = service.take().get();
+                running -= 1;
+                finished += 1;
+
+                for (String value : done.inputs.values())
+                {
+                    if (value.startsWith(REFERENCE))
+                    {
+                        Step producer = producer(lookup, value);
+                        String output = value.substring(value.indexOf(".") + 1);
+                        int count = producer.remaining.get(output) - 1;
+                        producer.remaining.put(output, count);
+
+                        if (count == 0)
+                        {
+                            Logging.info(String.format("releasing %s.%s", producer.name, output));
+                            producer.values.remove(output);
+                        }
+                    }
+                }
+
+                for (Step dependent : done.dependents)
+                {
+                    int count = waiting.get(dependent) - 1;
+                    waiting.put(dependent, count);
+
+                    if (count == 0)
+                    {
+                        ready.add(dependent);
+                    }
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            e.getCause().printStackTrace();
+            Logging.error("pipeline failed: " + e.getCause().getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Logging.error("pipeline was interrupted");
+        }
+        finally
+        {
+            exec.shutdownNow();
+        }
+
+        Logging.info("finished pipeline");
+
+        return this;
+    }
+
+    private Step execute(Map<String, Step> lookup, Step step) throws Exception
+    {
+        Module module = step.module;
+
+        for (String key : step.inputs.keySet())
+        {
+            String value = step.inputs.get(key);
+            Field field = field(module, key);
+
+            Object data = null;
+            if (value.startsWith(REFERENCE))
+            {
+                Step producer = producer(lookup, value);
+                String output = value.substring(value.indexOf(".") + 1);
+                data = producer.values.get(output);
+                Global.assume(data != null, String.format("step %s did not produce %s", producer.name, value));
+
+                if (!this.share && producer.claim(output))
+                {
+                    Logging.info(String.format("step %s copying %s", step.name, value));
+                    data = ((Dataset) data).copy();
+                }
+            }
+            else
+            {
+                Logging.info(String.format("step %s reading %s: %s", step.name, key, value));
+                Method method = field.getType().getMethod(Dataset.READ, String.class);
+                data = method.invoke(null, value);
+            }
+
+            field.setAccessible(true);
+            field.set(module, data);
+        }
+
+        Logging.info(String.format("started step %s (%s)", step.name, module.getClass().getSimpleName()));
+        module = module.run();
+
+        for (Field field : ModuleUtils.outputs(module))
+        {
+            String key = field.getName();
+            Object data = ModuleUtils.value(module, field);
+
+            if (step.outputs.containsKey(key))
+            {
+                String fn = step.outputs.get(key);
+                Global.assume(data != null, String.format("step %s did not produce output: %s", step.name, key));
+
+                String parent = PathUtils.dirname(PathUtils.absolute(fn));
+                if (!PathUtils.exists(parent))
+                {
+                    PathUtils.mkdirs(parent);
+                }
+
+                Logging.info(String.format("step %s writing %s: %s", step.name, key, fn));
+                ((Dataset) data).write(fn);
+            }
+
+            if (step.remaining.containsKey(key) && data != null)
+            {
+                step.values.put(key, data);
+            }
+        }
+
+        // drop the module so that its inputs and unused outputs can be collected
+        step.module = null;
+
+        Logging.info(String.format("finished step %s", step.name));
+
+        return step;
+    }
+
+    private static Step producer(Map<String, Step> lookup, String value)
+    {
+        int dot = value.indexOf(".");
+        Global.assume(dot > REFERENCE.length(), "invalid step reference: " + value);
+
+        Step producer = lookup.get(value.substring(REFERENCE.length(), dot));
+        Global.assume(producer != null, "unknown step in reference: " + value);
+
+        return producer;
+    }
+
+    private static boolean acyclic(Queue<Step> ready, Map<Step, Integer> waiting)
+    {
+        Map<Step, Integer> counts = Maps.newHashMap(waiting);
+        Queue<Step> queue = new LinkedList<>(ready);
+
+        int visited = 0;
+        while (!queue.isEmpty())
+        {
+            Step step = queue.poll();
+            visited += 1;
+
+            for (Step dependent : step.dependents)
+            {
+                int count = counts.get(dependent) - 1;
+                counts.put(dependent, count);
+
+                if (count == 0)
+                {
+                    queue.add(dependent);
+                }
+            }
+        }
+
+        return visited == waiting.size();
+    }
+
+    private static Field field(Module module, String name)
+    {
+        for (Field field : ModuleUtils.fields(module))
+        {
+            if (field.getName().equals(name))
+            {
+                return field;
+            }
+        }
+
+        return null;
+    }
+
+    public static Pipeline read(String fn) throws IOException
+    {
+        return read(fn, Maps.newHashMap());
+    }
+
+    /**
+     * read a pipeline from a JSON file, where each step lists a "name", a
+     * "module", and maps of "parameters", "inputs", and "outputs".  Values may
+     * include variables written as ${name}, which are taken from the
+     * "variables" map of the file and then the given map.
+     */
+    public static Pipeline read(String fn, Map<String, String> variables) throws IOException
+    {
+        PipelineJson json = JsonUtils.decode(PipelineJson.class, Files.asCharSource(new File(fn), Charsets.UTF_8).read());
+
+        Map<String, String> vars = Maps.newLinkedHashMap(json.variables);
+        vars.putAll(variables);
+
+        Pipeline pipeline = new Pipeline();
+        for (StepJson step : json.steps)
+        {
+            Module module = ModuleUtils.instance(step.module);
+            Global.assume(module != null, "failed to find module: " + step.module);
+
+            for (String key : step.parameters.keySet())
+            {
+                Field field = field(module, key);
+                Global.assume(field != null && field.getAnnotation(ModuleParameter.class) != null, String.format("step %s has no parameter named: %s", step.name, key));
+
+                try
+                {
+                    field.setAccessible(true);
+                    field.set(module, ModuleUtils.parameter(field.getType(), substitute(vars, step.parameters.get(key))));
+                }
+                catch (IllegalAccessException e)
+                {
+                    Logging.info(String.format("warning: failed to update step '%s' field '%s'", step.name, key));
+                }
+            }
+
+            Map<String, String> inputs = Maps.newLinkedHashMap();
+            for (String key : step.inputs.keySet())
+            {
+                inputs.put(key, substitute(vars, step.inputs.get(key)));
+            }
+
+            Map<String, String> outputs = Maps.newLinkedHashMap();
+            for (String key : step.outputs.keySet())
+            {
+                outputs.put(key, substitute(vars, step.outputs.get(key)));
+            }
+
+            pipeline.withStep(step.name, module, inputs, outputs);
+        }
+
+        return pipeline;
+    }
+
+    private static String substitute(Map<String, String> vars, String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        for (String key : vars.keySet())
+        {
+            value = value.replace("${" + key + "}", vars.get(key));
+        }
+
+        Global.assume(!value.contains("${"), "undefined variable in: " + value);
+
+        return value;
+    }
+
+    private static class Step
+    {
+        String name;
+        Module module;
+        Map<String, String> inputs = Maps.newLinkedHashMap();
+        Map<String, String> outputs = Maps.newLinkedHashMap();
+
+        Set<Step> depends = Sets.newLinkedHashSet();
+        List<Step> dependents = Lists.newArrayList();
+
+        // the number of consumers that have yet to finish for each referenced output
+        Map<String, Integer> remaining = Maps.newHashMap();
+
+        // the number of consumers that have yet to start for each referenced output
+        Map<String, Integer> unclaimed = Maps.newHashMap();
+
+        // the referenced outputs that are held until their consumers finish
+        Map<String, Object> values = new ConcurrentHashMap<>();
+
+        /**
+         * @return true if other consumers have yet to start, in which case the claiming consumer needs a copy
+         */
+        synchronized boolean claim(String output)
+        {
+            int count = this.unclaimed.get(output) - 1;
+            this.unclaimed.put(output, count);
+
+            return count > 0;
+        }
+    }
+
+    static class PipelineJson
+    {
+        Map<String, String> variables = Maps.newLinkedHashMap();
+        List<StepJson> steps = Lists.newArrayList();
+    }
+
+    static class StepJson
+    {
+        String name;
+        String module;
+        Map<String, String> parameters = Maps.newLinkedHashMap();
+        Map<String, String> inputs = Maps.newLinkedHashMap();
+        Map<String, String> outputs = Maps.newLinkedHashMap();
+    }
+}
@@ -0,0 +1,448 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base.cli;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.base.Module;
+import qit.base.annot.ModuleInput;
+import qit.base.annot.ModuleOutput;
+import qit.base.structs.Pair;
+import qit.base.utils.ModuleUtils;
+import qit.base.utils.PathUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * a content-addressed cache of module results on the command line.  The key
+ * of a run is a hash of the qit build, the input files, the parameter values,
+ * and the formats of the requested outputs.  Inputs and parameters that name
+ * files are identified by their contents, or in fast mode, by their size and
+ * modification time.  Runs that request no outputs are not cached, since
+ * their effects cannot be restored.  Each entry is a directory holding a copy of the output
+ * files, and the least recently used entries are removed when the cache grows
+ * past its size limit.  Entries are built in a temporary directory and then
+ * renamed, so concurrent batch runs can share a cache.
+ */
+public class CliCache
+{
+    private static final String TMP = ".tmp";
+
+    // parameters that change how a module runs but not what it computes
+    private static final Set<String> IGNORED = Sets.newHashSet("threads");
+
+    private final File root;
+    private long limit = Long.MAX_VALUE;
+    private boolean fast = false;
+
+    public CliCache(String root)
+    {
+        this.root = new File(root).getAbsoluteFile();
+    }
+
+    /**
+     * @param v the maximum total size of the cache in bytes
+     */
+    public CliCache withLimit(long v)
+    {
+        this.limit = v;
+        return this;
+    }
+
+    /**
+     * @param v fingerprint inputs by size and modification time instead of their contents
+     */
+    public CliCache withFast(boolean v)
+    {
+        this.fast = v;
+        return this;
+    }
+
+    /**
+     * compute the key of a module run, which must be called before the inputs are read
+     *
+     * @return the key, or null if the run cannot be cached
+     */
+    public String key(Module module, CliValues values) throws IOException
+    {
+        if (outputs(module, values).isEmpty())
+        {
+            Logging.info("skipping cache, since no outputs were requested");
+            return null;
+        }
+
+        Hasher hasher = Hashing.sha256().newHasher();
+
+        Class<? extends Module> type = module.getClass();
+        put(hasher, "module", type.getName());
+        put(hasher, "version", Global.getVersion());
+        put(hasher, "build", build(type));
+        put(hasher, "dtype", String.valueOf(Global.getDataType()));
+        put(hasher, "fresh", String.valueOf(Global.getFresh()));
+        put(hasher, "nointent", String.valueOf(Global.getNoIntent()));
+        put(hasher, "preserve", String.valueOf(Global.getPreserve()));
+
+        for (Field field : ModuleUtils.fields(module))
+        {
+            String name = field.getName();
+            List<String> args = values.keyed.get(name);
+
+            if (field.getAnnotation(ModuleOutput.class) != null)
+            {
+                if (args != null && args.size() == 1)
+                {
+                    put(hasher, "output:" + name, extension(args.get(0)));
+                }
+            }
+            else if (field.getAnnotation(ModuleInput.class) != null)
+            {
+                put(hasher, "input:" + name, args == null || args.size() != 1 ? "null" : this.fingerprint(new File(args.get(0))));
+            }
+            else if (!IGNORED.contains(name))
+            {
+                boolean binary = field.getType().equals(boolean.class) || field.getType().equals(Boolean.class);
+
+                String value;
+                if (args != null)
+                {
+                    value = binary ? "true" : String.join(" ", args);
+                }
+                else
+                {
+                    value = String.valueOf(ModuleUtils.value(module, field));
+                }
+
+                put(hasher, "param:" + name, value);
+
+                // parameters can name files that the module reads, e.g. models and lookup tables
+                List<String> paths = Lists.newArrayList();
+                if (!binary)
+                {
+                    paths.addAll(args != null ? args : Lists.newArrayList(value));
+                }
+
+                for (String arg : paths)
+                {
+                    File file = new File(arg);
+                    if (file.isDirectory())
+                    {
+                        Logging.info("skipping cache, since a parameter names a directory: " + name);
+                        return null;
+                    }
+                    else if (file.isFile())
+                    {
+                        put(hasher, "file:" + name, this.fingerprint(file));
+                    }
+                }
+            }
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * copy the cached outputs of a run to the requested paths
+     *
+     * @return true if the run was found in the cache
+     */
+    public boolean restore(String key, Module module, CliValues values) throws IOException
+    {
+        File entry = new File(this.root, key);
+        if (!entry.isDirectory())
+        {
+            return false;
+        }
+
+        List<Pair<String, File>> outputs = outputs(module, values);
+        if (outputs.isEmpty())
+        {
+            return false;
+        }
+
+        List<File> sources = Lists.newArrayList();
+        List<File> targets = Lists.newArrayList();
+        for (Pair<String, File> output : outputs)
+        {
+            // the entry holds one file per output, which is restored under the requested name
+            File[] stored = new File(entry, output.a).listFiles();
+            if (stored == null || stored.length != 1)
+            {
+                return false;
+            }
+
+            sources.add(stored[0]);
+            targets.add(output.b);
+        }
+
+        for (int i = 0; i < sources.size(); i++)
+        {
+            Logging.info("restoring cached output: " + targets.get(i).getPath());
+            PathUtils.mkpar(targets.get(i).getAbsolutePath());
+            copy(sources.get(i), targets.get(i));
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+
+        return true;
+    }
+
+    /**
+     * copy the outputs of a finished run into the cache, if it wrote every requested output
+     */
+    public void store(String key, Module module, CliValues values) throws IOException
+    {
+        File entry = new File(this.root, key);
+        if (entry.isDirectory())
+        {
+            return;
+        }
+
+        List<Pair<String, File>> outputs = outputs(module, values);
+        for (Pair<String, File> output : outputs)
+        {
+            if (!output.b.exists())
+            {
+                Logging.info("skipping cache, since an output was not written: " + output.b.getPath());
+                return;
+            }
+        }
+
+        File tmp = new File(this.root, TMP + "." + key + "." + Math.abs(Global.RANDOM.nextLong()));
+        PathUtils.mkdirs(tmp.getAbsolutePath());
+
+        try
+        {
+            for (Pair<String, File> output : outputs)
+            {
+                copy(output.b, new File(new File(tmp, output.a), output.b.getName()));
+            }
+
+            if (!tmp.renameTo(entry))
+            {
+                // another process stored the same entry first
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+        catch (IOException e)
+        {
+            FileUtils.deleteQuietly(tmp);
+            throw e;
+        }
+
+        this.prune();
+    }
+
+    /**
+     * remove the least recently used entries until the cache fits within its limit
+     */
+    public void prune()
+    {
+        File[] entries = this.root.listFiles(f -> f.isDirectory() && !f.getName().startsWith(TMP));
+        if (entries == null)
+        {
+            return;
+        }
+
+        long[] sizes = new long[entries.length];
+        long total = 0;
+        for (int i = 0; i < entries.length; i++)
+        {
+            sizes[i] = FileUtils.sizeOfDirectory(entries[i]);
+            total += sizes[i];
+        }
+
+        if (total <= this.limit)
+        {
+            return;
+        }
+
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = i;
+        }
+        long[] times = new long[entries.length];
+        for (int i = 0; i < entries.length; i++)
+        {
+            times[i] = entries[i].lastModified();
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+
+        for (int i = 0; i < order.length && total > this.limit; i++)
+        {
+            File entry = entries[order[i]];
+            Logging.info("removing cache entry: " + entry.getName());
+            FileUtils.deleteQuietly(entry);
+            total -= sizes[order[i]];
+        }
+    }
+
+    private String fingerprint(File file) throws IOException
+    {
+        if (!file.exists())
+        {
+            return "missing:" + file.getPath();
+        }
+
+        if (file.isDirectory())
+        {
+            Hasher hasher = Hashing.sha256().newHasher();
+            File[] children = file.listFiles();
+            Arrays.sort(children);
+            for (File child : children)
+            {
+                put(hasher, child.getName(), this.fingerprint(child));
+            }
+
+            return hasher.hash().toString();
+        }
+
+        if (this.fast)
+        {
+            return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        }
+
+        return Files.asByteSource(file).hash(Hashing.sha256()).toString();
+    }
+
+    private static List<Pair<String, File>> outputs(Module module, CliValues values)
+    {
+        List<Pair<String, File>> out = Lists.newArrayList();
+        for (Field field : ModuleUtils.outputs(module))
+        {
+            List<String> args = values.keyed.get(field.getName());
+            if (args != null && args.size() == 1)
+            {
+                out.add(Pair.of(field.getName(), new File(args.get(0))));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * identify the build that contains a class, i.e. a jar or a directory of classes,
+     * so that a rebuild of any code the module depends on changes the key
+     */
+    private static String build(Class<?> type)
+    {
+        try
+        {
+            CodeSource source = type.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null)
+            {
+                return "unknown";
+            }
+
+            File file = new File(source.getLocation().toURI());
+            if (file.isFile())
+            {
+                return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+            }
+
+            Hasher hasher = Hashing.sha256().newHasher();
+            List<File> children = Lists.newArrayList(FileUtils.listFiles(file, new String[]{"class"}, true));
+            children.sort(Comparator.naturalOrder());
+            for (File child : children)
+            {
+                put(hasher, child.getPath(), child.length() + ":" + child.lastModified());
+            }
+
+            return hasher.hash().toString();
+        }
+        catch (URISyntaxException | SecurityException | IllegalArgumentException e)
+        {
+            return "unknown";
+        }
+    }
+
+    private static String extension(String path)
+    {
+        String base = PathUtils.basename(path);
+        int idx = base.indexOf('.');
+        return idx < 0 ? "" : base.substring(idx);
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        if (from.isDirectory())
+        {
+            FileUtils.copyDirectory(from, to);
+        }
+        else
+        {
+            FileUtils.copyFile(from, to);
+        }
+    }
+
+    private static void put(Hasher hasher, String key, String value)
+    {
+        hasher.putString(key, StandardCharsets.UTF_8);
+        hasher.putByte((byte) 0);
+        hasher.putString(value, StandardCharsets.UTF_8);
+        hasher.putByte((byte) 0);
+    }
+}
@@ -118,6 +118,24 @@ public class CliModule implements CliMain
             Logging.info("os version: " + System.getProperty("os.version", "generic").toLowerCase(Locale.ENGLISH));
             Logging.info("java version: " + System.getProperty("java.version"));
 
+            CliCache cache = Global.getCache();
+            String key = null;
+            if (cache != null)
+            {
+                key = cache.key(this.module, values);
+            }
+
+            if (key != null)
+            {
+                Logging.info("cache key: " + key);
+
+                if (cache.restore(key, this.module, values))
+                {
+                    Logging.info("finished with cached result");
+                    return;
+                }
+            }
+
             Logging.info("reading input");
             read(this.module, values);
 
@@ -127,6 +145,12 @@ public class CliModule implements CliMain
             Logging.info("writing output");
             write(this.module, values);
 
+            if (key != null)
+            {
+                Logging.info("caching output");
+                cache.store(key, this.module, values);
+            }
+
             Logging.info("finished");
         }
         catch (IOException e)
@@ -0,0 +1,198 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base.structs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * a gzip output stream that compresses blocks of data in parallel.  Each block
+ * is written as a separate gzip member, and the concatenation of members is a
+ * valid gzip file that any gzip reader can decompress (as done by pigz).  The
+ * number of pending blocks is bounded, so memory use does not depend on the
+ * size of the data.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream
+{
+    private static final int BLOCK = 1 << 20;
+
+    private final ExecutorService exec;
+    private final int pending;
+    private final Deque<Future<byte[]>> queue = new ArrayDeque<>();
+
+    private byte[] block = new byte[BLOCK];
+    private int size = 0;
+    private boolean closed = false;
+
+    public ParallelGZIPOutputStream(OutputStream out, int threads)
+    {
+        super(out);
+
+        // daemon threads, so an abandoned stream does not keep the program alive
+        this.exec = Executors.newFixedThreadPool(Math.max(1, threads), r ->
+        {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pending = 2 * Math.max(1, threads);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        this.block[this.size++] = (byte) b;
+
+        if (this.size == BLOCK)
+        {
+            this.submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int num = Math.min(len, BLOCK - this.size);
+            System.arraycopy(b, off, this.block, this.size, num);
+            this.size += num;
+            off += num;
+            len -= num;
+
+            if (this.size == BLOCK)
+            {
+                this.submit();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        // only complete blocks are compressed, so that flushing does not shrink the members
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.closed)
+        {
+            return;
+        }
+
+        this.closed = true;
+
+        try
+        {
+            if (this.size > 0)
+            {
+                this.submit();
+            }
+
+            while (!this.queue.isEmpty())
+            {
+                this.drain();
+            }
+
+            this.out.close();
+        }
+        finally
+        {
+            this.exec.shutdown();
+        }
+    }
+
+    private void submit() throws IOException
+    {
+        final byte[] data = this.block;
+        final int len = this.size;
+
+        this.queue.add(this.exec.submit(() ->
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 2 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes, 1 << 16);
+            gzip.write(data, 0, len);
+            gzip.close();
+            return bytes.toByteArray();
+        }));
+
+        this.block = new byte[BLOCK];
+        this.size = 0;
+
+        while (this.queue.size() > this.pending)
+        {
+            this.drain();
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        try
+        {
+            this.out.write(this.queue.removeFirst().get());
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            throw new IOException("failed to compress block: " + e.getMessage());
+        }
+    }
+}
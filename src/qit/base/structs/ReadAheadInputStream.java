@@ -0,0 +1,211 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base.structs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * an input stream that reads its source in a background thread, so that
+ * decoding the source (e.g. decompressing gzip data) overlaps with parsing the
+ * data in the calling thread.  A bounded number of blocks is read ahead.
+ */
+public class ReadAheadInputStream extends InputStream
+{
+    private static final int BLOCK = 1 << 20;
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(4);
+    private final Thread thread;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+
+    private byte[] block = null;
+    private int length = 0;
+    private int pos = 0;
+
+    public ReadAheadInputStream(InputStream source)
+    {
+        this.source = source;
+        this.thread = new Thread(this::fetch, "read-ahead");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void fetch()
+    {
+        try
+        {
+            while (!this.closed)
+            {
+                byte[] data = new byte[BLOCK];
+                int len = 0;
+                while (len < BLOCK)
+                {
+                    int num = this.source.read(data, len, BLOCK - len);
+                    if (num < 0)
+                    {
+                        break;
+                    }
+                    len += num;
+                }
+
+                if (len > 0)
+                {
+                    this.queue.put(len == BLOCK ? data : Arrays.copyOf(data, len));
+                }
+
+                if (len < BLOCK)
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            this.error = e;
+        }
+        catch (InterruptedException e)
+        {
+            return;
+        }
+
+        try
+        {
+            this.queue.put(END);
+        }
+        catch (InterruptedException e)
+        {
+            // the stream was closed
+        }
+    }
+
+    private boolean next() throws IOException
+    {
+        if (this.block == END)
+        {
+            return false;
+        }
+
+        try
+        {
+            this.block = this.queue.take();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("interrupted while reading");
+        }
+
+        if (this.block == END)
+        {
+            if (this.error != null)
+            {
+                throw this.error;
+            }
+
+            return false;
+        }
+
+        this.length = this.block.length;
+        this.pos = 0;
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if ((this.block == null || this.pos == this.length) && !this.next())
+        {
+            return -1;
+        }
+
+        return this.block[this.pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if ((this.block == null || this.pos == this.length) && !this.next())
+        {
+            return -1;
+        }
+
+        int num = Math.min(len, this.length - this.pos);
+        System.arraycopy(this.block, this.pos, b, off, num);
+        this.pos += num;
+
+        return num;
+    }
+
+    @Override
+    public int available()
+    {
+        return this.block == null || this.block == END ? 0 : this.length - this.pos;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.closed = true;
+        this.thread.interrupt();
+        this.source.close();
+    }
+}
@@ -50,70 +50,312 @@
 
 package qit.base.utils;
 
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** utilities for dealing with array data */
 public class ArrayUtils
 {
+    // the number of bytes decoded at a time by the binary readers and writers
+    private static final int CHUNK = 1 << 20;
+
+    // the number of lines parsed at a time by the text readers
+    private static final int LINES = 1 << 16;
+
     public static void readArrayBinaryUchar(DataInputStream dis, float[] out) throws IOException
     {
-        int idx = 0;
-        int num = out.length;
-        for (int i = 0; i < num; i++)
+        byte[] bytes = new byte[Math.min(CHUNK, out.length)];
+        for (int idx = 0; idx < out.length; )
         {
-            out[idx++] = (float) (dis.readByte() & 0xFF);
+            int num = Math.min(bytes.length, out.length - idx);
+            dis.readFully(bytes, 0, num);
+            for (int i = 0; i < num; i++)
+            {
+                out[idx++] = (float) (bytes[i] & 0xFF);
+            }
         }
     }
 
     public static void readArrayBinaryFloat(DataInputStream dis, float[] out) throws IOException
     {
-        int idx = 0;
-        int num = out.length;
-        for (int i = 0; i < num; i++)
+        ByteBuffer buffer = buffer(out.length, Float.BYTES);
+        for (int idx = 0; idx < out.length; )
         {
-            out[idx++] = dis.readFloat();
+            int num = fill(dis, buffer, out.length - idx, Float.BYTES);
+            buffer.asFloatBuffer().get(out, idx, num);
+            idx += num;
         }
     }
 
     public static void readArrayBinaryDouble(DataInputStream dis, float[] out) throws IOException
     {
-        int idx = 0;
-        int num = out.length;
-        for (int i = 0; i < num; i++)
+        ByteBuffer buffer = buffer(out.length, Double.BYTES);
+        for (int idx = 0; idx < out.length; )
         {
-            out[idx++] = (float) dis.readDouble();
+            int num = fill(dis, buffer, out.length - idx, Double.BYTES);
+            for (int i = 0; i < num; i++)
+            {
+                out[idx++] = (float) buffer.getDouble(i * Double.BYTES);
+            }
         }
     }
-    
+
     public static void readArrayBinaryInteger(DataInputStream dis, float[] out) throws IOException
     {
-        int idx = 0;
-        int num = out.length;
-        for (int i = 0; i < num; i++)
+        ByteBuffer buffer = buffer(out.length, Integer.BYTES);
+        for (int idx = 0; idx < out.length; )
         {
-            out[idx++] = dis.readInt();
+            int num = fill(dis, buffer, out.length - idx, Integer.BYTES);
+            for (int i = 0; i < num; i++)
+            {
+                out[idx++] = buffer.getInt(i * Integer.BYTES);
+            }
+        }
+    }
+
+    public static void readArrayBinaryInteger(DataInputStream dis, int[] out) throws IOException
+    {
+        ByteBuffer buffer = buffer(out.length, Integer.BYTES);
+        for (int idx = 0; idx < out.length; )
+        {
+            int num = fill(dis, buffer, out.length - idx, Integer.BYTES);
+            buffer.asIntBuffer().get(out, idx, num);
+            idx += num;
+        }
+    }
+
+    public static void writeArrayBinaryFloat(DataOutputStream dos, float[] values, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = buffer(length, Float.BYTES);
+        for (int idx = 0; idx < length; )
+        {
+            int num = Math.min(buffer.capacity() / Float.BYTES, length - idx);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, offset + idx, num);
+            dos.write(buffer.array(), 0, num * Float.BYTES);
+            idx += num;
+        }
+    }
+
+    public static void writeArrayBinaryInteger(DataOutputStream dos, int[] values, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = buffer(length, Integer.BYTES);
+        for (int idx = 0; idx < length; )
+        {
+            int num = Math.min(buffer.capacity() / Integer.BYTES, length - idx);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, offset + idx, num);
+            dos.write(buffer.array(), 0, num * Integer.BYTES);
+            idx += num;
         }
     }
 
-    @SuppressWarnings("deprecation")
     public static void readArrayText(DataInputStream dis, float[] out) throws IOException
     {
-        String line = null;
-        int idx = 0;
-        int num = out.length;
-        while (idx < num)
+        readArrayText(dis, out.length, (line, start, end, idx) ->
+        {
+            out[idx] = Float.parseFloat(line.substring(start, end));
+        });
+    }
+
+    public static void readArrayText(DataInputStream dis, int[] out) throws IOException
+    {
+        readArrayText(dis, out.length, (line, start, end, idx) ->
+        {
+            out[idx] = Integer.parseInt(line, start, end, 10);
+        });
+    }
+
+    private interface TokenParser
+    {
+        void parse(String line, int start, int end, int idx);
+    }
+
+    /**
+     * read whitespace separated values, where lines are read in batches that
+     * are split between threads for parsing
+     */
+    @SuppressWarnings("deprecation")
+    private static void readArrayText(DataInputStream dis, int num, TokenParser parser) throws IOException
+    {
+        int threads = Math.max(1, Global.IO_THREADS);
+        ExecutorService exec = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        try
+        {
+            List<String> lines = Lists.newArrayList();
+            int[] starts = new int[LINES + 1];
+
+            int idx = 0;
+            while (idx < num)
+            {
+                lines.clear();
+                starts[0] = idx;
+
+                while (idx < num && lines.size() < LINES)
+                {
+                    String line = dis.readLine();
+                    if (line == null)
+                    {
+                        throw new RuntimeException("Unexpected end of file");
+                    }
+
+                    idx += count(line);
+                    lines.add(line);
+                    starts[lines.size()] = idx;
+                }
+
+                if (idx > num)
+                {
+                    throw new RuntimeException("Unexpected number of values");
+                }
+
+                if (exec == null || lines.size() < 2 * threads)
+                {
+                    parse(lines, starts, 0, lines.size(), parser);
+                }
+                else
+                {
+                    int step = (lines.size() + threads - 1) / threads;
+                    List<Runnable> tasks = Lists.newArrayList();
+                    List<Throwable> errors = Lists.newArrayList();
+                    for (int start = 0; start < lines.size(); start += step)
+                    {
+                        final int fstart = start;
+                        final int fend = Math.min(lines.size(), start + step);
+                        tasks.add(() ->
+                        {
+                            try
+                            {
+                                parse(lines, starts, fstart, fend, parser);
+                            }
+                            catch (RuntimeException e)
+                            {
+                                synchronized (errors)
+                                {
+                                    errors.add(e);
+                                }
+                            }
+                        });
+                    }
+
+                    invoke(exec, tasks);
+
+                    if (errors.size() > 0)
+                    {
+                        throw new RuntimeException("failed to parse values: " + errors.get(0).getMessage());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (exec != null)
+            {
+                exec.shutdown();
+            }
+        }
+    }
+
+    private static void invoke(ExecutorService exec, List<Runnable> tasks)
+    {
+        List<Future<?>> futures = Lists.newArrayList();
+        for (Runnable task : tasks)
+        {
+            futures.add(exec.submit(task));
+        }
+
+        try
+        {
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (Exception e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+
+    private static void parse(List<String> lines, int[] starts, int from, int to, TokenParser parser)
+    {
+        for (int l = from; l < to; l++)
         {
-            if ((line = dis.readLine()) == null)
+            String line = lines.get(l);
+            int idx = starts[l];
+            int len = line.length();
+            int pos = 0;
+
+            while (true)
             {
-                throw new RuntimeException("Unexpected end of file");
+                while (pos < len && Character.isWhitespace(line.charAt(pos)))
+                {
+                    pos += 1;
+                }
+
+                if (pos == len)
+                {
+                    break;
+                }
+
+                int start = pos;
+                while (pos < len && !Character.isWhitespace(line.charAt(pos)))
+                {
+                    pos += 1;
+                }
+
+                parser.parse(line, start, pos, idx++);
             }
+        }
+    }
 
-            for (String token : line.trim().split("\\s+"))
+    private static int count(String line)
+    {
+        int out = 0;
+        boolean token = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            boolean space = Character.isWhitespace(line.charAt(i));
+            if (!space && !token)
             {
-                out[idx++] = Float.parseFloat(token);
+                out += 1;
             }
+            token = !space;
         }
+
+        return out;
+    }
+
+    private static ByteBuffer buffer(int num, int bytes)
+    {
+        int size = (int) Math.min((long) CHUNK, (long) num * bytes);
+        size = Math.max(bytes, size - size % bytes);
+
+        // DataInputStream and DataOutputStream are big endian
+        return ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
     }
 
-}
\ No newline at end of file
+    /**
+     * @return the number of values that were read into the buffer
+     */
+    private static int fill(DataInputStream dis, ByteBuffer buffer, int remaining, int bytes) throws IOException
+    {
+        int num = Math.min(buffer.capacity() / bytes, remaining);
+        dis.readFully(buffer.array(), 0, num * bytes);
+        buffer.clear();
+        buffer.limit(num * bytes);
+        return num;
+    }
+}
@@ -0,0 +1,337 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.base.utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.util.FilterBuilder;
+import qit.base.CliMain;
+import qit.base.Logging;
+import qit.base.Module;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a registry of the modules, commands, and classes in the toolkit.  Scanning the
+ * classpath takes several seconds, so the build writes the class names to an
+ * index resource (see the main method), and the registry is loaded from that
+ * index once per process.  If the index is missing or stale, e.g. when running
+ * from an IDE, the toolkit packages are scanned instead.  Plugins, i.e. modules
+ * and commands outside the toolkit packages, are never in the index, so the
+ * rest of the classpath is scanned once and merged when a name is not found or
+ * every module is listed.
+ */
+public class ModuleIndex
+{
+    public static final String RESOURCE = "qit/modules.index";
+
+    private static final String MODULE = "module";
+    private static final String COMMAND = "command";
+    private static final String CLASS = "class";
+
+    private static List<Class<? extends Module>> modules = null;
+    private static List<Class<? extends CliMain>> commands = null;
+    private static Map<String, Class<? extends Module>> lookup = null;
+    private static List<String> classes = null;
+    private static boolean scanned = false;
+    private static boolean plugged = false;
+
+    /**
+     * @return every module class, including unlisted modules, ordered by name
+     */
+    public synchronized static List<Class<? extends Module>> modules()
+    {
+        init();
+        plugins();
+        return Collections.unmodifiableList(modules);
+    }
+
+    /**
+     * @return every command line class, ordered by name
+     */
+    public synchronized static List<Class<? extends CliMain>> commands()
+    {
+        init();
+        plugins();
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * @return the name of every top-level class in the toolkit, ordered by
+     * name, e.g. for importing them into a script interpreter.  The classes
+     * are not loaded.
+     */
+    public synchronized static List<String> classes()
+    {
+        init();
+
+        if (classes == null)
+        {
+            // disable info messages
+            Reflections.log = null;
+            Reflections reflections = new Reflections("qit", new SubTypesScanner(false));
+
+            List<String> names = Lists.newArrayList();
+            for (Class<?> c : reflections.getSubTypesOf(Object.class))
+            {
+                if (!c.getName().contains("$"))
+                {
+                    names.add(c.getName());
+                }
+            }
+            Collections.sort(names);
+
+            classes = names;
+        }
+
+        return Collections.unmodifiableList(classes);
+    }
+
+    /**
+     * @return the module class with the given simple name, or null if none exists
+     */
+    public synchronized static Class<? extends Module> module(String name)
+    {
+        init();
+
+        if (!lookup.containsKey(name))
+        {
+            plugins();
+        }
+
+        if (!lookup.containsKey(name) && !scanned)
+        {
+            // the index may be out of date
+            scan();
+            plugins();
+        }
+
+        return lookup.get(name);
+    }
+
+    private static void init()
+    {
+        if (modules != null)
+        {
+            return;
+        }
+
+        InputStream stream = ModuleIndex.class.getClassLoader().getResourceAsStream(RESOURCE);
+        if (stream == null)
+        {
+            scan();
+            return;
+        }
+
+        try
+        {
+            List<Class<? extends Module>> mods = Lists.newArrayList();
+            List<Class<? extends CliMain>> cmds = Lists.newArrayList();
+            List<String> names = Lists.newArrayList();
+
+            ClassLoader loader = ModuleIndex.class.getClassLoader();
+            for (String line : IOUtils.readLines(stream, Charsets.UTF_8.name()))
+            {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length != 2)
+                {
+                    continue;
+                }
+
+                if (CLASS.equals(tokens[0]))
+                {
+                    names.add(tokens[1]);
+                    continue;
+                }
+
+                // classes are loaded but not initialized until they are used
+                Class<?> c = Class.forName(tokens[1], false, loader);
+                if (MODULE.equals(tokens[0]))
+                {
+                    mods.add(c.asSubclass(Module.class));
+                }
+                else if (COMMAND.equals(tokens[0]))
+                {
+                    cmds.add(c.asSubclass(CliMain.class));
+                }
+            }
+
+            set(mods, cmds);
+
+            // older indices do not list the classes, so those are scanned if needed
+            classes = names.isEmpty() ? null : names;
+        }
+        catch (ClassNotFoundException | ClassCastException | IOException e)
+        {
+            Logging.info("warning: module index is out of date, scanning the classpath");
+            scan();
+        }
+        finally
+        {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private static void scan()
+    {
+        // disable info messages
+        Reflections.log = null;
+        Reflections reflections = new Reflections("qit");
+
+        set(Lists.newArrayList(reflections.getSubTypesOf(Module.class)), Lists.newArrayList(reflections.getSubTypesOf(CliMain.class)));
+        scanned = true;
+        plugged = false;
+    }
+
+    /**
+     * merge the modules and commands outside the toolkit packages
+     */
+    private static void plugins()
+    {
+        if (plugged)
+        {
+            return;
+        }
+
+        // disable info messages
+        Reflections.log = null;
+        Reflections reflections = new Reflections(new ConfigurationBuilder()
+                .setUrls(ClasspathHelper.forJavaClassPath())
+                .filterInputsBy(new FilterBuilder().excludePackage("qit"))
+                .setScanners(new SubTypesScanner()));
+
+        List<Class<? extends Module>> mods = Lists.newArrayList(modules);
+        for (Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+        {
+            if (!mods.contains(c))
+            {
+                mods.add(c);
+            }
+        }
+
+        List<Class<? extends CliMain>> cmds = Lists.newArrayList(commands);
+        for (Class<? extends CliMain> c : reflections.getSubTypesOf(CliMain.class))
+        {
+            if (!cmds.contains(c))
+            {
+                cmds.add(c);
+            }
+        }
+
+        set(mods, cmds);
+        plugged = true;
+    }
+
+    private static void set(List<Class<? extends Module>> mods, List<Class<? extends CliMain>> cmds)
+    {
+        Comparator<Class<?>> order = Comparator.comparing(Class::getName);
+        mods.sort(order);
+        cmds.sort(order);
+
+        Map<String, Class<? extends Module>> names = Maps.newHashMap();
+        for (Class<? extends Module> c : mods)
+        {
+            names.putIfAbsent(c.getSimpleName(), c);
+        }
+
+        modules = mods;
+        commands = cmds;
+        lookup = names;
+    }
+
+    /**
+     * write the index for the classes on the current classpath, which is run as
+     * part of the build
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+        {
+            System.out.println("usage: ModuleIndex output.index");
+            return;
+        }
+
+        scan();
+
+        StringBuilder out = new StringBuilder();
+        for (Class<? extends Module> c : modules)
+        {
+            out.append(MODULE).append(" ").append(c.getName()).append("\n");
+        }
+        for (Class<? extends CliMain> c : commands)
+        {
+            out.append(COMMAND).append(" ").append(c.getName()).append("\n");
+        }
+        for (String name : classes())
+        {
+            out.append(CLASS).append(" ").append(name).append("\n");
+        }
+
+        File file = new File(args[0]);
+        Files.createParentDirs(file);
+        Files.asCharSink(file, Charsets.UTF_8).write(out);
+
+        Logging.info(String.format("indexed %d modules, %d commands, and %d classes", modules.size(), commands.size(), classes.size()));
+    }
+}
@@ -74,7 +74,6 @@ import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
-import org.reflections.Reflections;
 import qit.base.Dataset;
 import qit.base.Global;
 import qit.base.Logging;
@@ -489,10 +488,8 @@ public class ModuleUtils
 
     public static List<Module> list()
     {
-        Reflections reflections = new Reflections("qit");
-
         List<Module> out = Lists.newArrayList();
-        for (final Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+        for (final Class<? extends Module> c : ModuleIndex.modules())
         {
             if (c != null && c.getAnnotation(ModuleUnlisted.class) == null)
             {
@@ -524,10 +521,9 @@ public class ModuleUtils
 
     public static Map<String, Class<? extends Module>> listedClasses()
     {
-        Reflections reflections = new Reflections("qit");
         final Map<String, Class<? extends Module>> listedModules = Maps.newHashMap();
 
-        for (Class<? extends Module> clas : reflections.getSubTypesOf(Module.class))
+        for (Class<? extends Module> clas : ModuleIndex.modules())
         {
             String[] tokens = org.apache.commons.lang3.StringUtils.split(clas.getName(), ".");
             String name = tokens[tokens.length - 1];
@@ -548,10 +544,9 @@ public class ModuleUtils
 
     public static Map<String, Class<? extends Module>> unlistedClasses()
     {
-        Reflections reflections = new Reflections("qit");
         final Map<String, Class<? extends Module>> unlistedModules = Maps.newHashMap();
 
-        for (Class<? extends Module> clas : reflections.getSubTypesOf(Module.class))
+        for (Class<? extends Module> clas : ModuleIndex.modules())
         {
             String[] tokens = org.apache.commons.lang3.StringUtils.split(clas.getName(), ".");
             String name = tokens[tokens.length - 1];
@@ -574,14 +569,10 @@ public class ModuleUtils
     {
         try
         {
-            Reflections reflections = new Reflections("qit");
-
-            for (final Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+            Class<? extends Module> c = ModuleIndex.module(name);
+            if (c != null)
             {
-                if (c != null && c.getSimpleName().equals(name))
-                {
-                    return c.newInstance();
-                }
+                return c.newInstance();
             }
         }
         catch (Exception e)
@@ -594,12 +585,10 @@ public class ModuleUtils
 
     public static List<String> sort(String name)
     {
-        Reflections reflections = new Reflections("qit");
-
         boolean matched = false;
         List<String> contains = Lists.newArrayList();
         List<String> names = Lists.newArrayList();
-        for (final Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+        for (final Class<? extends Module> c : ModuleIndex.modules())
         {
             if (c != null)
             {
@@ -948,34 +937,7 @@ public class ModuleUtils
                 try
                 {
                     field.setAccessible(true);
-                    if (value == null || value.length() == 0)
-                    {
-                        field.set(module, null);
-                    }
-                    else if (fieldType.equals(String.class))
-                    {
-                        field.set(module, value);
-                    }
-                    else if (fieldType.equals(Boolean.class) || fieldType.equals(boolean.class))
-                    {
-                        field.set(module, Boolean.valueOf(value));
-                    }
-                    else if (fieldType.equals(Integer.class) || fieldType.equals(int.class))
-                    {
-                        field.set(module, Integer.valueOf(value));
-                    }
-                    else if (fieldType.equals(Double.class) || fieldType.equals(double.class))
-                    {
-                        field.set(module, Double.valueOf(value));
-                    }
-                    else if (fieldType.isEnum())
-                    {
-                        field.set(module, Enum.valueOf((Class<Enum>) field.getType(), value));
-                    }
-                    else
-                    {
-                        throw new RuntimeException("invalid field type: " + fieldType.toString());
-                    }
+                    field.set(module, parameter(fieldType, value));
                 }
                 catch (IllegalAccessException e)
                 {
@@ -987,6 +949,42 @@ public class ModuleUtils
         return module;
     }
 
+    /**
+     * parse a module parameter value from its string representation, where an
+     * empty string indicates null
+     */
+    public static Object parameter(Class<?> fieldType, String value)
+    {
+        if (value == null || value.length() == 0)
+        {
+            return null;
+        }
+        else if (fieldType.equals(String.class))
+        {
+            return value;
+        }
+        else if (fieldType.equals(Boolean.class) || fieldType.equals(boolean.class))
+        {
+            return Boolean.valueOf(value);
+        }
+        else if (fieldType.equals(Integer.class) || fieldType.equals(int.class))
+        {
+            return Integer.valueOf(value);
+        }
+        else if (fieldType.equals(Double.class) || fieldType.equals(double.class))
+        {
+            return Double.valueOf(value);
+        }
+        else if (fieldType.isEnum())
+        {
+            return Enum.valueOf((Class<Enum>) fieldType, value);
+        }
+        else
+        {
+            throw new RuntimeException("invalid field type: " + fieldType.toString());
+        }
+    }
+
     static class ModuleJson
     {
         String name = "None";
@@ -57,6 +57,8 @@ import qit.base.Global;
 import qit.base.cli.CliUtils;
 import qit.base.structs.Indexed;
 import qit.base.structs.Pair;
+import qit.base.structs.ParallelGZIPOutputStream;
+import qit.base.structs.ReadAheadInputStream;
 import qit.data.formats.curves.*;
 import qit.data.datasets.Curves.Curve;
 import qit.data.source.VectSource;
@@ -937,6 +939,42 @@ public class Curves implements Indexed<Curve>, Dataset
             return out;
         }
 
+        /**
+         * copy the packed values of an attribute, which avoids creating a vect for each vertex
+         *
+         * @param out an array to reuse if it is large enough (may be null)
+         * @return an array with the values of vertex i starting at index i * dim(name)
+         */
+        public synchronized float[] getArray(String name, float[] out)
+        {
+            int nidx = Curves.this.names.indexOf(name);
+            Global.assume(nidx >= 0, "attribute does not exist: " + name);
+
+            int len = this.num * Curves.this.protos.get(nidx).size();
+            if (out == null || out.length < len)
+            {
+                out = new float[len];
+            }
+
+            System.arraycopy(this.data.get(nidx), 0, out, 0, len);
+
+            return out;
+        }
+
+        /**
+         * set the packed values of an existing attribute, which avoids creating a vect for each vertex
+         *
+         * @param in an array with the values of vertex i starting at index offset + i * dim(name)
+         */
+        public synchronized void setArray(String name, float[] in, int offset)
+        {
+            int nidx = Curves.this.names.indexOf(name);
+            Global.assume(nidx >= 0, "attribute does not exist: " + name);
+
+            int len = this.num * Curves.this.protos.get(nidx).size();
+            System.arraycopy(in, offset, this.data.get(nidx), 0, len);
+        }
+
         public synchronized void set(int idx, Vect value)
         {
             this.set(Curves.COORD, idx, value);
@@ -1134,7 +1172,9 @@ public class Curves implements Indexed<Curve>, Dataset
 
         if (fn.endsWith("vtk.gz"))
         {
-            return VtkCurvesCoder.read(new GZIPInputStream(is));
+            // decompression is serial, so overlap it with parsing
+            InputStream gis = new GZIPInputStream(is, 1 << 16);
+            return VtkCurvesCoder.read(Global.IO_THREADS > 1 ? new ReadAheadInputStream(gis) : gis);
         }
         else if (fn.endsWith("vtk"))
         {
@@ -1184,7 +1224,7 @@ public class Curves implements Indexed<Curve>, Dataset
 
         if (fn.endsWith("vtk.gz"))
         {
-            VtkCurvesCoder.write(this, new GZIPOutputStream(os));
+            VtkCurvesCoder.write(this, Global.IO_THREADS > 1 ? new ParallelGZIPOutputStream(os, Global.IO_THREADS) : new GZIPOutputStream(os));
         }
         else if (fn.endsWith("vtk"))
         {
@@ -283,6 +283,47 @@ public class Mask implements Dataset
         return this.sampling.contains(i, j, k);
     }
 
+    /**
+     * @return the linear indices of the foreground voxels in index order
+     */
+    public int[] indices()
+    {
+        int count = 0;
+        for (int label : this.labels)
+        {
+            if (label != 0)
+            {
+                count += 1;
+            }
+        }
+
+        int[] out = new int[count];
+        int pos = 0;
+        for (int idx = 0; idx < this.labels.length; idx++)
+        {
+            if (this.labels[idx] != 0)
+            {
+                out[pos++] = idx;
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * visit the foreground voxels in index order
+     */
+    public void visit(Sampling.Visitor visitor)
+    {
+        this.sampling.visit((i, j, k, idx) ->
+        {
+            if (this.labels[idx] != 0)
+            {
+                visitor.visit(i, j, k, idx);
+            }
+        });
+    }
+
     public Volume protoVolume()
     {
         return VolumeSource.create(sampling, 1);
@@ -0,0 +1,257 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.datasets;
+
+import qit.base.Global;
+import qit.base.structs.Integers;
+
+import java.util.List;
+
+/**
+ * a precomputed table of voxel offsets for a stencil on a given sampling.  Each
+ * tap stores its displacement (di, dj, dk) and the equivalent offset of the
+ * linear index, so the neighbors of an interior voxel are found by adding the
+ * offset to the voxel index without bounds checks or sample objects.  The
+ * extent of the stencil is recorded to decide whether a voxel is interior.
+ */
+public class Neighborhood
+{
+    public final int[] di;
+    public final int[] dj;
+    public final int[] dk;
+    public final int[] offset;
+
+    private final int ni;
+    private final int nj;
+    private final int nk;
+
+    private int minI = 0;
+    private int maxI = 0;
+    private int minJ = 0;
+    private int maxJ = 0;
+    private int minK = 0;
+    private int maxK = 0;
+
+    private Neighborhood(Sampling sampling, int[] di, int[] dj, int[] dk)
+    {
+        this.ni = sampling.numI();
+        this.nj = sampling.numJ();
+        this.nk = sampling.numK();
+
+        this.di = di;
+        this.dj = dj;
+        this.dk = dk;
+        this.offset = new int[di.length];
+
+        for (int n = 0; n < di.length; n++)
+        {
+            this.offset[n] = di[n] + this.ni * (dj[n] + this.nj * dk[n]);
+
+            this.minI = Math.min(this.minI, di[n]);
+            this.maxI = Math.max(this.maxI, di[n]);
+            this.minJ = Math.min(this.minJ, dj[n]);
+            this.maxJ = Math.max(this.maxJ, dj[n]);
+            this.minK = Math.min(this.minK, dk[n]);
+            this.maxK = Math.max(this.maxK, dk[n]);
+        }
+    }
+
+    /**
+     * create the face (6), edge (18), or vertex (26) connected neighborhood, excluding the center voxel
+     */
+    public static Neighborhood create(Sampling sampling, int connectivity)
+    {
+        Global.assume(connectivity == 6 || connectivity == 18 || connectivity == 26, "invalid connectivity: " + connectivity);
+
+        int[] di = new int[connectivity];
+        int[] dj = new int[connectivity];
+        int[] dk = new int[connectivity];
+
+        int n = 0;
+        for (int k = -1; k <= 1; k++)
+        {
+            for (int j = -1; j <= 1; j++)
+            {
+                for (int i = -1; i <= 1; i++)
+                {
+                    int order = Math.abs(i) + Math.abs(j) + Math.abs(k);
+                    if (order == 0 || (connectivity == 6 && order > 1) || (connectivity == 18 && order > 2))
+                    {
+                        continue;
+                    }
+
+                    di[n] = i;
+                    dj[n] = j;
+                    dk[n] = k;
+                    n += 1;
+                }
+            }
+        }
+
+        return new Neighborhood(sampling, di, dj, dk);
+    }
+
+    /**
+     * create a neighborhood from the given list of displacements
+     */
+    public static Neighborhood create(Sampling sampling, List<Integers> offsets)
+    {
+        int num = offsets.size();
+        int[] di = new int[num];
+        int[] dj = new int[num];
+        int[] dk = new int[num];
+
+        for (int n = 0; n < num; n++)
+        {
+            Integers offset = offsets.get(n);
+            di[n] = offset.getI();
+            dj[n] = offset.getJ();
+            dk[n] = offset.getK();
+        }
+
+        return new Neighborhood(sampling, di, dj, dk);
+    }
+
+    /**
+     * create a neighborhood from the foreground of a structuring element, which
+     * is centered on the middle voxel of the element.  Taps that leave the plane
+     * of a planar sampling are dropped, so a 3D element can be used on 2D images.
+     */
+    public static Neighborhood create(Sampling sampling, Mask element)
+    {
+        Sampling esampling = element.getSampling();
+
+        int ci = (esampling.numI() - 1) / 2;
+        int cj = (esampling.numJ() - 1) / 2;
+        int ck = (esampling.numK() - 1) / 2;
+
+        boolean pi = sampling.numI() == 1;
+        boolean pj = sampling.numJ() == 1;
+        boolean pk = sampling.numK() == 1;
+
+        int[] di = new int[esampling.size()];
+        int[] dj = new int[esampling.size()];
+        int[] dk = new int[esampling.size()];
+
+        int n = 0;
+        for (int k = 0; k < esampling.numK(); k++)
+        {
+            for (int j = 0; j < esampling.numJ(); j++)
+            {
+                for (int i = 0; i < esampling.numI(); i++)
+                {
+                    if (element.background(i, j, k))
+                    {
+                        continue;
+                    }
+
+                    int oi = i - ci;
+                    int oj = j - cj;
+                    int ok = k - ck;
+
+                    if ((pi && oi != 0) || (pj && oj != 0) || (pk && ok != 0))
+                    {
+                        continue;
+                    }
+
+                    di[n] = oi;
+                    dj[n] = oj;
+                    dk[n] = ok;
+                    n += 1;
+                }
+            }
+        }
+
+        return new Neighborhood(sampling, copy(di, n), copy(dj, n), copy(dk, n));
+    }
+
+    public int size()
+    {
+        return this.offset.length;
+    }
+
+    /**
+     * @return true if every tap of the given voxel is inside the sampling
+     */
+    public boolean interior(int i, int j, int k)
+    {
+        return i + this.minI >= 0 && i + this.maxI < this.ni
+                && j + this.minJ >= 0 && j + this.maxJ < this.nj
+                && k + this.minK >= 0 && k + this.maxK < this.nk;
+    }
+
+    /**
+     * @return true if the given tap of the voxel is inside the sampling
+     */
+    public boolean contains(int n, int i, int j, int k)
+    {
+        int ii = i + this.di[n];
+        int jj = j + this.dj[n];
+        int kk = k + this.dk[n];
+
+        return ii >= 0 && ii < this.ni && jj >= 0 && jj < this.nj && kk >= 0 && kk < this.nk;
+    }
+
+    /**
+     * @return the index of the given tap of the voxel, or -1 if it is outside the sampling
+     */
+    public int neighbor(int n, int i, int j, int k, int idx)
+    {
+        return this.contains(n, i, j, k) ? idx + this.offset[n] : -1;
+    }
+
+    private static int[] copy(int[] values, int num)
+    {
+        int[] out = new int[num];
+        System.arraycopy(values, 0, out, 0, num);
+        return out;
+    }
+}
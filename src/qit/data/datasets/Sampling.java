@@ -55,6 +55,7 @@ import com.google.common.collect.Lists;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import qit.base.Global;
+import qit.base.Logging;
 import qit.base.structs.Integers;
 import qit.base.structs.Pair;
 import qit.base.utils.JsonUtils;
@@ -65,6 +66,9 @@ import qit.math.structs.Containable;
 import qit.math.structs.Quaternion;
 
 import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import qit.math.structs.Segment;
 import qit.math.utils.MathUtils;
 
@@ -1301,6 +1305,83 @@ public class Sampling implements Iterable<Sample>
         };
     }
 
+    /**
+     * a callback for visiting voxels by index, which avoids allocating a sample per voxel
+     */
+    public interface Visitor
+    {
+        void visit(int i, int j, int k, int idx);
+    }
+
+    /**
+     * visit every voxel in index order
+     */
+    public void visit(Visitor visitor)
+    {
+        this.visit(0, this.num.get(1) * this.num.get(2), visitor);
+    }
+
+    /**
+     * visit every voxel using the given number of threads, where each thread
+     * visits a contiguous slab of rows.  The visitor must be safe to call
+     * concurrently for different voxels.
+     */
+    public void visit(int threads, Visitor visitor)
+    {
+        int rows = this.num.get(1) * this.num.get(2);
+
+        if (threads < 2 || rows < 2)
+        {
+            this.visit(visitor);
+            return;
+        }
+
+        int chunk = Math.max(1, (rows + 4 * threads - 1) / (4 * threads));
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        for (int start = 0; start < rows; start += chunk)
+        {
+            final int fstart = start;
+            final int fend = Math.min(rows, start + chunk);
+            exec.execute(() -> this.visit(fstart, fend, visitor));
+        }
+
+        exec.shutdown();
+        try
+        {
+            exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+
+    private void visit(int start, int end, Visitor visitor)
+    {
+        int ni = this.num.get(0);
+        int nj = this.num.get(1);
+
+        int j = start % nj;
+        int k = start / nj;
+        int idx = start * ni;
+
+        for (int row = start; row < end; row++)
+        {
+            for (int i = 0; i < ni; i++)
+            {
+                visitor.visit(i, j, k, idx++);
+            }
+
+            j += 1;
+            if (j == nj)
+            {
+                j = 0;
+                k += 1;
+            }
+        }
+    }
+
     public Iterator<Sample> iterator()
     {
         return new SampleIterator();
@@ -86,8 +86,14 @@ public class Volume implements Dataset
 
     private Sampling sampling;
     private DataBuffer data;
+    private int dim;
     private ModelType model = ModelType.Vect;
 
+    // when interleaved, the channels of each voxel are stored contiguously in a single bank
+    private boolean interleaved = false;
+    private float[] floats;
+    private double[] doubles;
+
     protected Volume()
     {
     }
@@ -96,37 +102,192 @@ public class Volume implements Dataset
     {
         this.sampling = volume.sampling;
         this.data = volume.data;
+        this.dim = volume.dim;
+        this.interleaved = volume.interleaved;
+        this.cache();
     }
 
     public Volume(Sampling sampling, DataType type, int dim)
+    {
+        this(sampling, type, dim, false);
+    }
+
+    /**
+     * @param interleaved store the channels of each voxel contiguously, which is faster for reading whole voxels
+     */
+    public Volume(Sampling sampling, DataType type, int dim, boolean interleaved)
     {
         Global.assume(dim >= 0, "invalid channel");
 
         this.sampling = sampling;
+        this.dim = dim;
+        this.interleaved = interleaved;
+        this.data = buffer(type, sampling.size(), dim, interleaved);
+        this.cache();
+    }
+
+    private static DataBuffer buffer(DataType type, int size, int dim, boolean interleaved)
+    {
+        Global.assume(!interleaved || (long) size * dim <= Integer.MAX_VALUE, "volume is too large to interleave");
+
+        int len = interleaved ? size * dim : size;
+        int banks = interleaved ? 1 : dim;
 
-        int size = sampling.size();
         switch (type)
         {
             case BYTE:
-                this.data = new DataBufferByte(size, dim);
-                break;
+                return new DataBufferByte(len, banks);
             case DOUBLE:
-                this.data = new DataBufferDouble(size, dim);
-                break;
+                return new DataBufferDouble(len, banks);
             case FLOAT:
-                this.data = new DataBufferFloat(size, dim);
-                break;
+                return new DataBufferFloat(len, banks);
             case INT:
-                this.data = new DataBufferInt(size, dim);
-                break;
+                return new DataBufferInt(len, banks);
             case SHORT:
-                this.data = new DataBufferShort(size, dim);
-                break;
+                return new DataBufferShort(len, banks);
             case USHORT:
-                this.data = new DataBufferUShort(size, dim);
-                break;
+                return new DataBufferUShort(len, banks);
             default:
                 Logging.error("unsupported data type: " + type.toString());
+                return null;
+        }
+    }
+
+    private void cache()
+    {
+        // keep the primitive arrays of interleaved buffers, so voxels can be read without dispatching on the type
+        this.floats = this.interleaved && this.data instanceof DataBufferFloat ? ((DataBufferFloat) this.data).getData(0) : null;
+        this.doubles = this.interleaved && this.data instanceof DataBufferDouble ? ((DataBufferDouble) this.data).getData(0) : null;
+    }
+
+    public boolean isInterleaved()
+    {
+        return this.interleaved;
+    }
+
+    /**
+     * change the storage layout in place, which transposes the data if needed
+     *
+     * @param v whether the channels of each voxel should be stored contiguously
+     */
+    public Volume setInterleaved(boolean v)
+    {
+        if (v != this.interleaved)
+        {
+            DataBuffer next = buffer(this.getType(), this.sampling.size(), this.dim, v);
+            transpose(this.data, this.interleaved, next, v, this.sampling.size(), this.dim);
+
+            this.data = next;
+            this.interleaved = v;
+            this.cache();
+        }
+
+        return this;
+    }
+
+    /**
+     * copy the data to a new volume with the given storage layout, leaving this volume unchanged
+     *
+     * @param v whether the channels of each voxel should be stored contiguously
+     */
+    public Volume copyInterleaved(boolean v)
+    {
+        Volume out = new Volume(this.sampling, this.getType(), this.dim, v);
+        transpose(this.data, this.interleaved, out.data, v, this.sampling.size(), this.dim);
+        out.model = this.model;
+
+        return out;
+    }
+
+    /**
+     * copy data between buffers with the same or different layouts
+     */
+    private static void transpose(DataBuffer from, boolean fint, DataBuffer to, boolean tint, int size, int dim)
+    {
+        if (fint == tint)
+        {
+            copy(from, to);
+            return;
+        }
+
+        // voxels are processed in blocks, so both the planar and interleaved sides are accessed in short contiguous runs
+        int block = 1024;
+
+        if (from instanceof DataBufferFloat && to instanceof DataBufferFloat)
+        {
+            DataBufferFloat fbuf = (DataBufferFloat) from;
+            DataBufferFloat tbuf = (DataBufferFloat) to;
+
+            for (int start = 0; start < size; start += block)
+            {
+                int end = Math.min(size, start + block);
+                for (int d = 0; d < dim; d++)
+                {
+                    float[] plane = fint ? tbuf.getData(d) : fbuf.getData(d);
+                    float[] inter = fint ? fbuf.getData(0) : tbuf.getData(0);
+
+                    for (int idx = start; idx < end; idx++)
+                    {
+                        if (fint)
+                        {
+                            plane[idx] = inter[idx * dim + d];
+                        }
+                        else
+                        {
+                            inter[idx * dim + d] = plane[idx];
+                        }
+                    }
+                }
+            }
+        }
+        else
+        {
+            for (int start = 0; start < size; start += block)
+            {
+                int end = Math.min(size, start + block);
+                for (int d = 0; d < dim; d++)
+                {
+                    for (int idx = start; idx < end; idx++)
+                    {
+                        if (fint)
+                        {
+                            to.setElemDouble(d, idx, from.getElemDouble(0, idx * dim + d));
+                        }
+                        else
+                        {
+                            to.setElemDouble(0, idx * dim + d, from.getElemDouble(d, idx));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private double elem(int idx, int d)
+    {
+        if (this.floats != null)
+        {
+            return this.floats[idx * this.dim + d];
+        }
+        else if (this.interleaved)
+        {
+            return this.data.getElemDouble(0, idx * this.dim + d);
+        }
+        else
+        {
+            return this.data.getElemDouble(d, idx);
+        }
+    }
+
+    private void elem(int idx, int d, double v)
+    {
+        if (this.interleaved)
+        {
+            this.data.setElemDouble(0, idx * this.dim + d, v);
+        }
+        else
+        {
+            this.data.setElemDouble(d, idx, v);
         }
     }
 
@@ -210,7 +371,7 @@ public class Volume implements Dataset
         // are awful, but this avoids having to add a "use this datatype"
         // option to every module in the whole package
 
-        Volume out = new Volume(sampling, Global.getDataType(this.getType()), dim);
+        Volume out = new Volume(sampling, Global.getDataType(this.getType()), dim, this.interleaved && dim == this.getDim());
 
         if (dim == this.getDim())
         {
@@ -245,7 +406,7 @@ public class Volume implements Dataset
 
     public int getDim()
     {
-        return this.data.getNumBanks();
+        return this.dim;
     }
 
     public DataType getType()
@@ -277,15 +438,67 @@ public class Volume implements Dataset
 
     public void set(int idx, Vect input)
     {
-        for (int i = 0; i < this.data.getNumBanks(); i++)
+        for (int i = 0; i < this.dim; i++)
         {
-            this.data.setElemDouble(i, idx, input.get(i));
+            this.elem(idx, i, input.get(i));
         }
     }
 
     public void set(int idx, int dim, double v)
     {
-        this.data.setElemDouble(dim, idx, v);
+        this.elem(idx, dim, v);
+    }
+
+    /**
+     * set the channels of a voxel from a primitive array
+     */
+    public void set(int idx, double[] input)
+    {
+        if (this.floats != null)
+        {
+            int offset = idx * this.dim;
+            for (int i = 0; i < this.dim; i++)
+            {
+                this.floats[offset + i] = (float) input[i];
+            }
+        }
+        else if (this.doubles != null)
+        {
+            System.arraycopy(input, 0, this.doubles, idx * this.dim, this.dim);
+        }
+        else
+        {
+            for (int i = 0; i < this.dim; i++)
+            {
+                this.elem(idx, i, input[i]);
+            }
+        }
+    }
+
+    /**
+     * get the channels of a voxel in a primitive array, which is one contiguous read for interleaved volumes
+     */
+    public void get(int idx, double[] output)
+    {
+        if (this.floats != null)
+        {
+            int offset = idx * this.dim;
+            for (int i = 0; i < this.dim; i++)
+            {
+                output[i] = this.floats[offset + i];
+            }
+        }
+        else if (this.doubles != null)
+        {
+            System.arraycopy(this.doubles, idx * this.dim, output, 0, this.dim);
+        }
+        else
+        {
+            for (int i = 0; i < this.dim; i++)
+            {
+                output[i] = this.elem(idx, i);
+            }
+        }
     }
 
     public void set(int i, int j, int k, double v)
@@ -306,49 +519,51 @@ public class Volume implements Dataset
     public void set(Sample sample, int dim, double v)
     {
         int idx = this.sampling.index(sample);
-        this.data.setElemDouble(dim, idx, v);
+        this.elem(idx, dim, v);
     }
 
     public void get(Sample sample, Vect output)
     {
         int idx = this.sampling.index(sample);
-        for (int i = 0; i < this.data.getNumBanks(); i++)
-        {
-            output.set(i, this.data.getElemDouble(i, idx));
-        }
+        this.get(idx, output);
     }
 
     public void get(int idx, Vect output)
     {
-        for (int i = 0; i < this.data.getNumBanks(); i++)
+        if (this.floats != null)
         {
-            output.set(i, this.data.getElemDouble(i, idx));
+            int offset = idx * this.dim;
+            for (int i = 0; i < this.dim; i++)
+            {
+                output.set(i, this.floats[offset + i]);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < this.dim; i++)
+            {
+                output.set(i, this.elem(idx, i));
+            }
         }
     }
 
     public Vect get(int idx)
     {
         Vect output = new Vect(this.getDim());
-        for (int i = 0; i < this.data.getNumBanks(); i++)
-        {
-            output.set(i, this.data.getElemDouble(i, idx));
-        }
+        this.get(idx, output);
         return output;
     }
 
     public double get(int idx, int dim)
     {
-        return this.data.getElemDouble(dim, idx);
+        return this.elem(idx, dim);
     }
 
     public Vect get(Sample sample)
     {
         Vect output = new Vect(this.getDim());
         int idx = this.sampling.index(sample);
-        for (int i = 0; i < this.data.getNumBanks(); i++)
-        {
-            output.set(i, this.data.getElemDouble(i, idx));
-        }
+        this.get(idx, output);
         return output;
     }
 
@@ -359,7 +574,7 @@ public class Volume implements Dataset
         {
             Logging.error("test");
         }
-        return this.data.getElemDouble(dim, idx);
+        return this.elem(idx, dim);
     }
 
     public Vect get(int i, int j, int k)
@@ -422,6 +637,23 @@ public class Volume implements Dataset
         return this.sampling.contains(i, j, k) && (mask == null || mask.foreground(i, j, k));
     }
 
+    /**
+     * visit the voxels that are valid with respect to the given mask (which may be null) in index order
+     */
+    public void visit(Mask mask, Sampling.Visitor visitor)
+    {
+        Global.assume(mask == null || mask.getSampling().num().equals(this.sampling.num()), "invalid mask, must match dimensions of the volume");
+
+        if (mask == null)
+        {
+            this.sampling.visit(visitor);
+        }
+        else
+        {
+            mask.visit(visitor);
+        }
+    }
+
     public boolean valid(Sample sample)
     {
         return this.sampling.contains(sample);
@@ -442,7 +674,7 @@ public class Volume implements Dataset
         Global.assume(this.getSampling().equals(v.getSampling()), "samplings do no match");
         Global.assume(this.getDim() == v.getDim(), "dimensions do not match");
 
-        copy(v.data, this.data);
+        transpose(v.data, v.interleaved, this.data, this.interleaved, this.sampling.size(), this.dim);
         this.model = v.model;
     }
 
@@ -529,6 +761,22 @@ public class Volume implements Dataset
 
     public Vect vect()
     {
+        if (this.interleaved)
+        {
+            // keep the planar ordering
+            int size = this.sampling.size();
+            Vect out = new Vect(this.dim * size);
+            for (int d = 0; d < this.dim; d++)
+            {
+                for (int idx = 0; idx < size; idx++)
+                {
+                    out.set(size * d + idx, this.elem(idx, d));
+                }
+            }
+
+            return out;
+        }
+
         return VectSource.create(this.data);
     }
 
@@ -609,6 +857,14 @@ public class Volume implements Dataset
         return EXTS;
     }
 
+    /**
+     * @param interleaved whether the volume should be stored with the channels of each voxel stored contiguously
+     */
+    public static Volume read(String fn, boolean interleaved) throws IOException
+    {
+        return read(fn).setInterleaved(interleaved);
+    }
+
     public static Volume read(String fn) throws IOException
     {
         Global.assume(PathUtils.exists(fn), "file not found: " + fn);
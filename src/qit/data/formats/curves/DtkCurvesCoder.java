@@ -60,7 +60,6 @@ import qit.data.datasets.Curves;
 import qit.data.datasets.Curves.Curve;
 import qit.data.datasets.Sampling;
 import qit.data.datasets.Vect;
-import qit.data.source.VectSource;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -68,6 +67,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class DtkCurvesCoder
 {
@@ -96,51 +97,85 @@ public class DtkCurvesCoder
             curves.add(scalars[i], new Vect(1));
         }
 
-        Affine xfm = IMAGE ? Affine.id(3) : h.xfm();
+        double[] m = coefficients(IMAGE ? Affine.id(3) : h.xfm());
+
+        // each record is decoded in bulk into a float array
+        int stride = 3 + h.n_scalars;
+        byte[] bytes = new byte[Integer.BYTES];
+        float[] values = new float[0];
+        float[] coords = new float[0];
+        float[] scalar = new float[0];
 
         // n_count is zero for DTI curves, so don't use it...
         int idx = 0;
-        int count = -1;
         while (true)
         {
+            int count;
             try
             {
-                count = dis.readInt();
+                dis.readFully(bytes, 0, Integer.BYTES);
+                count = ByteBuffer.wrap(bytes, 0, Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            }
+            catch (EOFException eof)
+            {
+                break;
+            }
 
-                Curve curve = curves.add(count);
-                for (int i = 0; i < count; i++)
-                {
-                    double x = dis.readFloat();
-                    double y = dis.readFloat();
-                    double z = dis.readFloat();
-                    Vect v = xfm.apply(VectSource.create3D(x, y, z));
-
-                    curve.set(Curves.COORD, i, v);
-
-                    for (int j = 0; j < h.n_scalars; j++)
-                    {
-                        double val = dis.readFloat();
-                        curve.set(scalars[j], i, VectSource.create1D(val));
-                    }
-                }
+            if (count < 0)
+            {
+                Logging.info(String.format("warning: stopping at invalid curve. index: %d, count: %d ", idx, count));
+                break;
+            }
 
-                for (int j = 0; j < h.n_properties; j++)
-                {
-                    dis.readFloat();
-                    // dont use properties
-                }
+            int num = count * stride + h.n_properties;
+            if (values.length < num)
+            {
+                values = new float[num];
+                bytes = new byte[num * Float.BYTES];
+            }
+            if (coords.length < 3 * count)
+            {
+                coords = new float[3 * count];
+                scalar = new float[count];
+            }
 
-                idx += 1;
+            try
+            {
+                dis.readFully(bytes, 0, num * Float.BYTES);
             }
             catch (EOFException eof)
             {
+                Logging.info(String.format("warning: skipping curve that was truncated. index: %d, count: %d ", idx, count));
                 break;
             }
-            catch (Exception e)
+
+            ByteBuffer.wrap(bytes, 0, num * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values, 0, num);
+
+            Curve curve = curves.add(count);
+            for (int i = 0; i < count; i++)
             {
-                Logging.info(String.format("warning: skipping curve that was invalid. index: %d, count: %d ", idx, count));
-                continue;
+                double x = values[i * stride];
+                double y = values[i * stride + 1];
+                double z = values[i * stride + 2];
+
+                coords[3 * i] = (float) (m[0] * x + m[1] * y + m[2] * z + m[3]);
+                coords[3 * i + 1] = (float) (m[4] * x + m[5] * y + m[6] * z + m[7]);
+                coords[3 * i + 2] = (float) (m[8] * x + m[9] * y + m[10] * z + m[11]);
             }
+            curve.setArray(Curves.COORD, coords, 0);
+
+            for (int j = 0; j < h.n_scalars; j++)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    scalar[i] = values[i * stride + 3 + j];
+                }
+                curve.setArray(scalars[j], scalar, 0);
+            }
+
+            // dont use properties
+
+            idx += 1;
         }
 
         dis.close();
@@ -179,23 +214,60 @@ public class DtkCurvesCoder
         h.n_properties = 0;
         h.n_scalars = 0;
 
-        Affine xfm = IMAGE ? Affine.id(3) : h.xfm().inv();
+        double[] m = coefficients(IMAGE ? Affine.id(3) : h.xfm().inv());
 
         DtkHeader.write(dos, h);
 
+        ByteBuffer buffer = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        float[] coords = null;
         for (Curve curve : curves)
         {
-            dos.writeInt(curve.size());
+            int count = curve.size();
+            int len = Integer.BYTES + 3 * count * Float.BYTES;
+            if (buffer.capacity() < len)
+            {
+                buffer = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            coords = curve.getArray(Curves.COORD, coords);
 
-            for (Vect v : curve.get(Curves.COORD))
+            buffer.clear();
+            buffer.putInt(count);
+            for (int i = 0; i < count; i++)
             {
-                Vect tv = xfm.apply(v);
-                dos.writeFloat((float) tv.get(0));
-                dos.writeFloat((float) tv.get(1));
-                dos.writeFloat((float) tv.get(2));
+                double x = coords[3 * i];
+                double y = coords[3 * i + 1];
+                double z = coords[3 * i + 2];
+
+                buffer.putFloat((float) (m[0] * x + m[1] * y + m[2] * z + m[3]));
+                buffer.putFloat((float) (m[4] * x + m[5] * y + m[6] * z + m[7]));
+                buffer.putFloat((float) (m[8] * x + m[9] * y + m[10] * z + m[11]));
             }
+
+            dos.write(buffer.array(), 0, buffer.position());
         }
 
         dos.close();
     }
+
+    /**
+     * @return the coefficients of an affine transform as a row-major 3x4 matrix
+     */
+    private static double[] coefficients(Affine xfm)
+    {
+        Matrix linear = xfm.linear();
+        Vect trans = xfm.trans();
+
+        double[] out = new double[12];
+        for (int i = 0; i < 3; i++)
+        {
+            for (int j = 0; j < 3; j++)
+            {
+                out[4 * i + j] = linear.get(i, j);
+            }
+            out[4 * i + 3] = trans.get(i);
+        }
+
+        return out;
+    }
 }
@@ -31,16 +31,17 @@ package qit.data.formats.curves;
  *******************************************************************************/
 
 import qit.base.Logging;
-import qit.base.structs.LEDataInputStream;
-import qit.base.structs.LEDataOutputStream;
 import qit.data.datasets.Curves;
 import qit.data.datasets.Curves.Curve;
-import qit.data.datasets.Vect;
-import qit.data.datasets.Vects;
-import qit.data.source.VectSource;
 
 import java.io.*;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 // a coder for the MRtrix curves format
 // reference: http://mrtrix.readthedocs.io/en/latest/getting_started/image_data.html
@@ -53,6 +54,8 @@ public class TckCurvesCoder
     public final static String START = "file";
     public final static String END = "END";
 
+    private final static int CHUNK = 1 << 20;
+
     @SuppressWarnings("deprecation")
     public static Curves read(String path) throws IOException
     {
@@ -119,67 +122,71 @@ public class TckCurvesCoder
             dis.close();
         }
 
-        DataInput dis = null;
-        if (little)
-        {
-            dis = new LEDataInputStream(new BufferedInputStream(new FileInputStream(path)));
-        }
-        else
-        {
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
-        }
-
-        // skip the header
-        for (int i = 0; i < start; i++)
-        {
-            dis.readByte();
-        }
-
         Curves out = new Curves();
 
-        try
+        // decode blocks of whole vertices straight from the file into a float array
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
         {
+            channel.position(start);
 
-            List<Vect> vects = new Vects();
-            while (true)
+            ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK).order(little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            float[] values = new float[CHUNK / Float.BYTES];
+            float[] vertices = new float[3 * 1024];
+            int size = 0;
+
+            boolean done = false;
+            while (!done)
             {
-                float x = dis.readFloat();
-                float y = dis.readFloat();
-                float z = dis.readFloat();
+                int read = channel.read(bytes);
+                bytes.flip();
 
-                if (Float.isNaN(x) || Float.isInfinite(x))
+                int num = bytes.remaining() / (3 * Float.BYTES) * 3;
+                if (num == 0)
                 {
-                    Curve curve = out.add(vects.size());
-                    for (int i = 0; i < vects.size(); i++)
-                    {
-                        curve.set(Curves.COORD, i, vects.get(i));
-                    }
-                    vects.clear();
-
-                    if (Float.isInfinite(x))
+                    if (read < 0)
                     {
+                        Logging.info("warning file ended early");
                         break;
                     }
+
+                    bytes.compact();
+                    continue;
                 }
-                else
+
+                bytes.asFloatBuffer().get(values, 0, num);
+                bytes.position(bytes.position() + num * Float.BYTES);
+                bytes.compact();
+
+                for (int v = 0; v < num; v += 3)
                 {
-                    vects.add(VectSource.create3D(x, y, z));
+                    float x = values[v];
+
+                    if (Float.isNaN(x) || Float.isInfinite(x))
+                    {
+                        Curve curve = out.add(size / 3);
+                        curve.setArray(Curves.COORD, vertices, 0);
+                        size = 0;
+
+                        if (Float.isInfinite(x))
+                        {
+                            done = true;
+                            break;
+                        }
+                    }
+                    else
+                    {
+                        if (size + 3 > vertices.length)
+                        {
+                            vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+                        }
+
+                        vertices[size++] = x;
+                        vertices[size++] = values[v + 1];
+                        vertices[size++] = values[v + 2];
+                    }
                 }
             }
         }
-        catch (EOFException e)
-        {
-            Logging.info("warning file ended early");
-        }
-
-        if (little)
-        {
-            ((LEDataInputStream) dis).close();
-        }
-        else
-        {
-            ((DataInputStream) dis).close();
-        }
 
         return out;
     }
@@ -196,43 +203,42 @@ public class TckCurvesCoder
 
         int remainder = startByte - header.length();
 
-        LEDataOutputStream dos = new LEDataOutputStream(os);
-        dos.writeBytes(header);
-        for (int i = 0; i < remainder; i++)
-        {
-            dos.writeByte(0);
-        }
+        os.write(header.getBytes(StandardCharsets.US_ASCII));
+        os.write(new byte[remainder]);
+
+        ByteBuffer bytes = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        float[] vertices = null;
 
         for (int i = 0; i < curves.size(); i++)
         {
             Curve curve = curves.get(i);
+            vertices = curve.getArray(Curves.COORD, vertices);
 
-            for (int j = 0; j < curve.size(); j++)
+            for (int j = 0; j < 3 * curve.size(); j++)
             {
-                Vect p = curve.get(j);
-                float x = (float) p.getX();
-                float y = (float) p.getY();
-                float z = (float) p.getZ();
-
-                dos.writeFloat(x);
-                dos.writeFloat(y);
-                dos.writeFloat(z);
-            }
+                if (!bytes.hasRemaining())
+                {
+                    os.write(bytes.array(), 0, bytes.position());
+                    bytes.clear();
+                }
 
-            if (i < curves.size() - 1)
-            {
-                dos.writeFloat(Float.NaN);
-                dos.writeFloat(Float.NaN);
-                dos.writeFloat(Float.NaN);
+                bytes.putFloat(vertices[j]);
             }
-            else
+
+            float delim = i < curves.size() - 1 ? Float.NaN : Float.POSITIVE_INFINITY;
+            for (int j = 0; j < 3; j++)
             {
-                dos.writeFloat(Float.POSITIVE_INFINITY);
-                dos.writeFloat(Float.POSITIVE_INFINITY);
-                dos.writeFloat(Float.POSITIVE_INFINITY);
+                if (!bytes.hasRemaining())
+                {
+                    os.write(bytes.array(), 0, bytes.position());
+                    bytes.clear();
+                }
+
+                bytes.putFloat(delim);
             }
         }
 
-        dos.close();
+        os.write(bytes.array(), 0, bytes.position());
+        os.close();
     }
 }
@@ -188,76 +188,47 @@ public class VtkCurvesCoder
             }
 
             String[] lineTokens = line.split("\\s+");
+            if (lineTokens.length < 3)
+            {
+                Logging.error("invalid lines header: " + line);
+            }
+
             int nlines = Integer.parseInt(lineTokens[1]);
-            // int total = Integer.parseInt(lineTokens[1]);
-            Vect buffer = new Vect(3);
+            int total = Integer.parseInt(lineTokens[2]);
 
-            for (int i = 0; i < nlines; i++)
+            // the connectivity is read in bulk, where each line is a count followed by vertex indices
+            int[] cells = new int[total];
+            if (binary)
             {
-                int length = 0;
-                int[] vidx = null;
+                ArrayUtils.readArrayBinaryInteger(dis, cells);
+            }
+            else
+            {
+                ArrayUtils.readArrayText(dis, cells);
+            }
 
-                if (binary)
+            float[] buffer = new float[0];
+            int pos = 0;
+            for (int i = 0; i < nlines; i++)
+            {
+                if (pos >= total || pos + cells[pos] >= total)
                 {
-                    length = dis.readInt();
-                    int num = length;
-                    vidx = new int[num];
-                    for (int j = 0; j < num; j++)
-                    {
-                        vidx[j] = dis.readInt();
-                    }
+                    Logging.error("Unexpected end of line");
                 }
-                else
-                {
-                    int idx = 0;
-                    while (vidx == null || idx < length)
-                    {
-                        while (true)
-                        {
-                            line = dis.readLine();
 
-                            if (line == null)
-                            {
-                                Logging.error("Unexpected end of line");
-                            }
-
-                            if (line.length() > 0)
-                            {
-                                break;
-                            }
-                        }
-
-                        String[] tokens = line.split("\\s+");
-                        if (vidx == null)
-                        {
-                            length = Integer.parseInt(tokens[0]);
-                            int num = length;
-                            vidx = new int[num];
-                            for (int j = 1; j < tokens.length; j++)
-                            {
-                                vidx[idx++] = Integer.parseInt(tokens[j]);
-                            }
-                        }
-                        else
-                        {
-                            for (String token : tokens)
-                            {
-                                vidx[idx++] = Integer.parseInt(token);
-                            }
-                        }
-                    }
+                int length = cells[pos++];
+                if (buffer.length < 3 * length)
+                {
+                    buffer = new float[3 * length];
                 }
 
-                Curve curve = curves.add(length);
                 for (int j = 0; j < length; j++)
                 {
-                    for (int k = 0; k < 3; k++)
-                    {
-                        buffer.set(k, coords[3 * vidx[j] + k]);
-                    }
-
-                    curve.set(Curves.COORD, j, buffer);
+                    int vidx = cells[pos++];
+                    System.arraycopy(coords, 3 * vidx, buffer, 3 * j, 3);
                 }
+
+                curves.add(length).setArray(Curves.COORD, buffer, 0);
             }
         }
 
@@ -368,10 +339,24 @@ public class VtkCurvesCoder
                         ArrayUtils.readArrayText(dis, fvals);
                     }
 
+                    curves.add(fname, fvect.proto());
+
+                    if (fnum == curves.numVertices())
+                    {
+                        // the common case of one value per vertex can be copied in bulk
+                        int offset = 0;
+                        for (Curve curve : curves)
+                        {
+                            curve.setArray(fname, fvals, offset);
+                            offset += fdim * curve.size();
+                        }
+
+                        continue;
+                    }
+
                     int cidx = 0;
                     int vidx = 0;
 
-                    curves.add(fname, fvect.proto());
                     Curve curve = curves.get(cidx);
                     for (int i = 0; i < fnum; i++)
                     {
@@ -467,8 +452,16 @@ public class VtkCurvesCoder
         }
         dos.writeBytes("\n");
 
+        float[] values = null;
         for (Curve curve : curves)
         {
+            if (binary && ftype)
+            {
+                values = curve.getArray(Curves.COORD, values);
+                ArrayUtils.writeArrayBinaryFloat(dos, values, 0, 3 * curve.size());
+                continue;
+            }
+
             for (Vect vect : curve.get(Curves.COORD))
             {
                 for (int i = 0; i < vect.size(); i++)
@@ -521,24 +514,29 @@ public class VtkCurvesCoder
         dos.writeBytes("\n");
 
         int idx = 0;
+        int[] cells = new int[1];
         for (Curve curve : curves)
         {
             int len = curve.size();
             if (binary)
             {
-                dos.writeInt(len);
+                if (cells.length < len + 1)
+                {
+                    cells = new int[len + 1];
+                }
+
+                cells[0] = len;
+                for (int i = 0; i < len; i++)
+                {
+                    cells[i + 1] = idx++;
+                }
+
+                ArrayUtils.writeArrayBinaryInteger(dos, cells, 0, len + 1);
             }
             else
             {
                 dos.writeBytes(String.valueOf(len));
-            }
-            for (int i = 0; i < len; i++)
-            {
-                if (binary)
-                {
-                    dos.writeInt(idx++);
-                }
-                else
+                for (int i = 0; i < len; i++)
                 {
                     dos.writeBytes(" ");
                     dos.writeBytes(String.valueOf(idx++));
@@ -636,6 +634,13 @@ public class VtkCurvesCoder
 
             for (Curve curve : curves)
             {
+                if (binary && ftype && !color)
+                {
+                    values = curve.getArray(s, values);
+                    ArrayUtils.writeArrayBinaryFloat(dos, values, 0, dim * curve.size());
+                    continue;
+                }
+
                 for (Vect vect : curve.get(s))
                 {
                     for (int i = 0; i < vect.size(); i++)
@@ -53,6 +53,7 @@ package qit.data.formats.mesh;
 import qit.data.datasets.Mesh;
 import qit.data.datasets.Vect;
 import qit.data.source.VectSource;
+import qit.data.utils.mesh.MeshCompact;
 import qit.math.structs.Face;
 import qit.math.structs.Vertex;
 
@@ -63,10 +64,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class OffMeshCoder
 {
@@ -77,8 +74,6 @@ public class OffMeshCoder
     {
         DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
 
-        Mesh mesh = new Mesh();
-
         // Check first line for identifier
         if (!dis.readLine().startsWith("OFF"))
         {
@@ -90,34 +85,31 @@ public class OffMeshCoder
         int nvert = Integer.valueOf(ntokens[0]);
         int nface = Integer.valueOf(ntokens[1]);
         
+        Mesh mesh = new Mesh();
         for (int i = 0; i < nvert; i++)
         {
-            String[] vtokens = dis.readLine().split(" ");
+            String[] vtokens = dis.readLine().trim().split("\\s+");
             double x = Double.valueOf(vtokens[0]);
             double y = Double.valueOf(vtokens[1]);
             double z = Double.valueOf(vtokens[2]);
-            
-            Vect coords = VectSource.create3D(x, y, z);
+
             Vertex vert = new Vertex(i);
             mesh.graph.add(vert);
             mesh.vattr.add(vert);
-            mesh.vattr.set(vert, Mesh.COORD, coords);
+            mesh.vattr.set(vert, Mesh.COORD, VectSource.create3D(x, y, z));
         }
-        
+
+        // each face is given by its vertex count followed by its vertex indices
         for (int i = 0; i < nface; i++)
         {
-            String[] ftokens = dis.readLine().split(" ");
-            int a = Integer.valueOf(ftokens[0]);
-            int b = Integer.valueOf(ftokens[1]);
-            int c = Integer.valueOf(ftokens[2]);
-            
-            Vertex va = new Vertex(a);
-            Vertex vb = new Vertex(b);
-            Vertex vc = new Vertex(c);
+            String[] ftokens = dis.readLine().trim().split("\\s+");
+            Vertex va = new Vertex(Integer.valueOf(ftokens[1]));
+            Vertex vb = new Vertex(Integer.valueOf(ftokens[2]));
+            Vertex vc = new Vertex(Integer.valueOf(ftokens[3]));
 
             mesh.graph.add(new Face(va, vb, vc));
         }
-        
+
         dis.close();
 
         return mesh;
@@ -129,35 +121,19 @@ public class OffMeshCoder
         pw.writeBytes("OFF\n");
         pw.writeBytes(String.format("%d %d\n", mesh.graph.numVertex(), mesh.graph.numFace()));
 
-        List<Vertex> verts = new ArrayList<Vertex>(mesh.graph.numVertex());
-        for (Vertex vert : mesh.graph.verts())
-        {
-            verts.add(vert);
-        }
+        MeshCompact compact = MeshCompact.create(mesh, Mesh.COORD);
+        int[] faces = compact.getFaces();
 
-        Map<Vertex, Integer> vmap = new HashMap<Vertex, Integer>();
-        for (int i = 0; i < verts.size(); i++)
+        // the coordinates are taken from the mesh to keep double precision
+        for (int i = 0; i < compact.numVertex(); i++)
         {
-            vmap.put(verts.get(i), i);
+            Vect v = mesh.vattr.get(compact.getVertex(i), Mesh.COORD);
+            pw.writeBytes(String.format("%g %g %g\n", v.get(0), v.get(1), v.get(2)));
         }
 
-        for (Vertex vert : verts)
+        for (int i = 0; i < faces.length; i += 3)
         {
-            Vect v = mesh.vattr.get(vert, Mesh.COORD);
-            double x = v.get(0);
-            double y = v.get(1);
-            double z = v.get(2);
-            
-            pw.writeBytes(String.format("%g %g %g\n", x, y, z));
-        }
-        
-        for (Face f : mesh.graph.faces())
-        {
-            int a = vmap.get(f.getA());
-            int b = vmap.get(f.getB());
-            int c = vmap.get(f.getC());
-
-            pw.writeBytes(String.format("3 %d %d %d\n", a, b, c));
+            pw.writeBytes(String.format("3 %d %d %d\n", faces[i], faces[i + 1], faces[i + 2]));
         }
 
         pw.close();
@@ -52,12 +52,14 @@
 package qit.data.formats.mesh;
 
 import com.google.common.collect.Sets;
+import com.google.common.primitives.ImmutableIntArray;
 import qit.base.Global;
 import qit.base.Logging;
 import qit.base.utils.ArrayUtils;
 import qit.data.datasets.Mesh;
 import qit.data.datasets.Vect;
 import qit.data.source.VectSource;
+import qit.data.utils.mesh.MeshCompact;
 import qit.math.structs.Face;
 import qit.math.structs.Vertex;
 
@@ -70,11 +72,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
@@ -205,19 +208,8 @@ public class VtkMeshCoder
             }
         }
 
-        // initialize the mesh
-        Mesh mesh = new Mesh();
-        for (int i = 0; i < nvert; i++)
-        {
-            double x = coords[i * 3 + 0];
-            double y = coords[i * 3 + 1];
-            double z = coords[i * 3 + 2];
-
-            Vertex vert = new Vertex(i);
-            mesh.graph.add(vert);
-            mesh.vattr.add(vert);
-            mesh.vattr.set(vert, Mesh.COORD, VectSource.create3D(x, y, z));
-        }
+        // collect the triangles in an index buffer
+        ImmutableIntArray.Builder faces = ImmutableIntArray.builder();
 
         // Read the faces
         {
@@ -251,15 +243,9 @@ public class VtkMeshCoder
                             Logging.error("Only triangle meshes are supported");
                         }
 
-                        int a = dis.readInt();
-                        int b = dis.readInt();
-                        int c = dis.readInt();
-
-                        Vertex va = new Vertex(a);
-                        Vertex vb = new Vertex(b);
-                        Vertex vc = new Vertex(c);
-
-                        mesh.graph.add(new Face(va, vb, vc));
+                        faces.add(dis.readInt());
+                        faces.add(dis.readInt());
+                        faces.add(dis.readInt());
                     }
                 }
                 else
@@ -288,18 +274,7 @@ public class VtkMeshCoder
                             int b = Integer.parseInt(fitokens[2]);
                             int c = Integer.parseInt(fitokens[3]);
 
-                            Vertex va = new Vertex(a);
-                            Vertex vb = new Vertex(b);
-                            Vertex vc = new Vertex(c);
-
-                            try
-                            {
-                                mesh.graph.add(new Face(va, vb, vc));
-                            }
-                            catch (Exception e)
-                            {
-                                Logging.info("warning, failed to add face: " + line);
-                            }
+                            faces.add(a).add(b).add(c);
 
                             fcount++;
                         }
@@ -331,17 +306,11 @@ public class VtkMeshCoder
                             // alternate face orientations so they're consistent
                             if (j % 2 == 0)
                             {
-                                Vertex va = new Vertex(strip[j]);
-                                Vertex vb = new Vertex(strip[j + 1]);
-                                Vertex vc = new Vertex(strip[j + 2]);
-                                mesh.graph.add(new Face(va, vb, vc));
+                                faces.add(strip[j]).add(strip[j + 1]).add(strip[j + 2]);
                             }
                             else
                             {
-                                Vertex va = new Vertex(strip[j]);
-                                Vertex vb = new Vertex(strip[j + 2]);
-                                Vertex vc = new Vertex(strip[j + 1]);
-                                mesh.graph.add(new Face(va, vb, vc));
+                                faces.add(strip[j]).add(strip[j + 2]).add(strip[j + 1]);
                             }
                         }
                     }
@@ -368,17 +337,11 @@ public class VtkMeshCoder
                             // alternate face orientations so they're consistent
                             if (j % 2 == 0)
                             {
-                                Vertex va = new Vertex(strip[j]);
-                                Vertex vb = new Vertex(strip[j + 1]);
-                                Vertex vc = new Vertex(strip[j + 2]);
-                                mesh.graph.add(new Face(va, vb, vc));
+                                faces.add(strip[j]).add(strip[j + 1]).add(strip[j + 2]);
                             }
                             else
                             {
-                                Vertex va = new Vertex(strip[j]);
-                                Vertex vb = new Vertex(strip[j + 2]);
-                                Vertex vc = new Vertex(strip[j + 1]);
-                                mesh.graph.add(new Face(va, vb, vc));
+                                faces.add(strip[j]).add(strip[j + 2]).add(strip[j + 1]);
                             }
 
                         }
@@ -389,6 +352,9 @@ public class VtkMeshCoder
             }
         }
 
+        // initialize the mesh
+        Mesh mesh = mesh(coords, nvert, faces.build().toArray());
+
         while (line != null)
         {
             line = dis.readLine();
@@ -501,6 +467,48 @@ public class VtkMeshCoder
         return mesh;
     }
 
+    /**
+     * build a mesh from vertex coordinates and a triangle index buffer, skipping
+     * faces that are out of range or cannot be stored, e.g. non-manifold faces
+     */
+    private static Mesh mesh(float[] coords, int nvert, int[] faces)
+    {
+        Mesh mesh = new Mesh();
+
+        Vertex[] verts = new Vertex[nvert];
+        for (int i = 0; i < nvert; i++)
+        {
+            verts[i] = new Vertex(i);
+            mesh.graph.add(verts[i]);
+            mesh.vattr.add(verts[i]);
+            mesh.vattr.set(verts[i], Mesh.COORD, VectSource.create3D(coords[3 * i], coords[3 * i + 1], coords[3 * i + 2]));
+        }
+
+        for (int f = 0; f < faces.length / 3; f++)
+        {
+            int a = faces[3 * f];
+            int b = faces[3 * f + 1];
+            int c = faces[3 * f + 2];
+
+            if (Math.min(a, Math.min(b, c)) < 0 || Math.max(a, Math.max(b, c)) >= nvert)
+            {
+                Logging.info(String.format("warning, failed to add face: %d %d %d", a, b, c));
+                continue;
+            }
+
+            try
+            {
+                mesh.graph.add(new Face(verts[a], verts[b], verts[c]));
+            }
+            catch (RuntimeException e)
+            {
+                Logging.info(String.format("warning, failed to add face: %d %d %d", a, b, c));
+            }
+        }
+
+        return mesh;
+    }
+
     public static void write(Mesh mesh, OutputStream os) throws IOException
     {
         DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
@@ -546,39 +554,45 @@ public class VtkMeshCoder
         }
         dos.writeBytes("\n");
 
-        List<Vertex> verts = new ArrayList<>(mesh.graph.numVertex());
-        for (Vertex vert : mesh.graph.verts())
+        MeshCompact compact = MeshCompact.create(mesh, Mesh.COORD);
+        int[] faces = compact.getFaces();
+
+        // the coordinates are taken from the mesh to keep double precision
+        List<Vertex> verts = new ArrayList<>(nvert);
+        double[] coords = new double[3 * nvert];
+        for (int i = 0; i < nvert; i++)
         {
+            Vertex vert = compact.getVertex(i);
+            Vect vect = mesh.vattr.get(vert, Mesh.COORD);
+            coords[3 * i + 0] = vect.get(0);
+            coords[3 * i + 1] = vect.get(1);
+            coords[3 * i + 2] = vect.get(2);
             verts.add(vert);
         }
 
-        Map<Vertex, Integer> vmap = new HashMap<>();
-        for (int i = 0; i < verts.size(); i++)
+        // write points
+        if (binary && ftype)
         {
-            vmap.put(verts.get(i), i);
+            ByteBuffer buffer = ByteBuffer.allocate(4 * coords.length);
+            FloatBuffer fbuffer = buffer.asFloatBuffer();
+            for (double v : coords)
+            {
+                fbuffer.put((float) v);
+            }
+            dos.write(buffer.array());
         }
-
-        // write points
-        for (Vertex vert : verts)
+        else
         {
-            Vect vect = mesh.vattr.get(vert, Mesh.COORD);
-            for (int i = 0; i < vect.size(); i++)
+            for (int i = 0; i < coords.length; i++)
             {
-                double v = vect.get(i);
+                double v = coords[i];
                 if (binary)
                 {
-                    if (ftype)
-                    {
-                        dos.writeFloat((float) v);
-                    }
-                    else
-                    {
-                        dos.writeDouble(v);
-                    }
+                    dos.writeDouble(v);
                 }
                 else
                 {
-                    if (i != 0)
+                    if (i % 3 != 0)
                     {
                         dos.writeBytes(" ");
                     }
@@ -590,7 +604,7 @@ public class VtkMeshCoder
                     {
                         dos.writeBytes(String.valueOf(v));
                     }
-                    if (i == vect.size() - 1)
+                    if (i % 3 == 2)
                     {
                         dos.writeBytes("\n");
                     }
@@ -600,32 +614,36 @@ public class VtkMeshCoder
         dos.writeBytes("\n");
 
         // write faces
+        int nface = compact.numFace();
         dos.writeBytes(VTK_POLY);
         dos.writeBytes(" ");
-        dos.writeBytes(String.valueOf(mesh.graph.numFace()));
+        dos.writeBytes(String.valueOf(nface));
         dos.writeBytes(" ");
-        dos.writeBytes(String.valueOf((VTK_POLY_SIZE + 1) * mesh.graph.numFace()));
+        dos.writeBytes(String.valueOf((VTK_POLY_SIZE + 1) * nface));
         dos.writeBytes("\n");
 
-        for (Face f : mesh.graph.faces())
+        if (binary)
         {
-            if (binary)
+            ByteBuffer buffer = ByteBuffer.allocate(4 * (VTK_POLY_SIZE + 1) * nface);
+            IntBuffer ibuffer = buffer.asIntBuffer();
+            for (int f = 0; f < nface; f++)
             {
-                dos.writeInt(VTK_POLY_SIZE);
-                dos.writeInt(vmap.get(f.getA()));
-                dos.writeInt(vmap.get(f.getB()));
-                dos.writeInt(vmap.get(f.getC()));
+                ibuffer.put(VTK_POLY_SIZE);
+                ibuffer.put(faces, VTK_POLY_SIZE * f, VTK_POLY_SIZE);
             }
-            else
+            dos.write(buffer.array());
+        }
+        else
+        {
+            for (int f = 0; f < nface; f++)
             {
                 dos.writeBytes(" ");
                 dos.writeBytes(String.valueOf(VTK_POLY_SIZE));
-                dos.writeBytes(" ");
-                dos.writeBytes(String.valueOf(vmap.get(f.getA())));
-                dos.writeBytes(" ");
-                dos.writeBytes(String.valueOf(vmap.get(f.getB())));
-                dos.writeBytes(" ");
-                dos.writeBytes(String.valueOf(vmap.get(f.getC())));
+                for (int c = 0; c < VTK_POLY_SIZE; c++)
+                {
+                    dos.writeBytes(" ");
+                    dos.writeBytes(String.valueOf(faces[VTK_POLY_SIZE * f + c]));
+                }
                 dos.writeBytes("\n");
             }
         }
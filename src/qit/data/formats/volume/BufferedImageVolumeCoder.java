@@ -318,11 +318,91 @@ public class BufferedImageVolumeCoder
         }
     }
 
+    /**
+     * write a planar volume directly with the PNG encoder, which matches the
+     * pixels produced by exportGray and exportRGB without going through ImageIO
+     */
+    private static void exportPng(Volume volume, String fn) throws IOException
+    {
+        int numx = volume.getSampling().numI();
+        int numy = volume.getSampling().numJ();
+        int numz = volume.getSampling().numK();
+
+        boolean nox = numx == 1;
+        boolean noy = numy == 1;
+        boolean noz = numz == 1;
+
+        boolean oxy = !nox && !noy && noz;
+        boolean oxz = !nox && noy && !noz;
+        boolean oyz = nox && !noy && !noz;
+
+        int width = oyz ? numy : numx;
+        int height = oxy ? numy : numz;
+        int dim = volume.getDim();
+
+        Global.assume(oxy || oxz || oyz, "volume is not planar");
+        Global.assume(dim == 1 || dim == 3 || dim == 4, "image channel is invalid");
+
+        int[] pixels = new int[width * height];
+
+        if (dim == 1)
+        {
+            double max = 65535.0;
+
+            // detect whether the image stored grayscale from zero to one
+            VectOnlineStats stats = new VectOnlineStats();
+            for (Sample sample : volume.getSampling())
+            {
+                stats.update(volume.get(sample, 0));
+            }
+            double scale = stats.mean + stats.std < 1.0 ? max : 1.0;
+
+            for (int h = 0; h < height; h++)
+            {
+                for (int w = 0; w < width; w++)
+                {
+                    int i = oyz ? 0 : w;
+                    int j = oxy ? h : oyz ? w : 0;
+                    int k = oxy ? 0 : h;
+
+                    pixels[h * width + w] = (int) Math.min(Math.max(scale * volume.get(i, j, k, 0), 0), max);
+                }
+            }
+
+            PngImageCoder.writeGray(fn, pixels, width, height, true);
+        }
+        else
+        {
+            for (int h = 0; h < height; h++)
+            {
+                for (int w = 0; w < width; w++)
+                {
+                    int i = oyz ? 0 : w;
+                    int j = oxy ? h : oyz ? w : 0;
+                    int k = oxy ? 0 : h;
+
+                    int r = (int) Math.min(Math.max(volume.get(i, j, k, 0) * 255.0, 0), 255);
+                    int g = (int) Math.min(Math.max(volume.get(i, j, k, 1) * 255.0, 0), 255);
+                    int b = (int) Math.min(Math.max(volume.get(i, j, k, 2) * 255.0, 0), 255);
+                    int a = dim == 4 ? (int) Math.min(Math.max(volume.get(i, j, k, 3) * 255.0, 0), 255) : 255;
+
+                    pixels[h * width + w] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+
+            PngImageCoder.writeARGB(fn, pixels, width, height, dim == 4);
+        }
+    }
+
     public static void write(Volume volume, String fn) throws IOException
     {
-        if (volume.getDim() == 1)
+        if (fn.endsWith("png"))
+        {
+            exportPng(volume, fn);
+        }
+        else if (volume.getDim() == 1)
         {
-            if (fn.endsWith("tif") || fn.endsWith("tiff") || fn.endsWith("png"))
+            if (fn.endsWith("tif") || fn.endsWith("tiff"))
             {
                 ImageIO.write(exportGray(volume, true), FilenameUtils.getExtension(fn), new File(fn));
             }
@@ -0,0 +1,246 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.formats.volume;
+
+import qit.base.Global;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A direct PNG writer for packed pixel buffers.  This skips the BufferedImage
+ * and ImageIO path entirely, filters each scanline with the PNG sub filter,
+ * and compresses with the fastest deflate level, which is usually what
+ * matters when writing many slice renderings and mosaics.
+ */
+public class PngImageCoder
+{
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_RGBA = 6;
+
+    private static final int FILTER_SUB = 1;
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * write packed ARGB pixels (row major) as an 8-bit RGB or RGBA image
+     */
+    public static void writeARGB(String fn, int[] argb, int width, int height, boolean alpha) throws IOException
+    {
+        Global.assume(argb.length >= width * height, "invalid pixel buffer");
+
+        int channels = alpha ? 4 : 3;
+        int stride = channels * width;
+        byte[] line = new byte[stride];
+
+        try (Writer writer = new Writer(fn, width, height, 8, alpha ? COLOR_RGBA : COLOR_RGB))
+        {
+            for (int y = 0; y < height; y++)
+            {
+                int offset = y * width;
+                int pos = 0;
+                for (int x = 0; x < width; x++)
+                {
+                    int pixel = argb[offset + x];
+                    line[pos++] = (byte) (pixel >>> 16);
+                    line[pos++] = (byte) (pixel >>> 8);
+                    line[pos++] = (byte) pixel;
+                    if (alpha)
+                    {
+                        line[pos++] = (byte) (pixel >>> 24);
+                    }
+                }
+
+                writer.line(line, channels);
+            }
+        }
+    }
+
+    /**
+     * write gray values (row major) as an 8-bit or 16-bit grayscale image, where
+     * values are expected to be in the range of the chosen depth
+     */
+    public static void writeGray(String fn, int[] gray, int width, int height, boolean high) throws IOException
+    {
+        Global.assume(gray.length >= width * height, "invalid pixel buffer");
+
+        int bytes = high ? 2 : 1;
+        byte[] line = new byte[bytes * width];
+
+        try (Writer writer = new Writer(fn, width, height, high ? 16 : 8, COLOR_GRAY))
+        {
+            for (int y = 0; y < height; y++)
+            {
+                int offset = y * width;
+                int pos = 0;
+                for (int x = 0; x < width; x++)
+                {
+                    int value = gray[offset + x];
+                    if (high)
+                    {
+                        line[pos++] = (byte) (value >>> 8);
+                    }
+                    line[pos++] = (byte) value;
+                }
+
+                writer.line(line, bytes);
+            }
+        }
+    }
+
+    /**
+     * a streaming writer that filters and deflates one scanline at a time
+     */
+    private static class Writer implements AutoCloseable
+    {
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] buffer = new byte[CHUNK];
+        private byte[] filtered = new byte[0];
+
+        private Writer(String fn, int width, int height, int depth, int color) throws IOException
+        {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn), CHUNK));
+            this.out.write(SIGNATURE);
+
+            byte[] header = new byte[13];
+            putInt(header, 0, width);
+            putInt(header, 4, height);
+            header[8] = (byte) depth;
+            header[9] = (byte) color;
+            header[10] = 0; // deflate
+            header[11] = 0; // adaptive filtering
+            header[12] = 0; // no interlacing
+
+            chunk(this.out, "IHDR", header, header.length);
+        }
+
+        private void line(byte[] line, int bpp) throws IOException
+        {
+            int len = line.length + 1;
+            if (this.filtered.length != len)
+            {
+                this.filtered = new byte[len];
+            }
+
+            this.filtered[0] = FILTER_SUB;
+            System.arraycopy(line, 0, this.filtered, 1, Math.min(bpp, line.length));
+            for (int i = bpp; i < line.length; i++)
+            {
+                this.filtered[i + 1] = (byte) (line[i] - line[i - bpp]);
+            }
+
+            this.deflater.setInput(this.filtered, 0, len);
+            while (!this.deflater.needsInput())
+            {
+                this.drain();
+            }
+        }
+
+        private void drain() throws IOException
+        {
+            int count = this.deflater.deflate(this.buffer, 0, this.buffer.length);
+            if (count > 0)
+            {
+                chunk(this.out, "IDAT", this.buffer, count);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                this.deflater.finish();
+                while (!this.deflater.finished())
+                {
+                    this.drain();
+                }
+
+                chunk(this.out, "IEND", new byte[0], 0);
+            }
+            finally
+            {
+                this.deflater.end();
+                this.out.close();
+            }
+        }
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data, int len) throws IOException
+    {
+        byte[] tag = type.getBytes(StandardCharsets.US_ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(tag);
+        crc.update(data, 0, len);
+
+        out.writeInt(len);
+        out.write(tag);
+        out.write(data, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] data, int offset, int value)
+    {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -61,6 +61,7 @@ import qit.data.source.VectSource;
 import qit.data.utils.MatrixUtils;
 import qit.data.utils.MatrixUtils.EigenDecomp;
 import qit.data.utils.mri.structs.Gradients;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 
 import java.util.List;
@@ -622,6 +623,87 @@ public class BiTensor extends Model<BiTensor>
         }.init(BiTensor.BDT_DIM, gradients.size());
     }
 
+    /**
+     * create a synthesizer that also computes the derivatives of the signal
+     * with respect to each entry of the bi-tensor encoding
+     */
+    public static JacobianFunction jacobian(final Gradients gradients)
+    {
+        final int num = gradients.size();
+        final int[] tissue = {BDT_TXX, BDT_TYY, BDT_TZZ, BDT_TXY, BDT_TYZ, BDT_TXZ};
+        final int[] fluid = {BDT_FXX, BDT_FYY, BDT_FZZ, BDT_FXY, BDT_FYZ, BDT_FXZ};
+        final double[] bv = new double[num * 6];
+
+        for (int i = 0; i < num; i++)
+        {
+            double b = gradients.getBval(i);
+            Vect g = gradients.getBvec(i);
+
+            double gx = g.get(0);
+            double gy = g.get(1);
+            double gz = g.get(2);
+
+            bv[6 * i + 0] = -b * gx * gx;
+            bv[6 * i + 1] = -b * gy * gy;
+            bv[6 * i + 2] = -b * gz * gz;
+            bv[6 * i + 3] = -b * 2 * gx * gy;
+            bv[6 * i + 4] = -b * 2 * gy * gz;
+            bv[6 * i + 5] = -b * 2 * gx * gz;
+        }
+
+        return new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return BDT_DIM;
+            }
+
+            public int getDimOut()
+            {
+                return num;
+            }
+
+            public void apply(double[] input, double[] output, double[] jacobian)
+            {
+                double s0 = input[BDT_S0];
+                double dot = input[BDT_DOT];
+                double frac = input[BDT_FRAC];
+                double tfrac = 1.0 - frac - dot;
+
+                for (int i = 0; i < num; i++)
+                {
+                    double tdot = 0;
+                    double fdot = 0;
+                    for (int j = 0; j < 6; j++)
+                    {
+                        tdot += bv[6 * i + j] * input[tissue[j]];
+                        fdot += bv[6 * i + j] * input[fluid[j]];
+                    }
+
+                    double tsig = Math.exp(tdot);
+                    double fsig = Math.exp(fdot);
+                    double nsig = tfrac * tsig + frac * fsig + dot;
+
+                    output[i] = s0 * nsig;
+
+                    if (jacobian != null)
+                    {
+                        int offset = i * BDT_DIM;
+                        jacobian[offset + BDT_S0] = nsig;
+                        jacobian[offset + BDT_DOT] = s0 * (1.0 - tsig);
+                        jacobian[offset + BDT_FRAC] = s0 * (fsig - tsig);
+
+                        for (int j = 0; j < 6; j++)
+                        {
+                            jacobian[offset + tissue[j]] = s0 * tfrac * tsig * bv[6 * i + j];
+                            jacobian[offset + fluid[j]] = s0 * frac * fsig * bv[6 * i + j];
+                        }
+                    }
+                }
+            }
+        };
+    }
+
     public static double rmse(Vect signal, Gradients gradients, Vect param)
     {
         double s0 = param.get(BiTensor.BDT_S0);
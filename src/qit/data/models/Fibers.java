@@ -63,6 +63,7 @@ import qit.data.source.VectSource;
 import qit.data.utils.VectUtils;
 import qit.data.utils.mri.structs.Gradients;
 import qit.base.Model;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 
@@ -995,4 +996,98 @@ public class Fibers extends Model<Fibers>
             }
         }.init(new Fibers(comps).getEncodingSize(), gradients.size());
     }
+
+    /**
+     * create a ball-and-sticks synthesizer that also computes the derivatives
+     * of the signal with respect to each entry of the fibers encoding.  The
+     * stick directions are assumed to be unit vectors, and the derivatives with
+     * respect to the statistics and labels are zero.
+     */
+    public static JacobianFunction jacobian(final int comps, final Gradients gradients)
+    {
+        final int num = gradients.size();
+        final int dim = size(comps);
+        final double[] bvals = new double[num];
+        final double[] bvecs = new double[3 * num];
+
+        for (int i = 0; i < num; i++)
+        {
+            bvals[i] = gradients.getBval(i);
+
+            Vect g = gradients.getBvec(i);
+            bvecs[3 * i + 0] = g.get(0);
+            bvecs[3 * i + 1] = g.get(1);
+            bvecs[3 * i + 2] = g.get(2);
+        }
+
+        return new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return dim;
+            }
+
+            public int getDimOut()
+            {
+                return num;
+            }
+
+            public void apply(double[] input, double[] output, double[] jacobian)
+            {
+                double s = input[0];
+                double d = input[1];
+
+                double f0 = 1;
+                for (int j = 0; j < comps; j++)
+                {
+                    f0 -= Math.max(0, input[2 + 6 * j]);
+                }
+
+                for (int i = 0; i < num; i++)
+                {
+                    double b = bvals[i];
+                    double gx = bvecs[3 * i + 0];
+                    double gy = bvecs[3 * i + 1];
+                    double gz = bvecs[3 * i + 2];
+
+                    double iso = Math.exp(-b * d);
+                    double v = f0 * iso;
+                    double dd = -b * f0 * iso;
+
+                    int offset = i * dim;
+                    for (int j = 0; j < comps; j++)
+                    {
+                        int idx = 2 + 6 * j;
+                        double frac = Math.max(0, input[idx]);
+                        double dot = input[idx + 3] * gx + input[idx + 4] * gy + input[idx + 5] * gz;
+                        double dot2 = dot * dot;
+                        double decay = Math.exp(-b * d * dot2);
+
+                        v += frac * decay;
+                        dd -= b * dot2 * frac * decay;
+
+                        if (jacobian != null)
+                        {
+                            double dline = -2.0 * s * frac * decay * b * d * dot;
+
+                            jacobian[offset + idx] = input[idx] < 0 ? 0 : s * (decay - iso);
+                            jacobian[offset + idx + 1] = 0;
+                            jacobian[offset + idx + 2] = 0;
+                            jacobian[offset + idx + 3] = dline * gx;
+                            jacobian[offset + idx + 4] = dline * gy;
+                            jacobian[offset + idx + 5] = dline * gz;
+                        }
+                    }
+
+                    output[i] = s * v;
+
+                    if (jacobian != null)
+                    {
+                        jacobian[offset] = v;
+                        jacobian[offset + 1] = s * dd;
+                    }
+                }
+            }
+        };
+    }
 }
\ No newline at end of file
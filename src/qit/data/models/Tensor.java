@@ -61,6 +61,7 @@ import qit.data.utils.MatrixUtils;
 import qit.data.utils.MatrixUtils.EigenDecomp;
 import qit.data.utils.mri.structs.Gradients;
 import qit.base.Model;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 
@@ -565,6 +566,84 @@ public class Tensor extends Model<Tensor>
         }.init(Tensor.DT_DIM, gradients.size());
     }
 
+    /**
+     * create a synthesizer that also computes the derivatives of the signal
+     * with respect to each entry of the tensor encoding
+     */
+    public static JacobianFunction jacobian(final Gradients gradients)
+    {
+        final int num = gradients.size();
+        final double[] bv = new double[num * DT_DIM];
+        final double[] iso = new double[num];
+
+        for (int i = 0; i < num; i++)
+        {
+            double b = gradients.getBval(i);
+            Vect g = gradients.getBvec(i);
+
+            double gx = g.get(0);
+            double gy = g.get(1);
+            double gz = g.get(2);
+
+            int offset = i * DT_DIM;
+            bv[offset + DT_XX] = -b * gx * gx;
+            bv[offset + DT_YY] = -b * gy * gy;
+            bv[offset + DT_ZZ] = -b * gz * gz;
+            bv[offset + DT_XY] = -b * 2 * gx * gy;
+            bv[offset + DT_YZ] = -b * 2 * gy * gz;
+            bv[offset + DT_XZ] = -b * 2 * gx * gz;
+
+            iso[i] = Math.exp(-b * FREE_DIFF);
+        }
+
+        return new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return DT_DIM;
+            }
+
+            public int getDimOut()
+            {
+                return num;
+            }
+
+            public void apply(double[] input, double[] output, double[] jacobian)
+            {
+                double s0 = input[DT_S0];
+                double frac = input[DT_FW];
+
+                for (int i = 0; i < num; i++)
+                {
+                    int offset = i * DT_DIM;
+
+                    double dot = 0;
+                    for (int j = DT_XX; j <= DT_ZZ; j++)
+                    {
+                        dot += bv[offset + j] * input[j];
+                    }
+
+                    double expten = Math.exp(dot);
+                    double aseg = frac * iso[i] + (1.0 - frac) * expten;
+
+                    output[i] = s0 * aseg;
+
+                    if (jacobian != null)
+                    {
+                        double dten = s0 * (1.0 - frac) * expten;
+
+                        jacobian[offset + DT_S0] = aseg;
+                        for (int j = DT_XX; j <= DT_ZZ; j++)
+                        {
+                            jacobian[offset + j] = dten * bv[offset + j];
+                        }
+                        jacobian[offset + DT_FW] = s0 * (iso[i] - expten);
+                    }
+                }
+            }
+        };
+    }
+
 
     public Vect odf(double alpha, Vects samples)
     {
@@ -58,12 +58,15 @@ import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleCitation;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
+import qit.base.annot.ModuleOptional;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Curves;
 import qit.data.datasets.Curves.Curve;
 import qit.data.datasets.Vect;
 import qit.data.source.VectSource;
+import qit.data.utils.curves.CurvesGraphCluster;
+import qit.data.utils.curves.CurvesNeighbors;
 import qit.math.structs.DisjointSet;
 import qit.math.structs.Distance;
 import qit.math.source.DistanceSource;
@@ -92,6 +95,23 @@ public class CurvesClusterGraph implements Module
     @ModuleDescription("retain the largest group")
     public boolean largest = false;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("only compare each curve to an approximate set of k-nearest-neighbors with the given size instead of all other curves, which scales to whole-brain tractograms")
+    public Integer knn = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("build the neighbor graph with the mean distance between the given number of resampled vertices instead of the named distance, which is much faster")
+    public Integer samples = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads used to build the neighbor graph")
+    public int threads = 1;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleDescription("relabel to reflect cluster size")
@@ -114,34 +134,56 @@ public class CurvesClusterGraph implements Module
 
         Distance<Curve> distf = DistanceSource.curve(this.dist);
         
-        Logging.progress("building graph");
-        DisjointSet<Integer> ds = new DisjointSet<>();
-        for (int i = 0; i < num; i++)
+        int[] cidx = new int[num];
+        if (this.knn != null)
         {
-            ds.add(i);
-        }
+            CurvesNeighbors neighbors = new CurvesNeighbors().withInput(this.input).withK(this.knn).withThreads(this.threads);
+            if (this.samples != null)
+            {
+                neighbors.withSamples(this.samples);
+            }
+            else
+            {
+                neighbors.withDistance(distf);
+            }
 
-        for (int i = 0; i < num; i++)
+            Logging.progress("building neighbor graph");
+            cidx = CurvesGraphCluster.components(neighbors.getGraph(), this.thresh);
+        }
+        else
         {
-            Logging.progress("computing distances for curve " + i);
-            for (int j = i + 1; j < num; j++)
+            Logging.progress("building graph");
+            DisjointSet<Integer> ds = new DisjointSet<>();
+            for (int i = 0; i < num; i++)
             {
-                double d = distf.dist(this.input.get(i), this.input.get(j));
-                if (d < this.thresh)
+                ds.add(i);
+            }
+
+            for (int i = 0; i < num; i++)
+            {
+                Logging.progress("computing distances for curve " + i);
+                for (int j = i + 1; j < num; j++)
                 {
-                    ds.join(i, j);
+                    double d = distf.dist(this.input.get(i), this.input.get(j));
+                    if (d < this.thresh)
+                    {
+                        ds.join(i, j);
+                    }
                 }
             }
-        }
 
-        Map<Integer, Integer> lookup = ds.getLookup();
+            Map<Integer, Integer> lookup = ds.getLookup();
+            for (int i = 0; i < num; i++)
+            {
+                cidx[i] = lookup.get(ds.find(i));
+            }
+        }
 
         Logging.progress("labeling components");
-        int[] cidx = new int[num];
         Map<Integer, Integer> count = Maps.newHashMap();
         for (int i = 0; i < num; i++)
         {
-            int v = lookup.get(ds.find(i));
+            int v = cidx[i];
             if (count.containsKey(v))
             {
                 count.put(v, count.get(v) + 1);
@@ -150,7 +192,6 @@ public class CurvesClusterGraph implements Module
             {
                 count.put(v, 1);
             }
-            cidx[i] = v;
         }
 
         Logging.progress("finding largest component");
@@ -67,11 +67,15 @@ import qit.data.datasets.Matrix;
 import qit.data.source.MatrixSource;
 import qit.data.utils.CurvesUtils;
 import qit.data.utils.MatrixUtils;
+import qit.data.utils.curves.CurvesGraphCluster;
+import qit.data.utils.curves.CurvesNeighbors;
+import qit.data.utils.curves.CurvesNeighbors.Graph;
 import qit.math.structs.Distance;
 import qit.math.source.DistanceSource;
 import smile.clustering.HierarchicalClustering;
 import smile.clustering.linkage.Linkage;
 import smile.clustering.linkage.SingleLinkage;
+import smile.clustering.linkage.UPGMALinkage;
 
 @ModuleDescription("Cluster curves with hierarchical clustering.")
 @ModuleCitation("Zhang, S., Correia, S., & Laidlaw, D. H. (2008). Identifying white-matter fiber bundles in DTI data using an automated proximity-based fiber-clustering method. IEEE transactions on visualization and computer graphics, 14(5), 1044-1053.")
@@ -96,6 +100,11 @@ public class CurvesClusterHierarchical implements Module
     @ModuleDescription("the threshold for grouping")
     public Double thresh = null;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the linkage used to merge clusters (single or average)")
+    public String linkage = "single";
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleOptional
@@ -108,6 +117,23 @@ public class CurvesClusterHierarchical implements Module
     @ModuleDescription("simplify the curves to speed up computation")
     public Double epsilon = null;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("use an approximate k-nearest-neighbor graph with the given number of neighbors instead of all pairwise distances, which scales to whole-brain tractograms")
+    public Integer knn = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("build the neighbor graph with the mean distance between the given number of resampled vertices instead of the named distance, which is much faster")
+    public Integer samples = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads used to build the neighbor graph")
+    public int threads = 1;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleDescription("relabel to reflect cluster size")
@@ -147,22 +173,48 @@ public class CurvesClusterHierarchical implements Module
             source = simplify.run().output;
         }
 
-        Logging.info("... computing distance matrix");
+        Global.assume(this.num == null ^ this.thresh == null, "exactly one criteria must be specified");
+        Global.assume(this.linkage.equals("single") || this.linkage.equals("average"), "invalid linkage: " + this.linkage);
+        boolean average = this.linkage.equals("average");
+
         Distance<Curve> distf = DistanceSource.curve(this.dist);
-        Matrix distMat = MatrixSource.distAllPairs(distf, source);
-        distMat = MatrixUtils.symmeterizeMean(distMat);
+        int[] labels = null;
 
-        Logging.info("... started hierarchical clustering");
-        Linkage link = new SingleLinkage(distMat.toArray());
-        HierarchicalClustering cluster = new HierarchicalClustering(link);
+        if (this.knn != null)
+        {
+            CurvesNeighbors neighbors = new CurvesNeighbors().withInput(source).withK(this.knn).withThreads(this.threads);
+            if (this.samples != null)
+            {
+                neighbors.withSamples(this.samples);
+            }
+            else
+            {
+                neighbors.withDistance(distf);
+            }
+
+            Logging.info("... computing neighbor graph");
+            Graph graph = neighbors.getGraph();
+
+            Logging.info("... started graph-based hierarchical clustering");
+            labels = average ? CurvesGraphCluster.average(graph, this.num, this.thresh) : CurvesGraphCluster.single(graph, this.num, this.thresh);
+        }
+        else
+        {
+            Logging.info("... computing distance matrix");
+            Matrix distMat = MatrixSource.distAllPairs(distf, source);
+            distMat = MatrixUtils.symmeterizeMean(distMat);
 
-        Global.assume(this.num == null ^ this.thresh == null, "exactly one criteria must be specified");
-        int[] labels = this.num != null ? cluster.partition(num) : cluster.partition(this.thresh);
+            Logging.info("... started hierarchical clustering");
+            Linkage link = average ? new UPGMALinkage(distMat.toArray()) : new SingleLinkage(distMat.toArray());
+            HierarchicalClustering cluster = new HierarchicalClustering(link);
 
-        // increment by one to be consistent with rest of code
-        for (int i = 0; i < labels.length; i++)
-        {
-            labels[i] += 1;
+            labels = this.num != null ? cluster.partition(this.num) : cluster.partition(this.thresh);
+
+            // increment by one to be consistent with rest of code
+            for (int i = 0; i < labels.length; i++)
+            {
+                labels[i] += 1;
+            }
         }
 
         Curves curves = this.inplace ? this.input : this.input.copy();
@@ -50,8 +50,6 @@
 
 package qit.data.modules.curves;
 
-import com.google.common.collect.Lists;
-import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
 import qit.base.annot.ModuleAdvanced;
@@ -62,16 +60,9 @@ import qit.base.annot.ModuleInput;
 import qit.base.annot.ModuleOptional;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
-import qit.base.structs.Pair;
 import qit.data.datasets.Curves;
-import qit.data.datasets.Vect;
-import qit.data.datasets.Vects;
 import qit.data.utils.CurvesUtils;
-import qit.data.utils.VectsUtils;
-import qit.math.utils.MathUtils;
-
-import java.util.Collections;
-import java.util.List;
+import qit.data.utils.curves.CurvesQuickBundles;
 
 @ModuleDescription("Cluster curves with the quicksbundles algorithm")
 @ModuleCitation("Garyfallidis, E., Brett, M., Correia, M. M., Williams, G. B., & Nimmo-Smith, I. (2012). Quickbundles, a method for tractography simplification. Frontiers in neuroscience, 6, 175.")
@@ -95,6 +86,21 @@ public class CurvesClusterQuickBundle implements Module
     @ModuleDescription("the separation threshold")
     public Double thresh = 1000.0;
 
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("cluster each cluster again with a comma-separated list of finer thresholds, e.g. 10,5")
+    public String hierarchy = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of curves assigned in parallel before merging (one gives the sequential algorithm)")
+    public int batch = 1;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleDescription("relabel to reflect cluster size")
@@ -122,14 +128,6 @@ public class CurvesClusterQuickBundle implements Module
             return this;
         }
 
-        // theta depends on the number of samples, so 
-        // let's assume the input threshold is the average
-        // interpoint distances we'd like to allow
-        // this was *not* from the quickbundles paper, but
-        // rather something I've added
-        
-        double theta = this.thresh * this.thresh * this.samples;
-        
         Logging.info("... preprocessing");
 
         Curves curves = null;
@@ -146,73 +144,28 @@ public class CurvesClusterQuickBundle implements Module
             curves = this.input.copy();
         }
 
-        CurvesResample resampler = new CurvesResample();
-        resampler.input = curves;
-        resampler.num = this.samples;
-        Curves sampled = resampler.run().output;
-
-        Vects T = new Vects();
-        Vects Tf = new Vects();
-
-        for (int i = 0; i < curves.size(); i++)
+        double[] thresholds = new double[]{this.thresh};
+        if (this.hierarchy != null)
         {
-            Vects vects = sampled.get(i).getAll();
-            Vects flipped = vects.copy();
-            Collections.reverse(flipped);
-
-            T.add(VectsUtils.pack(vects));
-            Tf.add(VectsUtils.pack(flipped));
-        }
-
-        Logging.info("... started");
-        int[] clabels = new int[curves.size()];
-        List<Pair<Vect, Integer>> C = Lists.newArrayList();
-        C.add(Pair.of(T.get(0), 1));
-        for (int i = 2; i < curves.size(); i++)
-        {
-            int M = C.size();
-            Vect t = T.get(i);
-            Vect tf = Tf.get(i);
-            double[] alld = new double[M];
-            boolean[] flip = new boolean[M];
-
-            for (int k = 0; k < M; k++)
+            String[] tokens = this.hierarchy.split(",");
+            thresholds = new double[tokens.length + 1];
+            thresholds[0] = this.thresh;
+            for (int i = 0; i < tokens.length; i++)
             {
-                Pair<Vect, Integer> ck = C.get(k);
-                Vect v = ck.a.times(1.0 / ck.b);
-                double d = t.dist2(v);
-                double f = tf.dist2(v);
-                if (f < d)
-                {
-                    d = f;
-                    flip[k] = true;
-                }
-                alld[k] = d;
+                thresholds[i + 1] = Double.valueOf(tokens[i].trim());
             }
+        }
 
-            int l = MathUtils.minidx(alld);
-            double m = alld[l];
+        Logging.info("... started");
+        CurvesQuickBundles bundles = new CurvesQuickBundles();
+        bundles.withInput(curves);
+        bundles.withSamples(this.samples);
+        bundles.withThresholds(thresholds);
+        bundles.withBatch(this.batch);
+        bundles.withThreads(this.threads);
+        bundles.run();
 
-            if (m < theta)
-            {
-                Pair<Vect, Integer> cl = C.get(l);
-                if (flip[l])
-                {
-                    cl.a.plusEquals(tf);
-                }
-                else
-                {
-                    cl.a.plusEquals(t);
-                }
-                cl.b += 1;
-                clabels[i] = l + 1;
-            }
-            else
-            {
-                C.add(Pair.of(t, 1));
-                clabels[i] = C.size();
-            }
-        }
+        int[] clabels = bundles.getLabels();
 
         Logging.info("... post-processing");
         CurvesUtils.attrSetLabelsPerCurve(curves, Curves.LABEL, clabels);
@@ -226,26 +179,9 @@ public class CurvesClusterQuickBundle implements Module
         }
 
         Curves centers = new Curves();
-        for (Pair<Vect,Integer> c : C)
+        for (int idx : bundles.getCenters())
         {
-            Vect v = c.a.times(1.0 / c.b);
-            double[] dists = new double[curves.size()];
-
-            for (int j = 0; j < dists.length; j++)
-            {
-                Vect t = T.get(j);
-                Vect tf = Tf.get(j);
-                double d = t.dist2(v);
-                double f = tf.dist2(v);
-                if (f < d)
-                {
-                    d = f;
-                }
-                dists[j] = d;
-            }
-            int minidx = MathUtils.minidx(dists);
-
-            centers.add(this.input.get(minidx));
+            centers.add(curves.get(idx));
         }
 
         this.centers = centers;
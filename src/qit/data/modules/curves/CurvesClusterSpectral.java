@@ -66,6 +66,9 @@ import qit.data.datasets.Matrix;
 import qit.data.source.MatrixSource;
 import qit.data.utils.CurvesUtils;
 import qit.data.utils.MatrixUtils;
+import qit.data.utils.curves.CurvesGraphCluster;
+import qit.data.utils.curves.CurvesNeighbors;
+import qit.data.utils.curves.CurvesNeighbors.Graph;
 import qit.math.structs.Distance;
 import qit.math.source.DistanceSource;
 import smile.clustering.SpectralClustering;
@@ -100,6 +103,23 @@ public class CurvesClusterSpectral implements Module
     @ModuleDescription("simplify the curves to speed up computation")
     public Double epsilon = null;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("use an approximate k-nearest-neighbor graph with the given number of neighbors instead of all pairwise distances, which scales to whole-brain tractograms")
+    public Integer knn = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("build the neighbor graph with the mean distance between the given number of resampled vertices instead of the named distance, which is much faster")
+    public Integer samples = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads used to build the neighbor graph")
+    public int threads = 1;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleDescription("relabel to reflect cluster size")
@@ -139,24 +159,47 @@ public class CurvesClusterSpectral implements Module
             source = simplify.run().output;
         }
 
-        Logging.info("... computing distance matrix");
         Distance<Curve> distf = DistanceSource.curve(this.dist);
-        Matrix distMat = MatrixSource.distAllPairs(distf, source);
+        int[] labels = null;
+
+        if (this.knn != null)
+        {
+            CurvesNeighbors neighbors = new CurvesNeighbors().withInput(source).withK(this.knn).withThreads(this.threads);
+            if (this.samples != null)
+            {
+                neighbors.withSamples(this.samples);
+            }
+            else
+            {
+                neighbors.withDistance(distf);
+            }
+
+            Logging.info("... computing neighbor graph");
+            Graph graph = neighbors.getGraph();
+
+            Logging.info("... started sparse spectral clustering with k = " + this.num);
+            labels = CurvesGraphCluster.spectral(graph, this.num);
+        }
+        else
+        {
+            Logging.info("... computing distance matrix");
+            Matrix distMat = MatrixSource.distAllPairs(distf, source);
 
-        Logging.info("... computing similarity matrix");
-        Matrix simMat = MatrixUtils.distToSim(distMat);
+            Logging.info("... computing similarity matrix");
+            Matrix simMat = MatrixUtils.distToSim(distMat);
 
-        // similarity matrix must be symmetric with zero diagonal
-        simMat.setAllDiag(0);
-        simMat = MatrixUtils.symmeterizeMean(simMat);
+            // similarity matrix must be symmetric with zero diagonal
+            simMat.setAllDiag(0);
+            simMat = MatrixUtils.symmeterizeMean(simMat);
 
-        Logging.info("... started spectral clustering with k = " + this.num);
-        int[] labels = new SpectralClustering(simMat.toArray(), this.num).getClusterLabel();
+            Logging.info("... started spectral clustering with k = " + this.num);
+            labels = new SpectralClustering(simMat.toArray(), this.num).getClusterLabel();
 
-        // increment by one to be consistent with rest of code
-        for (int i = 0; i < labels.length; i++)
-        {
-            labels[i] += 1;
+            // increment by one to be consistent with rest of code
+            for (int i = 0; i < labels.length; i++)
+            {
+                labels[i] += 1;
+            }
         }
 
         Curves curves = this.inplace ? this.input : this.input.copy();
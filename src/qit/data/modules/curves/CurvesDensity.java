@@ -65,14 +65,14 @@ import qit.data.datasets.Sampling;
 import qit.data.datasets.Volume;
 import qit.data.modules.volume.VolumeNormalize;
 import qit.data.source.SamplingSource;
-import qit.data.utils.VolumeUtils;
+import qit.data.utils.curves.CurvesTrackDensity;
 import qit.math.structs.Box;
 
 @ModuleDescription("Compute a volumetric density of curves.  This works by find the voxels that intersect the curves and accumulating how many curves intersected each voxel.")
 @ModuleAuthor("Ryan Cabeen")
 public class CurvesDensity implements Module
 {
-    public enum CurvesDensityType {Count, CountNorm, Color, ColorNorm}
+    public enum CurvesDensityType {Count, CountNorm, Length, LengthNorm, Color, ColorNorm}
 
     @ModuleInput
     @ModuleDescription("input curves")
@@ -92,6 +92,16 @@ public class CurvesDensity implements Module
     @ModuleDescription("when no reference sampling is present, create a volume with this voxel size")
     public double delta = 1.0;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("zoom the sampling by this factor to compute a super-resolution map")
+    public double zoom = 1.0;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads to use")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("output density volume")
     public Volume output;
@@ -111,26 +121,44 @@ public class CurvesDensity implements Module
             sampling = SamplingSource.create(box, delta);
         }
 
+        boolean color = this.type == CurvesDensityType.Color || this.type == CurvesDensityType.ColorNorm;
+        boolean length = this.type == CurvesDensityType.Length || this.type == CurvesDensityType.LengthNorm;
+
+        CurvesTrackDensity tdi = new CurvesTrackDensity();
+        tdi.withInput(this.input).withSampling(sampling).withZoom(this.zoom).withThreads(this.threads);
+        tdi.withLength(length).withColor(color);
+        tdi.run();
+
         switch (this.type)
         {
             case Count:
             {
-                this.output = VolumeUtils.density(sampling, this.input, false);
+                this.output = tdi.getCount();
                 break;
             }
             case CountNorm:
             {
-                this.output = VolumeUtils.density(sampling, this.input, true);
+                this.output = normalize(tdi.getCount(), null);
+                break;
+            }
+            case Length:
+            {
+                this.output = tdi.getLength();
+                break;
+            }
+            case LengthNorm:
+            {
+                this.output = normalize(tdi.getLength(), null);
                 break;
             }
             case Color:
             {
-                this.output = VolumeUtils.color(sampling, this.input, false);
+                this.output = tdi.getColor();
                 break;
             }
             case ColorNorm:
             {
-                this.output = VolumeUtils.color(sampling, this.input, true);
+                this.output = normalize(tdi.getColor(), tdi.getCount());
                 break;
             }
         }
@@ -138,6 +166,34 @@ public class CurvesDensity implements Module
         return this;
     }
 
+    /**
+     * divide the values by their maximum, or scale them by the weights divided by the largest weight
+     */
+    private static Volume normalize(Volume values, Volume weights)
+    {
+        Volume ref = weights == null ? values : weights;
+
+        double max = 0;
+        for (int idx = 0; idx < ref.getSampling().size(); idx++)
+        {
+            max = Math.max(max, ref.get(idx, 0));
+        }
+
+        if (max > 0)
+        {
+            for (int idx = 0; idx < values.getSampling().size(); idx++)
+            {
+                double factor = weights == null ? 1.0 / max : weights.get(idx, 0) / max;
+                for (int d = 0; d < values.getDim(); d++)
+                {
+                    values.set(idx, d, factor * values.get(idx, d));
+                }
+            }
+        }
+
+        return values;
+    }
+
     public static Volume apply(Curves curves, Volume ref)
     {
         return new CurvesDensity()
@@ -52,12 +52,14 @@ package qit.data.modules.curves;
 
 import qit.base.Logging;
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
 import qit.base.annot.ModuleOptional;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
+import qit.base.utils.PathUtils;
 import qit.data.datasets.Curves;
 import qit.data.datasets.Curves.Curve;
 import qit.data.datasets.Deformation;
@@ -68,10 +70,10 @@ import qit.data.datasets.Vect;
 import qit.data.datasets.Vects;
 import qit.data.utils.MaskUtils;
 import qit.data.utils.VolumeUtils;
-import qit.data.utils.curves.CurvesSelector;
-import qit.math.structs.Containable;
-import qit.math.source.SelectorSource;
+import qit.data.utils.curves.CurvesIndex;
 
+import java.io.IOException;
+import java.util.BitSet;
 import java.util.List;
 
 @ModuleDescription("Select curves using volumetric masks")
@@ -126,6 +128,16 @@ public class CurvesMaskSelect implements Module
     @ModuleDescription("select curves with endpoints that connect different labels")
     public boolean connect = false;
 
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("a file prefix for caching curve indices, where each mask sampling has its own file that is read if it matches the curves and deformation and written otherwise")
+    public String index = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads to use for indexing")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output curves")
     public Curves output;
@@ -134,6 +146,14 @@ public class CurvesMaskSelect implements Module
     {
         Curves curves = this.input;
 
+        // selections are made with an inverted index, so the curves are only copied once
+        CurvesIndex cached = null;
+        long digest = this.include != null || this.exclude != null ? CurvesIndex.digest(curves, this.deform) : 0;
+
+        BitSet selected = new BitSet(curves.size());
+        BitSet reversed = new BitSet(curves.size());
+        selected.set(0, curves.size());
+
         if (this.include != null)
         {
             Logging.info("using an inclusion mask");
@@ -158,22 +178,14 @@ public class CurvesMaskSelect implements Module
                 }
             }
 
-            for (int i : idx)
+            if (idx.size() > 0)
             {
-                Mask submask = MaskUtils.equal(mask, i);
-                Containable selector = SelectorSource.mask(submask);
-
-                CurvesSelector select = new CurvesSelector();
-                select.withCurves(curves);
-                select.withSelector(selector);
-                select.withEndpoints(this.endpoints || this.connect);
-
-                if (this.deform != null)
-                {
-                    select.withTransform(this.deform);
-                }
+                cached = this.index(cached, mask.getSampling(), digest);
+            }
 
-                curves = select.getOutput();
+            for (int i : idx)
+            {
+                selected.and(cached.select(mask, i, this.endpoints || this.connect));
             }
 
             if (this.connect)
@@ -192,10 +204,10 @@ public class CurvesMaskSelect implements Module
                 else
                 {
                     Sampling sampling = this.include.getSampling();
-                    Curves connected = new Curves();
 
-                    for (Curve curve : curves)
+                    for (int c = selected.nextSetBit(0); c >= 0; c = selected.nextSetBit(c + 1))
                     {
+                        Curve curve = curves.get(c);
                         Vect head = curve.getHead();
                         Vect tail = curve.getTail();
 
@@ -207,6 +219,7 @@ public class CurvesMaskSelect implements Module
 
                         if (!sampling.contains(head) || !sampling.contains(tail))
                         {
+                            selected.clear(c);
                             continue;
                         }
 
@@ -215,23 +228,21 @@ public class CurvesMaskSelect implements Module
 
                         if (idx.size() == 2 && (headLabel == 0 || tailLabel == 0))
                         {
+                            selected.clear(c);
                             continue;
                         }
 
                         if (headLabel == tailLabel)
                         {
+                            selected.clear(c);
                             continue;
                         }
 
                         if (headLabel > tailLabel)
                         {
-                            curve.reverse();
+                            reversed.set(c);
                         }
-
-                        connected.add(curve);
                     }
-
-                    curves = connected;
                 }
             }
         }
@@ -251,20 +262,23 @@ public class CurvesMaskSelect implements Module
                 mask = MaskUtils.invert(mask);
             }
 
-            Containable selector = SelectorSource.mask(mask);
+            cached = this.index(cached, mask.getSampling(), digest);
+            selected.andNot(cached.select(mask, this.endpoints));
+        }
 
-            CurvesSelector select = new CurvesSelector();
-            select.withCurves(curves);
-            select.withSelector(selector);
-            select.withExclude(true);
-            select.withEndpoints(this.endpoints);
+        if (cached != null)
+        {
+            curves = curves.copy(cached.filter(selected));
 
-            if (this.deform != null)
+            int k = 0;
+            for (int c = selected.nextSetBit(0); c >= 0; c = selected.nextSetBit(c + 1))
             {
-                select.withTransform(this.deform);
+                if (reversed.get(c))
+                {
+                    curves.get(k).reverse();
+                }
+                k += 1;
             }
-
-            curves = select.getOutput();
         }
 
         if (this.contain != null)
@@ -321,4 +335,58 @@ public class CurvesMaskSelect implements Module
 
         return this;
     }
+
+    private CurvesIndex index(CurvesIndex cached, Sampling sampling, long digest)
+    {
+        if (cached != null && cached.matches(sampling, digest))
+        {
+            return cached;
+        }
+
+        String fn = this.index == null ? null : this.index + "." + CurvesIndex.key(sampling);
+        if (fn != null && PathUtils.exists(fn))
+        {
+            try
+            {
+                CurvesIndex read = CurvesIndex.read(fn);
+                if (read.matches(sampling, digest))
+                {
+                    Logging.info("using curve index: " + fn);
+                    return read;
+                }
+            }
+            catch (IOException e)
+            {
+                Logging.info("warning: failed to read curve index: " + fn);
+            }
+        }
+
+        Logging.info("indexing curves");
+        CurvesIndex out = new CurvesIndex();
+        out.withInput(this.input);
+        out.withSampling(sampling);
+        out.withThreads(this.threads);
+
+        if (this.deform != null)
+        {
+            out.withTransform(this.deform);
+        }
+
+        out.run();
+
+        if (fn != null)
+        {
+            try
+            {
+                Logging.info("writing curve index: " + fn);
+                out.write(fn);
+            }
+            catch (IOException e)
+            {
+                Logging.info("warning: failed to write curve index: " + fn);
+            }
+        }
+
+        return out;
+    }
 }
@@ -50,8 +50,6 @@
 
 package qit.data.modules.mask;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
@@ -59,13 +57,10 @@ import qit.base.annot.ModuleInput;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
+import qit.data.datasets.Neighborhood;
 import qit.data.datasets.Sampling;
 import qit.data.source.MaskSource;
 
-import java.util.List;
-import java.util.Map;
-
 @ModuleDescription("Dilate a mask morphologically.")
 @ModuleAuthor("Ryan Cabeen")
 public class MaskDilate implements Module
@@ -86,6 +81,10 @@ public class MaskDilate implements Module
     @ModuleDescription("treat voxels outside mask as background")
     public boolean outside = false;
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("output mask")
     public Mask output;
@@ -98,54 +97,62 @@ public class MaskDilate implements Module
         Mask element = MaskSource.element(this.element);
 
         Sampling sampling = this.input.getSampling();
-        Sampling esampling = element.getSampling();
+        Neighborhood hood = Neighborhood.create(sampling, element);
+        int[] offset = hood.offset;
 
-        int cx = (esampling.numI() - 1) / 2;
-        int cy = (esampling.numJ() - 1) / 2;
-        int cz = (esampling.numK() - 1) / 2;
-
-        List<Sample> esamples = Lists.newArrayList();
-        for (Sample esample : esampling)
+        for (int i = 0; i < this.num; i++)
         {
-            if (element.foreground(esample))
-            {
-                esamples.add(esample);
-            }
-        }
+            final Mask fin = in;
+            final Mask fout = out;
+            final ThreadLocal<int[][]> tallies = ThreadLocal.withInitial(() -> new int[2][offset.length]);
 
-        for (int i = 0; i < num; i++)
-        {
-            for (Sample sample : sampling)
+            sampling.visit(this.threads, (vi, vj, vk, idx) ->
             {
-                Map<Integer, Integer> counts = Maps.newHashMap();
+                // a small tally of labels and counts, which replaces a map for the few labels in the element
+                int[][] tally = tallies.get();
+                int[] labels = tally[0];
+                int[] counts = tally[1];
+                int numLabels = 0;
+
+                boolean interior = hood.interior(vi, vj, vk);
                 int maxCount = 0;
                 int maxLabel = 0;
-                for (Sample esample : esamples)
+                for (int n = 0; n < offset.length; n++)
                 {
-                    int ni = sample.getI() + esample.getI() - cx;
-                    int nj = sample.getJ() + esample.getJ() - cy;
-                    int nk = sample.getK() + esample.getK() - cz;
+                    if (!interior && !hood.contains(n, vi, vj, vk))
+                    {
+                        continue;
+                    }
 
-                    if (!sampling.contains(ni, nj, nk))
+                    int label = fin.get(idx + offset[n]);
+                    if (label == 0)
                     {
                         continue;
                     }
 
-                    if (in.foreground(ni, nj, nk))
+                    int pos = 0;
+                    while (pos < numLabels && labels[pos] != label)
+                    {
+                        pos += 1;
+                    }
+
+                    if (pos == numLabels)
+                    {
+                        labels[pos] = label;
+                        counts[pos] = 0;
+                        numLabels += 1;
+                    }
+
+                    int count = counts[pos] += 1;
+                    if (count > maxCount)
                     {
-                        int label = in.get(ni, nj, nk);
-                        int count = counts.containsKey(label) ? counts.get(label) + 1 : 1;
-                        if (count > maxCount)
-                        {
-                            maxCount = count;
-                            maxLabel = label;
-                        }
-                        counts.put(label, count);
+                        maxCount = count;
+                        maxLabel = label;
                     }
                 }
 
-                out.set(sample, maxLabel);
-            }
+                fout.set(idx, maxLabel);
+            });
 
             Mask tmp = out;
             out = in;
@@ -51,7 +51,6 @@
 
 package qit.data.modules.mask;
 
-import com.google.common.collect.Lists;
 import qit.base.Logging;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
@@ -60,12 +59,10 @@ import qit.base.annot.ModuleInput;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
+import qit.data.datasets.Neighborhood;
 import qit.data.datasets.Sampling;
 import qit.data.source.MaskSource;
 
-import java.util.List;
-
 @ModuleDescription("Erode a mask morphologically")
 @ModuleAuthor("Ryan Cabeen")
 public class MaskErode implements Module
@@ -89,6 +86,10 @@ public class MaskErode implements Module
     @ModuleDescription("print messages")
     public boolean verbose = false;
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("output mask")
     public Mask output;
@@ -101,47 +102,22 @@ public class MaskErode implements Module
         Mask element = MaskSource.element(this.element);
 
         Sampling sampling = this.input.getSampling();
-        Sampling esampling = element.getSampling();
-
-        int ci = (esampling.numI() - 1) / 2;
-        int cj = (esampling.numJ() - 1) / 2;
-        int ck = (esampling.numK() - 1) / 2;
-
-        boolean pi = sampling.numI() == 1;
-        boolean pj = sampling.numJ() == 1;
-        boolean pk = sampling.numK() == 1;
-
-        List<Sample> esamples = Lists.newArrayList();
-        for (Sample esample : esampling)
-        {
-            if (element.foreground(esample))
-            {
-                esamples.add(esample);
-            }
-        }
+        Neighborhood hood = Neighborhood.create(sampling, element);
+        int[] offset = hood.offset;
 
         for (int i = 0; i < this.num; i++)
         {
             Logging.info(this.verbose, "running iteration " + (i + 1));
-            for (Sample sample : sampling)
+
+            final Mask fin = in;
+            final Mask fout = out;
+            sampling.visit(this.threads, (vi, vj, vk, idx) ->
             {
+                boolean interior = hood.interior(vi, vj, vk);
                 boolean erode = false;
-                for (Sample esample : esamples)
+                for (int n = 0; n < offset.length; n++)
                 {
-                    int ni = sample.getI() + esample.getI() - ci;
-                    int nj = sample.getJ() + esample.getJ() - cj;
-                    int nk = sample.getK() + esample.getK() - ck;
-
-                    boolean oi = pi && ni != 0;
-                    boolean oj = pj && nj != 0;
-                    boolean ok = pk && nk != 0;
-                    if (oi || oj || ok)
-                    {
-                        // when the image is planar, skip out of plane erosion
-                        continue;
-                    }
-
-                    if (!sampling.contains(ni, nj, nk))
+                    if (!interior && !hood.contains(n, vi, vj, vk))
                     {
                         if (this.outside)
                         {
@@ -149,22 +125,15 @@ public class MaskErode implements Module
                             break;
                         }
                     }
-                    else if (in.background(ni, nj, nk))
+                    else if (fin.background(idx + offset[n]))
                     {
                         erode = true;
                         break;
                     }
                 }
 
-                if (!erode)
-                {
-                    out.set(sample, in.get(sample));
-                }
-                else
-                {
-                    out.set(sample, 0);
-                }
-            }
+                fout.set(idx, erode ? 0 : fin.get(idx));
+            });
 
             Mask tmp = out;
             out = in;
@@ -50,6 +50,7 @@
 
 package qit.data.modules.mesh;
 
+import com.google.common.collect.Lists;
 import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
@@ -74,9 +75,11 @@ import qit.data.modules.volume.VolumeFilterGaussian;
 import qit.data.modules.volume.VolumeThreshold;
 import qit.data.source.MaskSource;
 import qit.data.source.VolumeSource;
+import qit.data.utils.MeshUtils;
 import qit.math.structs.Vertex;
 import qit.math.utils.MathUtils;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
 
@@ -164,8 +167,17 @@ public class MeshAttrCortexToVolume implements Module
         Volume myweights = VolumeSource.create(sampling, 1);
         Volume mydata = VolumeSource.create(sampling, 1);
 
-        for (Vertex vertex : mesh.vattr)
+        // find the voxels along each vertex in parallel, and then accumulate
+        // them in vertex order, so the result does not depend on the threads
+        List<Vertex> verts = Lists.newArrayList(mesh.vattr);
+        int[] voxels = new int[verts.size() * this.samples];
+        double[] values = new double[verts.size()];
+
+        MeshUtils.vertices(verts, () -> (idx, vertex) ->
         {
+            int offset = idx * this.samples;
+            Arrays.fill(voxels, offset, offset + this.samples, -1);
+
             double myattr = mesh.vattr.get(vertex, this.attr).get(0);
             Vect mypial = mesh.vattr.get(vertex, this.pial);
             Vect mywhite = mesh.vattr.get(vertex, this.white);
@@ -174,28 +186,38 @@ public class MeshAttrCortexToVolume implements Module
 
             if (myvect.norm() < this.mindist)
             {
-                continue;
+                return;
             }
 
             Vect start = mywhite.minus(this.inner, mydir);
             Vect end = mypial.plus(this.outer, mydir);
             Vect delta = end.minus(start);
 
+            values[idx] = myattr;
             for (int i = 0; i < this.samples; i++)
             {
                 double alpha = i / (double) (this.samples - 1);
-                double myweight = 1.0 - 2.0 * Math.abs(alpha - 0.5);
+                Sample sample = sampling.nearest(start.plus(alpha, delta));
 
-                Vect mypos = start.plus(alpha, delta);
-                Sample sample = sampling.nearest(mypos);
+                if (sampling.contains(sample))
+                {
+                    voxels[offset + i] = sampling.index(sample);
+                }
+            }
+        }, this.threads);
 
-                if (mydata.valid(sampling.nearest(mypos)))
+        for (int idx = 0; idx < verts.size(); idx++)
+        {
+            for (int i = 0; i < this.samples; i++)
+            {
+                int voxel = voxels[idx * this.samples + i];
+                if (voxel >= 0)
                 {
-                    double sum = mydata.get(sample, 0);
-                    mydata.set(sample, sum + myweight * myattr);
+                    double alpha = i / (double) (this.samples - 1);
+                    double myweight = 1.0 - 2.0 * Math.abs(alpha - 0.5);
 
-                    double weight = myweights.get(sample).get(0);
-                    myweights.set(sample, myweight + weight);
+                    mydata.set(voxel, 0, mydata.get(voxel, 0) + myweight * values[idx]);
+                    myweights.set(voxel, 0, myweights.get(voxel, 0) + myweight);
                 }
             }
         }
@@ -50,6 +50,7 @@
 
 package qit.data.modules.mesh;
 
+import com.google.common.collect.Sets;
 import qit.base.Logging;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
@@ -59,12 +60,13 @@ import qit.base.annot.ModuleOptional;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mesh;
-import qit.data.datasets.Vect;
-import qit.data.utils.MeshUtils;
-import qit.math.structs.Vertex;
+import qit.data.utils.mesh.MeshCompact;
+import qit.data.utils.mesh.MeshLaplacian;
+import qit.data.utils.mesh.MeshLaplacian.MeshLaplacianWeights;
 import qit.math.utils.MathUtils;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Set;
 
 @ModuleDescription("Filter a mesh with a laplacian")
 @ModuleAuthor("Ryan Cabeen")
@@ -91,6 +93,23 @@ public class MeshAttrLaplacian implements Module
     @ModuleDescription("the lambda laplacian filtering parameter")
     public Double lambda = 0.3;
 
+    @ModuleParameter
+    @ModuleDescription("use cotangent weights instead of uniform weights")
+    public boolean cotan = false;
+
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("use implicit filtering with the given time step, where each iteration is a single linear solve")
+    public Double implicit = null;
+
+    @ModuleParameter
+    @ModuleDescription("use the sparse laplacian operator, which updates all vertices at once and supports multiple threads")
+    public boolean sparse = false;
+
+    @ModuleParameter
+    @ModuleDescription("the number of threads in the pool (only used by the sparse operator)")
+    public Integer threads = 1;
+
     @ModuleParameter
     @ModuleDescription("run without copying data (be aware of side effects)")
     public boolean inplace = false;
@@ -111,19 +130,60 @@ public class MeshAttrLaplacian implements Module
             outputs = this.attrout.split(",");
         }
 
-        for (int i = 0; i < inputs.length; i++)
+        Set<String> names = Sets.newLinkedHashSet();
+        names.addAll(Arrays.asList(inputs));
+        MeshCompact compact = MeshCompact.create(mesh, names.toArray(new String[0]));
+
+        if (this.sparse || this.cotan || this.implicit != null)
+        {
+            // the sparse operator processes every attribute at once
+            int[] dims = new int[inputs.length];
+            for (int i = 0; i < inputs.length; i++)
+            {
+                dims[i] = compact.dim(inputs[i]);
+            }
+
+            MeshLaplacian laplacian = new MeshLaplacian();
+            laplacian.withMesh(compact);
+            laplacian.withWeights(this.cotan ? MeshLaplacianWeights.Cotangent : MeshLaplacianWeights.Uniform);
+            laplacian.withThreads(this.threads == null ? 1 : this.threads);
+
+            double[] values = MeshLaplacian.pack(compact, inputs);
+            int dim = MeshLaplacian.dim(compact, inputs);
+
+            if (this.implicit != null)
+            {
+                Logging.info("started implicit mesh filtering");
+                laplacian.diffuse(values, dim, this.implicit, this.num);
+            }
+            else
+            {
+                Logging.info("started explicit mesh filtering");
+                laplacian.smooth(values, dim, this.lambda, null, this.num);
+            }
+
+            MeshLaplacian.unpack(values, compact, outputs, dims);
+        }
+        else
         {
-            Logging.info("started mesh filtering " + inputs[i]);
-            for (int iter = 0; iter < this.num; iter++)
+            for (int i = 0; i < inputs.length; i++)
             {
-                Logging.info("started mesh filtering iteration " + iter);
+                Logging.info("started mesh filtering " + inputs[i]);
+                for (int iter = 0; iter < this.num; iter++)
+                {
+                    Logging.info("started mesh filtering iteration " + iter);
 
-                filter(mesh, inputs[i], outputs[i], this.lambda);
+                    filter(compact, inputs[i], outputs[i], this.lambda);
+                }
             }
         }
 
+        names.addAll(Arrays.asList(outputs));
+        names.add(Mesh.NORMAL);
+
         Logging.info("recomputing normals");
-        MeshUtils.computeNormals(mesh);
+        compact.computeNormals(Mesh.COORD, Mesh.NORMAL);
+        compact.apply(mesh, names.toArray(new String[0]));
 
         Logging.info("finished mesh filtering");
 
@@ -134,36 +194,49 @@ public class MeshAttrLaplacian implements Module
 
     public static void filter(Mesh mesh, String input, String output, double param)
     {
-        mesh.vattr.add(output, mesh.vattr.proto(input));
+        MeshCompact compact = MeshCompact.create(mesh, input);
+        filter(compact, input, output, param);
+        compact.apply(mesh, input, output);
+    }
 
-        for (Vertex vi : mesh.graph.verts())
-        {
-            Vect pi = mesh.vattr.get(vi, input);
+    public static void filter(MeshCompact mesh, String input, String output, double param)
+    {
+        int dim = mesh.dim(input);
+        float[] values = mesh.get(input);
+        double[] lap = new double[dim];
 
-            // Either create or zero the new vect
-            Vect lap = new Vect(pi.size());
+        // vertices are updated in place and in order, so later vertices see the updated values
+        for (int vi = 0; vi < mesh.numVertex(); vi++)
+        {
+            int pi = dim * vi;
 
             // Compute the average of the ring vertices
-            List<Vertex> vring = mesh.graph.vertRing(vi);
+            Arrays.fill(lap, 0);
             double sumw = 0;
-            for (Vertex vj : vring)
+            for (int n = 0; n < mesh.degree(vi); n++)
             {
-                Vect pj = mesh.vattr.get(vj, input);
-                Vect pd = pj.minus(pi);
+                int pj = dim * mesh.neighbor(vi, n);
                 double w = 1.0; // update this later to have fancy weights
 
-                lap.plusEquals(w, pd);
+                for (int d = 0; d < dim; d++)
+                {
+                    lap[d] += w * (values[pj + d] - values[pi + d]);
+                }
                 sumw += w;
             }
 
             if (MathUtils.nonzero(sumw))
             {
-                lap.timesEquals(1.0 / sumw);
+                for (int d = 0; d < dim; d++)
+                {
+                    values[pi + d] += param * lap[d] / sumw;
+                }
             }
+        }
 
-            pi.plusEquals(param, lap);
-
-            mesh.vattr.set(vi, output, pi);
+        if (!input.equals(output))
+        {
+            mesh.copy(input, output);
         }
     }
 
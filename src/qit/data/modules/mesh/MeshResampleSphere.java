@@ -98,6 +98,10 @@ public class MeshResampleSphere implements Module
     @ModuleDescription("a comma-separated list of the input attributes that should be skipped (if any)")
     public String skips = "";
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("output mesh")
     public Mesh output;
@@ -115,8 +119,9 @@ public class MeshResampleSphere implements Module
         sampler.withInputSphere(this.refSphereAttr);
         sampler.withOutput(mesh);
         sampler.withOutputSphere(this.refSphereAttr);
-        Arrays.stream(this.labels.split(",")).map(s -> sampler.addLabel(s));
-        Arrays.stream(this.skips.split(",")).map(s -> sampler.addSkip(s));
+        sampler.withThreads(this.threads);
+        Arrays.stream(this.labels.split(",")).filter(s -> !s.isEmpty()).forEach(s -> sampler.addLabel(s));
+        Arrays.stream(this.skips.split(",")).filter(s -> !s.isEmpty()).forEach(s -> sampler.addSkip(s));
         sampler.run();
 
         MeshFeaturesCortex features = new MeshFeaturesCortex();
@@ -52,6 +52,7 @@ package qit.data.modules.mesh;
 
 import qit.base.Logging;
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -61,13 +62,13 @@ import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mesh;
 import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
+import qit.data.source.VectSource;
 import qit.data.utils.MeshUtils;
 import qit.data.utils.VolumeUtils;
 import qit.data.utils.enums.InterpolationType;
-import qit.data.utils.vects.stats.VectOnlineStats;
+import qit.data.utils.mesh.MeshBVH;
 import qit.data.utils.vects.stats.VectsOnlineStats;
 import qit.math.structs.VectFunction;
-import qit.math.structs.Vertex;
 
 @ModuleDescription("Sample a volume at input vertices")
 @ModuleAuthor("Ryan Cabeen")
@@ -112,10 +113,19 @@ public class MeshSample implements Module
     @ModuleDescription("use the given statistic for summarizing the vertex window")
     private MeshSampleStatistic stat = MeshSampleStatistic.Mean;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("stop the window where the surface normal meets the mesh again, so samples do not cross into an opposing fold")
+    private boolean clip = false;
+
     @ModuleParameter
     @ModuleDescription("run without copying data (be aware of side effects)")
     private boolean inplace = false;
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    private int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output mesh")
     private Mesh output;
@@ -123,48 +133,75 @@ public class MeshSample implements Module
     @Override
     public Module run()
     {
-        VectFunction interp = VolumeUtils.interp(this.interp, this.volume);
         Mesh mesh = this.inplace ? this.input : this.input.copy();
-        MeshUtils.sample(mesh, interp, this.coord, this.attr);
+
+        if (this.window == null)
+        {
+            MeshUtils.sample(mesh, () -> VolumeUtils.interp(this.interp, this.volume), this.coord, this.attr, this.threads);
+            this.output = mesh;
+
+            return this;
+        }
 
         double delta = 0.5 * this.volume.getSampling().deltaMin();
-        if (this.window != null)
+        Logging.info("using window statistics with step size: " + delta);
+        if (!mesh.vattr.has(Mesh.NORMAL))
         {
-            Logging.info("using window statistics with step size: " + delta);
-            if (mesh.vattr.has(Mesh.NORMAL))
-            {
-                Logging.info("computing normals");
-                MeshUtils.computeNormals(mesh);
-            }
+            Logging.info("computing normals");
+            MeshUtils.computeNormals(mesh);
         }
 
-        mesh.vattr.add(attr, interp.protoOut());
-        for (Vertex vert : mesh.vattr)
+        int dim = this.volume.getDim();
+        int steps = (int) Math.ceil(this.window / delta);
+        boolean outside = this.sample == MeshSampleDirection.Both || this.sample == MeshSampleDirection.Outside;
+        boolean inside = this.sample == MeshSampleDirection.Both || this.sample == MeshSampleDirection.Inside;
+
+        MeshBVH bvh = null;
+        if (this.clip)
         {
-            Vect pos = mesh.vattr.get(vert, this.coord);
+            Logging.info("building bounding volume hierarchy");
+            bvh = new MeshBVH(mesh, this.coord);
+        }
+        final MeshBVH fbvh = bvh;
 
-            if (this.window == null)
-            {
-                mesh.vattr.set(vert, this.attr, interp.apply(pos));
-            }
-            else
+        mesh.vattr.add(this.attr, VectSource.createND(dim));
+        MeshUtils.vertices(mesh, () ->
+        {
+            VectFunction interp = VolumeUtils.interp(this.interp, this.volume);
+            MeshBVH.Query query = fbvh == null ? null : fbvh.query().withMax(this.window);
+            Vect value = interp.protoOut();
+            Vect sample = VectSource.create3D();
+
+            return (vert) ->
             {
+                Vect pos = mesh.vattr.get(vert, this.coord);
                 Vect normal = mesh.vattr.get(vert, Mesh.NORMAL).normalize();
-                VectsOnlineStats stats = new VectsOnlineStats(interp.getDimOut());
+                VectsOnlineStats stats = new VectsOnlineStats(dim);
 
                 // update the mesh vertex
-                stats.update(interp.apply(pos));
+                interp.apply(pos, value);
+                stats.update(value);
+
+                int outsteps = fbvh == null ? steps : limit(fbvh, query, pos, normal, 1.0, delta, steps);
+                int insteps = fbvh == null ? steps : limit(fbvh, query, pos, normal, -1.0, delta, steps);
 
                 // update the window
-                for (int i = 1; i < Math.ceil(this.window / delta); i++)
+                for (int i = 1; i < steps; i++)
                 {
-                    if (this.sample == MeshSampleDirection.Both || this.sample == MeshSampleDirection.Outside)
+                    if (outside && i < outsteps)
                     {
-                        stats.update(interp.apply(pos.plus(normal.times(i * delta))));
+                        sample.set(pos);
+                        sample.plusEquals(i * delta, normal);
+                        interp.apply(sample, value);
+                        stats.update(value);
                     }
-                    else if (this.sample == MeshSampleDirection.Both || this.sample == MeshSampleDirection.Inside)
+
+                    if (inside && i < insteps)
                     {
-                        stats.update(interp.apply(pos.plus(normal.times(-1 * i * delta))));
+                        sample.set(pos);
+                        sample.plusEquals(-1 * i * delta, normal);
+                        interp.apply(sample, value);
+                        stats.update(value);
                     }
                 }
 
@@ -180,12 +217,28 @@ public class MeshSample implements Module
                         mesh.vattr.set(vert, this.attr, stats.max);
                         break;
                 }
-
-            }
-        }
+            };
+        }, this.threads);
 
         this.output = mesh;
 
         return this;
     }
+
+    // the number of window steps before a ray from the vertex meets the mesh again
+    private static int limit(MeshBVH bvh, MeshBVH.Query query, Vect pos, Vect normal, double sign, double delta, int steps)
+    {
+        // start just off the surface, so the faces around the vertex are not hit
+        double eps = 1e-3 * delta;
+        double dx = sign * normal.getX();
+        double dy = sign * normal.getY();
+        double dz = sign * normal.getZ();
+
+        if (!bvh.ray(pos.getX() + eps * dx, pos.getY() + eps * dy, pos.getZ() + eps * dz, dx, dy, dz, query))
+        {
+            return steps;
+        }
+
+        return Math.min(steps, (int) Math.ceil((query.dist + eps) / delta));
+    }
 }
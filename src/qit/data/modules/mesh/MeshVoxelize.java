@@ -50,6 +50,7 @@
 
 package qit.data.modules.mesh;
 
+import com.google.common.collect.Lists;
 import qit.base.Module;
 import qit.base.annot.*;
 import qit.data.datasets.Mask;
@@ -61,6 +62,14 @@ import qit.math.structs.Face;
 import qit.math.structs.Vertex;
 import qit.math.utils.MathUtils;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 @ModuleDescription("Voxelize a mesh to a mask (should be watertight if the mesh is also)")
 @ModuleAuthor("Ryan Cabeen")
 public class MeshVoxelize implements Module
@@ -111,6 +120,10 @@ public class MeshVoxelize implements Module
     @ModuleDescription("fill the inside of the mask")
     public boolean fill = false;
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output mask")
     public Mask output;
@@ -119,82 +132,53 @@ public class MeshVoxelize implements Module
     public MeshVoxelize run()
     {
         Mask out = this.reference.proto();
-        double delta = 0.5 * this.reference.getSampling().deltaMin();
+        Sampling sampling = this.reference.getSampling();
+        List<Face> faces = Lists.newArrayList(this.input.graph.faces());
 
-        for (Face face : this.input.graph.faces())
+        if (this.threads <= 1 || faces.size() <= 1)
         {
-            Vertex va = face.getA();
-            Vertex vb = face.getB();
-            Vertex vc = face.getC();
-
-            int la = this.label;
-            int lb = this.label;
-            int lc = this.label;
-
-            if (this.attr != null)
+            Writer writer = new Writer(out);
+            for (Face face : faces)
             {
-                la = (int) Math.round(this.input.vattr.get(va, this.attr).get(0));
-                lb = (int) Math.round(this.input.vattr.get(vb, this.attr).get(0));
-                lc = (int) Math.round(this.input.vattr.get(vc, this.attr).get(0));
+                this.render(face, sampling, writer);
             }
+        }
+        else
+        {
+            // render chunks of faces in parallel and record the labeled voxels,
+            // which are then drawn in the original face order
+            int chunk = Math.max(1, (faces.size() + 4 * this.threads - 1) / (4 * this.threads));
 
-            if (this.innerAttr != null && this.outerAttr != null)
+            List<Callable<Writer>> tasks = Lists.newArrayList();
+            for (int start = 0; start < faces.size(); start += chunk)
             {
-                Vect a0 = this.input.vattr.get(va, this.innerAttr);
-                Vect b0 = this.input.vattr.get(vb, this.innerAttr);
-                Vect c0 = this.input.vattr.get(vc, this.innerAttr);
-
-                Vect a1 = this.input.vattr.get(va, this.outerAttr);
-                Vect b1 = this.input.vattr.get(vb, this.outerAttr);
-                Vect c1 = this.input.vattr.get(vc, this.outerAttr);
-
-                Vect a01 = a1.minus(a0);
-                Vect b01 = b1.minus(b0);
-                Vect c01 = c1.minus(c0);
-
-                if (this.innerBuffer != null || this.outerBuffer != null)
+                final List<Face> block = faces.subList(start, Math.min(start + chunk, faces.size()));
+                tasks.add(() ->
                 {
-                    if (this.innerBuffer != null)
-                    {
-                        a0.minusEquals(-this.innerBuffer, a01.normalize());
-                        b0.minusEquals(-this.innerBuffer, b01.normalize());
-                        c0.minusEquals(-this.innerBuffer, c01.normalize());
-                    }
-
-                    if (this.outerBuffer != null)
+                    Writer writer = new Writer(null);
+                    for (Face face : block)
                     {
-                        a1.plusEquals(this.outerBuffer, a01.normalize());
-                        b1.plusEquals(this.outerBuffer, b01.normalize());
-                        c1.plusEquals(this.outerBuffer, c01.normalize());
+                        this.render(face, sampling, writer);
                     }
+                    return writer;
+                });
+            }
 
-                    a01 = a1.minus(a0);
-                    b01 = b1.minus(b0);
-                    c01 = c1.minus(c0);
-                }
-
-                double maxdist = 0;
-                maxdist = Math.max(maxdist, a01.norm());
-                maxdist = Math.max(maxdist, b01.norm());
-                maxdist = Math.max(maxdist, c01.norm());
-                int num = MathUtils.round(maxdist / delta);
-
-                for (int i = 0; i < num; i++)
+            ExecutorService exec = Executors.newFixedThreadPool(this.threads);
+            try
+            {
+                for (Future<Writer> future : exec.invokeAll(tasks))
                 {
-                    double alpha = i / (double) (num - 1);
-                    Vect a = a0.plus(alpha, a01);
-                    Vect b = b0.plus(alpha, b01);
-                    Vect c = c0.plus(alpha, c01);
-                    render(a, b, c, la, lb, lc, out);
+                    future.get().draw(out);
                 }
             }
-            else
+            catch (InterruptedException | ExecutionException e)
             {
-                Vect a = this.input.vattr.get(va, this.coord);
-                Vect b = this.input.vattr.get(vb, this.coord);
-                Vect c = this.input.vattr.get(vc, this.coord);
-
-                render(a, b, c, la, lb, lc, out);
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                exec.shutdown();
             }
         }
 
@@ -210,9 +194,88 @@ public class MeshVoxelize implements Module
         return this;
     }
 
-    private static void render(Vect a, Vect b, Vect c, int la, int lb, int lc, Mask out)
+    private void render(Face face, Sampling sampling, Writer out)
+    {
+        double delta = 0.5 * sampling.deltaMin();
+
+        Vertex va = face.getA();
+        Vertex vb = face.getB();
+        Vertex vc = face.getC();
+
+        int la = this.label;
+        int lb = this.label;
+        int lc = this.label;
+
+        if (this.attr != null)
+        {
+            la = (int) Math.round(this.input.vattr.get(va, this.attr).get(0));
+            lb = (int) Math.round(this.input.vattr.get(vb, this.attr).get(0));
+            lc = (int) Math.round(this.input.vattr.get(vc, this.attr).get(0));
+        }
+
+        if (this.innerAttr != null && this.outerAttr != null)
+        {
+            // copy the positions, since the buffers should not change the mesh
+            Vect a0 = this.input.vattr.get(va, this.innerAttr).copy();
+            Vect b0 = this.input.vattr.get(vb, this.innerAttr).copy();
+            Vect c0 = this.input.vattr.get(vc, this.innerAttr).copy();
+
+            Vect a1 = this.input.vattr.get(va, this.outerAttr).copy();
+            Vect b1 = this.input.vattr.get(vb, this.outerAttr).copy();
+            Vect c1 = this.input.vattr.get(vc, this.outerAttr).copy();
+
+            Vect a01 = a1.minus(a0);
+            Vect b01 = b1.minus(b0);
+            Vect c01 = c1.minus(c0);
+
+            if (this.innerBuffer != null || this.outerBuffer != null)
+            {
+                if (this.innerBuffer != null)
+                {
+                    a0.minusEquals(-this.innerBuffer, a01.normalize());
+                    b0.minusEquals(-this.innerBuffer, b01.normalize());
+                    c0.minusEquals(-this.innerBuffer, c01.normalize());
+                }
+
+                if (this.outerBuffer != null)
+                {
+                    a1.plusEquals(this.outerBuffer, a01.normalize());
+                    b1.plusEquals(this.outerBuffer, b01.normalize());
+                    c1.plusEquals(this.outerBuffer, c01.normalize());
+                }
+
+                a01 = a1.minus(a0);
+                b01 = b1.minus(b0);
+                c01 = c1.minus(c0);
+            }
+
+            double maxdist = 0;
+            maxdist = Math.max(maxdist, a01.norm());
+            maxdist = Math.max(maxdist, b01.norm());
+            maxdist = Math.max(maxdist, c01.norm());
+            int num = MathUtils.round(maxdist / delta);
+
+            for (int i = 0; i < num; i++)
+            {
+                double alpha = i / (double) (num - 1);
+                Vect a = a0.plus(alpha, a01);
+                Vect b = b0.plus(alpha, b01);
+                Vect c = c0.plus(alpha, c01);
+                render(a, b, c, la, lb, lc, sampling, out);
+            }
+        }
+        else
+        {
+            Vect a = this.input.vattr.get(va, this.coord);
+            Vect b = this.input.vattr.get(vb, this.coord);
+            Vect c = this.input.vattr.get(vc, this.coord);
+
+            render(a, b, c, la, lb, lc, sampling, out);
+        }
+    }
+
+    private static void render(Vect a, Vect b, Vect c, int la, int lb, int lc, Sampling sampling, Writer out)
     {
-        Sampling sampling = out.getSampling();
         double threshold = 0.95 * sampling.deltaMin();
         double bound = 0;
         boolean recurse = false;
@@ -238,7 +301,7 @@ public class MeshVoxelize implements Module
             {
                 if (sampling.contains(v))
                 {
-                    out.set(sampling.nearest(v), lm);
+                    out.write(sampling.index(sampling.nearest(v)), lm);
                 }
             }
         }
@@ -248,10 +311,10 @@ public class MeshVoxelize implements Module
             Vect mac = a.plus(c).times(0.5);
             Vect mbc = b.plus(c).times(0.5);
 
-            render(a, mab, mac, la, la, la, out);
-            render(b, mbc, mab, lb, lb, lb, out);
-            render(c, mac, mbc, lc, lc, lc, out);
-            render(mab, mbc, mac, lm, lm, lm, out);
+            render(a, mab, mac, la, la, la, sampling, out);
+            render(b, mbc, mab, lb, lb, lb, sampling, out);
+            render(c, mac, mbc, lc, lc, lc, sampling, out);
+            render(mab, mbc, mac, lm, lm, lm, sampling, out);
         }
     }
 
@@ -270,4 +333,47 @@ public class MeshVoxelize implements Module
             return c;
         }
     }
+
+    /**
+     * draws labels into a mask, or records them for drawing later
+     */
+    private static class Writer
+    {
+        private Mask mask;
+        private int[] voxels = new int[1024];
+        private int[] labels = new int[1024];
+        private int size = 0;
+
+        private Writer(Mask mask)
+        {
+            this.mask = mask;
+        }
+
+        private void write(int voxel, int label)
+        {
+            if (this.mask != null)
+            {
+                this.mask.set(voxel, label);
+                return;
+            }
+
+            if (this.size == this.voxels.length)
+            {
+                this.voxels = Arrays.copyOf(this.voxels, 2 * this.size);
+                this.labels = Arrays.copyOf(this.labels, 2 * this.size);
+            }
+
+            this.voxels[this.size] = voxel;
+            this.labels[this.size] = label;
+            this.size += 1;
+        }
+
+        private void draw(Mask out)
+        {
+            for (int i = 0; i < this.size; i++)
+            {
+                out.set(this.voxels[i], this.labels[i]);
+            }
+        }
+    }
 }
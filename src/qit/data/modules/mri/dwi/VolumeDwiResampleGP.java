@@ -51,7 +51,6 @@
 
 package qit.data.modules.mri.dwi;
 
-import qit.base.Global;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleCitation;
@@ -63,16 +62,10 @@ import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
-import qit.data.source.VectSource;
-import qit.data.utils.mri.ModelUtils;
+import qit.data.utils.mri.DwiGaussianProcess;
 import qit.data.utils.mri.structs.Gradients;
-import qit.data.utils.volume.VolumeFunction;
 import qit.math.structs.VectFunction;
-import qit.math.utils.MathUtils;
-import smile.math.kernel.MercerKernel;
-import smile.regression.GaussianProcessRegression;
 
-import java.util.List;
 import java.util.function.Supplier;
 
 @ModuleDescription("Resample a diffusion-weighted MR volume to have a different set of gradients (arbitrary b-vectors and b-values)")
@@ -119,94 +112,33 @@ public class VolumeDwiResampleGP implements Module
 
     public VolumeDwiResampleGP run()
     {
-        Volume out = new VolumeFunction(this.factory()).withInput(this.input).withMask(this.mask).withThreads(this.threads).run();
-
-        this.output = out;
+        this.output = this.engine().resample(this.input, this.mask, this.reference, this.lambda);
 
         return this;
     }
 
-    public Supplier<VectFunction> factory()
+    public DwiGaussianProcess engine()
     {
-        return () ->
-        {
-            final MercerKernel<Vect> kernel = (a, b) ->
-            {
-                Vect avec = a.sub(0, 3);
-                double aval = a.get(3);
-
-                Vect bvec = b.sub(0, 3);
-                double bval = b.get(3);
-
-                double dot = Math.abs(avec.dot(bvec));
-                dot = Math.min(Math.max(dot, 0), 1);
-
-                aval = Math.log(aval + Global.DELTA);
-                bval = Math.log(bval + Global.DELTA);
-
-                double dvec = Math.acos(dot);
-                double dval = Math.abs(aval - bval);
-
-                double cvec = MathUtils.zero(VolumeDwiResampleGP.this.alpha) ? 1.0 : Math.exp(-dvec / VolumeDwiResampleGP.this.alpha);
-                double cval = MathUtils.zero(VolumeDwiResampleGP.this.beta) ? 1.0 : Math.exp(-dval / VolumeDwiResampleGP.this.beta);
-
-                double k = cvec * cval;
-
-                Global.assume(!Double.isNaN(k), "invalid k");
-
-                return k;
-            };
-
-            final List<Integer> gradientWhich = VolumeDwiResampleGP.this.gradients.getDvecIdx();
-            final List<Integer> referenceWhich = VolumeDwiResampleGP.this.reference.getDvecIdx();
-            final List<Integer> referenceBaseline = VolumeDwiResampleGP.this.reference.getBaselineIdx();
+        return new DwiGaussianProcess().withGradients(this.gradients).withAlpha(this.alpha).withBeta(this.beta).withThreads(this.threads);
+    }
 
-            final int dinput = VolumeDwiResampleGP.this.gradients.size();
-            final int doutput = VolumeDwiResampleGP.this.reference.size();
+    public Supplier<VectFunction> factory()
+    {
+        // the engine is shared so that every thread uses the same factorization
+        final DwiGaussianProcess gp = this.engine();
+        final Gradients ref = this.reference;
+        final double lam = this.lambda;
 
-            return new VectFunction()
+        return () -> new VectFunction()
+        {
+            public void apply(Vect input1, Vect output1)
             {
-                public void apply(Vect input1, Vect output1)
+                double[] out = gp.resample(new double[][]{input1.toArray()}, ref, lam)[0];
+                for (int i = 0; i < out.length; i++)
                 {
-                    double baseline = ModelUtils.baselineStats(VolumeDwiResampleGP.this.gradients, input1).mean;
-
-                    int num = gradientWhich.size();
-                    Vect[] x = new Vect[num];
-                    double[] y = new double[num];
-
-                    for (int i = 0; i < num; i++)
-                    {
-                        int idx = gradientWhich.get(i);
-
-                        Vect vec = VolumeDwiResampleGP.this.gradients.getBvec(idx);
-                        double val = VolumeDwiResampleGP.this.gradients.getBval(idx);
-
-                        Vect xv = vec.cat(VectSource.create1D(val));
-                        double yv = MathUtils.zero(baseline) ? 0 : input1.get(idx) / baseline;
-
-                        x[i] = xv;
-                        y[i] = yv;
-                    }
-
-                    GaussianProcessRegression<Vect> gp = new GaussianProcessRegression<>(x, y, kernel, VolumeDwiResampleGP.this.lambda);
-
-                    for (Integer idx : referenceBaseline)
-                    {
-                        output1.set(idx, baseline);
-                    }
-
-                    for (Integer idx : referenceWhich)
-                    {
-                        Vect vec = VolumeDwiResampleGP.this.reference.getBvec(idx);
-                        double val = VolumeDwiResampleGP.this.reference.getBval(idx);
-
-                        Vect px = vec.cat(VectSource.create1D(val));
-                        double py = baseline * gp.predict(px);
-
-                        output1.set(idx, py);
-                    }
+                    output1.set(i, out[i]);
                 }
-            }.init(dinput, doutput);
-        };
+            }
+        }.init(this.gradients.size(), this.reference.size());
     }
 }
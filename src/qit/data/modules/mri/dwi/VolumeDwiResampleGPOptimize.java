@@ -63,20 +63,15 @@ import qit.base.annot.ModuleParameter;
 import qit.base.annot.ModuleUnlisted;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Record;
-import qit.data.datasets.Sample;
 import qit.data.datasets.Table;
-import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
-import qit.data.modules.mri.gradients.GradientsReduce;
-import qit.data.modules.volume.VolumeReduce;
-import qit.data.source.VectsSource;
+import qit.data.utils.mri.DwiGaussianProcess;
 import qit.data.utils.mri.structs.Gradients;
-import qit.data.utils.vects.stats.VectOnlineStats;
-import qit.math.structs.VectFunction;
+import qit.math.utils.MathUtils;
 
 import java.util.List;
 
-@ModuleDescription("Optimize the parameters for VolumeDwiResampleGP")
+@ModuleDescription("Optimize the parameters for VolumeDwiResampleGP.  Each condition is evaluated on a sample of voxels by the leave-one-out prediction error and the log marginal likelihood of the normalized signal, which are both computed from a single factorization of the kernel matrix")
 @ModuleCitation("Andersson, J. L., & Sotiropoulos, S. N. (2015). Non-parametric representation and prediction of single-and multi-shell diffusion-weighted MRI data using Gaussian processes. NeuroImage, 122, 166-176.")
 @ModuleAuthor("Ryan Cabeen")
 @ModuleUnlisted
@@ -130,91 +125,78 @@ public class VolumeDwiResampleGPOptimize implements Module
     @ModuleDescription("the number of beta samples")
     public Integer betanum = 100;
 
+    @ModuleParameter
+    @ModuleDescription("the maximum number of voxels that are sampled from the mask for evaluating each condition")
+    public Integer samples = 5000;
+
+    @ModuleParameter
+    @ModuleDescription("the number of threads to use")
+    public Integer threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output results")
     public Table output;
 
     public VolumeDwiResampleGPOptimize run()
     {
-        List<Integer> dvecs = this.gradients.getDvecIdx();
         Table out = new Table();
         out.withField("lambda");
         out.withField("alpha");
         out.withField("beta");
         out.withField("mse");
+        out.withField("loglik");
 
-        List<Sample> samples = Lists.newArrayList();
-        for (Sample sample : this.input.getSampling())
+        List<Integer> voxels = Lists.newArrayList();
+        for (int idx = 0; idx < this.input.getSampling().size(); idx++)
         {
-            if (this.input.valid(sample, this.mask))
+            if (this.input.valid(idx, this.mask))
             {
-                samples.add(sample);
+                voxels.add(idx);
             }
         }
 
-        for (int i = 0; i < this.lambdanum; i++)
+        if (voxels.size() > this.samples)
         {
-            for (int j = 0; j < this.alphanum; j++)
+            List<Integer> subset = Lists.newArrayList();
+            for (int i : MathUtils.subset(voxels.size(), this.samples))
             {
-                for (int k = 0; k < this.betanum; k++)
-                {
-                    Logging.info(String.format("started condition (%d,%d,%d)", i, j, k));
-
-                    double lambda = this.lambdamin + i * (this.lambdamax - this.lambdamin) / this.lambdanum;
-                    double alpha = this.alphamin + j * (this.alphamax - this.alphamin) / this.alphanum;
-                    double beta = this.betamin + k * (this.betamax - this.betamin) / this.betanum;
-
-                    VectOnlineStats stats = new VectOnlineStats();
-
-                    for (Integer d : dvecs)
-                    {
-                        Logging.info("... started fold: " + d);
-
-                        VolumeDwiResampleGP resample = new VolumeDwiResampleGP();
-                        resample.mask = this.mask;
-                        resample.lambda = lambda;
-                        resample.alpha = alpha;
-                        resample.beta = beta;
-
-                        {
-                            GradientsReduce greduce = new GradientsReduce();
-                            greduce.input = this.gradients;
-                            greduce.exclude = String.valueOf(d);
-                            resample.gradients = greduce.run().output;
-                        }
-
-                        {
-                            VolumeReduce vreduce = new VolumeReduce();
-                            vreduce.input = this.input;
-                            vreduce.exclude = String.valueOf(d);
-                            resample.input = vreduce.run().output;
-                        }
+                subset.add(voxels.get(i));
+            }
+            voxels = subset;
+        }
 
-                        {
-                            resample.reference = new Gradients(VectsSource.create(this.gradients.getBvec(d)),this.gradients.getBval(d));
-                        }
+        Logging.info(String.format("evaluating conditions with %d voxels", voxels.size()));
 
-                        VectFunction gp = resample.factory().get();
+        double[][] signals = new double[voxels.size()][this.input.getDim()];
+        for (int i = 0; i < voxels.size(); i++)
+        {
+            this.input.get(voxels.get(i), signals[i]);
+        }
 
-                        for (Sample sample : samples)
-                        {
-                            Vect signal = this.input.get(sample);
+        // the kernel only depends on alpha and beta, so lambda is varied last
+        for (int j = 0; j < this.alphanum; j++)
+        {
+            for (int k = 0; k < this.betanum; k++)
+            {
+                double alpha = this.alphamin + j * (this.alphamax - this.alphamin) / this.alphanum;
+                double beta = this.betamin + k * (this.betamax - this.betamin) / this.betanum;
 
-                            double pred = gp.apply(signal.subex(d)).get(0);
-                            double truth = signal.get(d);
+                DwiGaussianProcess gp = new DwiGaussianProcess().withGradients(this.gradients).withAlpha(alpha).withBeta(beta).withThreads(this.threads);
 
-                            double delta = pred - truth;
-                            double error = delta * delta;
+                for (int i = 0; i < this.lambdanum; i++)
+                {
+                    Logging.info(String.format("started condition (%d,%d,%d)", i, j, k));
 
-                            stats.update(error);
-                        }
-                    }
+                    double lambda = this.lambdamin + i * (this.lambdamax - this.lambdamin) / this.lambdanum;
+                    double[] eval = gp.evaluate(signals, lambda);
 
                     Record rec = new Record();
                     rec.with("lambda", lambda);
                     rec.with("alpha", alpha);
                     rec.with("beta", beta);
-                    rec.with("mse", stats.mean);
+                    rec.with("mse", eval[1]);
+                    rec.with("loglik", eval[0]);
+                    out.addRecord(rec);
                 }
             }
         }
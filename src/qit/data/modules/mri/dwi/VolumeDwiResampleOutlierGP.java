@@ -51,7 +51,6 @@
 
 package qit.data.modules.mri.dwi;
 
-import qit.base.Global;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleCitation;
@@ -63,16 +62,10 @@ import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
-import qit.data.source.VectSource;
-import qit.data.utils.mri.ModelUtils;
+import qit.data.utils.mri.DwiGaussianProcess;
 import qit.data.utils.mri.structs.Gradients;
-import qit.data.utils.volume.VolumeFunction;
 import qit.math.structs.VectFunction;
-import qit.math.utils.MathUtils;
-import smile.math.kernel.MercerKernel;
-import smile.regression.GaussianProcessRegression;
 
-import java.util.List;
 import java.util.function.Supplier;
 
 @ModuleDescription("Detect and replace outliers of a diffusion-weighted MR volume using Gaussian Process regression.  This first detects outliers using a very smooth GP model and then replaces only those outliers using a more rigid GP model")
@@ -131,159 +124,33 @@ public class VolumeDwiResampleOutlierGP implements Module
 
     public VolumeDwiResampleOutlierGP run()
     {
-        Volume out = new VolumeFunction(this.factory()).withInput(this.input).withMask(this.mask).withThreads(this.threads).run();
-
-        this.output = out;
+        this.output = this.engine().outliers(this.input, this.mask, this.outlier, this.include, this.lambdaDetect, this.lambdaPredict, this.resample);
 
         return this;
     }
 
-    public Supplier<VectFunction> factory()
+    public DwiGaussianProcess engine()
     {
-        return () ->
-        {
-            final MercerKernel<Vect> kernel = new MercerKernel<Vect>()
-            {
-                @Override
-                public double k(Vect a, Vect b)
-                {
-                    Vect avec = a.sub(0, 3);
-                    double aval = a.get(3);
-
-                    Vect bvec = b.sub(0, 3);
-                    double bval = b.get(3);
-
-                    double dot = Math.abs(avec.dot(bvec));
-                    dot = Math.min(Math.max(dot, 0), 1);
-
-                    aval = Math.log(aval + Global.DELTA);
-                    bval = Math.log(bval + Global.DELTA);
-
-                    double dvec = Math.acos(dot);
-                    double dval = Math.abs(aval - bval);
-
-                    double cvec = MathUtils.zero(VolumeDwiResampleOutlierGP.this.alpha) ? 1.0 : Math.exp(-dvec / VolumeDwiResampleOutlierGP.this.alpha);
-                    double cval = MathUtils.zero(VolumeDwiResampleOutlierGP.this.beta) ? 1.0 : Math.exp(-dval / VolumeDwiResampleOutlierGP.this.beta);
-
-                    double k = cvec * cval;
-
-                    Global.assume(!Double.isNaN(k), "invalid k");
-
-                    return k;
-                }
-            };
+        return new DwiGaussianProcess().withGradients(this.gradients).withAlpha(this.alpha).withBeta(this.beta).withThreads(this.threads);
+    }
 
-            final List<Integer> which = VolumeDwiResampleOutlierGP.this.gradients.getDvecIdx();
-            final List<Integer> baselines = VolumeDwiResampleOutlierGP.this.gradients.getBaselineIdx();
-            final int dim = VolumeDwiResampleOutlierGP.this.gradients.size();
+    public Supplier<VectFunction> factory()
+    {
+        // the engine is shared so that voxels with the same outliers use the same factorization
+        final DwiGaussianProcess gp = this.engine();
+        final int dim = this.gradients.size();
 
-            return new VectFunction()
+        return () -> new VectFunction()
+        {
+            public void apply(Vect input1, Vect output1)
             {
-                public void apply(Vect input1, Vect output1)
+                VolumeDwiResampleOutlierGP self = VolumeDwiResampleOutlierGP.this;
+                double[] out = gp.outliers(new double[][]{input1.toArray()}, self.outlier, self.include, self.lambdaDetect, self.lambdaPredict, self.resample)[0];
+                for (int i = 0; i < out.length; i++)
                 {
-                    double baseline = ModelUtils.baselineStats(VolumeDwiResampleOutlierGP.this.gradients, input1).mean;
-
-                    for (Integer idx : baselines)
-                    {
-                        output1.set(idx, baseline);
-                    }
-
-                    int num = which.size();
-                    boolean[] include1 = new boolean[num];
-
-                    {
-                        Vect[] x = new Vect[num];
-                        double[] y = new double[num];
-
-                        for (int i = 0; i < num; i++)
-                        {
-                            int idx = which.get(i);
-
-                            Vect vec = VolumeDwiResampleOutlierGP.this.gradients.getBvec(idx);
-                            double val = VolumeDwiResampleOutlierGP.this.gradients.getBval(idx);
-
-                            Vect xv = vec.cat(VectSource.create1D(val));
-                            double yv = MathUtils.zero(baseline) ? 0 : input1.get(idx) / baseline;
-
-                            x[i] = xv;
-                            y[i] = yv;
-                        }
-
-                        GaussianProcessRegression<Vect> gpDetect = new GaussianProcessRegression<>(x, y, kernel, VolumeDwiResampleOutlierGP.this.lambdaDetect);
-
-                        for (int i = 0; i < num; i++)
-                        {
-                            double py = gpDetect.predict(x[i]);
-                            double vy = y[i];
-
-                            double change = MathUtils.zero(vy) ? 1.0 : Math.abs(py - vy) / vy;
-
-                            int idx = which.get(i);
-                            output1.set(idx, change);
-
-                            include1[i] = change < VolumeDwiResampleOutlierGP.this.outlier;
-                        }
-                    }
-
-                    int numinc = MathUtils.count(include1);
-
-                    if (numinc > VolumeDwiResampleOutlierGP.this.include * dim)
-                    {
-                        Vect[] x = new Vect[numinc];
-                        double[] y = new double[numinc];
-
-                        int incidx = 0;
-                        for (int i = 0; i < num; i++)
-                        {
-                            if (include1[i])
-                            {
-                                int idx = which.get(i);
-
-                                Vect vec = VolumeDwiResampleOutlierGP.this.gradients.getBvec(idx);
-                                double val = VolumeDwiResampleOutlierGP.this.gradients.getBval(idx);
-
-                                Vect xv = vec.cat(VectSource.create1D(val));
-                                double yv = MathUtils.zero(baseline) ? 0 : input1.get(idx) / baseline;
-
-                                x[incidx] = xv;
-                                y[incidx] = yv;
-
-                                incidx += 1;
-                            }
-                        }
-                        Global.assume(incidx == numinc, "bug in filling gp data");
-
-                        GaussianProcessRegression<Vect> gpDetect = new GaussianProcessRegression<>(x, y, kernel, VolumeDwiResampleOutlierGP.this.lambdaPredict);
-
-                        for (int i = 0; i < num; i++)
-                        {
-                            int idx = which.get(i);
-                            if (!VolumeDwiResampleOutlierGP.this.resample && include1[i])
-                            {
-                                output1.set(idx, input1.get(idx));
-                            }
-                            else
-                            {
-                                Vect vec = VolumeDwiResampleOutlierGP.this.gradients.getBvec(idx);
-                                double val = VolumeDwiResampleOutlierGP.this.gradients.getBval(idx);
-
-                                Vect px = vec.cat(VectSource.create1D(val));
-                                double py = baseline * gpDetect.predict(px);
-
-                                output1.set(idx, py);
-                            }
-                        }
-                    }
-                    else
-                    {
-                        for (int i = 0; i < num; i++)
-                        {
-                            int idx = which.get(i);
-                            output1.set(idx, input1.get(idx));
-                        }
-                    }
+                    output1.set(i, out[i]);
                 }
-            }.init(dim, dim);
-        };
+            }
+        }.init(dim, dim);
     }
 }
@@ -51,6 +51,7 @@
 package qit.data.modules.mri.fibers;
 
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleCitation;
 import qit.base.annot.ModuleDescription;
@@ -59,10 +60,8 @@ import qit.base.annot.ModuleOptional;
 import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
 import qit.data.datasets.Sampling;
 import qit.data.datasets.Volume;
-import qit.data.source.VolumeSource;
 import qit.data.utils.enums.KernelInterpolationType;
 import qit.data.utils.volume.VolumeInterpTrilinear;
 import qit.data.models.Fibers;
@@ -124,6 +123,11 @@ public class VolumeFibersZoom implements Module
     @ModuleDescription("a data adaptive threshold")
     public double lambda = 0.99;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output fibers volume")
     public Volume output;
@@ -148,14 +152,9 @@ public class VolumeFibersZoom implements Module
         Sampling ins = this.input.getSampling();
         Sampling nsampling = this.isotropic != null ? ins.resample(this.isotropic) : ins.zoom(this.factor);
 
-        Volume out = VolumeSource.create(nsampling, this.input.getDim());
+        Volume out = vestimator.estimate(nsampling, null, this.threads);
         out.setModel(this.input.getModel());
 
-        for (Sample sample : nsampling)
-        {
-            out.set(sample, vestimator.estimate(nsampling.world(sample)));
-        }
-
         this.output = out;
         return this;
     }
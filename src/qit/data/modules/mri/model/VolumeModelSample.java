@@ -342,12 +342,13 @@ public class VolumeModelSample implements Module
             samples = VectsUtils.subsample(samples, this.limit);
         }
 
+        Vects models = vestimator.estimate(samples, this.threads);
         Vects out = new Vects();
 
-        for (Vect sample : samples)
+        for (int i = 0; i < samples.size(); i++)
         {
-            Vect model = vestimator.estimate(sample);
-            model = this.param ? model : sample.cat(model);
+            Vect model = models.get(i);
+            model = this.param ? model : samples.get(i).cat(model);
 
             out.add(model);
         }
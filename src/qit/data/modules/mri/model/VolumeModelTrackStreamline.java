@@ -79,6 +79,7 @@ import qit.data.models.VectModel;
 import qit.data.modules.curves.*;
 import qit.data.modules.mri.fibers.VolumeFibersProjectVector;
 import qit.data.modules.mri.odf.VolumeOdfPeaks;
+import qit.data.modules.mri.spharm.VolumeSpharmODF;
 import qit.data.modules.mri.spharm.VolumeSpharmPeaks;
 import qit.data.modules.vects.VectsCreateSphere;
 import qit.data.modules.volume.VolumeFilterGaussian;
@@ -95,6 +96,7 @@ import qit.data.utils.mri.structs.ModelEstimator;
 import qit.data.utils.mri.structs.StreamlineField;
 import qit.data.utils.mri.structs.StreamlineTracker;
 import qit.math.source.SelectorSource;
+import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 
 import java.io.IOException;
@@ -428,6 +430,22 @@ public class VolumeModelTrackStreamline implements Module
     @ModuleDescription("the number of threads")
     public int threads = 3;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("compile the field into per-voxel lookup tables before tracking (this supports probabilistic ODF and spharm tracking with nearest or trilinear interpolation, and peak tracking with nearest interpolation)")
+    public boolean lookup = false;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("cache the given number of interpolated models per thread, which are reused by queries that fall in the same cell (this approximates the interpolation)")
+    public Integer cache = null;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the size of the interpolation cache cells in voxels")
+    public double cacheResolution = 0.1;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleOptional
@@ -780,6 +798,44 @@ public class VolumeModelTrackStreamline implements Module
     }
 
     private StreamlineField field(Volume volume, TrackParam params)
+    {
+        boolean interpolated = KernelInterpolationType.Nearest.equals(params.interp) || KernelInterpolationType.Trilinear.equals(params.interp);
+        boolean trilinear = KernelInterpolationType.Trilinear.equals(params.interp);
+
+        if (this.lookup && params.prob && interpolated)
+        {
+            if (this.odfPoints != null && this.odfPoints.size() == volume.getDim())
+            {
+                Logging.info("using ODF lookup field");
+                return new OdfLookupField(volume, null, this.odfPoints, trilinear, params.angle, params.min, this.threads);
+            }
+            else if (ModelType.Spharm.equals(ModelUtils.select(volume.getModel(), this.model)))
+            {
+                Logging.info("using spharm lookup field");
+
+                Vects mypoints = this.odfPoints == null ? VectsCreateSphere.odf(this.probPoints) : this.odfPoints;
+                Logging.infosub("using %d ODF points", mypoints.size());
+                VectFunction odfer = VolumeSpharmODF.factory(mypoints, volume.getDim()).get();
+                return new OdfLookupField(volume, odfer, mypoints, trilinear, params.angle, params.min, this.threads);
+            }
+        }
+
+        StreamlineField field = this.direct(volume, params);
+
+        if (this.lookup && !params.prob && KernelInterpolationType.Nearest.equals(params.interp))
+        {
+            Logging.info("using peak lookup field");
+            return new PeakLookupField(field, volume, this.threads);
+        }
+        else if (this.lookup)
+        {
+            Logging.info("lookup tables are not available for this field and interpolation, so it will be evaluated directly");
+        }
+
+        return field;
+    }
+
+    private StreamlineField direct(Volume volume, TrackParam params)
     {
         ModelType detected = ModelUtils.select(volume.getModel(), this.model);
         BiFunction<Model, ModelEstimator, VolumeKernelModelEstimator> create = (m, e) ->
@@ -790,6 +846,8 @@ public class VolumeModelTrackStreamline implements Module
             vestimator.interp = params.interp;
             vestimator.hpos = this.hpos;
             vestimator.support = this.support;
+            vestimator.cache = this.cache;
+            vestimator.resolution = this.cacheResolution;
 
             return vestimator;
         };
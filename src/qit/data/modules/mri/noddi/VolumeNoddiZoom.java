@@ -51,6 +51,7 @@
 package qit.data.modules.mri.noddi;
 
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -62,7 +63,6 @@ import qit.data.datasets.Sampling;
 import qit.data.datasets.Volume;
 import qit.data.utils.enums.KernelInterpolationType;
 import qit.data.utils.volume.VolumeInterpTrilinear;
-import qit.data.utils.volume.VolumeSample;
 import qit.data.models.Noddi;
 import qit.data.utils.mri.estimation.NoddiEstimator;
 import qit.data.utils.mri.estimation.VolumeKernelModelEstimator;
@@ -110,6 +110,11 @@ public class VolumeNoddiZoom implements Module
     @ModuleDescription("specify an estimation method")
     public String estimation = NoddiEstimator.SCATTER;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output noddi volume")
     public Volume output;
@@ -131,10 +136,7 @@ public class VolumeNoddiZoom implements Module
 
         Sampling nsampling = this.input.getSampling().zoom(this.factor);
 
-        VolumeSample sampler = new VolumeSample();
-        sampler.sampling = nsampling;
-        sampler.function = vestimator;
-        Volume out = sampler.run().output;
+        Volume out = vestimator.estimate(nsampling, null, this.threads);
         out.setModel(this.input.getModel());
 
         this.output = out;
@@ -41,6 +41,7 @@ import qit.data.utils.mri.fitting.FitOdfDampedRichardsonLucy;
 import qit.data.utils.mri.fitting.FitOdfMCRLD;
 import qit.data.utils.mri.fitting.FitOdfRichardsonLucy;
 import qit.data.utils.mri.structs.Gradients;
+import qit.data.utils.volume.VolumeDeconvolve;
 import qit.data.utils.volume.VolumeFunction;
 import qit.math.structs.VectFunction;
 
@@ -103,6 +104,16 @@ public class VolumeOdfFit implements Module
     @ModuleDescription("the kernel radial diffusivity for deconvolution")
     public double beta = FitOdfRichardsonLucy.DEFAULT_BETA;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("deconvolve blocks of voxels together, which is much faster for many odf directions")
+    public boolean batch = false;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("in batch mode, stop iterating a voxel once the relative change in its odf is below this tolerance (zero runs every iteration)")
+    public double tol = 0;
+
     @ModuleParameter
     @ModuleDescription("the number of threads in the pool")
     public Integer threads = 1;
@@ -131,33 +142,32 @@ public class VolumeOdfFit implements Module
 
         Vects fpoints = mypoints;
 
-        Supplier<VectFunction> supplier = () ->
+        if (this.batch)
         {
-            Gradients grads = this.gradients.copy();
+            Pair<Gradients, VectFunction> pair = this.subset();
 
-            boolean subset = false;
-            subset |= this.shells != null;
-            subset |= this.which != null;
-            subset |= this.exclude != null;
+            FitOdfRichardsonLucy rld = this.rld();
 
-            VectFunction subsetter = null;
-            if (subset)
-            {
-                Pair<Gradients, VectFunction> pair = grads.subset(this.shells, this.which, this.exclude);
+            VolumeDeconvolve deconv = new VolumeDeconvolve();
+            deconv.withInput(this.input).withMask(this.mask).withThreads(this.threads);
+            deconv.withGradients(pair.a).withSubset(pair.b).withKernel(rld.kernel(pair.a, fpoints));
+            deconv.withIters(this.iters).withTol(this.tol);
 
-                grads = pair.a;
-                subsetter = pair.b;
-            }
+            this.output = deconv.run().getOutput();
+            this.outpoints = mypoints;
+
+            return this;
+        }
+
+        Supplier<VectFunction> supplier = () ->
+        {
+            Pair<Gradients, VectFunction> pair = this.subset();
 
-            FitOdfRichardsonLucy rld = new FitOdfRichardsonLucy();
-            rld.alpha = this.alpha;
-            rld.beta = this.beta;
-            rld.rlditers = this.iters;
-            VectFunction fitter = rld.fitter(grads, fpoints);
+            VectFunction fitter = this.rld().fitter(pair.a, fpoints);
 
-            if (subsetter != null)
+            if (pair.b != null)
             {
-                fitter = subsetter.compose(fitter);
+                fitter = pair.b.compose(fitter);
             }
 
             return fitter;
@@ -168,4 +178,34 @@ public class VolumeOdfFit implements Module
 
         return this;
     }
+
+    private FitOdfRichardsonLucy rld()
+    {
+        FitOdfRichardsonLucy rld = new FitOdfRichardsonLucy();
+        rld.alpha = this.alpha;
+        rld.beta = this.beta;
+        rld.rlditers = this.iters;
+
+        return rld;
+    }
+
+    /**
+     * @return the selected gradients and a function to select the matching channels (null if all are used)
+     */
+    private Pair<Gradients, VectFunction> subset()
+    {
+        Gradients grads = this.gradients.copy();
+
+        boolean subset = false;
+        subset |= this.shells != null;
+        subset |= this.which != null;
+        subset |= this.exclude != null;
+
+        if (subset)
+        {
+            return grads.subset(this.shells, this.which, this.exclude);
+        }
+
+        return Pair.of(grads, null);
+    }
 }
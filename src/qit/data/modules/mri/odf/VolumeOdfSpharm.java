@@ -31,6 +31,7 @@
 package qit.data.modules.mri.odf;
 
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -43,6 +44,7 @@ import qit.data.datasets.Vect;
 import qit.data.datasets.Vects;
 import qit.data.datasets.Volume;
 import qit.data.models.Spharm;
+import qit.data.utils.volume.VolumeDeconvolve;
 import qit.data.utils.volume.VolumeFunction;
 import qit.math.structs.VectFunction;
 
@@ -69,6 +71,11 @@ public class VolumeOdfSpharm implements Module
     @ModuleDescription("the maximum spherical harmonic order")
     public Integer order = 8;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("transform blocks of voxels together")
+    public boolean batch = false;
+
     @ModuleParameter
     @ModuleDescription("the number of threads in the pool")
     public Integer threads = 1;
@@ -79,6 +86,14 @@ public class VolumeOdfSpharm implements Module
 
     public VolumeOdfSpharm run()
     {
+        if (this.batch)
+        {
+            Matrix transform = Spharm.bmatrix(this.order, this.dirs).inv();
+            this.output = new VolumeDeconvolve().withInput(this.input).withMask(this.mask).withTransform(transform).withThreads(this.threads).run().getOutput();
+
+            return this;
+        }
+
         this.output = new VolumeFunction(this.factory(this.input.getDim())).withInput(this.input).withMask(this.mask).withThreads(this.threads).run();
 
         return this;
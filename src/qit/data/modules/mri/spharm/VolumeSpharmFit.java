@@ -78,6 +78,7 @@ import qit.data.utils.mri.fitting.FitOdfDampedRichardsonLucy;
 import qit.data.utils.mri.fitting.FitOdfRichardsonLucy;
 import qit.data.utils.mri.fitting.FitSpharmCSD;
 import qit.data.utils.mri.structs.Gradients;
+import qit.data.utils.volume.VolumeDeconvolve;
 import qit.data.utils.volume.VolumeFunction;
 import qit.math.structs.VectFunction;
 
@@ -199,6 +200,16 @@ public class VolumeSpharmFit implements Module
     @ModuleDescription("use fine-grained multi-threading")
     public boolean columns = false;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("deconvolve blocks of voxels together with RLD, which is much faster for many points")
+    public boolean batch = false;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("in batch mode, stop iterating a voxel once the relative change in its odf is below this tolerance (zero runs every iteration)")
+    public double tol = 0;
+
     @ModuleOutput
     @ModuleDescription("output spharm volume")
     public Volume output;
@@ -206,33 +217,33 @@ public class VolumeSpharmFit implements Module
     @Override
     public VolumeSpharmFit run()
     {
-        Supplier<VectFunction> create = () ->
+        if (this.batch && this.method.equals(VolumeSpharmFitMode.RLD))
         {
-            Gradients grads = VolumeSpharmFit.this.gradients.copy();
+            Pair<Gradients, VectFunction> pair = this.subset();
+            Vects fdirs = this.dirs();
 
-            boolean subset = false;
-            subset |= this.round != null;
-            subset |= this.shells != null;
-            subset |= this.which != null;
-            subset |= this.exclude != null;
+            VolumeDeconvolve deconv = new VolumeDeconvolve();
+            deconv.withInput(this.input).withMask(this.mask).withThreads(this.threads);
+            deconv.withGradients(pair.a).withSubset(pair.b).withKernel(this.rld().kernel(pair.a, fdirs));
+            deconv.withTransform(Spharm.bmatrix(this.order, fdirs).inv());
+            deconv.withIters(this.rlditers).withTol(this.tol);
 
-            VectFunction subsetter = null;
-            if (subset)
-            {
-                Pair<Gradients, VectFunction> pair = GradientsTransform.roundit(this.gradients, this.round).subset(this.shells, this.which, this.exclude);
+            this.output = deconv.run().getOutput().setModel(ModelType.Spharm);
 
-                grads = pair.a;
-                subsetter = pair.b;
-            }
+            return this;
+        }
+
+        Supplier<VectFunction> create = () ->
+        {
+            Pair<Gradients, VectFunction> pair = this.subset();
+            Gradients grads = pair.a;
+            VectFunction subsetter = pair.b;
 
             VectFunction fitter = null;
             if (VolumeSpharmFit.this.method.equals(VolumeSpharmFitMode.RLD))
             {
-                final Vects fdirs = this.points != null && this.points > 0 ? VectsCreateSphere.odf(this.points) : new VectsCreateSphereLookup().run().output;
-                FitOdfRichardsonLucy fit = new FitOdfRichardsonLucy();
-                fit.alpha = VolumeSpharmFit.this.alpha;
-                fit.beta = VolumeSpharmFit.this.beta;
-                fit.rlditers = VolumeSpharmFit.this.rlditers;
+                final Vects fdirs = this.dirs();
+                FitOdfRichardsonLucy fit = this.rld();
                 final Matrix transform = Spharm.bmatrix(VolumeSpharmFit.this.order, fdirs).inv();
 
                 fitter = fit.fitter(grads, fdirs).compose(new VectFunction()
@@ -274,4 +285,38 @@ public class VolumeSpharmFit implements Module
 
         return this;
     }
+
+    private Vects dirs()
+    {
+        return this.points != null && this.points > 0 ? VectsCreateSphere.odf(this.points) : new VectsCreateSphereLookup().run().output;
+    }
+
+    private FitOdfRichardsonLucy rld()
+    {
+        FitOdfRichardsonLucy fit = new FitOdfRichardsonLucy();
+        fit.alpha = this.alpha;
+        fit.beta = this.beta;
+        fit.rlditers = this.rlditers;
+
+        return fit;
+    }
+
+    /**
+     * @return the selected gradients and a function to select the matching channels (null if all are used)
+     */
+    private Pair<Gradients, VectFunction> subset()
+    {
+        boolean subset = false;
+        subset |= this.round != null;
+        subset |= this.shells != null;
+        subset |= this.which != null;
+        subset |= this.exclude != null;
+
+        if (subset)
+        {
+            return GradientsTransform.roundit(this.gradients, this.round).subset(this.shells, this.which, this.exclude);
+        }
+
+        return Pair.of(this.gradients.copy(), null);
+    }
 }
@@ -112,6 +112,11 @@ public class VolumeTensorFit implements Module
     @ModuleDescription("specify a cost function for non-linear fitting")
     public CostType cost = CostType.SE;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("use Levenberg-Marquardt with analytic derivatives for non-linear fitting (only applies to the SE cost)")
+    public boolean lm = false;
+
     @ModuleParameter
     @ModuleAdvanced
     @ModuleDescription("use the lowest single shell for tensor estimation (if used, this will skip the shells, which, and exclude flags)")
@@ -304,6 +309,7 @@ public class VolumeTensorFit implements Module
                     fit.gradients = grads;
                     fit.baseline = VolumeTensorFit.this.baseline;
                     fit.cost = VolumeTensorFit.this.cost;
+                    fit.lm = VolumeTensorFit.this.lm;
                     fitter = fit.get();
                     break;
                 }
@@ -355,6 +361,7 @@ public class VolumeTensorFit implements Module
                     FitTensorFreeWaterSimplex fit = new FitTensorFreeWaterSimplex();
                     fit.gradients = grads;
                     fit.cost = VolumeTensorFit.this.cost;
+                    fit.lm = VolumeTensorFit.this.lm;
                     fitter = fit.get();
                     break;
                 }
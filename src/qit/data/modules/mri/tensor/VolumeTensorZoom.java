@@ -51,6 +51,7 @@
 package qit.data.modules.mri.tensor;
 
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -62,7 +63,6 @@ import qit.data.datasets.Sampling;
 import qit.data.datasets.Volume;
 import qit.data.utils.enums.KernelInterpolationType;
 import qit.data.utils.volume.VolumeInterpTrilinear;
-import qit.data.utils.volume.VolumeSample;
 import qit.data.models.Tensor;
 import qit.data.utils.mri.estimation.TensorEstimator;
 import qit.data.utils.mri.estimation.VolumeKernelModelEstimator;
@@ -100,6 +100,11 @@ public class VolumeTensorZoom implements Module
     @ModuleDescription("the positional bandwidth in mm")
     public Double hpos = 2.0;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output tensor volume")
     public Volume output;
@@ -119,10 +124,7 @@ public class VolumeTensorZoom implements Module
 
         Sampling nsampling = this.input.getSampling().zoom(this.factor);
 
-        VolumeSample sampler = new VolumeSample();
-        sampler.sampling = nsampling;
-        sampler.function = vestimator;
-        Volume out = sampler.run().output;
+        Volume out = vestimator.estimate(nsampling, null, this.threads);
         out.setModel(this.input.getModel());
 
         this.output = out;
@@ -50,6 +50,7 @@
 
 package qit.data.modules.vects;
 
+import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
 import qit.base.annot.ModuleAuthor;
@@ -61,14 +62,11 @@ import qit.base.annot.ModuleParameter;
 import qit.data.datasets.Mesh;
 import qit.data.datasets.Vect;
 import qit.data.datasets.Vects;
-import qit.data.modules.mesh.MeshAttrGetVects;
 import qit.data.modules.mesh.MeshAttrLaplacian;
-import qit.data.modules.mesh.MeshAttrSetVects;
-import qit.data.utils.MeshUtils;
-import qit.math.structs.Vertex;
-import qit.math.utils.MathUtils;
-
-import java.util.List;
+import qit.data.utils.VectsUtils;
+import qit.data.utils.mesh.MeshCompact;
+import qit.data.utils.mesh.MeshLaplacian;
+import qit.data.utils.mesh.MeshLaplacian.MeshLaplacianWeights;
 
 @ModuleDescription("Filter a vects dataset originating form from a mesh with a laplacian filter")
 @ModuleAuthor("Ryan Cabeen")
@@ -90,19 +88,87 @@ public class VectsMeshLaplacian implements Module
     @ModuleDescription("the lambda laplacian filtering parameter")
     public Double lambda = 0.3;
 
+    @ModuleParameter
+    @ModuleDescription("use cotangent weights instead of uniform weights")
+    public boolean cotan = false;
+
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("use implicit filtering with the given time step, where each iteration is a single linear solve")
+    public Double implicit = null;
+
+    @ModuleParameter
+    @ModuleDescription("use the sparse laplacian operator, which updates all vertices at once and supports multiple threads")
+    public boolean sparse = false;
+
+    @ModuleParameter
+    @ModuleDescription("the number of threads in the pool (only used by the sparse operator)")
+    public Integer threads = 1;
+
     @ModuleOutput
     @ModuleDescription("the output smoothed data")
     public Vects output;
 
     public VectsMeshLaplacian run()
     {
-        MeshAttrSetVects.apply(this.mesh, Mesh.TEMP, this.input);
-        for (int i = 0; i < this.num; i++)
+        MeshCompact compact = MeshCompact.create(this.mesh, Mesh.COORD);
+
+        Vects values = this.input;
+        if (values.size() != compact.numVertex() && values.getDim() == compact.numVertex())
+        {
+            values = VectsUtils.transpose(values);
+        }
+
+        Global.assume(values.size() == compact.numVertex(), "invalid number of vects: " + values.size());
+
+        int dim = values.getDim();
+        double[] data = new double[dim * compact.numVertex()];
+        for (int i = 0; i < compact.numVertex(); i++)
+        {
+            Vect value = values.get(i);
+            for (int j = 0; j < dim; j++)
+            {
+                data[i * dim + j] = value.get(j);
+            }
+        }
+
+        if (this.sparse || this.cotan || this.implicit != null)
+        {
+            MeshLaplacian laplacian = new MeshLaplacian();
+            laplacian.withMesh(compact);
+            laplacian.withWeights(this.cotan ? MeshLaplacianWeights.Cotangent : MeshLaplacianWeights.Uniform);
+            laplacian.withThreads(this.threads == null ? 1 : this.threads);
+
+            if (this.implicit != null)
+            {
+                laplacian.diffuse(data, dim, this.implicit, this.num);
+            }
+            else
+            {
+                laplacian.smooth(data, dim, this.lambda, null, this.num);
+            }
+        }
+        else
+        {
+            MeshLaplacian.unpack(data, compact, new String[]{Mesh.TEMP}, new int[]{dim});
+            for (int i = 0; i < this.num; i++)
+            {
+                Logging.info("started filtering iteration " + i);
+                MeshAttrLaplacian.filter(compact, Mesh.TEMP, Mesh.TEMP, this.lambda);
+            }
+            data = MeshLaplacian.pack(compact, new String[]{Mesh.TEMP});
+        }
+
+        Vects out = new Vects(compact.numVertex());
+        for (int i = 0; i < compact.numVertex(); i++)
         {
-            MeshAttrLaplacian.filter(this.mesh, Mesh.TEMP, Mesh.TEMP, this.lambda);
+            Vect value = new Vect(dim);
+            for (int j = 0; j < dim; j++)
+            {
+                value.set(j, data[i * dim + j]);
+            }
+            out.add(value);
         }
-        Vects out = MeshAttrGetVects.apply(this.mesh, Mesh.TEMP);
-        this.mesh.vattr.remove(Mesh.TEMP);
 
         this.output = out;
 
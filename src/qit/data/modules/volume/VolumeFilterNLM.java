@@ -76,6 +76,7 @@ import qit.data.datasets.Volume;
 import qit.data.source.VectSource;
 import qit.data.source.VolumeSource;
 import qit.data.utils.vects.stats.VectOnlineStats;
+import qit.data.utils.volume.VolumeDenoiseNLM;
 import qit.math.utils.MathUtils;
 
 import java.util.List;
@@ -164,6 +165,10 @@ public class VolumeFilterNLM implements Module
     @ModuleDescription("whether a Rician noise model should be used")
     public boolean rician = false;
 
+    @ModuleParameter
+    @ModuleDescription("use the fast implementation, which computes patch distances with box sums and aggregates patches blockwise (the threads are used within each channel)")
+    public boolean fast = false;
+
     @ModuleParameter
     @ModuleDescription("the number of threads in the pool")
     public Integer threads = 1;
@@ -237,6 +242,30 @@ public class VolumeFilterNLM implements Module
 
         final Double myh = this.h != null ? hfactor * this.h : null;
 
+        if (this.fast)
+        {
+            VolumeDenoiseNLM denoiser = new VolumeDenoiseNLM();
+            denoiser.withInput(this.input);
+            denoiser.withMask(this.mask);
+            denoiser.withChannel(this.channel);
+            denoiser.withPatch(patchRadius);
+            denoiser.withSearch(searchRadius);
+            denoiser.withStats(statsRadius);
+            denoiser.withH(myh);
+            denoiser.withEpsilon(this.epsilon);
+            denoiser.withMeanThresh(this.meanThresh);
+            denoiser.withVarThresh(this.varThresh);
+            denoiser.withFactor(this.factor);
+            denoiser.withRician(this.rician);
+            denoiser.withThreads(this.threads);
+            denoiser.run();
+
+            this.output = denoiser.getOutput();
+            this.outputNoise = denoiser.getNoise();
+
+            return this;
+        }
+
         final Consumer<Integer> process = (didx) ->
         {
             Logging.info(String.format("processing subvolume %d/%d", didx + 1, this.input.getDim()));
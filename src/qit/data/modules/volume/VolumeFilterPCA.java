@@ -62,6 +62,7 @@ import qit.data.source.MatrixSource;
 import qit.data.source.VectSource;
 import qit.data.source.VolumeSource;
 import qit.data.utils.MatrixUtils;
+import qit.data.utils.volume.VolumeDenoisePCA;
 import qit.data.utils.vects.stats.VectOnlineStats;
 import qit.math.utils.MathUtils;
 
@@ -95,6 +96,11 @@ public class VolumeFilterPCA implements Module
     @ModuleDescription("the window size")
     public int window = 5;
 
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("use the patch-based engine, which denoises patches centered on a grid with the given stride and aggregates their overlapping results (much faster than denoising each voxel separately)")
+    public Integer stride = null;
+
     @ModuleParameter
     @ModuleDescription("the number of threads in the pool")
     public Integer threads = 1;
@@ -115,6 +121,24 @@ public class VolumeFilterPCA implements Module
 
     public VolumeFilterPCA run()
     {
+        if (this.stride != null)
+        {
+            VolumeDenoisePCA denoiser = new VolumeDenoisePCA();
+            denoiser.withInput(this.input);
+            denoiser.withMask(this.mask);
+            denoiser.withWindow(this.window);
+            denoiser.withStride(this.stride);
+            denoiser.withCenter(this.type == VolumeFilterPCAType.CenterMP);
+            denoiser.withThreads(this.threads == null ? 1 : this.threads);
+            denoiser.run();
+
+            this.output = denoiser.getOutput();
+            this.noise = denoiser.getNoise();
+            this.comps = denoiser.getComps();
+
+            return this;
+        }
+
         Sampling sampling = this.input.getSampling();
         Volume out = this.input.proto();
         Volume est = this.input.proto(1);
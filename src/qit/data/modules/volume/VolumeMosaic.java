@@ -53,6 +53,7 @@ package qit.data.modules.volume;
 import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -67,10 +68,10 @@ import qit.data.datasets.Sampling;
 import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
 import qit.data.source.VectSource;
-import qit.data.source.VolumeSource;
 import qit.data.utils.VolumeUtils;
 import qit.data.utils.vects.stats.VectOnlineStats;
 import qit.data.utils.volume.VolumeFunction;
+import qit.data.utils.volume.VolumeRasterizer;
 import qit.math.structs.Quaternion;
 import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
@@ -128,6 +129,11 @@ public class VolumeMosaic implements Module
     @ModuleDescription("save out multichannel slices (the output filename must include '%d' if you use this option)")
     public boolean multichannel;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads to use for tiling slices")
+    public int threads = 1;
+
     @ModuleParameter
     @ModuleDescription("output filename to save mosaic")
     public String output;
@@ -247,163 +253,6 @@ public class VolumeMosaic implements Module
 
     private Volume mosaic(Volume volume)
     {
-        switch (this.axis)
-        {
-            case i:
-            {
-                return mosaicI(volume);
-            }
-            case j:
-            {
-                return mosaicJ(volume);
-            }
-            case k:
-            {
-                return mosaicK(volume);
-            }
-        }
-
-        throw new RuntimeException("invalid axis: " + this.axis);
-    }
-
-    private Volume mosaicI(Volume volume)
-    {
-        Sampling sampling = volume.getSampling();
-        int ni = sampling.numI();
-        int nj = sampling.numJ();
-        int nk = sampling.numK();
-
-        int space = 1;
-        int startf = Math.min(ni - 1, Math.max(0, 0));
-        int endf = ni;
-        int delta = endf - startf;
-        int slices = (int) Math.floor(delta / (double) space);
-        int size = (int) Math.ceil(Math.sqrt(slices));
-
-        int gwidth = size;
-        int gheight = size * (size - 1) >= slices ? size - 1 : size;
-
-        Logging.info("slice count: " + slices);
-        Logging.info("grid size: " + size);
-        Logging.info("grid width: " + gwidth);
-        Logging.info("grid height: " + gheight);
-
-        int width = gwidth * nj;
-        int height = gheight * nk;
-        Volume out = VolumeSource.create(width, height, 1, this.rgb ? 3 : 1);
-
-        for (int a = 0; a < nj; a++)
-        {
-            for (int b = 0; b < nk; b++)
-            {
-                for (int c = 0; c < slices; c++)
-                {
-                    int mi = c % gwidth;
-                    int mj = (c - mi) / gheight;
-
-                    int s = startf + c * space;
-                    for (int d  = 0; d < out.getDim(); d++)
-                    {
-                        out.set(mi * nj + a, mj * nk + b, 0, d, volume.get(s, nj - 1 - a, nk - 1 - b, d));
-                    }
-                }
-            }
-        }
-
-        return out;
-    }
-
-    private Volume mosaicJ(Volume volume)
-    {
-        Sampling sampling = volume.getSampling();
-        int ni = sampling.numI();
-        int nj = sampling.numJ();
-        int nk = sampling.numK();
-
-        int space = 1;
-        int startf = Math.min(nj - 1, Math.max(0, 0));
-        int endf = nj;
-        int delta = endf - startf;
-        int slices = (int) Math.floor(delta / (double) space);
-        int size = (int) Math.ceil(Math.sqrt(slices));
-
-        int gwidth = size;
-        int gheight = size * (size - 1) >= slices ? size - 1 : size;
-
-        Logging.info("slice count: " + slices);
-        Logging.info("grid size: " + size);
-        Logging.info("grid width: " + gwidth);
-        Logging.info("grid height: " + gheight);
-
-        int width = gwidth * ni;
-        int height = gheight * nk;
-        Volume out = VolumeSource.create(width, height, 1, this.rgb ? 3 : 1);
-
-        for (int a = 0; a < ni; a++)
-        {
-            for (int b = 0; b < nk; b++)
-            {
-                for (int c = 0; c < slices; c++)
-                {
-                    int mi = c % gwidth;
-                    int mj = (c - mi) / gheight;
-
-                    int s = startf + c * space;
-                    for (int d  = 0; d < out.getDim(); d++)
-                    {
-                        out.set(mi * ni + a, mj * nk + b, 0, d, volume.get(ni - 1 - a, s, nk - 1 - b, d));
-                    }
-                }
-            }
-        }
-
-        return out;
-    }
-
-    private Volume mosaicK(Volume volume)
-    {
-        Sampling sampling = volume.getSampling();
-        int ni = sampling.numI();
-        int nj = sampling.numJ();
-        int nk = sampling.numK();
-
-        int space = 1;
-        int startf = Math.min(nk - 1, Math.max(0, 0));
-        int endf = nk;
-        int delta = endf - startf;
-        int slices = (int) Math.floor(delta / (double) space);
-        int size = (int) Math.ceil(Math.sqrt(slices));
-
-        int gwidth = size;
-        int gheight = size * (size - 1) >= slices ? size - 1 : size;
-
-        Logging.info("slice count: " + slices);
-        Logging.info("grid size: " + size);
-        Logging.info("grid width: " + gwidth);
-        Logging.info("grid height: " + gheight);
-
-        int width = gwidth * ni;
-        int height = gheight * nj;
-        Volume out = VolumeSource.create(width, height, 1, this.rgb ? 3 : 1);
-
-        for (int a = 0; a < ni; a++)
-        {
-            for (int b = 0; b < nj; b++)
-            {
-                for (int c = 0; c < slices; c++)
-                {
-                    int mi = c % gwidth;
-                    int mj = (c - mi) / gheight;
-
-                    int s = startf + c * space;
-                    for (int d  = 0; d < out.getDim(); d++)
-                    {
-                        out.set(mi * ni + a, mj * nj + b, 0, d, volume.get(ni - 1 - a, nj - 1 - b, s, d));
-                    }
-                }
-            }
-        }
-
-        return out;
+        return VolumeRasterizer.mosaic(volume, this.axis.ordinal(), this.threads);
     }
 }
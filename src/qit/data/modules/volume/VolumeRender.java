@@ -53,6 +53,7 @@ package qit.data.modules.volume;
 import com.google.common.collect.Lists;
 import qit.base.Logging;
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleDescription;
 import qit.base.annot.ModuleInput;
@@ -61,15 +62,11 @@ import qit.base.annot.ModuleOutput;
 import qit.base.annot.ModuleParameter;
 import qit.base.structs.Pair;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
 import qit.data.datasets.Sampling;
-import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
-import qit.data.source.VectSource;
-import qit.data.source.VolumeSource;
+import qit.data.utils.volume.VolumeRasterizer;
 import qit.data.utils.volume.VolumeRenderColormap;
 import qit.data.utils.volume.VolumeVoxelStats;
-import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 import qit.math.utils.colormaps.ColormapDiscrete;
 import qit.math.utils.colormaps.ColormapScalar;
@@ -163,6 +160,11 @@ public class VolumeRender implements Module
     @ModuleDescription("a label for the colormap")
     public String label = "attribute";
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads to use for rendering")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleOptional
     @ModuleDescription("output RGB volume rendering")
@@ -180,7 +182,6 @@ public class VolumeRender implements Module
         ColormapScalar backgroundColormap = ColormapSource.getScalar(this.bgmap);
         backgroundColormap.withMin(parse(this.bglow, this.background));
         backgroundColormap.withMax(parse(this.bghigh, this.background));
-        VectFunction backgroundFunction = backgroundColormap.getFunction();
 
         ColormapScalar foregroundColormap = ColormapSource.getScalar(this.fgmap);
         foregroundColormap.withMin(parse(this.fglow, this.foreground));
@@ -202,7 +203,6 @@ public class VolumeRender implements Module
         fgtransfer.add(Pair.of(1.0, fgrhighval));
         foregroundColormap.withTransfer(fgtransfer);
 
-        VectFunction foregroundFunction = foregroundColormap.getFunction();
         Volume renderedColormap = new VolumeRenderColormap().withColormap(foregroundColormap).withLabel(this.label).getOutput();
         this.colormap = renderedColormap;
 
@@ -224,43 +224,19 @@ public class VolumeRender implements Module
         if (inputSampling != null)
         {
             Sampling outputSampling = inputSampling.range(this.range);
-            Volume out = VolumeSource.create(outputSampling, 3);
-
-            boolean blend = !MathUtils.unit(this.alpha);
-            for (Sample outputSample : outputSampling)
-            {
-                Sample inputSample = inputSampling.nearest(outputSampling.world(outputSample));
-
-                Vect render = VectSource.create3D(0, 0, 0);
-
-                if (this.background != null && this.background.valid(inputSample, this.bgmask))
-                {
-                    Vect value = this.background.get(inputSample);
-                    Vect color = backgroundFunction.apply(value);
-                    render = color;
-                }
-
-                if (this.labels != null && this.labels.valid(inputSample, this.fgmask))
-                {
-                    int value = this.labels.get(inputSample);
-                    if (value != 0)
-                    {
-                        Vect color = discreteColormap.getColor(value);
-                        render = blend ? render.times(1 - this.alpha).plus(this.alpha, color) : color;
-                    }
-                }
-
-                if (this.foreground != null && this.foreground.valid(inputSample, this.fgmask))
-                {
-                    Vect value = this.foreground.get(inputSample);
-                    Vect color = foregroundFunction.apply(value);
-                    render = blend ? render.times(1 - this.alpha).plus(this.alpha, color) : color;
-                }
-
-                out.set(outputSample, render);
-            }
 
-            this.output = out;
+            this.output = new VolumeRasterizer()
+                .withBackground(this.background)
+                .withBackgroundMask(this.bgmask)
+                .withBackgroundColormap(backgroundColormap)
+                .withForeground(this.foreground)
+                .withForegroundMask(this.fgmask)
+                .withForegroundColormap(foregroundColormap)
+                .withLabels(this.labels)
+                .withLabelColormap(discreteColormap)
+                .withAlpha(this.alpha)
+                .withThreads(this.threads)
+                .volume(inputSampling, outputSampling);
         }
 
         return this;
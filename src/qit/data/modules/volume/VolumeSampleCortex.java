@@ -71,6 +71,7 @@ import qit.data.datasets.Volume;
 import qit.data.models.Noddi;
 import qit.data.source.VectSource;
 import qit.data.source.VectsSource;
+import qit.data.utils.MeshUtils;
 import qit.data.utils.VectUtils;
 import qit.data.utils.VolumeUtils;
 import qit.data.utils.enums.InterpolationType;
@@ -156,6 +157,10 @@ public class VolumeSampleCortex implements Module
     @ModuleDescription("run without copying data (be aware of side effects)")
     public boolean inplace = false;
 
+    @ModuleParameter
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
     @ModuleOutput
     @ModuleOptional
     @ModuleDescription("the output mesh")
@@ -203,13 +208,24 @@ public class VolumeSampleCortex implements Module
         this.weights = this.input.proto(1);
 
         Sampling sampling = this.input.getSampling();
-        VectFunction mydata = VolumeUtils.interp(InterpolationType.Trilinear, this.input);
-        VectFunction mygm = VectFunctionSource.constant(VectSource.create1D(1.0));
 
-        if (this.gm != null)
+        // sample each vertex in parallel, and then store the results in vertex order
+        List<Vertex> verts = Lists.newArrayList(mesh.vattr);
+        Result[] results = new Result[verts.size()];
+
+        MeshUtils.vertices(verts, () ->
         {
-            mygm = VolumeUtils.interp(InterpolationType.Trilinear, this.gm);
-        }
+            VectFunction mydata = VolumeUtils.interp(InterpolationType.Trilinear, this.input);
+            VectFunction mygm = VectFunctionSource.constant(VectSource.create1D(1.0));
+
+            if (this.gm != null)
+            {
+                mygm = VolumeUtils.interp(InterpolationType.Trilinear, this.gm);
+            }
+
+            final VectFunction fgm = mygm;
+            return (idx, vertex) -> results[idx] = this.sample(mesh, vertex, sampling, mydata, fgm);
+        }, this.threads);
 
         Vects mynum = new Vects();
         Vects mymedian = new Vects();
@@ -218,113 +234,39 @@ public class VolumeSampleCortex implements Module
         Vects mymin = new Vects();
         Vects mymax = new Vects();
 
-        for (Vertex vertex : mesh.vattr)
+        for (int idx = 0; idx < verts.size(); idx++)
         {
-            Vect mypial = mesh.vattr.get(vertex, this.pial);
-            Vect mymiddle = mesh.vattr.get(vertex, this.middle);
-            Vect mywhite = mesh.vattr.get(vertex, this.white);
-            Vect orient = mypial.minus(mywhite).normalize();
-
-            Vect start = mywhite.minus(this.inner, orient);
-            Vect end = mypial.plus(this.outer, orient);
-            Vect delta = end.minus(start);
-
-            List<Double> weightRawValues = Lists.newArrayList();
-            List<Double> dataRawValues = Lists.newArrayList();
-            List<Vect> posRawValues = Lists.newArrayList();
-
-            for (int i = 0; i < this.samples; i++)
+            Result result = results[idx];
+            if (result == null)
             {
-                double alpha = i / (double) (this.samples - 1);
-                double reach = alpha - 0.5;
-                double weight = this.linear || this.gain <= 0 ? 1.0 - Math.abs(reach) : Math.exp(-this.gain * reach * reach);
-
-                Vect mypos = start.plus(alpha, delta);
-
-                if (this.input.valid(sampling.nearest(mypos), this.mask))
-                {
-                    double data = mydata.apply(mypos).get(0);
-                    weight *= mygm.apply(mypos).get(0);
-
-                    posRawValues.add(mypos);
-                    weightRawValues.add(weight);
-                    dataRawValues.add(data);
-                }
+                continue;
             }
 
-            if (dataRawValues.size() > 0)
+            Vertex vertex = verts.get(idx);
+            VectStats dataStats = result.stats;
+
+            mesh.vattr.set(vertex, this.name + "_position", result.position);
+            mesh.vattr.set(vertex, this.name + "_mid", VectSource.create1D(result.mid));
+            mesh.vattr.set(vertex, this.name + "_num", VectSource.create1D(dataStats.num));
+            mesh.vattr.set(vertex, this.name + "_median", VectSource.create1D(dataStats.median));
+            mesh.vattr.set(vertex, this.name + "_mean", VectSource.create1D(dataStats.mean));
+            mesh.vattr.set(vertex, this.name + "_std", VectSource.create1D(dataStats.std));
+            mesh.vattr.set(vertex, this.name + "_min", VectSource.create1D(dataStats.min));
+            mesh.vattr.set(vertex, this.name + "_max", VectSource.create1D(dataStats.max));
+
+            mynum.add(VectSource.create1D(dataStats.num));
+            mymedian.add(VectSource.create1D(dataStats.median));
+            mymean.add(VectSource.create1D(dataStats.mean));
+            mystd.add(VectSource.create1D(dataStats.std));
+            mymin.add(VectSource.create1D(dataStats.min));
+            mymax.add(VectSource.create1D(dataStats.max));
+
+            for (int i = 0; i < result.positions.size(); i++)
             {
-                VectStats dataRawStats = new VectStats().withInput(VectSource.create(dataRawValues)).withWeights(VectSource.create(weightRawValues)).run();
-
-                List<Vect> posValues = Lists.newArrayList();
-                List<Double> weightValues = Lists.newArrayList();
-                List<Double> dataValues = Lists.newArrayList();
-
-                for (int i = 0; i < dataRawValues.size(); i++)
-                {
-                    double dataValue = dataRawValues.get(i);
-                    double dataZscore = Math.abs(dataValue - dataRawStats.mean) / dataRawStats.std;
-
-                    if (dataZscore < this.zscore)
-                    {
-                        posValues.add(posRawValues.get(i));
-                        weightValues.add(weightRawValues.get(i));
-                        dataValues.add(dataValue);
-                    }
-                }
-
-                if (dataValues.size() == 0)
-                {
-                    if (weightRawValues.size() > 0)
-                    {
-                        int maxidx = VectUtils.maxidx(VectSource.create(weightRawValues));
-
-                        posValues.add(posRawValues.get(maxidx));
-                        weightValues.add(weightRawValues.get(maxidx));
-                        dataValues.add(dataRawValues.get(maxidx));
-                    }
-                    else
-                    {
-                        posValues.add(mymiddle);
-                        weightValues.add(1.0);
-                        dataValues.add(0.0);
-                    }
-                }
-
-                if (dataValues.size() > 0)
+                Sample sample = sampling.nearest(result.positions.get(i));
+                if (sampling.contains(sample))
                 {
-                    Vect weights = VectSource.create(weightValues);
-                    weights.divSafeEquals(weights.sum());
-
-                    VectsStats posStats = new VectsStats().withInput(VectsSource.create(posValues)).withWeights(weights).withRobust(this.mest).run();
-                    VectStats dataStats = new VectStats().withInput(VectSource.create(dataValues)).withWeights(weights).withRobust(this.mest).run();
-
-                    int maxidx = VectUtils.maxidx(weights);
-
-                    mesh.vattr.set(vertex, this.name + "_position", posStats.mean);
-                    mesh.vattr.set(vertex, this.name + "_mid", VectSource.create1D(dataValues.get(maxidx)));
-                    mesh.vattr.set(vertex, this.name + "_num", VectSource.create1D(dataStats.num));
-                    mesh.vattr.set(vertex, this.name + "_median", VectSource.create1D(dataStats.median));
-                    mesh.vattr.set(vertex, this.name + "_mean", VectSource.create1D(dataStats.mean));
-                    mesh.vattr.set(vertex, this.name + "_std", VectSource.create1D(dataStats.std));
-                    mesh.vattr.set(vertex, this.name + "_min", VectSource.create1D(dataStats.min));
-                    mesh.vattr.set(vertex, this.name + "_max", VectSource.create1D(dataStats.max));
-
-                    mynum.add(VectSource.create1D(dataStats.num));
-                    mymean.add(VectSource.create1D(dataStats.median));
-                    mymedian.add(VectSource.create1D(dataStats.mean));
-                    mystd.add(VectSource.create1D(dataStats.std));
-                    mymin.add(VectSource.create1D(dataStats.min));
-                    mymax.add(VectSource.create1D(dataStats.max));
-
-                    for (int i = 0; i < posValues.size(); i++)
-                    {
-                        Sample sample = sampling.nearest(posValues.get(i));
-                        if (sampling.contains(sample))
-                        {
-                            this.weights.set(sample, 0, Math.max(this.weights.get(sample, 0), weightValues.get(i)));
-                        }
-                    }
+                    this.weights.set(sample, 0, Math.max(this.weights.get(sample, 0), result.weights.get(i)));
                 }
             }
         }
@@ -339,4 +281,105 @@ public class VolumeSampleCortex implements Module
 
         return this;
     }
+
+    private Result sample(Mesh mesh, Vertex vertex, Sampling sampling, VectFunction mydata, VectFunction mygm)
+    {
+        Vect mypial = mesh.vattr.get(vertex, this.pial);
+        Vect mymiddle = mesh.vattr.get(vertex, this.middle);
+        Vect mywhite = mesh.vattr.get(vertex, this.white);
+        Vect orient = mypial.minus(mywhite).normalize();
+
+        Vect start = mywhite.minus(this.inner, orient);
+        Vect end = mypial.plus(this.outer, orient);
+        Vect delta = end.minus(start);
+
+        List<Double> weightRawValues = Lists.newArrayList();
+        List<Double> dataRawValues = Lists.newArrayList();
+        List<Vect> posRawValues = Lists.newArrayList();
+
+        for (int i = 0; i < this.samples; i++)
+        {
+            double alpha = i / (double) (this.samples - 1);
+            double reach = alpha - 0.5;
+            double weight = this.linear || this.gain <= 0 ? 1.0 - Math.abs(reach) : Math.exp(-this.gain * reach * reach);
+
+            Vect mypos = start.plus(alpha, delta);
+
+            if (this.input.valid(sampling.nearest(mypos), this.mask))
+            {
+                double data = mydata.apply(mypos).get(0);
+                weight *= mygm.apply(mypos).get(0);
+
+                posRawValues.add(mypos);
+                weightRawValues.add(weight);
+                dataRawValues.add(data);
+            }
+        }
+
+        if (dataRawValues.size() == 0)
+        {
+            return null;
+        }
+
+        VectStats dataRawStats = new VectStats().withInput(VectSource.create(dataRawValues)).withWeights(VectSource.create(weightRawValues)).run();
+
+        List<Vect> posValues = Lists.newArrayList();
+        List<Double> weightValues = Lists.newArrayList();
+        List<Double> dataValues = Lists.newArrayList();
+
+        for (int i = 0; i < dataRawValues.size(); i++)
+        {
+            double dataValue = dataRawValues.get(i);
+            double dataZscore = Math.abs(dataValue - dataRawStats.mean) / dataRawStats.std;
+
+            if (dataZscore < this.zscore)
+            {
+                posValues.add(posRawValues.get(i));
+                weightValues.add(weightRawValues.get(i));
+                dataValues.add(dataValue);
+            }
+        }
+
+        if (dataValues.size() == 0)
+        {
+            if (weightRawValues.size() > 0)
+            {
+                int maxidx = VectUtils.maxidx(VectSource.create(weightRawValues));
+
+                posValues.add(posRawValues.get(maxidx));
+                weightValues.add(weightRawValues.get(maxidx));
+                dataValues.add(dataRawValues.get(maxidx));
+            }
+            else
+            {
+                posValues.add(mymiddle);
+                weightValues.add(1.0);
+                dataValues.add(0.0);
+            }
+        }
+
+        Vect weights = VectSource.create(weightValues);
+        weights.divSafeEquals(weights.sum());
+
+        VectsStats posStats = new VectsStats().withInput(VectsSource.create(posValues)).withWeights(weights).withRobust(this.mest).run();
+        VectStats dataStats = new VectStats().withInput(VectSource.create(dataValues)).withWeights(weights).withRobust(this.mest).run();
+
+        Result result = new Result();
+        result.position = posStats.mean;
+        result.mid = dataValues.get(VectUtils.maxidx(weights));
+        result.stats = dataStats;
+        result.positions = posValues;
+        result.weights = weightValues;
+
+        return result;
+    }
+
+    private static class Result
+    {
+        private Vect position;
+        private double mid;
+        private VectStats stats;
+        private List<Vect> positions;
+        private List<Double> weights;
+    }
 }
@@ -30,11 +30,11 @@
 
 package qit.data.modules.volume;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
 import qit.base.annot.ModuleAuthor;
 import qit.base.annot.ModuleCitation;
 import qit.base.annot.ModuleDescription;
@@ -47,18 +47,11 @@ import qit.base.structs.Pair;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Matrix;
 import qit.data.datasets.Sample;
-import qit.data.datasets.Sampling;
-import qit.data.datasets.Vect;
-import qit.data.datasets.Vects;
 import qit.data.datasets.Volume;
-import qit.data.modules.mask.MaskComponents;
-import qit.data.modules.mask.MaskRegionMerge;
-import qit.data.modules.mask.MaskSort;
 import qit.data.source.MatrixSource;
-import qit.data.source.SamplingSource;
-import qit.data.source.VectSource;
 import qit.data.utils.MaskUtils;
 import qit.data.utils.vects.stats.VectOnlineStats;
+import qit.data.utils.volume.VolumeSLIC;
 import smile.clustering.HierarchicalClustering;
 import smile.clustering.linkage.Linkage;
 import smile.clustering.linkage.SingleLinkage;
@@ -105,6 +98,11 @@ public class VolumeSegmentSuperSLIC implements Module
     @ModuleDescription("a threshold gradient magnitude for grouping")
     private Double group = null;
 
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    private int threads = 1;
+
     @ModuleOutput
     private Mask output;
 
@@ -112,185 +110,21 @@ public class VolumeSegmentSuperSLIC implements Module
     {
         Logging.info("started volume SLIC supervoxel segmentation");
 
-        Sampling sampling = this.input.getSampling();
-
-        Logging.info("finding centers");
-        int numI = sampling.numI();
-        int numJ = sampling.numJ();
-        int numK = sampling.numK();
-
-        double deltaI = sampling.deltaI();
-        double deltaJ = sampling.deltaJ();
-        double deltaK = sampling.deltaK();
-
-        int superWindowI = (int) Math.ceil(this.size / deltaI);
-        int superWindowJ = (int) Math.ceil(this.size / deltaJ);
-        int superWindowK = (int) Math.ceil(this.size / deltaK);
-
-        int superNumI = (int) Math.max(1, Math.round(numI * deltaI / this.size));
-        int superNumJ = (int) Math.max(1, Math.round(numJ * deltaJ / this.size));
-        int superNumK = (int) Math.max(1, Math.round(numK * deltaK / this.size));
-
-        List<Sample> samples = Lists.newArrayList();
-        for (int i = 0; i < superNumI; i++)
-        {
-            for (int j = 0; j < superNumJ; j++)
-            {
-                for (int k = 0; k < superNumK; k++)
-                {
-                    int ni = (int) Math.round((numI - 1) * i / (double) (superNumI - 1));
-                    int nj = (int) Math.round((numJ - 1) * j / (double) (superNumJ - 1));
-                    int nk = (int) Math.round((numK - 1) * k / (double) (superNumK - 1));
-
-                    if (this.input.valid(ni, nj, nk, this.mask))
-                    {
-                        samples.add(new Sample(ni, nj, nk));
-                    }
-                }
-            }
-        }
-        Logging.info(String.format("...segmenting %d supervoxels", samples.size()));
-
-        Logging.info("computing features");
-        Volume feature = this.input.proto(3 + this.input.getDim());
-        for (Sample sample : sampling)
-        {
-            if (!this.input.valid(sample, this.mask))
-            {
-                continue;
-            }
-
-            Vect pos = sampling.world(sample);
-            Vect val = this.input.get(sample).times(this.scale * this.size);
-            Vect cat = pos.cat(val);
-
-            feature.set(sample, cat);
-        }
-
-        Logging.info("perturbing centers");
-        Vects centers = new Vects();
-
         VolumeGradientMagnitude mager = new VolumeGradientMagnitude();
         mager.input = this.input;
         Volume mag = mager.run().output;
 
-        Sampling locals = SamplingSource.create(3, 3, 3);
-        for (Sample sample : samples)
-        {
-            Sample minSample = sample;
-            double minMag = mag.get(sample, 0);
-
-            for (Sample local : locals)
-            {
-                int i = sample.getI() + local.getI() - 1;
-                int j = sample.getJ() + local.getJ() - 1;
-                int k = sample.getK() + local.getK() - 1;
-
-                if (this.input.valid(i, j, k, this.mask))
-                {
-                    double nmagv = mag.get(i, j, k, 0);
-                    if (nmagv < minMag)
-                    {
-                        minMag = nmagv;
-                        minSample = new Sample(i, j, k);
-                    }
-                }
-            }
-
-            centers.add(feature.get(minSample));
-        }
-
-        Logging.info("iterating");
-        Mask out = new Mask(sampling);
-        Volume dist = this.input.proto(1);
-
-        for (int iter = 0; iter < this.iters; iter++)
-        {
-            dist.setAll(VectSource.create1D(Double.MAX_VALUE));
-            for (int idx = 0; idx < centers.size(); idx++)
-            {
-                Vect center = centers.get(idx);
-                Sample nearest = sampling.nearest(center.sub(0, 3));
-
-                for (int i = -superWindowI; i <= superWindowI; i++)
-                {
-                    for (int j = -superWindowJ; j <= superWindowJ; j++)
-                    {
-                        for (int k = -superWindowK; k <= superWindowK; k++)
-                        {
-                            int ni = nearest.getI() + i;
-                            int nj = nearest.getJ() + j;
-                            int nk = nearest.getK() + k;
-
-                            if (!this.input.valid(ni, nj, nk, this.mask))
-                            {
-                                continue;
-                            }
-
-                            double d = feature.get(ni, nj, nk).dist(center);
-                            if (out.background(ni, nj, nk) || d < dist.get(ni, nj, nk, 0))
-                            {
-                                dist.set(ni, nj, nk, 0, d);
-                                out.set(ni, nj, nk, idx + 1);
-                            }
-                        }
-                    }
-                }
-            }
-
-            Map<Integer, Pair<Integer,Vect>> stats = Maps.newHashMap();
-            for (int label = 1; label <= centers.size(); label++)
-            {
-                if (!stats.containsKey(label))
-                {
-                    stats.put(label, Pair.of(0, feature.dproto()));
-                }
-            }
-
-            for (Sample sample : sampling)
-            {
-                if (this.input.valid(sample, this.mask))
-                {
-                    int label = out.get(sample);
-                    Pair<Integer,Vect> stat = stats.get(label);
-                    stat.a += 1;
-                    stat.b.plusEquals(feature.get(sample));
-                }
-            }
-
-            double residual = 0;
-            for (int i = 0; i < centers.size(); i++)
-            {
-                Vect pcenter = centers.get(i);
-
-                if (stats.containsKey(i + 1))
-                {
-                    Pair<Integer,Vect> stat = stats.get(i + 1);
-                    Vect ncenter = stat.b.times(1.0 / stat.a);
-                    residual += pcenter.dist(ncenter);
-                    centers.set(i, ncenter);
-                }
-            }
-            residual /= centers.size();
-
-            Logging.info(String.format("iteration: %d, residual: %g", iter, residual));
-            if (residual < this.error)
-            {
-                break;
-            }
-        }
-
-        Logging.info("cleaning up connectivity");
-        out = MaskSort.sort(out);
-        MaskComponents comper = new MaskComponents();
-        comper.input = out;
-        out = comper.run().output;
-
-        MaskRegionMerge merger = new MaskRegionMerge();
-        merger.input = out;
-        merger.full = false;
-        merger.threshold = this.merge;
-        out = merger.run().output;
+        VolumeSLIC slic = new VolumeSLIC();
+        slic.withInput(this.input);
+        slic.withMask(this.mask);
+        slic.withGradient(mag);
+        slic.withIters(this.iters);
+        slic.withError(this.error);
+        slic.withSize(this.size);
+        slic.withScale(this.scale);
+        slic.withMerge(this.merge);
+        slic.withThreads(this.threads);
+        Mask out = slic.run();
 
         if (this.group != null)
         {
@@ -0,0 +1,381 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.modules.volume;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.base.Module;
+import qit.base.annot.ModuleAdvanced;
+import qit.base.annot.ModuleAuthor;
+import qit.base.annot.ModuleDescription;
+import qit.base.annot.ModuleInput;
+import qit.base.annot.ModuleOptional;
+import qit.base.annot.ModuleOutput;
+import qit.base.annot.ModuleParameter;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Neighborhood;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Table;
+import qit.data.datasets.Volume;
+import qit.data.utils.volume.VolumeGLM;
+import qit.data.utils.volume.VolumeStream;
+import qit.math.utils.MathUtils;
+
+import java.io.File;
+import java.util.List;
+
+@ModuleDescription("Fit a voxelwise general linear model and test the given variables with permutation inference.  The tested variables are assessed with a t-statistic (one variable) or an F-statistic (several variables), and the remaining covariates are treated as nuisance with the Freedman-Lane procedure.  The design includes an intercept, so at least one variable must be tested.")
+@ModuleAuthor("Ryan Cabeen")
+public class VolumeStatsGLM implements Module
+{
+    @ModuleInput
+    @ModuleDescription("a table where each row stores a subject and its covariates")
+    public Table input;
+
+    @ModuleInput
+    @ModuleOptional
+    @ModuleDescription("a mask restricting the voxels that are tested")
+    public Mask mask;
+
+    @ModuleParameter
+    @ModuleDescription("input volume filename pattern (should contain %s for the subject identifier)")
+    public String pattern;
+
+    @ModuleParameter
+    @ModuleDescription("the field of the table storing the subject identifier")
+    public String subject = "subject";
+
+    @ModuleParameter
+    @ModuleDescription("a comma-separated list of covariate fields to include in the design")
+    public String covariates;
+
+    @ModuleParameter
+    @ModuleDescription("a comma-separated list of the covariates that are tested (the others are nuisance)")
+    public String variables;
+
+    @ModuleParameter
+    @ModuleDescription("the number of permutations")
+    public int permutations = 1000;
+
+    @ModuleParameter
+    @ModuleDescription("compute threshold-free cluster enhancement")
+    public boolean tfce = false;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the TFCE extent exponent")
+    public double tfceE = 0.5;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the TFCE height exponent")
+    public double tfceH = 2.0;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of TFCE threshold steps")
+    public int tfceSteps = 100;
+
+    @ModuleParameter
+    @ModuleOptional
+    @ModuleDescription("compute cluster mass inference with the given cluster forming threshold")
+    public Double cluster = null;
+
+    @ModuleParameter
+    @ModuleDescription("use the full 3x3x3 neighborhood for clusters, i.e. the 26 neighbors around the center voxel (otherwise the 6 face neighbors are used)")
+    public boolean full = false;
+
+    @ModuleParameter
+    @ModuleDescription("use a two-sided test (only applies to t-statistics)")
+    public boolean twosided = false;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleDescription("the number of threads")
+    public int threads = 1;
+
+    @ModuleParameter
+    @ModuleAdvanced
+    @ModuleOptional
+    @ModuleDescription("a seed for the random permutations")
+    public Integer seed = null;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output statistic volume (t or F)")
+    public Volume outputStat;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output effect volume (with one channel per tested variable)")
+    public Volume outputEffect;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output uncorrected parametric p-value volume")
+    public Volume outputPval;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output uncorrected permutation p-value volume")
+    public Volume outputPerm;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output family-wise error corrected p-value volume (from the maximum statistic)")
+    public Volume outputCorrected;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output TFCE statistic volume")
+    public Volume outputTfce;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output family-wise error corrected TFCE p-value volume")
+    public Volume outputTfceCorrected;
+
+    @ModuleOutput
+    @ModuleOptional
+    @ModuleDescription("output family-wise error corrected cluster mass p-value volume")
+    public Volume outputClusterCorrected;
+
+    @Override
+    public VolumeStatsGLM run()
+    {
+        List<String> covs = Lists.newArrayList();
+        for (String token : this.covariates.split(","))
+        {
+            if (token.trim().length() > 0)
+            {
+                covs.add(token.trim());
+            }
+        }
+
+        List<Integer> tested = Lists.newArrayList();
+        for (String token : this.variables.split(","))
+        {
+            int idx = covs.indexOf(token.trim());
+            Global.assume(idx >= 0, "tested variable is not a covariate: " + token);
+            tested.add(idx + 1);
+        }
+
+        List<String> fns = Lists.newArrayList();
+        List<double[]> rows = Lists.newArrayList();
+
+        Logging.infosub("checking %d subjects", this.input.getNumRecords());
+        for (Integer key : this.input.keys())
+        {
+            String sid = this.input.get(key, this.subject);
+            String fn = String.format(this.pattern, sid);
+
+            if (!new File(fn).exists())
+            {
+                Logging.info("... warning: skipping subject with missing volume: " + sid);
+                continue;
+            }
+
+            double[] row = new double[covs.size() + 1];
+            row[0] = 1.0;
+
+            boolean valid = true;
+            for (int i = 0; i < covs.size() && valid; i++)
+            {
+                double value = MathUtils.parse(this.input.get(key, covs.get(i)), Double.NaN);
+                valid = !Double.isNaN(value);
+                row[i + 1] = value;
+            }
+
+            if (!valid)
+            {
+                Logging.info("... warning: skipping subject with missing covariates: " + sid);
+                continue;
+            }
+
+            fns.add(fn);
+            rows.add(row);
+        }
+
+        int num = fns.size();
+        Global.assume(num > covs.size() + 1, "not enough subjects for the design");
+
+        VolumeStream stream = new VolumeStream(fns).withPrefetch(Math.min(this.threads, 4));
+        Volume ref = stream.head(1).iterator().next();
+        Sampling sampling = ref.getSampling();
+
+        int[] lookup = new int[sampling.size()];
+        int voxels = 0;
+        for (int idx = 0; idx < sampling.size(); idx++)
+        {
+            lookup[idx] = ref.valid(idx, this.mask) ? voxels++ : -1;
+        }
+
+        Logging.infosub("loading %d subjects with %d voxels", num, voxels);
+
+        float[] data = new float[num * voxels];
+        int row = 0;
+        for (Volume volume : stream)
+        {
+            Global.assume(volume.getSampling().equals(sampling), "volume sampling does not match: " + fns.get(row));
+
+            int off = row * voxels;
+            for (int idx = 0; idx < lookup.length; idx++)
+            {
+                if (lookup[idx] >= 0)
+                {
+                    data[off + lookup[idx]] = (float) volume.get(idx, 0);
+                }
+            }
+
+            row += 1;
+        }
+
+        int[] ptr = null;
+        int[] nbr = null;
+        if (this.tfce || this.cluster != null)
+        {
+            Neighborhood hood = Neighborhood.create(sampling, this.full ? 26 : 6);
+            int[] offset = hood.offset;
+
+            ptr = new int[voxels + 1];
+            nbr = new int[voxels * offset.length];
+            int count = 0;
+            for (int k = 0; k < sampling.numK(); k++)
+            {
+                for (int j = 0; j < sampling.numJ(); j++)
+                {
+                    for (int i = 0; i < sampling.numI(); i++)
+                    {
+                        int idx = sampling.index(i, j, k);
+                        if (lookup[idx] < 0)
+                        {
+                            continue;
+                        }
+
+                        boolean interior = hood.interior(i, j, k);
+                        for (int n = 0; n < offset.length; n++)
+                        {
+                            if (interior || hood.contains(n, i, j, k))
+                            {
+                                int nidx = lookup[idx + offset[n]];
+                                if (nidx >= 0)
+                                {
+                                    nbr[count++] = nidx;
+                                }
+                            }
+                        }
+
+                        ptr[lookup[idx] + 1] = count;
+                    }
+                }
+            }
+        }
+
+        int[] testedArray = new int[tested.size()];
+        for (int i = 0; i < tested.size(); i++)
+        {
+            testedArray[i] = tested.get(i);
+        }
+
+        VolumeGLM glm = new VolumeGLM();
+        glm.withDesign(rows.toArray(new double[0][]));
+        glm.withTested(testedArray);
+        glm.withData(data, num, voxels);
+        glm.withNeighbors(ptr, nbr);
+        glm.withPermutations(this.permutations);
+        glm.withTfce(this.tfce);
+        glm.withTfceE(this.tfceE);
+        glm.withTfceH(this.tfceH);
+        glm.withTfceSteps(this.tfceSteps);
+        glm.withCluster(this.cluster);
+        glm.withTwoSided(this.twosided);
+        glm.withThreads(this.threads);
+        glm.withSeed(this.seed);
+        glm.run();
+
+        this.outputStat = unpack(ref, lookup, glm.stat);
+        this.outputEffect = unpack(ref, lookup, glm.effect);
+        this.outputPval = unpack(ref, lookup, glm.pval);
+        this.outputPerm = unpack(ref, lookup, glm.perm);
+        this.outputCorrected = unpack(ref, lookup, glm.corrected);
+
+        if (this.tfce)
+        {
+            this.outputTfce = unpack(ref, lookup, glm.tfceStat);
+            this.outputTfceCorrected = unpack(ref, lookup, glm.tfceCorrected);
+        }
+
+        if (this.cluster != null)
+        {
+            this.outputClusterCorrected = unpack(ref, lookup, glm.clusterCorrected);
+        }
+
+        return this;
+    }
+
+    private static Volume unpack(Volume ref, int[] lookup, double[]... values)
+    {
+        Volume out = ref.proto(values.length);
+        for (int idx = 0; idx < lookup.length; idx++)
+        {
+            if (lookup[idx] >= 0)
+            {
+                for (int d = 0; d < values.length; d++)
+                {
+                    out.set(idx, d, values[d][lookup[idx]]);
+                }
+            }
+        }
+
+        return out;
+    }
+}
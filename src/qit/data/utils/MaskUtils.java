@@ -60,13 +60,13 @@ import qit.base.Logging;
 import qit.base.structs.Integers;
 import qit.base.structs.Pair;
 import qit.data.datasets.*;
-import qit.data.datasets.Curves.Curve;
 import qit.data.modules.mask.MaskComponents;
 import qit.data.modules.mask.MaskDilate;
 import qit.data.modules.mask.MaskErode;
 import qit.data.modules.mask.MaskMeasure;
 import qit.data.source.MaskSource;
 import qit.data.source.VectSource;
+import qit.data.utils.curves.CurvesTrackDensity;
 import qit.data.utils.vects.stats.VectOnlineStats;
 import qit.data.utils.vects.stats.VectsOnlineStats;
 import qit.math.structs.Box;
@@ -1078,15 +1078,14 @@ public class MaskUtils
 
     public static Mask voxelize(Sampling sampling, Curves curves)
     {
+        Volume count = new CurvesTrackDensity().withInput(curves).withSampling(sampling).run().getCount();
+
         Mask out = new Mask(sampling);
-        for (Curve curve : curves)
+        for (int idx = 0; idx < sampling.size(); idx++)
         {
-            for (Sample sample : sampling.traverse(curve.getAll(Curves.COORD)))
+            if (count.get(idx, 0) > 0)
             {
-                if (sampling.contains(sample))
-                {
-                    out.set(sample, 1);
-                }
+                out.set(idx, 1);
             }
         }
 
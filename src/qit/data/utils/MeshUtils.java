@@ -85,8 +85,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /** utilties for processing meshes */
 public class MeshUtils
@@ -110,14 +117,101 @@ public class MeshUtils
 
     public static void sample(Mesh mesh, VectFunction func, String coord, String attr)
     {
-        Vect buff = func.protoOut();
+        sample(mesh, () -> func, coord, attr, 1);
+    }
 
-        mesh.vattr.add(attr, buff.proto());
-        for (Vertex vert : mesh.vattr)
+    public static void sample(Mesh mesh, Volume vol, String coord, String attr, int threads)
+    {
+        sample(mesh, () -> VolumeUtils.interp(InterpolationType.Trilinear, vol), coord, attr, threads);
+    }
+
+    /**
+     * sample a function at each vertex using multiple threads, where the factory
+     * should create a separate function for each thread, e.g. an interpolator
+     */
+    public static void sample(Mesh mesh, Supplier<VectFunction> factory, String coord, String attr, int threads)
+    {
+        VectFunction proto = factory.get();
+        mesh.vattr.add(attr, proto.protoOut().proto());
+
+        vertices(mesh, () ->
         {
-            Vect pos = mesh.vattr.get(vert, coord);
-            Vect value = func.apply(pos);
-            mesh.vattr.set(vert, attr, value);
+            VectFunction func = threads <= 1 ? proto : factory.get();
+            Vect value = func.protoOut();
+            return (vert) ->
+            {
+                func.apply(mesh.vattr.get(vert, coord), value);
+                mesh.vattr.set(vert, attr, value);
+            };
+        }, threads);
+    }
+
+    /**
+     * process each vertex of a mesh using multiple threads.  The vertices are
+     * split into contiguous chunks, and each chunk is given a consumer from the
+     * factory, so any buffers a consumer uses are never shared between threads.
+     * The consumers may only modify existing attributes of their own vertices.
+     */
+    public static void vertices(Mesh mesh, Supplier<Consumer<Vertex>> factory, int threads)
+    {
+        vertices(Lists.newArrayList(mesh.vattr), () ->
+        {
+            Consumer<Vertex> consumer = factory.get();
+            return (idx, vert) -> consumer.accept(vert);
+        }, threads);
+    }
+
+    /**
+     * process a list of vertices using multiple threads, where each consumer
+     * also receives the position of the vertex in the list, e.g. for storing
+     * per-vertex results in arrays that are combined afterwards in order
+     */
+    public static void vertices(List<Vertex> verts, Supplier<BiConsumer<Integer, Vertex>> factory, int threads)
+    {
+        if (threads <= 1 || verts.size() <= 1)
+        {
+            BiConsumer<Integer, Vertex> consumer = factory.get();
+            for (int i = 0; i < verts.size(); i++)
+            {
+                consumer.accept(i, verts.get(i));
+            }
+
+            return;
+        }
+
+        int chunk = Math.max(1, (verts.size() + 4 * threads - 1) / (4 * threads));
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < verts.size(); start += chunk)
+        {
+            final int fstart = start;
+            final int fend = Math.min(start + chunk, verts.size());
+            tasks.add(() ->
+            {
+                BiConsumer<Integer, Vertex> consumer = factory.get();
+                for (int i = fstart; i < fend; i++)
+                {
+                    consumer.accept(i, verts.get(i));
+                }
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            exec.shutdown();
         }
     }
 
@@ -291,27 +385,48 @@ public class MeshUtils
         computeNormals(mesh, attr, Mesh.NORMAL);
     }
 
+    /**
+     * compute area-independent vertex normals by averaging the unit normals of adjacent faces
+     */
     public static void computeNormals(Mesh mesh, String input, String output)
     {
+        // accumulate over the faces once instead of visiting the face ring of each vertex
+        Map<Vertex, Vect> normals = Maps.newHashMapWithExpectedSize(mesh.graph.numVertex());
+        for (Vertex vert : mesh.graph.verts())
+        {
+            normals.put(vert, VectSource.create3D());
+        }
+
+        for (Face face : mesh.graph.faces())
+        {
+            Vect pa = mesh.vattr.get(face.getA(), input);
+            Vect pb = mesh.vattr.get(face.getB(), input);
+            Vect pc = mesh.vattr.get(face.getC(), input);
+
+            Vect fn = pb.minus(pa).cross(pc.minus(pa));
+            double norm = fn.norm();
+
+            if (norm > Global.DELTA * Global.DELTA)
+            {
+                fn.timesEquals(1.0 / norm);
+                normals.get(face.getA()).plusEquals(fn);
+                normals.get(face.getB()).plusEquals(fn);
+                normals.get(face.getC()).plusEquals(fn);
+            }
+        }
+
         mesh.vattr.add(output, VectSource.create3D());
-        for (Vertex vi : mesh.graph.verts())
+        for (Vertex vert : mesh.graph.verts())
         {
-            // Compute the initial normal
-            Vect n = VectSource.create3D();
-            for (Face f : mesh.graph.faceRing(vi))
+            Vect n = normals.get(vert);
+            double norm = n.norm();
+
+            if (norm > Global.DELTA)
             {
-                Vect pa = mesh.vattr.get(f.getA(), input);
-                Vect pb = mesh.vattr.get(f.getB(), input);
-                Vect pc = mesh.vattr.get(f.getC(), input);
-
-                Vect ba = pb.minus(pa);
-                Vect ca = pc.minus(pa);
-                Vect fn = ba.cross(ca).normalize();
-                n.plusEquals(fn);
+                n.timesEquals(1.0 / norm);
             }
-            n.normalizeEquals();
 
-            mesh.vattr.set(vi, output, n);
+            mesh.vattr.set(vert, output, n);
         }
     }
 
@@ -79,6 +79,7 @@ import qit.data.modules.volume.VolumeNormalize;
 import qit.data.source.MatrixSource;
 import qit.data.source.VectSource;
 import qit.data.source.VolumeSource;
+import qit.data.utils.curves.CurvesTrackDensity;
 import qit.data.utils.enums.InterpolationType;
 import qit.data.utils.enums.ReorientationType;
 import qit.data.utils.vects.stats.VectOnlineStats;
@@ -1423,39 +1424,28 @@ public class VolumeUtils
 
     public static Volume color(Sampling sampling, Curves curves, boolean normalize)
     {
-        Volume count = VolumeSource.create(sampling);
-        Volume out = VolumeSource.create(sampling, 3);
-        int max = 0;
+        CurvesTrackDensity tdi = new CurvesTrackDensity().withInput(curves).withSampling(sampling).withColor(true).run();
+        Volume out = tdi.getColor();
 
-        for (Curve curve : curves)
+        if (normalize)
         {
-            for (Pair<Sample, Vect> pair : sampling.traverseLine(curve.getAll(Curves.COORD)))
+            Volume count = tdi.getCount();
+            double max = 0;
+            for (int idx = 0; idx < sampling.size(); idx++)
             {
-                Sample sample = pair.a;
-                Vect line = pair.b.abs();
-
-                if (sampling.contains(sample))
-                {
-                    int ncount = (int) count.get(sample, 0) + 1;
-                    count.set(sample, 0, ncount);
-                    out.set(sample, out.get(sample).plus(line));
-
-                    max = Math.max(ncount, max);
-                }
+                max = Math.max(max, count.get(idx, 0));
             }
-        }
 
-        for (Sample sample : sampling)
-        {
-            int c = (int) count.get(sample, 0);
-            if (c > 0)
+            if (max > 0)
             {
-                Vect line = out.get(sample).normalize();
-                if (normalize)
+                for (int idx = 0; idx < sampling.size(); idx++)
                 {
-                    line.timesEquals((double) c / (double) max);
+                    double factor = count.get(idx, 0) / max;
+                    for (int d = 0; d < 3; d++)
+                    {
+                        out.set(idx, d, factor * out.get(idx, d));
+                    }
                 }
-                out.set(sample, line);
             }
         }
 
@@ -1469,33 +1459,21 @@ public class VolumeUtils
 
     public static Volume density(Sampling sampling, Curves curves, boolean normalize)
     {
-        Volume volume = VolumeSource.create(sampling);
-        int max = 0;
+        Volume volume = new CurvesTrackDensity().withInput(curves).withSampling(sampling).run().getCount();
 
-        for (Curve curve : curves)
+        if (normalize)
         {
-            for (Sample sample : sampling.traverse(curve.getAll(Curves.COORD)))
+            double max = 0;
+            for (int idx = 0; idx < sampling.size(); idx++)
             {
-                if (sampling.contains(sample))
-                {
-                    volume.set(sample, 0, volume.get(sample, 0) + 1);
-
-                    int ncount = (int) volume.get(sample, 0) + 1;
-                    volume.set(sample, 0, ncount);
-
-                    max = Math.max(ncount, max);
-                }
+                max = Math.max(max, volume.get(idx, 0));
             }
-        }
 
-        if (normalize && max > 0)
-        {
-            for (Sample sample : sampling)
+            if (max > 0)
             {
-                int c = (int) volume.get(sample, 0);
-                if (c > 0)
+                for (int idx = 0; idx < sampling.size(); idx++)
                 {
-                    volume.set(sample, volume.get(sample).div(max));
+                    volume.set(idx, 0, volume.get(idx, 0) / max);
                 }
             }
         }
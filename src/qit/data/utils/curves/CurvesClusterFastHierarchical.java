@@ -67,6 +67,9 @@ public class CurvesClusterFastHierarchical
     public Double thresh = null;
     public Double density = null;
     public Double epsilon = null;
+    public Integer knn = null;
+    public Integer samples = null;
+    public int threads = 1;
     public VectsClusterKM cluster = null;
     public CurvesClosestPointTransform transform = null;
 
@@ -88,6 +91,9 @@ public class CurvesClusterFastHierarchical
         hier.dist = this.dist;
         hier.num = this.num;
         hier.thresh = this.thresh;
+        hier.knn = this.knn;
+        hier.samples = this.samples;
+        hier.threads = this.threads;
         hier.run();
 
         int[] labels = new int[this.curves.size()];
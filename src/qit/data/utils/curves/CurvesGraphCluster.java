@@ -0,0 +1,711 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.curves;
+
+import com.google.common.collect.Maps;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.utils.curves.CurvesNeighbors.Graph;
+import smile.clustering.KMeans;
+import smile.math.matrix.EigenValueDecomposition;
+import smile.math.matrix.Lanczos;
+import smile.math.matrix.Matrix;
+import smile.math.matrix.SparseMatrix;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * clustering of curves from a sparse neighbor graph, which avoids computing
+ * and storing all pairwise distances.  Each method returns a label for each
+ * node of the graph, numbered from one in order of first appearance.
+ */
+public class CurvesGraphCluster
+{
+    /**
+     * group nodes that are connected by edges shorter than a threshold
+     */
+    public static int[] components(Graph graph, double thresh)
+    {
+        int[] parents = parents(graph.size);
+        for (int i = 0; i < graph.size; i++)
+        {
+            for (int e = graph.ptr[i]; e < graph.ptr[i + 1]; e++)
+            {
+                if (graph.dist[e] < thresh)
+                {
+                    union(parents, i, graph.idx[e]);
+                }
+            }
+        }
+
+        return labels(parents);
+    }
+
+    /**
+     * single linkage clustering, which merges clusters along the minimum
+     * spanning forest of the graph, shortest edges first.  Exactly one of the
+     * number of clusters or the threshold should be specified.  The graph may
+     * have more components than the requested number of clusters, in which
+     * case the components are returned.
+     */
+    public static int[] single(Graph graph, Integer num, Double thresh)
+    {
+        Global.assume(num == null ^ thresh == null, "exactly one criteria must be specified");
+
+        int n = graph.size;
+        int[] edges = undirected(graph);
+        Integer[] order = new Integer[edges.length];
+        for (int e = 0; e < edges.length; e++)
+        {
+            order[e] = e;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(graph.dist[edges[a]], graph.dist[edges[b]]));
+
+        int[] parents = parents(n);
+        int clusters = n;
+        for (int e : order)
+        {
+            int idx = edges[e];
+            double d = graph.dist[idx];
+
+            if ((num != null && clusters <= num) || (thresh != null && d >= thresh))
+            {
+                break;
+            }
+
+            if (union(parents, source(graph, idx), graph.idx[idx]))
+            {
+                clusters -= 1;
+            }
+        }
+
+        if (num != null && clusters > num)
+        {
+            Logging.info(String.format("warning: the neighbor graph has %d components, more than the %d clusters requested", clusters, num));
+        }
+
+        return labels(parents);
+    }
+
+    /**
+     * average linkage clustering, where the distance between two clusters is
+     * the mean length of the graph edges between them.  Pairs of clusters
+     * without edges between them are never merged.  Exactly one of the number
+     * of clusters or the threshold should be specified.
+     */
+    public static int[] average(Graph graph, Integer num, Double thresh)
+    {
+        Global.assume(num == null ^ thresh == null, "exactly one criteria must be specified");
+
+        int n = graph.size;
+
+        // the sum and count of edge lengths between each pair of adjacent clusters
+        Map<Integer, Map<Integer, double[]>> links = Maps.newHashMap();
+        PriorityQueue<Link> queue = new PriorityQueue<>();
+        int[] stamps = new int[n];
+
+        for (int i = 0; i < n; i++)
+        {
+            Map<Integer, double[]> link = Maps.newHashMap();
+            for (int e = graph.ptr[i]; e < graph.ptr[i + 1]; e++)
+            {
+                int j = graph.idx[e];
+                link.put(j, new double[]{graph.dist[e], 1});
+
+                if (i < j)
+                {
+                    queue.add(new Link(graph.dist[e], i, j, 0, 0));
+                }
+            }
+            links.put(i, link);
+        }
+
+        int[] parents = parents(n);
+        int clusters = n;
+        while (!queue.isEmpty())
+        {
+            if (num != null && clusters <= num)
+            {
+                break;
+            }
+
+            Link top = queue.poll();
+
+            // skip links to clusters that have since been merged
+            if (top.stampA != stamps[top.a] || top.stampB != stamps[top.b] || !links.containsKey(top.a) || !links.containsKey(top.b))
+            {
+                continue;
+            }
+
+            if (thresh != null && top.dist >= thresh)
+            {
+                break;
+            }
+
+            // merge the smaller cluster into the larger one
+            int keep = links.get(top.a).size() >= links.get(top.b).size() ? top.a : top.b;
+            int drop = keep == top.a ? top.b : top.a;
+
+            Map<Integer, double[]> kept = links.get(keep);
+            Map<Integer, double[]> dropped = links.remove(drop);
+            kept.remove(drop);
+            dropped.remove(keep);
+
+            for (Map.Entry<Integer, double[]> entry : dropped.entrySet())
+            {
+                int other = entry.getKey();
+                double[] value = entry.getValue();
+
+                double[] sum = kept.get(other);
+                if (sum == null)
+                {
+                    kept.put(other, value.clone());
+                }
+                else
+                {
+                    sum[0] += value[0];
+                    sum[1] += value[1];
+                }
+
+                links.get(other).remove(drop);
+            }
+
+            parents[find(parents, drop)] = find(parents, keep);
+            stamps[keep] += 1;
+            clusters -= 1;
+
+            for (Map.Entry<Integer, double[]> entry : kept.entrySet())
+            {
+                int other = entry.getKey();
+                double[] value = entry.getValue();
+                links.get(other).put(keep, value);
+
+                queue.add(new Link(value[0] / value[1], keep, other, stamps[keep], stamps[other]));
+            }
+        }
+
+        if (num != null && clusters > num)
+        {
+            Logging.info(String.format("warning: the neighbor graph has %d components, more than the %d clusters requested", clusters, num));
+        }
+
+        return labels(parents);
+    }
+
+    /**
+     * normalized spectral clustering with a sparse affinity matrix, where the
+     * leading eigenvectors of the normalized affinity are found with the
+     * Lanczos method and the rows of the embedding are clustered with k-means.
+     * Edge lengths are converted to affinities with a Gaussian kernel that is
+     * scaled by the median edge length of each node, which adapts to the
+     * varying density of curves.
+     *
+     * Ng, A. Y., Jordan, M. I., & Weiss, Y. (2002). On spectral clustering:
+     * Analysis and an algorithm. In Advances in neural information processing
+     * systems (pp. 849-856).
+     *
+     * Qin, T., & Rohe, K. (2013). Regularized spectral clustering under the
+     * degree-corrected stochastic blockmodel. In Advances in neural information
+     * processing systems (pp. 3120-3128).
+     *
+     * Zelnik-Manor, L., & Perona, P. (2005). Self-tuning spectral clustering.
+     * In Advances in neural information processing systems (pp. 1601-1608).
+     */
+    public static int[] spectral(Graph graph, int num)
+    {
+        int n = graph.size;
+        Global.assume(num > 1 && num < n, "invalid number of clusters: " + num);
+
+        // the local scale of each node is the median length of its edges
+        double[] scales = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            int start = graph.ptr[i];
+            int len = graph.ptr[i + 1] - start;
+
+            if (len > 0)
+            {
+                double[] sorted = Arrays.copyOfRange(graph.dist, start, start + len);
+                Arrays.sort(sorted);
+                scales[i] = sorted[len / 2];
+            }
+
+            scales[i] = Math.max(scales[i], Global.DELTA);
+        }
+
+        double[] weights = new double[graph.dist.length];
+        double[] degrees = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            for (int e = graph.ptr[i]; e < graph.ptr[i + 1]; e++)
+            {
+                double d = graph.dist[e];
+                weights[e] = Math.exp(-d * d / (scales[i] * scales[graph.idx[e]]));
+                degrees[i] += weights[e];
+            }
+        }
+
+        // a weak edge between every pair of nodes keeps the leading eigenvalue
+        // simple when the graph is disconnected, where the weights are scaled by
+        // the mean degree and added implicitly as a rank one term
+        double tau = 0;
+        for (double degree : degrees)
+        {
+            tau += degree / n;
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            degrees[i] = 1.0 / Math.sqrt(Math.max(degrees[i] + tau, Global.DELTA));
+        }
+
+        // the matrix (I + D^-1/2 W D^-1/2) / 2 has the same eigenvectors with
+        // eigenvalues in [0, 1], so the ones needed are also the largest in magnitude
+        int[] ptr = new int[n + 1];
+        int[] idx = new int[graph.idx.length + n];
+        double[] vals = new double[graph.idx.length + n];
+        int pos = 0;
+        for (int i = 0; i < n; i++)
+        {
+            boolean diag = false;
+            for (int e = graph.ptr[i]; e <= graph.ptr[i + 1]; e++)
+            {
+                int j = e < graph.ptr[i + 1] ? graph.idx[e] : n;
+
+                if (!diag && j > i)
+                {
+                    idx[pos] = i;
+                    vals[pos++] = 0.5;
+                    diag = true;
+                }
+
+                if (j < n)
+                {
+                    idx[pos] = j;
+                    vals[pos++] = 0.5 * degrees[i] * weights[e] * degrees[j];
+                }
+            }
+            ptr[i + 1] = pos;
+        }
+
+        // the matrix is symmetric, so the compressed rows are also the compressed columns
+        Regularized matrix = new Regularized(new SparseMatrix(n, n, vals, idx, ptr), degrees, 0.5 * tau / n);
+
+        Logging.info("... computing eigenvectors");
+        EigenValueDecomposition eigen = Lanczos.eigen(matrix, num);
+        double[][] embed = eigen.getEigenVectors().array();
+
+        for (double[] row : embed)
+        {
+            double norm = 0;
+            for (double v : row)
+            {
+                norm += v * v;
+            }
+
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < row.length; j++)
+            {
+                row[j] = norm > 0 ? row[j] / norm : 0;
+            }
+        }
+
+        Logging.info("... clustering the embedding with the best of several k-means runs");
+        int[] assign = new KMeans(embed, num, 100, 10).getClusterLabel();
+
+        int[] parents = parents(n);
+        int[] first = new int[num];
+        Arrays.fill(first, -1);
+        for (int i = 0; i < n; i++)
+        {
+            int label = assign[i];
+            if (first[label] < 0)
+            {
+                first[label] = i;
+            }
+            parents[i] = first[label];
+        }
+
+        return labels(parents);
+    }
+
+    private static int[] undirected(Graph graph)
+    {
+        int[] out = new int[graph.edges()];
+        int num = 0;
+        for (int i = 0; i < graph.size; i++)
+        {
+            for (int e = graph.ptr[i]; e < graph.ptr[i + 1]; e++)
+            {
+                if (i < graph.idx[e] && num < out.length)
+                {
+                    out[num++] = e;
+                }
+            }
+        }
+
+        return Arrays.copyOf(out, num);
+    }
+
+    private static int source(Graph graph, int edge)
+    {
+        // find the row that stores the edge
+        int low = 0;
+        int high = graph.size;
+        while (high - low > 1)
+        {
+            int mid = (low + high) >>> 1;
+            if (graph.ptr[mid] <= edge)
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static int[] parents(int n)
+    {
+        int[] out = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = i;
+        }
+
+        return out;
+    }
+
+    private static int find(int[] parents, int i)
+    {
+        int root = i;
+        while (parents[root] != root)
+        {
+            root = parents[root];
+        }
+
+        while (parents[i] != root)
+        {
+            int next = parents[i];
+            parents[i] = root;
+            i = next;
+        }
+
+        return root;
+    }
+
+    private static boolean union(int[] parents, int a, int b)
+    {
+        int ra = find(parents, a);
+        int rb = find(parents, b);
+
+        if (ra == rb)
+        {
+            return false;
+        }
+
+        parents[Math.max(ra, rb)] = Math.min(ra, rb);
+
+        return true;
+    }
+
+    private static int[] labels(int[] parents)
+    {
+        int n = parents.length;
+        int[] lookup = new int[n];
+        int[] out = new int[n];
+        int num = 0;
+        for (int i = 0; i < n; i++)
+        {
+            int root = find(parents, i);
+            if (lookup[root] == 0)
+            {
+                lookup[root] = ++num;
+            }
+            out[i] = lookup[root];
+        }
+
+        return out;
+    }
+
+    /**
+     * a symmetric sparse matrix plus a scaled outer product of a vector
+     */
+    private static class Regularized implements Matrix
+    {
+        private final SparseMatrix sparse;
+        private final double[] vect;
+        private final double scale;
+
+        private Regularized(SparseMatrix sparse, double[] vect, double scale)
+        {
+            this.sparse = sparse;
+            this.vect = vect;
+            this.scale = scale;
+        }
+
+        @Override
+        public int nrows()
+        {
+            return this.sparse.nrows();
+        }
+
+        @Override
+        public int ncols()
+        {
+            return this.sparse.ncols();
+        }
+
+        @Override
+        public Matrix transpose()
+        {
+            return this;
+        }
+
+        @Override
+        public double get(int i, int j)
+        {
+            return this.sparse.get(i, j) + this.scale * this.vect[i] * this.vect[j];
+        }
+
+        @Override
+        public Matrix ata()
+        {
+            return new Square(this);
+        }
+
+        @Override
+        public Matrix aat()
+        {
+            return new Square(this);
+        }
+
+        @Override
+        public double[] ax(double[] x, double[] y)
+        {
+            this.sparse.ax(x, y);
+            this.outer(x, y, 1.0);
+
+            return y;
+        }
+
+        @Override
+        public double[] axpy(double[] x, double[] y)
+        {
+            this.sparse.axpy(x, y);
+            this.outer(x, y, 1.0);
+
+            return y;
+        }
+
+        @Override
+        public double[] axpy(double[] x, double[] y, double b)
+        {
+            this.sparse.axpy(x, y, b);
+            this.outer(x, y, 1.0);
+
+            return y;
+        }
+
+        @Override
+        public double[] atx(double[] x, double[] y)
+        {
+            return this.ax(x, y);
+        }
+
+        @Override
+        public double[] atxpy(double[] x, double[] y)
+        {
+            return this.axpy(x, y);
+        }
+
+        @Override
+        public double[] atxpy(double[] x, double[] y, double b)
+        {
+            return this.axpy(x, y, b);
+        }
+
+        private void outer(double[] x, double[] y, double a)
+        {
+            double dot = 0;
+            for (int i = 0; i < x.length; i++)
+            {
+                dot += this.vect[i] * x[i];
+            }
+
+            double s = a * this.scale * dot;
+            for (int i = 0; i < y.length; i++)
+            {
+                y[i] += s * this.vect[i];
+            }
+        }
+    }
+
+    /**
+     * the square of a symmetric matrix, which is applied as two products with the matrix
+     */
+    private static class Square implements Matrix
+    {
+        private final Matrix matrix;
+
+        private Square(Matrix matrix)
+        {
+            this.matrix = matrix;
+        }
+
+        @Override
+        public int nrows()
+        {
+            return this.matrix.nrows();
+        }
+
+        @Override
+        public int ncols()
+        {
+            return this.matrix.ncols();
+        }
+
+        @Override
+        public Matrix transpose()
+        {
+            return this;
+        }
+
+        @Override
+        public double get(int i, int j)
+        {
+            double out = 0;
+            for (int k = 0; k < this.matrix.ncols(); k++)
+            {
+                out += this.matrix.get(i, k) * this.matrix.get(k, j);
+            }
+
+            return out;
+        }
+
+        @Override
+        public Matrix ata()
+        {
+            return new Square(this);
+        }
+
+        @Override
+        public Matrix aat()
+        {
+            return new Square(this);
+        }
+
+        @Override
+        public double[] ax(double[] x, double[] y)
+        {
+            return this.matrix.ax(this.matrix.ax(x, new double[this.matrix.nrows()]), y);
+        }
+
+        @Override
+        public double[] axpy(double[] x, double[] y)
+        {
+            return this.matrix.axpy(this.matrix.ax(x, new double[this.matrix.nrows()]), y);
+        }
+
+        @Override
+        public double[] axpy(double[] x, double[] y, double b)
+        {
+            return this.matrix.axpy(this.matrix.ax(x, new double[this.matrix.nrows()]), y, b);
+        }
+
+        @Override
+        public double[] atx(double[] x, double[] y)
+        {
+            return this.ax(x, y);
+        }
+
+        @Override
+        public double[] atxpy(double[] x, double[] y)
+        {
+            return this.axpy(x, y);
+        }
+
+        @Override
+        public double[] atxpy(double[] x, double[] y, double b)
+        {
+            return this.axpy(x, y, b);
+        }
+    }
+
+    private static class Link implements Comparable<Link>
+    {
+        private final double dist;
+        private final int a;
+        private final int b;
+        private final int stampA;
+        private final int stampB;
+
+        private Link(double dist, int a, int b, int stampA, int stampB)
+        {
+            this.dist = dist;
+            this.a = a;
+            this.b = b;
+            this.stampA = stampA;
+            this.stampB = stampB;
+        }
+
+        @Override
+        public int compareTo(Link other)
+        {
+            return Double.compare(this.dist, other.dist);
+        }
+    }
+}
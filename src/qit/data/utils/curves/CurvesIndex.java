@@ -0,0 +1,586 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.curves;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.base.structs.Integers;
+import qit.base.utils.ArrayUtils;
+import qit.data.datasets.Curves;
+import qit.data.datasets.Curves.Curve;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.source.VectSource;
+import qit.math.structs.Quaternion;
+import qit.math.structs.VectFunction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An inverted index from voxels to the curves that pass through them.  Each
+ * curve vertex is assigned to its nearest voxel, and each occupied voxel has a
+ * sorted list of postings that hold a curve index along with flags for whether
+ * the head or tail of the curve lands in the voxel.  Once built, mask queries
+ * only visit the occupied voxels and never touch curve geometry, so repeated
+ * include and exclude selections on the same tractogram are cheap.  The index
+ * can be written next to the tractogram and read back later, and its header
+ * holds a digest of the curve coordinates and the transform, so a stale index
+ * is never reused.
+ */
+public class CurvesIndex
+{
+    public static final int HEAD = 1;
+    public static final int TAIL = 2;
+
+    private static final int MAGIC = 0x51434958;
+    private static final int VERSION = 2;
+    private static final int FLAGS = 2;
+    private static final int MASK = (1 << FLAGS) - 1;
+
+    // voxel and curve indices share an int with the flags
+    private static final int LIMIT = 1 << (31 - FLAGS);
+
+    private Curves input = null;
+    private Sampling sampling = null;
+    private VectFunction transform = null;
+    private int threads = 1;
+
+    private int curves = 0;
+    private int vertices = 0;
+    private long digest = 0;
+    private int[] voxels = null;
+    private int[] ptr = null;
+    private int[] postings = null;
+
+    public CurvesIndex withInput(Curves v)
+    {
+        this.input = v;
+        return this;
+    }
+
+    public CurvesIndex withSampling(Sampling v)
+    {
+        this.sampling = v;
+        return this;
+    }
+
+    public CurvesIndex withTransform(VectFunction v)
+    {
+        this.transform = v;
+        return this;
+    }
+
+    public CurvesIndex withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    public CurvesIndex run()
+    {
+        Global.assume(this.input != null, "no curves were provided");
+        Global.assume(this.sampling != null, "no sampling was provided");
+        Global.assume(this.sampling.size() < LIMIT, "the sampling has too many voxels to index: " + this.sampling.size() + " (the limit is " + LIMIT + ")");
+        Global.assume(this.input.size() < LIMIT, "there are too many curves to index: " + this.input.size() + " (the limit is " + LIMIT + ")");
+
+        int num = this.input.size();
+        final Curve[] curves = new Curve[num];
+        for (int i = 0; i < num; i++)
+        {
+            curves[i] = this.input.get(i);
+        }
+
+        // find the distinct voxels of each curve in parallel
+        final int[][] visits = new int[num][];
+        final double[] xfm = transform(this.sampling);
+        parallel(num, this.threads, (start, end) ->
+        {
+            float[] buffer = null;
+            for (int c = start; c < end; c++)
+            {
+                buffer = curves[c].getArray(Curves.COORD, buffer);
+                visits[c] = this.visit(xfm, buffer, curves[c].size());
+            }
+        });
+
+        // group the postings by voxel with a counting sort, which keeps them ordered by curve
+        int[] counts = new int[this.sampling.size()];
+        int total = 0;
+        int vertices = 0;
+        for (int c = 0; c < num; c++)
+        {
+            for (int entry : visits[c])
+            {
+                counts[entry >>> FLAGS] += 1;
+            }
+            total += visits[c].length;
+            vertices += curves[c].size();
+        }
+
+        int occupied = 0;
+        for (int count : counts)
+        {
+            occupied += count > 0 ? 1 : 0;
+        }
+
+        this.voxels = new int[occupied];
+        this.ptr = new int[occupied + 1];
+        int slot = 0;
+        for (int idx = 0; idx < counts.length; idx++)
+        {
+            if (counts[idx] > 0)
+            {
+                this.voxels[slot] = idx;
+                this.ptr[slot + 1] = this.ptr[slot] + counts[idx];
+
+                // reuse the counts as the slot of each voxel
+                counts[idx] = slot++;
+            }
+        }
+
+        int[] fill = Arrays.copyOf(this.ptr, occupied);
+        this.postings = new int[total];
+        for (int c = 0; c < num; c++)
+        {
+            for (int entry : visits[c])
+            {
+                int s = counts[entry >>> FLAGS];
+                this.postings[fill[s]++] = (c << FLAGS) | (entry & MASK);
+            }
+            visits[c] = null;
+        }
+
+        this.curves = num;
+        this.vertices = vertices;
+        this.digest = digest(this.input, this.transform);
+
+        Logging.info(String.format("indexed %d curves with %d postings in %d voxels", num, total, occupied));
+
+        return this;
+    }
+
+    /**
+     * @return the distinct voxels visited by a curve, each packed with its endpoint flags
+     */
+    private int[] visit(double[] m, float[] coords, int n)
+    {
+        int ni = this.sampling.numI();
+        int nj = this.sampling.numJ();
+        int nk = this.sampling.numK();
+
+        int[] out = new int[n];
+        int count = 0;
+
+        for (int v = 0; v < n; v++)
+        {
+            double x = coords[3 * v];
+            double y = coords[3 * v + 1];
+            double z = coords[3 * v + 2];
+
+            if (this.transform != null)
+            {
+                Vect p = this.transform.apply(VectSource.create3D(x, y, z));
+                x = p.getX();
+                y = p.getY();
+                z = p.getZ();
+            }
+
+            int i = (int) Math.round(m[0] * x + m[1] * y + m[2] * z + m[3]);
+            int j = (int) Math.round(m[4] * x + m[5] * y + m[6] * z + m[7]);
+            int k = (int) Math.round(m[8] * x + m[9] * y + m[10] * z + m[11]);
+
+            if (i < 0 || j < 0 || k < 0 || i >= ni || j >= nj || k >= nk)
+            {
+                continue;
+            }
+
+            int flags = (v == 0 ? HEAD : 0) | (v == n - 1 ? TAIL : 0);
+            out[count++] = ((i + ni * (j + nj * k)) << FLAGS) | flags;
+        }
+
+        // merge repeated voxels and their flags
+        Arrays.sort(out, 0, count);
+        int distinct = 0;
+        for (int a = 0; a < count; a++)
+        {
+            if (distinct > 0 && (out[distinct - 1] >>> FLAGS) == (out[a] >>> FLAGS))
+            {
+                out[distinct - 1] |= out[a] & MASK;
+            }
+            else
+            {
+                out[distinct++] = out[a];
+            }
+        }
+
+        return Arrays.copyOf(out, distinct);
+    }
+
+    public Sampling getSampling()
+    {
+        return this.sampling;
+    }
+
+    public int getCurveCount()
+    {
+        return this.curves;
+    }
+
+    public int getVoxelCount()
+    {
+        return this.voxels.length;
+    }
+
+    /**
+     * @param digest the digest of the curves and transform, as computed by CurvesIndex.digest()
+     * @return true if the index was built from the same curves and transform on the given sampling
+     */
+    public boolean matches(Sampling sampling, long digest)
+    {
+        return this.sampling.equals(sampling) && this.digest == digest;
+    }
+
+    /**
+     * @return a digest of the curve coordinates and the transform applied to them
+     */
+    public static long digest(Curves curves, VectFunction transform)
+    {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(curves.size());
+
+        Vect min = VectSource.create3D(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+        Vect max = VectSource.create3D(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+
+        float[] buffer = null;
+        for (Curve curve : curves)
+        {
+            int n = curve.size();
+            buffer = curve.getArray(Curves.COORD, buffer);
+
+            hasher.putInt(n);
+            for (int v = 0; v < 3 * n; v++)
+            {
+                hasher.putFloat(buffer[v]);
+                min.set(v % 3, Math.min(min.get(v % 3), buffer[v]));
+                max.set(v % 3, Math.max(max.get(v % 3), buffer[v]));
+            }
+        }
+
+        // the transform is identified by its values on a grid spanning the curves
+        hasher.putBoolean(transform != null);
+        if (transform != null && curves.size() > 0)
+        {
+            int probes = 16;
+            for (int k = 0; k < probes; k++)
+            {
+                for (int j = 0; j < probes; j++)
+                {
+                    for (int i = 0; i < probes; i++)
+                    {
+                        Vect p = VectSource.create3D(i, j, k).times(1.0 / (probes - 1));
+                        Vect q = transform.apply(min.plus(max.minus(min).times(p)));
+                        hasher.putDouble(q.getX());
+                        hasher.putDouble(q.getY());
+                        hasher.putDouble(q.getZ());
+                    }
+                }
+            }
+        }
+
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * @return a short name for a sampling, e.g. for keeping the indices of different samplings in separate files
+     */
+    public static String key(Sampling sampling)
+    {
+        Hasher hasher = Hashing.murmur3_32().newHasher();
+        for (int d = 0; d < 3; d++)
+        {
+            hasher.putDouble(sampling.start().get(d));
+            hasher.putDouble(sampling.delta().get(d));
+            hasher.putInt(sampling.num().get(d));
+        }
+
+        Quaternion quat = sampling.quat();
+        if (quat != null)
+        {
+            hasher.putDouble(quat.getB());
+            hasher.putDouble(quat.getC());
+            hasher.putDouble(quat.getD());
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * select the curves that have a vertex (or an endpoint) in the foreground of the mask
+     */
+    public BitSet select(Mask mask, boolean endpoints)
+    {
+        return this.select(mask, null, endpoints);
+    }
+
+    /**
+     * select the curves that have a vertex (or an endpoint) in the mask with the given label
+     */
+    public BitSet select(Mask mask, int label, boolean endpoints)
+    {
+        return this.select(mask, (Integer) label, endpoints);
+    }
+
+    private BitSet select(Mask mask, Integer label, boolean endpoints)
+    {
+        Global.assume(mask.getSampling().equals(this.sampling), "mask sampling does not match the index");
+
+        BitSet out = new BitSet(this.curves);
+        for (int s = 0; s < this.voxels.length; s++)
+        {
+            int value = mask.get(this.voxels[s]);
+            if (label == null ? value == 0 : value != label)
+            {
+                continue;
+            }
+
+            for (int p = this.ptr[s]; p < this.ptr[s + 1]; p++)
+            {
+                int entry = this.postings[p];
+                if (!endpoints || (entry & MASK) != 0)
+                {
+                    out.set(entry >>> FLAGS);
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @return a flag for each curve that is set in the given selection
+     */
+    public boolean[] filter(BitSet selection)
+    {
+        boolean[] out = new boolean[this.curves];
+        for (int i = selection.nextSetBit(0); i >= 0 && i < this.curves; i = selection.nextSetBit(i + 1))
+        {
+            out[i] = true;
+        }
+
+        return out;
+    }
+
+    public void write(String fn) throws IOException
+    {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn))))
+        {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+
+            Vect start = this.sampling.start();
+            Vect delta = this.sampling.delta();
+            Quaternion quat = this.sampling.quat();
+            for (int d = 0; d < 3; d++)
+            {
+                dos.writeDouble(start.get(d));
+                dos.writeDouble(delta.get(d));
+                dos.writeInt(this.sampling.num().get(d));
+            }
+
+            dos.writeBoolean(quat != null);
+            if (quat != null)
+            {
+                dos.writeDouble(quat.getB());
+                dos.writeDouble(quat.getC());
+                dos.writeDouble(quat.getD());
+            }
+
+            dos.writeInt(this.curves);
+            dos.writeInt(this.vertices);
+            dos.writeLong(this.digest);
+            dos.writeInt(this.voxels.length);
+            dos.writeInt(this.postings.length);
+            ArrayUtils.writeArrayBinaryInteger(dos, this.voxels, 0, this.voxels.length);
+            ArrayUtils.writeArrayBinaryInteger(dos, this.ptr, 0, this.ptr.length);
+            ArrayUtils.writeArrayBinaryInteger(dos, this.postings, 0, this.postings.length);
+        }
+    }
+
+    public static CurvesIndex read(String fn) throws IOException
+    {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fn))))
+        {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+            {
+                throw new IOException("invalid curves index: " + fn);
+            }
+
+            Vect start = VectSource.create3D();
+            Vect delta = VectSource.create3D();
+            int[] num = new int[3];
+            for (int d = 0; d < 3; d++)
+            {
+                start.set(d, dis.readDouble());
+                delta.set(d, dis.readDouble());
+                num[d] = dis.readInt();
+            }
+
+            Quaternion quat = null;
+            if (dis.readBoolean())
+            {
+                quat = new Quaternion(dis.readDouble(), dis.readDouble(), dis.readDouble());
+            }
+
+            CurvesIndex out = new CurvesIndex();
+            out.sampling = new Sampling(start, delta, quat, new Integers(num[0], num[1], num[2]));
+            out.curves = dis.readInt();
+            out.vertices = dis.readInt();
+            out.digest = dis.readLong();
+            out.voxels = new int[dis.readInt()];
+            out.ptr = new int[out.voxels.length + 1];
+            out.postings = new int[dis.readInt()];
+            ArrayUtils.readArrayBinaryInteger(dis, out.voxels);
+            ArrayUtils.readArrayBinaryInteger(dis, out.ptr);
+            ArrayUtils.readArrayBinaryInteger(dis, out.postings);
+
+            return out;
+        }
+    }
+
+    /**
+     * @return the affine transform from world to continuous voxel coordinates, stored as a row-major 3x4 matrix
+     */
+    private static double[] transform(Sampling sampling)
+    {
+        Vect origin = sampling.voxel(VectSource.create3D(0, 0, 0));
+        Vect[] axes = {
+                sampling.voxel(VectSource.create3D(1, 0, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 1, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 0, 1)).minus(origin)};
+
+        double[] out = new double[12];
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                out[4 * r + c] = axes[c].get(r);
+            }
+            out[4 * r + 3] = origin.get(r);
+        }
+
+        return out;
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private static void parallel(int num, int threads, Block block)
+    {
+        if (threads < 2 || num < 2)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * threads);
+        int step = (num + blocks - 1) / blocks;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+}
@@ -0,0 +1,860 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.curves;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Curves;
+import qit.data.datasets.Curves.Curve;
+import qit.data.modules.curves.CurvesResample;
+import qit.math.structs.Distance;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * an approximate k-nearest-neighbor graph of curves computed with the
+ * NN-descent algorithm, which starts from random neighbors and repeatedly
+ * compares the neighbors of neighbors, since a neighbor of a neighbor is
+ * likely to be a neighbor as well.  Only pairs that are new since the last
+ * iteration are compared, and the search stops when few neighbors change.
+ * This takes roughly O(n k^2) distance evaluations per iteration instead of
+ * the O(n^2) needed for all pairwise distances.
+ *
+ * Curves are compared either with a given curve distance or, by default, with
+ * the mean distance between corresponding vertices of resampled curves,
+ * minimized over the two orientations of the curve.  Nodes are processed in
+ * fixed waves, where the comparisons of a wave are computed in parallel and
+ * then merged in order, so the result does not depend on the number of threads.
+ *
+ * Dong, W., Moses, C., & Li, K. (2011). Efficient k-nearest neighbor graph
+ * construction for generic similarity measures. In Proceedings of the 20th
+ * international conference on World wide web (pp. 577-586).
+ */
+public class CurvesNeighbors
+{
+    private static final int DIM = 3;
+    private static final int BLOCK = 256;
+    private static final int WAVE = 16 * BLOCK;
+
+    private Curves input = null;
+    private Distance<Curve> distance = null;
+    private int samples = 10;
+    private int k = 10;
+    private int iters = 20;
+    private double rate = 0.5;
+    private double delta = 0.001;
+    private int threads = 1;
+
+    private transient int size;
+    private transient int width;
+    private transient float[] features;
+    private transient Curve[] curves;
+    private transient ExecutorService exec;
+
+    private int[] ids = null;
+    private double[] dists = null;
+    private boolean[] fresh = null;
+    private Graph graph = null;
+
+    public CurvesNeighbors withInput(Curves v)
+    {
+        this.input = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    /**
+     * @param v the distance between curves (null means the mean distance between resampled vertices)
+     */
+    public CurvesNeighbors withDistance(Distance<Curve> v)
+    {
+        this.distance = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    /**
+     * @param v the number of vertices used to compare resampled curves
+     */
+    public CurvesNeighbors withSamples(int v)
+    {
+        Global.assume(v > 1, "at least two samples are required");
+
+        this.samples = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    public CurvesNeighbors withK(int v)
+    {
+        Global.assume(v > 0, "at least one neighbor is required");
+
+        this.k = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    public CurvesNeighbors withIters(int v)
+    {
+        this.iters = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    /**
+     * @param v the fraction of new neighbors that are joined in each iteration
+     */
+    public CurvesNeighbors withRate(double v)
+    {
+        Global.assume(v > 0 && v <= 1, "invalid sample rate");
+
+        this.rate = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    /**
+     * @param v the fraction of neighbors that must change for the search to continue
+     */
+    public CurvesNeighbors withDelta(double v)
+    {
+        this.delta = v;
+        this.ids = null;
+
+        return this;
+    }
+
+    public CurvesNeighbors withThreads(int v)
+    {
+        this.threads = v;
+
+        return this;
+    }
+
+    public CurvesNeighbors run()
+    {
+        this.size = this.input.size();
+        this.width = Math.max(0, Math.min(this.k, this.size - 1));
+        this.graph = null;
+
+        if (this.distance == null)
+        {
+            Logging.info("... packing curve features");
+            this.pack();
+        }
+        else
+        {
+            this.curves = new Curve[this.size];
+            for (int i = 0; i < this.size; i++)
+            {
+                this.curves[i] = this.input.get(i);
+            }
+        }
+
+        this.exec = this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+
+        try
+        {
+            this.init();
+
+            for (int iter = 0; iter < this.iters; iter++)
+            {
+                long updates = this.descend();
+                Logging.info(String.format("... iteration %d updated %d neighbors", iter + 1, updates));
+
+                if (updates <= this.delta * this.size * this.width)
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            if (this.exec != null)
+            {
+                this.exec.shutdown();
+                this.exec = null;
+            }
+
+            this.features = null;
+            this.curves = null;
+            this.fresh = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the neighbors of each curve ordered by increasing distance
+     */
+    public int[][] getNeighbors()
+    {
+        if (this.ids == null)
+        {
+            this.run();
+        }
+
+        int[][] out = new int[this.size][];
+        for (int i = 0; i < this.size; i++)
+        {
+            out[i] = Arrays.copyOfRange(this.ids, i * this.width, (i + 1) * this.width);
+        }
+
+        return out;
+    }
+
+    /**
+     * @return the distances to the neighbors of each curve in increasing order
+     */
+    public double[][] getDistances()
+    {
+        if (this.ids == null)
+        {
+            this.run();
+        }
+
+        double[][] out = new double[this.size][];
+        for (int i = 0; i < this.size; i++)
+        {
+            out[i] = Arrays.copyOfRange(this.dists, i * this.width, (i + 1) * this.width);
+        }
+
+        return out;
+    }
+
+    /**
+     * @return the symmetric graph that connects each curve to its neighbors
+     */
+    public Graph getGraph()
+    {
+        if (this.ids == null)
+        {
+            this.run();
+        }
+
+        if (this.graph == null)
+        {
+            this.graph = Graph.symmetric(this.size, this.width, this.ids, this.dists);
+        }
+
+        return this.graph;
+    }
+
+    private void pack()
+    {
+        CurvesResample resampler = new CurvesResample();
+        resampler.input = this.input;
+        resampler.num = this.samples;
+        Curves sampled = resampler.run().output;
+
+        int stride = this.samples * DIM;
+        this.features = new float[this.size * stride];
+
+        float[] buffer = null;
+        for (int i = 0; i < this.size; i++)
+        {
+            Curve curve = sampled.get(i);
+            buffer = curve.getArray(Curves.COORD, buffer);
+
+            int num = curve.size();
+            for (int p = 0; p < this.samples; p++)
+            {
+                // degenerate curves with fewer vertices repeat their last vertex
+                System.arraycopy(buffer, Math.min(p, num - 1) * DIM, this.features, i * stride + p * DIM, DIM);
+            }
+        }
+    }
+
+    private void init()
+    {
+        int n = this.size;
+        int w = this.width;
+
+        this.ids = new int[n * w];
+        this.dists = new double[n * w];
+        this.fresh = new boolean[n * w];
+
+        // start from distinct random neighbors
+        Random random = Global.RANDOM;
+        int[] init = new int[n * w];
+        for (int i = 0; i < n; i++)
+        {
+            int num = 0;
+            while (num < w)
+            {
+                int j = random.nextInt(n);
+                if (j != i && !contains(init, i * w, i * w + num, j))
+                {
+                    init[i * w + num++] = j;
+                }
+            }
+        }
+
+        double[] dinit = new double[n * w];
+        this.parallel(n, (start, end) ->
+        {
+            for (int i = start; i < end; i++)
+            {
+                for (int m = 0; m < w; m++)
+                {
+                    dinit[i * w + m] = this.dist(i, init[i * w + m], Double.MAX_VALUE);
+                }
+            }
+        });
+
+        Arrays.fill(this.dists, Double.MAX_VALUE);
+        Arrays.fill(this.ids, -1);
+        for (int i = 0; i < n; i++)
+        {
+            for (int m = 0; m < w; m++)
+            {
+                this.insert(i, init[i * w + m], dinit[i * w + m]);
+            }
+        }
+    }
+
+    /**
+     * run one iteration of the local join
+     *
+     * @return the number of neighbors that changed
+     */
+    private long descend()
+    {
+        int n = this.size;
+        int w = this.width;
+        int max = Math.max(1, (int) Math.round(this.rate * w));
+        Random random = Global.RANDOM;
+
+        // split the neighbors into new and old, and only join a sample of the new ones
+        int[][] news = new int[n][];
+        int[][] olds = new int[n][];
+        int[] buffer = new int[w];
+        for (int i = 0; i < n; i++)
+        {
+            int numNew = 0;
+            int numOld = 0;
+            int[] old = new int[w];
+            for (int m = 0; m < w; m++)
+            {
+                int idx = i * w + m;
+                if (this.ids[idx] < 0)
+                {
+                    continue;
+                }
+
+                if (this.fresh[idx])
+                {
+                    buffer[numNew++] = m;
+                }
+                else
+                {
+                    old[numOld++] = this.ids[idx];
+                }
+            }
+
+            shuffle(random, buffer, numNew, max);
+            numNew = Math.min(numNew, max);
+
+            int[] sampled = new int[numNew];
+            for (int m = 0; m < numNew; m++)
+            {
+                int idx = i * w + buffer[m];
+                sampled[m] = this.ids[idx];
+                this.fresh[idx] = false;
+            }
+
+            news[i] = sampled;
+            olds[i] = Arrays.copyOf(old, numOld);
+        }
+
+        // add a sample of the reverse neighbors
+        int[][] rnews = reverse(news, n);
+        int[][] rolds = reverse(olds, n);
+        for (int i = 0; i < n; i++)
+        {
+            news[i] = union(news[i], rnews[i], max, random);
+            olds[i] = union(olds[i], rolds[i], max, random);
+        }
+
+        long updates = 0;
+        for (int wave = 0; wave < n; wave += WAVE)
+        {
+            int wstart = wave;
+            int wend = Math.min(n, wave + WAVE);
+            int nblocks = (wend - wstart + BLOCK - 1) / BLOCK;
+
+            Candidates[] found = new Candidates[nblocks];
+            this.parallel(nblocks, (bstart, bend) ->
+            {
+                for (int b = bstart; b < bend; b++)
+                {
+                    Candidates cands = new Candidates();
+                    int start = wstart + b * BLOCK;
+                    int end = Math.min(wend, start + BLOCK);
+                    for (int i = start; i < end; i++)
+                    {
+                        this.join(news[i], olds[i], cands);
+                    }
+                    found[b] = cands;
+                }
+            });
+
+            // merge in a fixed order, so the result does not depend on the threads
+            for (Candidates cands : found)
+            {
+                for (int c = 0; c < cands.size; c++)
+                {
+                    int a = cands.left[c];
+                    int b = cands.right[c];
+                    double d = cands.dists[c];
+
+                    updates += this.insert(a, b, d) ? 1 : 0;
+                    updates += this.insert(b, a, d) ? 1 : 0;
+                }
+            }
+        }
+
+        return updates;
+    }
+
+    private void join(int[] news, int[] olds, Candidates cands)
+    {
+        for (int a = 0; a < news.length; a++)
+        {
+            int u = news[a];
+
+            for (int b = a + 1; b < news.length; b++)
+            {
+                this.compare(u, news[b], cands);
+            }
+
+            for (int v : olds)
+            {
+                this.compare(u, v, cands);
+            }
+        }
+    }
+
+    private void compare(int u, int v, Candidates cands)
+    {
+        if (u == v)
+        {
+            return;
+        }
+
+        double bound = Math.max(this.worst(u), this.worst(v));
+        double d = this.dist(u, v, bound);
+
+        if (d < bound)
+        {
+            cands.add(u, v, d);
+        }
+    }
+
+    private double worst(int i)
+    {
+        return this.dists[i * this.width + this.width - 1];
+    }
+
+    /**
+     * add a neighbor to the sorted list of a curve if it is closer than the current ones
+     *
+     * @return true if the neighbors changed
+     */
+    private boolean insert(int i, int j, double d)
+    {
+        int w = this.width;
+        int offset = i * w;
+
+        if (d >= this.dists[offset + w - 1] || contains(this.ids, offset, offset + w, j))
+        {
+            return false;
+        }
+
+        int pos = w - 1;
+        while (pos > 0 && this.dists[offset + pos - 1] > d)
+        {
+            this.ids[offset + pos] = this.ids[offset + pos - 1];
+            this.dists[offset + pos] = this.dists[offset + pos - 1];
+            this.fresh[offset + pos] = this.fresh[offset + pos - 1];
+            pos -= 1;
+        }
+
+        this.ids[offset + pos] = j;
+        this.dists[offset + pos] = d;
+        this.fresh[offset + pos] = true;
+
+        return true;
+    }
+
+    /**
+     * @return the distance between two curves, or any value at least the bound if it is exceeded
+     */
+    private double dist(int a, int b, double bound)
+    {
+        if (this.features == null)
+        {
+            return this.distance.dist(this.curves[a], this.curves[b]);
+        }
+
+        double limit = bound * this.samples;
+        double direct = this.mdf(a, b, false, limit);
+        double reverse = this.mdf(a, b, true, Math.min(limit, direct));
+
+        return Math.min(direct, reverse) / this.samples;
+    }
+
+    private double mdf(int a, int b, boolean flip, double limit)
+    {
+        int stride = this.samples * DIM;
+        int ao = a * stride;
+        int bo = b * stride;
+        float[] f = this.features;
+
+        double sum = 0;
+        for (int p = 0; p < this.samples; p++)
+        {
+            int ap = ao + p * DIM;
+            int bp = bo + (flip ? this.samples - 1 - p : p) * DIM;
+
+            double dx = f[ap] - f[bp];
+            double dy = f[ap + 1] - f[bp + 1];
+            double dz = f[ap + 2] - f[bp + 2];
+            sum += Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            if (sum > limit)
+            {
+                return sum;
+            }
+        }
+
+        return sum;
+    }
+
+    private static boolean contains(int[] values, int start, int end, int v)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (values[i] == v)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * move a random sample of num values to the front of the array
+     */
+    private static void shuffle(Random random, int[] values, int len, int num)
+    {
+        for (int i = 0; i < Math.min(len, num); i++)
+        {
+            int j = i + random.nextInt(len - i);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+    }
+
+    private static int[][] reverse(int[][] lists, int n)
+    {
+        int[] counts = new int[n];
+        for (int[] list : lists)
+        {
+            for (int v : list)
+            {
+                counts[v] += 1;
+            }
+        }
+
+        int[][] out = new int[n][];
+        for (int i = 0; i < n; i++)
+        {
+            out[i] = new int[counts[i]];
+        }
+
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < n; i++)
+        {
+            for (int v : lists[i])
+            {
+                out[v][counts[v]++] = i;
+            }
+        }
+
+        return out;
+    }
+
+    private static int[] union(int[] forward, int[] backward, int max, Random random)
+    {
+        shuffle(random, backward, backward.length, max);
+
+        int[] out = Arrays.copyOf(forward, forward.length + Math.min(max, backward.length));
+        int num = forward.length;
+        for (int i = 0; i < Math.min(max, backward.length); i++)
+        {
+            if (!contains(out, 0, num, backward[i]))
+            {
+                out[num++] = backward[i];
+            }
+        }
+
+        return num == out.length ? out : Arrays.copyOf(out, num);
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private void parallel(int num, Block block)
+    {
+        if (this.exec == null || num < 2)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * this.threads);
+        int step = (num + blocks - 1) / blocks;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        try
+        {
+            for (Future<Void> future : this.exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+
+    /**
+     * a growable list of candidate neighbor pairs
+     */
+    private static class Candidates
+    {
+        private int[] left = new int[64];
+        private int[] right = new int[64];
+        private double[] dists = new double[64];
+        private int size = 0;
+
+        private void add(int a, int b, double d)
+        {
+            if (this.size == this.left.length)
+            {
+                int len = 2 * this.size;
+                this.left = Arrays.copyOf(this.left, len);
+                this.right = Arrays.copyOf(this.right, len);
+                this.dists = Arrays.copyOf(this.dists, len);
+            }
+
+            this.left[this.size] = a;
+            this.right[this.size] = b;
+            this.dists[this.size] = d;
+            this.size += 1;
+        }
+    }
+
+    /**
+     * a symmetric sparse graph in compressed row format, where the neighbors
+     * of node i are stored at indices ptr[i] to ptr[i + 1] - 1 of idx and dist
+     * in increasing order of node index
+     */
+    public static class Graph
+    {
+        public final int size;
+        public final int[] ptr;
+        public final int[] idx;
+        public final double[] dist;
+
+        public Graph(int size, int[] ptr, int[] idx, double[] dist)
+        {
+            Global.assume(ptr.length == size + 1, "invalid row pointers");
+            Global.assume(idx.length == dist.length, "invalid edges");
+
+            this.size = size;
+            this.ptr = ptr;
+            this.idx = idx;
+            this.dist = dist;
+        }
+
+        /**
+         * @return the number of undirected edges
+         */
+        public int edges()
+        {
+            return this.idx.length / 2;
+        }
+
+        private static Graph symmetric(int n, int w, int[] ids, double[] dists)
+        {
+            int[] counts = new int[n];
+            for (int i = 0; i < n; i++)
+            {
+                for (int m = 0; m < w; m++)
+                {
+                    int j = ids[i * w + m];
+                    if (j >= 0)
+                    {
+                        counts[i] += 1;
+                        counts[j] += 1;
+                    }
+                }
+            }
+
+            int[] ptr = new int[n + 1];
+            for (int i = 0; i < n; i++)
+            {
+                ptr[i + 1] = ptr[i] + counts[i];
+            }
+
+            int[] idx = new int[ptr[n]];
+            double[] dist = new double[ptr[n]];
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++)
+            {
+                for (int m = 0; m < w; m++)
+                {
+                    int j = ids[i * w + m];
+                    if (j >= 0)
+                    {
+                        double d = dists[i * w + m];
+
+                        idx[ptr[i] + counts[i]] = j;
+                        dist[ptr[i] + counts[i]++] = d;
+                        idx[ptr[j] + counts[j]] = i;
+                        dist[ptr[j] + counts[j]++] = d;
+                    }
+                }
+            }
+
+            // sort each row and merge edges found in both directions
+            int[] nptr = new int[n + 1];
+            int num = 0;
+            Integer[] order = new Integer[0];
+            for (int i = 0; i < n; i++)
+            {
+                int start = ptr[i];
+                int len = ptr[i + 1] - start;
+
+                if (order.length < len)
+                {
+                    order = new Integer[len];
+                }
+
+                for (int m = 0; m < len; m++)
+                {
+                    order[m] = start + m;
+                }
+                Arrays.sort(order, 0, len, (x, y) -> Integer.compare(idx[x], idx[y]));
+
+                int[] sidx = new int[len];
+                double[] sdist = new double[len];
+                int snum = 0;
+                for (int m = 0; m < len; m++)
+                {
+                    int j = idx[order[m]];
+                    double d = dist[order[m]];
+
+                    if (snum > 0 && sidx[snum - 1] == j)
+                    {
+                        sdist[snum - 1] = Math.min(sdist[snum - 1], d);
+                    }
+                    else
+                    {
+                        sidx[snum] = j;
+                        sdist[snum++] = d;
+                    }
+                }
+
+                // rows are compacted in place, which is safe because they only shrink
+                System.arraycopy(sidx, 0, idx, num, snum);
+                System.arraycopy(sdist, 0, dist, num, snum);
+                num += snum;
+                nptr[i + 1] = num;
+            }
+
+            return new Graph(n, nptr, Arrays.copyOf(idx, num), Arrays.copyOf(dist, num));
+        }
+    }
+}
@@ -0,0 +1,750 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.curves;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Curves;
+import qit.data.modules.curves.CurvesResample;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * the quickbundles clustering algorithm, which assigns each curve to the
+ * nearest cluster centroid if it is within a threshold and otherwise starts
+ * a new cluster.  The distance between a curve and a centroid is the sum of
+ * squared distances between corresponding vertices, minimized over the two
+ * orientations of the curve, and the threshold is specified as the allowed
+ * average distance between vertices.
+ *
+ * Curves are resampled once and packed into one contiguous array.  Centroids
+ * are indexed by their mean vertex in a uniform grid, and because the squared
+ * distance between mean vertices (scaled by the number of samples) is a lower
+ * bound on the curve distance in either orientation, only centroids in the
+ * neighboring grid cells are compared.  Distances are accumulated vertex by
+ * vertex and abandoned once they exceed the best distance found so far.
+ *
+ * Curves are processed in mini-batches, where each curve of a batch is
+ * compared to the centroids that existed before the batch in parallel, and
+ * then the batch is merged in order, comparing each curve to the centroids
+ * created within the batch.  The result only depends on the batch size, not
+ * the number of threads, and a batch size of one gives the classic sequential
+ * algorithm.  Multiple thresholds give hierarchical clustering, where each
+ * cluster of a level is clustered again with the next threshold.
+ */
+public class CurvesQuickBundles
+{
+    private static final int DIM = 3;
+
+    private Curves input = null;
+    private int samples = 5;
+    private double[] thresholds = {1000.0};
+    private int batch = 1;
+    private int threads = 1;
+
+    private transient int size;
+    private transient float[] features;
+    private transient double[] mids;
+    private transient ExecutorService exec;
+
+    private List<int[]> labels = null;
+    private List<int[]> centers = null;
+
+    public CurvesQuickBundles withInput(Curves v)
+    {
+        this.input = v;
+        this.labels = null;
+
+        return this;
+    }
+
+    public CurvesQuickBundles withSamples(int v)
+    {
+        Global.assume(v > 1, "at least two samples are required");
+
+        this.samples = v;
+        this.labels = null;
+
+        return this;
+    }
+
+    /**
+     * @param v the thresholds of each level of the hierarchy, ordered from coarse to fine
+     */
+    public CurvesQuickBundles withThresholds(double... v)
+    {
+        Global.assume(v.length > 0, "at least one threshold is required");
+
+        this.thresholds = v;
+        this.labels = null;
+
+        return this;
+    }
+
+    public CurvesQuickBundles withThresh(double v)
+    {
+        return this.withThresholds(v);
+    }
+
+    /**
+     * @param v the number of curves assigned in parallel before they are merged
+     */
+    public CurvesQuickBundles withBatch(int v)
+    {
+        Global.assume(v > 0, "invalid batch size");
+
+        this.batch = v;
+        this.labels = null;
+
+        return this;
+    }
+
+    public CurvesQuickBundles withThreads(int v)
+    {
+        this.threads = v;
+        this.labels = null;
+
+        return this;
+    }
+
+    public CurvesQuickBundles run()
+    {
+        this.size = this.input.size();
+        this.labels = Lists.newArrayList();
+        this.centers = Lists.newArrayList();
+
+        Logging.info("... packing curve features");
+        this.pack();
+
+        this.exec = this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+
+        try
+        {
+            int[] parents = new int[this.size];
+            int numParents = this.size == 0 ? 0 : 1;
+
+            for (int level = 0; level < this.thresholds.length; level++)
+            {
+                Logging.info(String.format("... clustering level %d with threshold %g", level + 1, this.thresholds[level]));
+
+                // group the curves by their parent cluster, preserving the input order
+                int[][] groups = group(parents, numParents);
+
+                int[] levelLabels = new int[this.size];
+                List<Integer> levelCenters = Lists.newArrayList();
+
+                for (int[] members : groups)
+                {
+                    Bundles bundles = new Bundles(this.thresholds[level]);
+                    bundles.cluster(members);
+
+                    int offset = levelCenters.size();
+                    for (int i = 0; i < members.length; i++)
+                    {
+                        levelLabels[members[i]] = offset + bundles.labels[i] + 1;
+                    }
+
+                    for (int center : bundles.centers())
+                    {
+                        levelCenters.add(center);
+                    }
+                }
+
+                int[] levelCentersArray = new int[levelCenters.size()];
+                for (int i = 0; i < levelCentersArray.length; i++)
+                {
+                    levelCentersArray[i] = levelCenters.get(i);
+                }
+
+                this.labels.add(levelLabels);
+                this.centers.add(levelCentersArray);
+
+                for (int i = 0; i < this.size; i++)
+                {
+                    parents[i] = levelLabels[i] - 1;
+                }
+                numParents = levelCentersArray.length;
+            }
+        }
+        finally
+        {
+            if (this.exec != null)
+            {
+                this.exec.shutdown();
+                this.exec = null;
+            }
+
+            this.features = null;
+            this.mids = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the cluster labels (starting from one) of the finest level
+     */
+    public int[] getLabels()
+    {
+        if (this.labels == null)
+        {
+            this.run();
+        }
+
+        return this.labels.get(this.labels.size() - 1);
+    }
+
+    /**
+     * @return the cluster labels (starting from one) of the given level of the hierarchy
+     */
+    public int[] getLabels(int level)
+    {
+        if (this.labels == null)
+        {
+            this.run();
+        }
+
+        return this.labels.get(level);
+    }
+
+    /**
+     * @return the index of the curve nearest to each centroid of the finest level
+     */
+    public int[] getCenters()
+    {
+        if (this.labels == null)
+        {
+            this.run();
+        }
+
+        return this.centers.get(this.centers.size() - 1);
+    }
+
+    /**
+     * @return the index of the curve nearest to each centroid of the given level
+     */
+    public int[] getCenters(int level)
+    {
+        if (this.labels == null)
+        {
+            this.run();
+        }
+
+        return this.centers.get(level);
+    }
+
+    private void pack()
+    {
+        CurvesResample resampler = new CurvesResample();
+        resampler.input = this.input;
+        resampler.num = this.samples;
+        Curves sampled = resampler.run().output;
+
+        int stride = this.samples * DIM;
+        this.features = new float[this.size * stride];
+        this.mids = new double[this.size * DIM];
+
+        float[] buffer = null;
+        for (int i = 0; i < this.size; i++)
+        {
+            Curves.Curve curve = sampled.get(i);
+            buffer = curve.getArray(Curves.COORD, buffer);
+
+            int num = curve.size();
+            for (int p = 0; p < this.samples; p++)
+            {
+                // degenerate curves with fewer vertices repeat their last vertex
+                int src = Math.min(p, num - 1) * DIM;
+                int dst = i * stride + p * DIM;
+                for (int d = 0; d < DIM; d++)
+                {
+                    float v = buffer[src + d];
+                    this.features[dst + d] = v;
+                    this.mids[i * DIM + d] += v / (double) this.samples;
+                }
+            }
+        }
+    }
+
+    private static int[][] group(int[] parents, int num)
+    {
+        int[] counts = new int[num];
+        for (int parent : parents)
+        {
+            counts[parent] += 1;
+        }
+
+        int[][] out = new int[num][];
+        for (int i = 0; i < num; i++)
+        {
+            out[i] = new int[counts[i]];
+        }
+
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < parents.length; i++)
+        {
+            int parent = parents[i];
+            out[parent][counts[parent]++] = i;
+        }
+
+        return out;
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private void parallel(int num, Block block)
+    {
+        if (this.exec == null || num < 2 * this.threads)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * this.threads);
+        int step = (num + blocks - 1) / blocks;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        try
+        {
+            for (Future<Void> future : this.exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+
+    /**
+     * the state of a single quickbundles pass over a subset of curves
+     */
+    private class Bundles
+    {
+        private final int stride = CurvesQuickBundles.this.samples * DIM;
+        private final double theta;
+        private final double cell;
+
+        private int num = 0;
+        private double[] sums = new double[16 * this.stride];
+        private double[] means = new double[16 * this.stride];
+        private double[] mids = new double[16 * DIM];
+        private int[] counts = new int[16];
+        private long[] keys = new long[16];
+        private final Map<Long, Cell> grid = Maps.newHashMap();
+
+        private int[] members;
+        private int[] labels;
+        private boolean[] flips;
+
+        private Bundles(double thresh)
+        {
+            // the threshold is the average distance between vertices
+            this.theta = thresh * thresh * CurvesQuickBundles.this.samples;
+            this.cell = Math.max(thresh, Global.DELTA);
+        }
+
+        private void cluster(int[] members)
+        {
+            int total = members.length;
+            this.members = members;
+            this.labels = new int[total];
+            this.flips = new boolean[total];
+
+            int batch = CurvesQuickBundles.this.batch;
+            int[] found = new int[batch];
+            double[] dists = new double[batch];
+            boolean[] flipped = new boolean[batch];
+
+            for (int start = 0; start < total; start += batch)
+            {
+                final int fstart = start;
+                final int end = Math.min(total, start + batch);
+                final int limit = this.num;
+
+                // compare the batch to the existing centroids, which are not modified in this phase
+                if (limit > 0)
+                {
+                    CurvesQuickBundles.this.parallel(end - start, (a, b) ->
+                    {
+                        for (int i = a; i < b; i++)
+                        {
+                            long match = this.nearest(members[fstart + i], 0, this.theta);
+                            found[i] = (int) (match >> 1);
+                            flipped[i] = (match & 1) != 0;
+                            dists[i] = found[i] < 0 ? this.theta : this.dist(members[fstart + i], found[i], flipped[i]);
+                        }
+                    });
+                }
+                else
+                {
+                    Arrays.fill(found, -1);
+                    Arrays.fill(dists, this.theta);
+                }
+
+                // merge the batch in order, which also considers the centroids created within the batch
+                for (int i = start; i < end; i++)
+                {
+                    int curve = members[i];
+                    int best = found[i - start];
+                    boolean flip = flipped[i - start];
+
+                    if (this.num > limit)
+                    {
+                        long match = this.nearest(curve, limit, dists[i - start]);
+                        if (match >= 0)
+                        {
+                            best = (int) (match >> 1);
+                            flip = (match & 1) != 0;
+                        }
+                    }
+
+                    if (best < 0)
+                    {
+                        best = this.create(curve);
+                        flip = false;
+                    }
+                    else
+                    {
+                        this.add(best, curve, flip);
+                    }
+
+                    this.labels[i] = best;
+                    this.flips[i] = flip;
+                }
+            }
+        }
+
+        /**
+         * find the nearest centroid with index from the given value and a distance below the bound
+         *
+         * @return the centroid index shifted left by one bit, with the orientation in the lowest bit, or -1 if none was found
+         */
+        private long nearest(int curve, int from, double bound)
+        {
+            double[] mids = CurvesQuickBundles.this.mids;
+            double mx = mids[curve * DIM];
+            double my = mids[curve * DIM + 1];
+            double mz = mids[curve * DIM + 2];
+
+            long ci = (long) Math.floor(mx / this.cell);
+            long cj = (long) Math.floor(my / this.cell);
+            long ck = (long) Math.floor(mz / this.cell);
+
+            double best = bound;
+            int bestIdx = -1;
+            boolean bestFlip = false;
+
+            int samples = CurvesQuickBundles.this.samples;
+
+            for (long dk = -1; dk <= 1; dk++)
+            {
+                for (long dj = -1; dj <= 1; dj++)
+                {
+                    for (long di = -1; di <= 1; di++)
+                    {
+                        Cell cell = this.grid.get(key(ci + di, cj + dj, ck + dk));
+                        if (cell == null)
+                        {
+                            continue;
+                        }
+
+                        for (int n = 0; n < cell.size; n++)
+                        {
+                            int c = cell.items[n];
+                            if (c < from)
+                            {
+                                continue;
+                            }
+
+                            double dx = mx - this.mids[c * DIM];
+                            double dy = my - this.mids[c * DIM + 1];
+                            double dz = mz - this.mids[c * DIM + 2];
+                            if (samples * (dx * dx + dy * dy + dz * dz) > best)
+                            {
+                                continue;
+                            }
+
+                            double d = this.direct(curve, c, best);
+                            if (d < best || (d == best && bestIdx >= 0 && c < bestIdx))
+                            {
+                                best = d;
+                                bestIdx = c;
+                                bestFlip = false;
+                            }
+
+                            double f = this.reverse(curve, c, best);
+                            if (f < best || (f == best && bestIdx >= 0 && c < bestIdx))
+                            {
+                                best = f;
+                                bestIdx = c;
+                                bestFlip = true;
+                            }
+                        }
+                    }
+                }
+            }
+
+            return bestIdx < 0 ? -1 : ((long) bestIdx << 1) | (bestFlip ? 1 : 0);
+        }
+
+        private double dist(int curve, int c, boolean flip)
+        {
+            return flip ? this.reverse(curve, c, Double.MAX_VALUE) : this.direct(curve, c, Double.MAX_VALUE);
+        }
+
+        /**
+         * @return the distance between the curve and the centroid, or a partial sum that exceeds the bound
+         */
+        private double direct(int curve, int c, double bound)
+        {
+            float[] features = CurvesQuickBundles.this.features;
+            int toff = curve * this.stride;
+            int coff = c * this.stride;
+
+            double sum = 0;
+            for (int p = 0; p < this.stride; p += DIM)
+            {
+                double dx = features[toff + p] - this.means[coff + p];
+                double dy = features[toff + p + 1] - this.means[coff + p + 1];
+                double dz = features[toff + p + 2] - this.means[coff + p + 2];
+                sum += dx * dx + dy * dy + dz * dz;
+
+                if (sum > bound)
+                {
+                    return sum;
+                }
+            }
+
+            return sum;
+        }
+
+        private double reverse(int curve, int c, double bound)
+        {
+            float[] features = CurvesQuickBundles.this.features;
+            int toff = curve * this.stride + this.stride - DIM;
+            int coff = c * this.stride;
+
+            double sum = 0;
+            for (int p = 0; p < this.stride; p += DIM)
+            {
+                double dx = features[toff - p] - this.means[coff + p];
+                double dy = features[toff - p + 1] - this.means[coff + p + 1];
+                double dz = features[toff - p + 2] - this.means[coff + p + 2];
+                sum += dx * dx + dy * dy + dz * dz;
+
+                if (sum > bound)
+                {
+                    return sum;
+                }
+            }
+
+            return sum;
+        }
+
+        private int create(int curve)
+        {
+            if (this.num == this.counts.length)
+            {
+                int cap = 2 * this.num;
+                this.sums = Arrays.copyOf(this.sums, cap * this.stride);
+                this.means = Arrays.copyOf(this.means, cap * this.stride);
+                this.mids = Arrays.copyOf(this.mids, cap * DIM);
+                this.counts = Arrays.copyOf(this.counts, cap);
+                this.keys = Arrays.copyOf(this.keys, cap);
+            }
+
+            int c = this.num;
+            this.num += 1;
+            this.counts[c] = 0;
+            this.keys[c] = Long.MIN_VALUE;
+            this.add(c, curve, false);
+
+            return c;
+        }
+
+        private void add(int c, int curve, boolean flip)
+        {
+            float[] features = CurvesQuickBundles.this.features;
+            int toff = curve * this.stride;
+            int coff = c * this.stride;
+            int samples = CurvesQuickBundles.this.samples;
+
+            this.counts[c] += 1;
+            double scale = 1.0 / this.counts[c];
+
+            double mx = 0;
+            double my = 0;
+            double mz = 0;
+            for (int p = 0; p < this.stride; p += DIM)
+            {
+                int src = flip ? toff + this.stride - DIM - p : toff + p;
+                for (int d = 0; d < DIM; d++)
+                {
+                    this.sums[coff + p + d] += features[src + d];
+                    this.means[coff + p + d] = this.sums[coff + p + d] * scale;
+                }
+
+                mx += this.means[coff + p];
+                my += this.means[coff + p + 1];
+                mz += this.means[coff + p + 2];
+            }
+
+            this.mids[c * DIM] = mx / samples;
+            this.mids[c * DIM + 1] = my / samples;
+            this.mids[c * DIM + 2] = mz / samples;
+
+            // move the centroid to a different grid cell if its mean vertex has crossed a boundary
+            long key = key((long) Math.floor(this.mids[c * DIM] / this.cell), (long) Math.floor(this.mids[c * DIM + 1] / this.cell), (long) Math.floor(this.mids[c * DIM + 2] / this.cell));
+            if (key != this.keys[c])
+            {
+                if (this.keys[c] != Long.MIN_VALUE)
+                {
+                    this.grid.get(this.keys[c]).remove(c);
+                }
+
+                this.grid.computeIfAbsent(key, k -> new Cell()).add(c);
+                this.keys[c] = key;
+            }
+        }
+
+        /**
+         * @return the index of the member curve nearest to each centroid
+         */
+        private int[] centers()
+        {
+            int total = this.members.length;
+            double[] dists = new double[total];
+
+            CurvesQuickBundles.this.parallel(total, (a, b) ->
+            {
+                for (int i = a; i < b; i++)
+                {
+                    dists[i] = this.dist(this.members[i], this.labels[i], this.flips[i]);
+                }
+            });
+
+            int[] out = new int[this.num];
+            double[] best = new double[this.num];
+            Arrays.fill(out, -1);
+
+            for (int i = 0; i < total; i++)
+            {
+                int c = this.labels[i];
+                if (out[c] < 0 || dists[i] < best[c])
+                {
+                    out[c] = this.members[i];
+                    best[c] = dists[i];
+                }
+            }
+
+            return out;
+        }
+    }
+
+    private static long key(long i, long j, long k)
+    {
+        return ((i & 0x1FFFFF) << 42) | ((j & 0x1FFFFF) << 21) | (k & 0x1FFFFF);
+    }
+
+    private static class Cell
+    {
+        private int[] items = new int[4];
+        private int size = 0;
+
+        private void add(int v)
+        {
+            if (this.size == this.items.length)
+            {
+                this.items = Arrays.copyOf(this.items, 2 * this.size);
+            }
+
+            this.items[this.size++] = v;
+        }
+
+        private void remove(int v)
+        {
+            for (int i = 0; i < this.size; i++)
+            {
+                if (this.items[i] == v)
+                {
+                    this.items[i] = this.items[--this.size];
+                    return;
+                }
+            }
+        }
+    }
+}
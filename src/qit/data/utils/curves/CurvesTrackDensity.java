@@ -0,0 +1,636 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.curves;
+
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Curves;
+import qit.data.datasets.Curves.Curve;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.source.VectSource;
+import qit.data.source.VolumeSource;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * track density imaging, which maps the curves that pass through each voxel.
+ * Each segment is traversed with a 3D digital differential analyzer in voxel
+ * coordinates, which visits every voxel the segment crosses along with the
+ * length of the segment inside it, so no samples are created.  The visit
+ * count, the length of curves in each voxel, and the directionally-encoded
+ * color are computed in a single pass, where the color is the length-weighted
+ * sum of absolute segment directions normalized to unit length.  A visit is
+ * counted when a curve enters a voxel from a different voxel.  Curves are
+ * divided among threads that accumulate into their own grids, which are
+ * summed at the end, or into one shared grid with atomic updates when the
+ * per-thread grids would not fit in memory.  The output grid may be zoomed
+ * for super-resolution maps.
+ */
+public class CurvesTrackDensity
+{
+    private Curves input;
+    private Sampling sampling;
+    private double zoom = 1.0;
+    private boolean count = true;
+    private boolean length = false;
+    private boolean color = false;
+    private Boolean shared = null;
+    private int threads = 1;
+
+    private Sampling output;
+    private Volume countMap;
+    private Volume lengthMap;
+    private Volume colorMap;
+
+    public CurvesTrackDensity withInput(Curves v)
+    {
+        this.input = v;
+        return this;
+    }
+
+    public CurvesTrackDensity withSampling(Sampling v)
+    {
+        this.sampling = v;
+        return this;
+    }
+
+    /**
+     * @param v a factor for zooming the sampling for super-resolution maps
+     */
+    public CurvesTrackDensity withZoom(double v)
+    {
+        this.zoom = v;
+        return this;
+    }
+
+    public CurvesTrackDensity withCount(boolean v)
+    {
+        this.count = v;
+        return this;
+    }
+
+    public CurvesTrackDensity withLength(boolean v)
+    {
+        this.length = v;
+        return this;
+    }
+
+    public CurvesTrackDensity withColor(boolean v)
+    {
+        this.color = v;
+        return this;
+    }
+
+    /**
+     * @param v whether threads share one grid with atomic updates (null selects this based on the available memory)
+     */
+    public CurvesTrackDensity withShared(Boolean v)
+    {
+        this.shared = v;
+        return this;
+    }
+
+    public CurvesTrackDensity withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    public Sampling getSampling()
+    {
+        return this.output;
+    }
+
+    /**
+     * @return the number of curve visits to each voxel
+     */
+    public Volume getCount()
+    {
+        return this.countMap;
+    }
+
+    /**
+     * @return the total length of curves in each voxel
+     */
+    public Volume getLength()
+    {
+        return this.lengthMap;
+    }
+
+    /**
+     * @return the unit directionally-encoded color of each voxel
+     */
+    public Volume getColor()
+    {
+        return this.colorMap;
+    }
+
+    public CurvesTrackDensity run()
+    {
+        Global.assume(this.input != null, "input is required");
+        Global.assume(this.sampling != null, "sampling is required");
+        Global.assume(this.zoom > 0, "zoom must be positive");
+
+        this.output = this.zoom == 1.0 ? this.sampling : this.sampling.zoom(this.zoom);
+
+        final double[] xfm = transform(this.output);
+        final int[] num = {this.output.numI(), this.output.numJ(), this.output.numK()};
+        final int size = this.output.size();
+
+        final Curve[] curves = new Curve[this.input.size()];
+        for (int i = 0; i < curves.length; i++)
+        {
+            curves[i] = this.input.get(i);
+        }
+
+        int threads = Math.max(1, Math.min(this.threads, curves.length));
+        int channels = (this.count ? 1 : 0) + (this.length ? 1 : 0) + (this.color ? 3 : 0);
+        long bytes = 4L * channels * size * threads;
+        boolean shared = threads > 1 && (this.shared != null ? this.shared : bytes > Runtime.getRuntime().maxMemory() / 4);
+
+        Grid result;
+        if (threads == 1)
+        {
+            result = new LocalGrid(size);
+            new Walker(xfm, num, result).run(curves, 0, curves.length);
+        }
+        else
+        {
+            final Grid[] grids = new Grid[threads];
+            if (shared)
+            {
+                grids[0] = new SharedGrid(size);
+                for (int t = 1; t < threads; t++)
+                {
+                    grids[t] = grids[0];
+                }
+            }
+            else
+            {
+                for (int t = 0; t < threads; t++)
+                {
+                    grids[t] = new LocalGrid(size);
+                }
+            }
+
+            // curves are taken in chunks, which balances the load when curve lengths vary
+            final int chunk = Math.max(1, Math.min(1024, curves.length / (16 * threads)));
+            final AtomicInteger next = new AtomicInteger(0);
+
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++)
+            {
+                final Walker walker = new Walker(xfm, num, grids[t]);
+                exec.execute(() ->
+                {
+                    int start;
+                    while ((start = next.getAndAdd(chunk)) < curves.length)
+                    {
+                        walker.run(curves, start, Math.min(curves.length, start + chunk));
+                    }
+                });
+            }
+
+            exec.shutdown();
+            try
+            {
+                exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Logging.error("failed to execute in concurrent mode");
+            }
+
+            result = grids[0];
+            if (!shared)
+            {
+                LocalGrid sum = (LocalGrid) grids[0];
+                for (int t = 1; t < threads; t++)
+                {
+                    sum.merge((LocalGrid) grids[t]);
+                }
+            }
+        }
+
+        this.countMap = this.count ? VolumeSource.create(this.output) : null;
+        this.lengthMap = this.length ? VolumeSource.create(this.output) : null;
+        this.colorMap = this.color ? VolumeSource.create(this.output, 3) : null;
+
+        for (int idx = 0; idx < size; idx++)
+        {
+            if (this.count)
+            {
+                this.countMap.set(idx, 0, result.count(idx));
+            }
+
+            if (this.length)
+            {
+                this.lengthMap.set(idx, 0, result.length(idx));
+            }
+
+            if (this.color)
+            {
+                double r = result.color(idx, 0);
+                double g = result.color(idx, 1);
+                double b = result.color(idx, 2);
+                double norm = Math.sqrt(r * r + g * g + b * b);
+
+                if (norm > 0)
+                {
+                    this.colorMap.set(idx, 0, r / norm);
+                    this.colorMap.set(idx, 1, g / norm);
+                    this.colorMap.set(idx, 2, b / norm);
+                }
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the affine transform from world to continuous voxel coordinates, stored as a row-major 3x4 matrix
+     */
+    private static double[] transform(Sampling sampling)
+    {
+        Vect origin = sampling.voxel(VectSource.create3D(0, 0, 0));
+        Vect[] axes = {
+                sampling.voxel(VectSource.create3D(1, 0, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 1, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 0, 1)).minus(origin)};
+
+        double[] out = new double[12];
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                out[4 * r + c] = axes[c].get(r);
+            }
+            out[4 * r + 3] = origin.get(r);
+        }
+
+        return out;
+    }
+
+    private interface Grid
+    {
+        void visit(int idx);
+
+        void add(int idx, double length, double dx, double dy, double dz);
+
+        double count(int idx);
+
+        double length(int idx);
+
+        double color(int idx, int d);
+    }
+
+    private class LocalGrid implements Grid
+    {
+        final int[] counts;
+        final float[] lengths;
+        final float[] colors;
+
+        LocalGrid(int size)
+        {
+            this.counts = CurvesTrackDensity.this.count ? new int[size] : null;
+            this.lengths = CurvesTrackDensity.this.length ? new float[size] : null;
+            this.colors = CurvesTrackDensity.this.color ? new float[3 * size] : null;
+        }
+
+        public void visit(int idx)
+        {
+            if (this.counts != null)
+            {
+                this.counts[idx] += 1;
+            }
+        }
+
+        public void add(int idx, double length, double dx, double dy, double dz)
+        {
+            if (this.lengths != null)
+            {
+                this.lengths[idx] += length;
+            }
+
+            if (this.colors != null)
+            {
+                this.colors[3 * idx] += length * Math.abs(dx);
+                this.colors[3 * idx + 1] += length * Math.abs(dy);
+                this.colors[3 * idx + 2] += length * Math.abs(dz);
+            }
+        }
+
+        public double count(int idx)
+        {
+            return this.counts[idx];
+        }
+
+        public double length(int idx)
+        {
+            return this.lengths[idx];
+        }
+
+        public double color(int idx, int d)
+        {
+            return this.colors[3 * idx + d];
+        }
+
+        void merge(LocalGrid grid)
+        {
+            if (this.counts != null)
+            {
+                for (int i = 0; i < this.counts.length; i++)
+                {
+                    this.counts[i] += grid.counts[i];
+                }
+            }
+
+            if (this.lengths != null)
+            {
+                for (int i = 0; i < this.lengths.length; i++)
+                {
+                    this.lengths[i] += grid.lengths[i];
+                }
+            }
+
+            if (this.colors != null)
+            {
+                for (int i = 0; i < this.colors.length; i++)
+                {
+                    this.colors[i] += grid.colors[i];
+                }
+            }
+        }
+    }
+
+    private class SharedGrid implements Grid
+    {
+        final AtomicIntegerArray counts;
+        final AtomicIntegerArray lengths;
+        final AtomicIntegerArray colors;
+
+        SharedGrid(int size)
+        {
+            this.counts = CurvesTrackDensity.this.count ? new AtomicIntegerArray(size) : null;
+            this.lengths = CurvesTrackDensity.this.length ? new AtomicIntegerArray(size) : null;
+            this.colors = CurvesTrackDensity.this.color ? new AtomicIntegerArray(3 * size) : null;
+        }
+
+        public void visit(int idx)
+        {
+            if (this.counts != null)
+            {
+                this.counts.incrementAndGet(idx);
+            }
+        }
+
+        public void add(int idx, double length, double dx, double dy, double dz)
+        {
+            if (this.lengths != null)
+            {
+                add(this.lengths, idx, length);
+            }
+
+            if (this.colors != null)
+            {
+                add(this.colors, 3 * idx, length * Math.abs(dx));
+                add(this.colors, 3 * idx + 1, length * Math.abs(dy));
+                add(this.colors, 3 * idx + 2, length * Math.abs(dz));
+            }
+        }
+
+        public double count(int idx)
+        {
+            return this.counts.get(idx);
+        }
+
+        public double length(int idx)
+        {
+            return Float.intBitsToFloat(this.lengths.get(idx));
+        }
+
+        public double color(int idx, int d)
+        {
+            return Float.intBitsToFloat(this.colors.get(3 * idx + d));
+        }
+
+        private void add(AtomicIntegerArray array, int idx, double value)
+        {
+            // floats are stored by their bits and updated by compare-and-swap
+            int prev;
+            int next;
+            do
+            {
+                prev = array.get(idx);
+                next = Float.floatToIntBits((float) (Float.intBitsToFloat(prev) + value));
+            }
+            while (!array.compareAndSet(idx, prev, next));
+        }
+    }
+
+    /**
+     * the traversal state for one thread
+     */
+    private class Walker
+    {
+        final double[] xfm;
+        final int ni;
+        final int nj;
+        final int nk;
+        final Grid grid;
+        final boolean weighted;
+
+        float[] coords;
+        int last;
+
+        Walker(double[] xfm, int[] num, Grid grid)
+        {
+            this.xfm = xfm;
+            this.ni = num[0];
+            this.nj = num[1];
+            this.nk = num[2];
+            this.grid = grid;
+            this.weighted = CurvesTrackDensity.this.length || CurvesTrackDensity.this.color;
+        }
+
+        void run(Curve[] curves, int start, int end)
+        {
+            for (int c = start; c < end; c++)
+            {
+                Curve curve = curves[c];
+                int n = curve.size();
+                this.coords = curve.getArray(Curves.COORD, this.coords);
+                this.last = -1;
+
+                for (int i = 1; i < n; i++)
+                {
+                    int a = 3 * (i - 1);
+                    int b = 3 * i;
+                    this.segment(this.coords[a], this.coords[a + 1], this.coords[a + 2], this.coords[b], this.coords[b + 1], this.coords[b + 2]);
+                }
+            }
+        }
+
+        private void segment(double xa, double ya, double za, double xb, double yb, double zb)
+        {
+            double[] m = this.xfm;
+
+            double dx = xb - xa;
+            double dy = yb - ya;
+            double dz = zb - za;
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            if (len > 0)
+            {
+                dx /= len;
+                dy /= len;
+                dz /= len;
+            }
+
+            // the endpoints in continuous voxel coordinates, where voxel centers are integers
+            double ua = m[0] * xa + m[1] * ya + m[2] * za + m[3];
+            double va = m[4] * xa + m[5] * ya + m[6] * za + m[7];
+            double wa = m[8] * xa + m[9] * ya + m[10] * za + m[11];
+            double ub = m[0] * xb + m[1] * yb + m[2] * zb + m[3];
+            double vb = m[4] * xb + m[5] * yb + m[6] * zb + m[7];
+            double wb = m[8] * xb + m[9] * yb + m[10] * zb + m[11];
+
+            int i = (int) Math.floor(ua + 0.5);
+            int j = (int) Math.floor(va + 0.5);
+            int k = (int) Math.floor(wa + 0.5);
+            int ie = (int) Math.floor(ub + 0.5);
+            int je = (int) Math.floor(vb + 0.5);
+            int ke = (int) Math.floor(wb + 0.5);
+
+            double du = ub - ua;
+            double dv = vb - va;
+            double dw = wb - wa;
+
+            int si = du > 0 ? 1 : du < 0 ? -1 : 0;
+            int sj = dv > 0 ? 1 : dv < 0 ? -1 : 0;
+            int sk = dw > 0 ? 1 : dw < 0 ? -1 : 0;
+
+            // the segment parameter where the next voxel boundary is crossed along each axis
+            double ti = si != 0 ? (i + 0.5 * si - ua) / du : Double.MAX_VALUE;
+            double tj = sj != 0 ? (j + 0.5 * sj - va) / dv : Double.MAX_VALUE;
+            double tk = sk != 0 ? (k + 0.5 * sk - wa) / dw : Double.MAX_VALUE;
+            double ei = si != 0 ? si / du : Double.MAX_VALUE;
+            double ej = sj != 0 ? sj / dv : Double.MAX_VALUE;
+            double ek = sk != 0 ? sk / dw : Double.MAX_VALUE;
+
+            // the number of boundary crossings, which guards against round-off
+            int steps = Math.abs(ie - i) + Math.abs(je - j) + Math.abs(ke - k);
+
+            double t = 0;
+            for (int s = 0; ; s++)
+            {
+                double tn = Math.min(1.0, Math.min(ti, Math.min(tj, tk)));
+                if (s == steps)
+                {
+                    tn = 1.0;
+                }
+
+                this.visit(i, j, k, (tn - t) * len, dx, dy, dz);
+
+                if (tn >= 1.0)
+                {
+                    break;
+                }
+
+                if (ti <= tj && ti <= tk)
+                {
+                    i += si;
+                    ti += ei;
+                }
+                else if (tj <= tk)
+                {
+                    j += sj;
+                    tj += ej;
+                }
+                else
+                {
+                    k += sk;
+                    tk += ek;
+                }
+
+                t = tn;
+            }
+        }
+
+        private void visit(int i, int j, int k, double length, double dx, double dy, double dz)
+        {
+            if (i < 0 || j < 0 || k < 0 || i >= this.ni || j >= this.nj || k >= this.nk)
+            {
+                this.last = -1;
+                return;
+            }
+
+            int idx = i + this.ni * (j + this.nj * k);
+
+            if (idx != this.last)
+            {
+                this.grid.visit(idx);
+                this.last = idx;
+            }
+
+            if (this.weighted && length > 0)
+            {
+                this.grid.add(idx, length, dx, dy, dz);
+            }
+        }
+    }
+}
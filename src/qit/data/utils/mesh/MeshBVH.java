@@ -0,0 +1,737 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mesh;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.data.datasets.Mesh;
+import qit.data.datasets.Vect;
+import qit.math.structs.Bary;
+import qit.math.structs.Face;
+
+import java.util.List;
+
+/**
+ * a bounding volume hierarchy of the triangles of a mesh, which supports
+ * closest point, ray intersection, and inside/outside queries.  The tree is
+ * stored in flat arrays and can be shared by many threads, and each thread
+ * should use its own query object, which holds the traversal stack and the
+ * results, so repeated queries do not allocate memory.
+ */
+public class MeshBVH
+{
+    // the maximum number of triangles in a leaf
+    public static final int LEAF = 4;
+
+    // skewed directions for the inside test, which avoid hitting edges exactly
+    private static final double[][] RAYS = {{0.5773, 0.5774, 0.5776}, {-0.6831, 0.2143, 0.6981}, {0.1234, -0.8765, 0.4652}};
+
+    private static final double EPS = 1e-12;
+
+    private Face[] faces;
+    private double[] tris;
+
+    private double[] bounds;
+    private int[] start;
+    private int[] count;
+    private int[] left;
+    private int[] right;
+    private int nodes;
+    private int depth;
+
+    public MeshBVH(Mesh mesh)
+    {
+        this(mesh, Mesh.COORD);
+    }
+
+    public MeshBVH(Mesh mesh, String coord)
+    {
+        List<Face> list = Lists.newArrayList(mesh.graph.faces());
+        Global.assume(list.size() > 0, "mesh has no faces");
+
+        int num = list.size();
+        double[] coords = new double[9 * num];
+        double[] centers = new double[3 * num];
+        for (int f = 0; f < num; f++)
+        {
+            Face face = list.get(f);
+            Vect a = mesh.vattr.get(face.getA(), coord);
+            Vect b = mesh.vattr.get(face.getB(), coord);
+            Vect c = mesh.vattr.get(face.getC(), coord);
+
+            for (int d = 0; d < 3; d++)
+            {
+                coords[9 * f + d] = a.get(d);
+                coords[9 * f + 3 + d] = b.get(d);
+                coords[9 * f + 6 + d] = c.get(d);
+                centers[3 * f + d] = (a.get(d) + b.get(d) + c.get(d)) / 3.0;
+            }
+        }
+
+        int[] perm = new int[num];
+        for (int f = 0; f < num; f++)
+        {
+            perm[f] = f;
+        }
+
+        int max = 2 * num;
+        this.bounds = new double[6 * max];
+        this.start = new int[max];
+        this.count = new int[max];
+        this.left = new int[max];
+        this.right = new int[max];
+        this.nodes = 0;
+        this.depth = 0;
+
+        this.build(coords, centers, perm, 0, num, 0);
+
+        // store the triangles in the order of the leaves
+        this.faces = new Face[num];
+        this.tris = new double[9 * num];
+        for (int f = 0; f < num; f++)
+        {
+            this.faces[f] = list.get(perm[f]);
+            System.arraycopy(coords, 9 * perm[f], this.tris, 9 * f, 9);
+        }
+    }
+
+    private int build(double[] coords, double[] centers, int[] perm, int from, int to, int level)
+    {
+        int node = this.nodes++;
+        this.depth = Math.max(this.depth, level + 1);
+
+        double[] box = this.bounds;
+        int b = 6 * node;
+        for (int d = 0; d < 3; d++)
+        {
+            box[b + d] = Double.POSITIVE_INFINITY;
+            box[b + 3 + d] = Double.NEGATIVE_INFINITY;
+        }
+
+        double[] cmin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] cmax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+        for (int i = from; i < to; i++)
+        {
+            int f = perm[i];
+            for (int v = 0; v < 3; v++)
+            {
+                for (int d = 0; d < 3; d++)
+                {
+                    double x = coords[9 * f + 3 * v + d];
+                    box[b + d] = Math.min(box[b + d], x);
+                    box[b + 3 + d] = Math.max(box[b + 3 + d], x);
+                }
+            }
+
+            for (int d = 0; d < 3; d++)
+            {
+                cmin[d] = Math.min(cmin[d], centers[3 * f + d]);
+                cmax[d] = Math.max(cmax[d], centers[3 * f + d]);
+            }
+        }
+
+        if (to - from <= LEAF)
+        {
+            this.start[node] = from;
+            this.count[node] = to - from;
+            return node;
+        }
+
+        // split at the median centroid along the longest axis
+        int axis = 0;
+        for (int d = 1; d < 3; d++)
+        {
+            if (cmax[d] - cmin[d] > cmax[axis] - cmin[axis])
+            {
+                axis = d;
+            }
+        }
+
+        int mid = (from + to) / 2;
+        select(centers, axis, perm, from, to - 1, mid);
+
+        this.count[node] = 0;
+        this.left[node] = this.build(coords, centers, perm, from, mid, level + 1);
+        this.right[node] = this.build(coords, centers, perm, mid, to, level + 1);
+
+        return node;
+    }
+
+    private static void select(double[] centers, int axis, int[] perm, int lo, int hi, int k)
+    {
+        while (hi > lo)
+        {
+            double pivot = centers[3 * perm[(lo + hi) >>> 1] + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j)
+            {
+                while (centers[3 * perm[i] + axis] < pivot)
+                {
+                    i++;
+                }
+                while (centers[3 * perm[j] + axis] > pivot)
+                {
+                    j--;
+                }
+                if (i <= j)
+                {
+                    int tmp = perm[i];
+                    perm[i] = perm[j];
+                    perm[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k <= j)
+            {
+                hi = j;
+            }
+            else if (k >= i)
+            {
+                lo = i;
+            }
+            else
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a new query object for use by a single thread
+     */
+    public Query query()
+    {
+        return new Query(2 * this.depth + 2);
+    }
+
+    /**
+     * @return the number of triangles
+     */
+    public int size()
+    {
+        return this.faces.length;
+    }
+
+    /**
+     * @return the mesh face with the given index, e.g. the face of a query result
+     */
+    public Face face(int idx)
+    {
+        return this.faces[idx];
+    }
+
+    public boolean closest(Vect p, Query query)
+    {
+        return this.closest(p.getX(), p.getY(), p.getZ(), query);
+    }
+
+    /**
+     * find the closest point on the mesh to the given point
+     *
+     * @return true if a point was found within the maximum distance of the query
+     */
+    public boolean closest(double px, double py, double pz, Query query)
+    {
+        query.face = -1;
+        query.dist = Double.POSITIVE_INFINITY;
+
+        double best = query.max * query.max;
+        int[] stack = query.stack;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0)
+        {
+            int node = stack[--top];
+            if (this.boxdist(node, px, py, pz) >= best)
+            {
+                continue;
+            }
+
+            if (this.count[node] > 0)
+            {
+                for (int f = this.start[node]; f < this.start[node] + this.count[node]; f++)
+                {
+                    double d2 = this.closest(f, px, py, pz, query);
+                    if (d2 < best)
+                    {
+                        best = d2;
+                        query.face = f;
+                        query.u = query.tu;
+                        query.v = query.tv;
+                        query.w = query.tw;
+                    }
+                }
+            }
+            else
+            {
+                int l = this.left[node];
+                int r = this.right[node];
+                double dl = this.boxdist(l, px, py, pz);
+                double dr = this.boxdist(r, px, py, pz);
+
+                // push the farther child first so the nearer one is visited first
+                if (dl < dr)
+                {
+                    if (dr < best)
+                    {
+                        stack[top++] = r;
+                    }
+                    if (dl < best)
+                    {
+                        stack[top++] = l;
+                    }
+                }
+                else
+                {
+                    if (dl < best)
+                    {
+                        stack[top++] = l;
+                    }
+                    if (dr < best)
+                    {
+                        stack[top++] = r;
+                    }
+                }
+            }
+        }
+
+        if (query.face < 0)
+        {
+            return false;
+        }
+
+        this.point(query);
+        query.dist = Math.sqrt(best);
+
+        return true;
+    }
+
+    public boolean ray(Vect origin, Vect dir, Query query)
+    {
+        return this.ray(origin.getX(), origin.getY(), origin.getZ(), dir.getX(), dir.getY(), dir.getZ(), query);
+    }
+
+    /**
+     * find the first intersection of a ray with the mesh, where the distance
+     * along the ray is measured in units of the direction vector
+     *
+     * @return true if an intersection was found within the maximum distance of the query
+     */
+    public boolean ray(double ox, double oy, double oz, double dx, double dy, double dz, Query query)
+    {
+        query.face = -1;
+        query.dist = Double.POSITIVE_INFINITY;
+
+        double ix = 1.0 / dx;
+        double iy = 1.0 / dy;
+        double iz = 1.0 / dz;
+
+        double best = query.max;
+        int[] stack = query.stack;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0)
+        {
+            int node = stack[--top];
+            double tn = this.slab(node, ox, oy, oz, ix, iy, iz);
+            if (tn == Double.POSITIVE_INFINITY || tn > best)
+            {
+                continue;
+            }
+
+            if (this.count[node] > 0)
+            {
+                for (int f = this.start[node]; f < this.start[node] + this.count[node]; f++)
+                {
+                    double t = this.intersect(f, ox, oy, oz, dx, dy, dz, query);
+                    if (t >= 0 && t < best)
+                    {
+                        best = t;
+                        query.face = f;
+                        query.u = query.tu;
+                        query.v = query.tv;
+                        query.w = query.tw;
+                    }
+                }
+            }
+            else
+            {
+                int l = this.left[node];
+                int r = this.right[node];
+                double tl = this.slab(l, ox, oy, oz, ix, iy, iz);
+                double tr = this.slab(r, ox, oy, oz, ix, iy, iz);
+
+                // push the farther child first so the nearer one is visited first
+                if (tl < tr)
+                {
+                    if (tr <= best)
+                    {
+                        stack[top++] = r;
+                    }
+                    if (tl <= best)
+                    {
+                        stack[top++] = l;
+                    }
+                }
+                else
+                {
+                    if (tl <= best)
+                    {
+                        stack[top++] = l;
+                    }
+                    if (tr <= best)
+                    {
+                        stack[top++] = r;
+                    }
+                }
+            }
+        }
+
+        if (query.face < 0)
+        {
+            return false;
+        }
+
+        this.point(query);
+        query.dist = best;
+
+        return true;
+    }
+
+    public boolean inside(Vect p, Query query)
+    {
+        return this.inside(p.getX(), p.getY(), p.getZ(), query);
+    }
+
+    /**
+     * test whether a point is inside the mesh, which should be watertight.
+     * This counts the crossings of rays in several directions and takes a
+     * majority vote of their parity.
+     */
+    public boolean inside(double px, double py, double pz, Query query)
+    {
+        int votes = 0;
+        for (double[] ray : RAYS)
+        {
+            if (this.crossings(px, py, pz, ray[0], ray[1], ray[2], query) % 2 == 1)
+            {
+                votes += 1;
+            }
+        }
+
+        return 2 * votes > RAYS.length;
+    }
+
+    private int crossings(double ox, double oy, double oz, double dx, double dy, double dz, Query query)
+    {
+        double ix = 1.0 / dx;
+        double iy = 1.0 / dy;
+        double iz = 1.0 / dz;
+
+        int hits = 0;
+        int[] stack = query.stack;
+        int top = 0;
+        stack[top++] = 0;
+
+        while (top > 0)
+        {
+            int node = stack[--top];
+            if (this.slab(node, ox, oy, oz, ix, iy, iz) == Double.POSITIVE_INFINITY)
+            {
+                continue;
+            }
+
+            if (this.count[node] > 0)
+            {
+                for (int f = this.start[node]; f < this.start[node] + this.count[node]; f++)
+                {
+                    if (this.intersect(f, ox, oy, oz, dx, dy, dz, query) > EPS)
+                    {
+                        hits += 1;
+                    }
+                }
+            }
+            else
+            {
+                stack[top++] = this.left[node];
+                stack[top++] = this.right[node];
+            }
+        }
+
+        return hits;
+    }
+
+    private double boxdist(int node, double px, double py, double pz)
+    {
+        int b = 6 * node;
+        double dx = Math.max(0, Math.max(this.bounds[b] - px, px - this.bounds[b + 3]));
+        double dy = Math.max(0, Math.max(this.bounds[b + 1] - py, py - this.bounds[b + 4]));
+        double dz = Math.max(0, Math.max(this.bounds[b + 2] - pz, pz - this.bounds[b + 5]));
+
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // return the entry distance of a ray into a node box, or infinity if it misses
+    private double slab(int node, double ox, double oy, double oz, double ix, double iy, double iz)
+    {
+        int b = 6 * node;
+
+        double tx0 = (this.bounds[b] - ox) * ix;
+        double tx1 = (this.bounds[b + 3] - ox) * ix;
+        double ty0 = (this.bounds[b + 1] - oy) * iy;
+        double ty1 = (this.bounds[b + 4] - oy) * iy;
+        double tz0 = (this.bounds[b + 2] - oz) * iz;
+        double tz1 = (this.bounds[b + 5] - oz) * iz;
+
+        double tmin = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.min(tz0, tz1));
+        double tmax = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.max(tz0, tz1));
+
+        // comparisons with NaN from flat boxes are false, so those boxes are kept
+        if (tmax < 0 || tmin > tmax)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return Math.max(tmin, 0);
+    }
+
+    // the squared distance to the closest point of a triangle (Ericson, Real-Time Collision Detection)
+    private double closest(int f, double px, double py, double pz, Query query)
+    {
+        double[] t = this.tris;
+        int o = 9 * f;
+
+        double ax = t[o], ay = t[o + 1], az = t[o + 2];
+        double abx = t[o + 3] - ax, aby = t[o + 4] - ay, abz = t[o + 5] - az;
+        double acx = t[o + 6] - ax, acy = t[o + 7] - ay, acz = t[o + 8] - az;
+
+        double apx = px - ax, apy = py - ay, apz = pz - az;
+        double d1 = abx * apx + aby * apy + abz * apz;
+        double d2 = acx * apx + acy * apy + acz * apz;
+
+        double u, v, w;
+        if (d1 <= 0.0 && d2 <= 0.0)
+        {
+            u = 1;
+            v = 0;
+            w = 0;
+        }
+        else
+        {
+            double bpx = px - t[o + 3], bpy = py - t[o + 4], bpz = pz - t[o + 5];
+            double d3 = abx * bpx + aby * bpy + abz * bpz;
+            double d4 = acx * bpx + acy * bpy + acz * bpz;
+
+            double cpx = px - t[o + 6], cpy = py - t[o + 7], cpz = pz - t[o + 8];
+            double d5 = abx * cpx + aby * cpy + abz * cpz;
+            double d6 = acx * cpx + acy * cpy + acz * cpz;
+
+            double vc = d1 * d4 - d3 * d2;
+            double vb = d5 * d2 - d1 * d6;
+            double va = d3 * d6 - d5 * d4;
+
+            if (d3 >= 0.0 && d4 <= d3)
+            {
+                u = 0;
+                v = 1;
+                w = 0;
+            }
+            else if (vc <= 0.0 && d1 >= 0.0 && d3 <= 0.0)
+            {
+                v = d1 / (d1 - d3);
+                u = 1 - v;
+                w = 0;
+            }
+            else if (d6 >= 0.0 && d5 <= d6)
+            {
+                u = 0;
+                v = 0;
+                w = 1;
+            }
+            else if (vb <= 0.0 && d2 >= 0.0 && d6 <= 0.0)
+            {
+                w = d2 / (d2 - d6);
+                u = 1 - w;
+                v = 0;
+            }
+            else if (va <= 0.0 && d4 - d3 >= 0.0 && d5 - d6 >= 0.0)
+            {
+                w = (d4 - d3) / (d4 - d3 + (d5 - d6));
+                u = 0;
+                v = 1 - w;
+            }
+            else
+            {
+                double denom = 1.0 / (va + vb + vc);
+                v = vb * denom;
+                w = vc * denom;
+                u = va * denom;
+            }
+        }
+
+        query.tu = u;
+        query.tv = v;
+        query.tw = w;
+
+        double qx = ax + v * abx + w * acx - px;
+        double qy = ay + v * aby + w * acy - py;
+        double qz = az + v * abz + w * acz - pz;
+
+        return qx * qx + qy * qy + qz * qz;
+    }
+
+    // the ray distance to a triangle, or -1 if it misses (Moller and Trumbore)
+    private double intersect(int f, double ox, double oy, double oz, double dx, double dy, double dz, Query query)
+    {
+        double[] t = this.tris;
+        int o = 9 * f;
+
+        double e1x = t[o + 3] - t[o], e1y = t[o + 4] - t[o + 1], e1z = t[o + 5] - t[o + 2];
+        double e2x = t[o + 6] - t[o], e2y = t[o + 7] - t[o + 1], e2z = t[o + 8] - t[o + 2];
+
+        double px = dy * e2z - dz * e2y;
+        double py = dz * e2x - dx * e2z;
+        double pz = dx * e2y - dy * e2x;
+
+        double det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) < EPS)
+        {
+            return -1;
+        }
+
+        double inv = 1.0 / det;
+        double sx = ox - t[o], sy = oy - t[o + 1], sz = oz - t[o + 2];
+        double v = (sx * px + sy * py + sz * pz) * inv;
+        if (v < 0.0 || v > 1.0)
+        {
+            return -1;
+        }
+
+        double qx = sy * e1z - sz * e1y;
+        double qy = sz * e1x - sx * e1z;
+        double qz = sx * e1y - sy * e1x;
+
+        double w = (dx * qx + dy * qy + dz * qz) * inv;
+        if (w < 0.0 || v + w > 1.0)
+        {
+            return -1;
+        }
+
+        query.tu = 1.0 - v - w;
+        query.tv = v;
+        query.tw = w;
+
+        return (e2x * qx + e2y * qy + e2z * qz) * inv;
+    }
+
+    private void point(Query query)
+    {
+        int o = 9 * query.face;
+        double[] t = this.tris;
+
+        query.x = query.u * t[o] + query.v * t[o + 3] + query.w * t[o + 6];
+        query.y = query.u * t[o + 1] + query.v * t[o + 4] + query.w * t[o + 7];
+        query.z = query.u * t[o + 2] + query.v * t[o + 5] + query.w * t[o + 8];
+    }
+
+    /**
+     * the state and results of a query, which should only be used by one thread
+     */
+    public static class Query
+    {
+        // the maximum distance to search
+        public double max = Double.POSITIVE_INFINITY;
+
+        // the index of the face that was found, or -1 if none was found
+        public int face = -1;
+
+        // the distance to the point that was found
+        public double dist;
+
+        // the barycentric coordinates of the point that was found
+        public double u;
+        public double v;
+        public double w;
+
+        // the position of the point that was found
+        public double x;
+        public double y;
+        public double z;
+
+        private double tu;
+        private double tv;
+        private double tw;
+        private int[] stack;
+
+        private Query(int size)
+        {
+            this.stack = new int[size];
+        }
+
+        public Query withMax(double v)
+        {
+            this.max = v;
+
+            return this;
+        }
+
+        public Bary bary()
+        {
+            return new Bary(this.u, this.v, this.w);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mesh;
+
+import com.google.common.collect.Maps;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mesh;
+import qit.data.datasets.Vect;
+import qit.math.structs.Face;
+import qit.math.structs.Vertex;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * an array-based triangle mesh with primitive vertex attributes, an indexed
+ * triangle buffer, and half-edge connectivity.  Half-edge h = 3 * f + c starts
+ * at corner c of face f and ends at the next corner.  This is meant for
+ * processing large meshes, so conversion to and from a Mesh happens only once
+ * at the boundaries of an algorithm.
+ */
+public class MeshCompact
+{
+    private int nvert;
+    private int nface;
+
+    // the vertex handles of the source mesh (may be null if none exists)
+    private Vertex[] verts;
+
+    // vertex attributes stored with interleaved channels
+    private Map<String, float[]> attrs = Maps.newLinkedHashMap();
+    private Map<String, Integer> dims = Maps.newHashMap();
+
+    // vertex indices of each triangle corner
+    private int[] faces;
+
+    // the twin half-edge of each half-edge (or -1 on the boundary)
+    private int[] opposite;
+
+    // outgoing half-edges of each vertex in compressed row format
+    private int[] outOffset;
+    private int[] outIndex;
+
+    // one-ring vertex neighbors of each vertex in compressed row format
+    private int[] ringOffset;
+    private int[] ringIndex;
+
+    public MeshCompact(float[] coords, int[] faces)
+    {
+        Global.assume(coords.length % 3 == 0, "invalid coordinate buffer");
+        Global.assume(faces.length % 3 == 0, "invalid face buffer");
+
+        this.nvert = coords.length / 3;
+        this.nface = faces.length / 3;
+        this.faces = faces;
+        this.attrs.put(Mesh.COORD, coords);
+        this.dims.put(Mesh.COORD, 3);
+
+        for (int idx : faces)
+        {
+            Global.assume(idx >= 0 && idx < this.nvert, "invalid face index: " + idx);
+        }
+
+        this.connect();
+    }
+
+    public static MeshCompact create(Mesh mesh)
+    {
+        return create(mesh, mesh.vattr.attrs().toArray(new String[0]));
+    }
+
+    public static MeshCompact create(Mesh mesh, String... names)
+    {
+        int nvert = mesh.graph.numVertex();
+        int nface = mesh.graph.numFace();
+
+        Vertex[] verts = new Vertex[nvert];
+        Map<Vertex, Integer> lookup = Maps.newHashMapWithExpectedSize(nvert);
+        {
+            int idx = 0;
+            for (Vertex vert : mesh.graph.verts())
+            {
+                verts[idx] = vert;
+                lookup.put(vert, idx);
+                idx += 1;
+            }
+        }
+
+        int[] faces = new int[3 * nface];
+        {
+            int idx = 0;
+            for (Face face : mesh.graph.faces())
+            {
+                faces[idx++] = lookup.get(face.getA());
+                faces[idx++] = lookup.get(face.getB());
+                faces[idx++] = lookup.get(face.getC());
+            }
+        }
+
+        MeshCompact out = new MeshCompact(pack(mesh, verts, Mesh.COORD), faces);
+        out.verts = verts;
+
+        for (String name : names)
+        {
+            if (!Mesh.COORD.equals(name))
+            {
+                out.attrs.put(name, pack(mesh, verts, name));
+                out.dims.put(name, mesh.vattr.dim(name));
+            }
+        }
+
+        return out;
+    }
+
+    private static float[] pack(Mesh mesh, Vertex[] verts, String name)
+    {
+        Global.assume(mesh.vattr.has(name), "attribute not found: " + name);
+
+        int dim = mesh.vattr.dim(name);
+        float[] out = new float[dim * verts.length];
+        for (int i = 0; i < verts.length; i++)
+        {
+            Vect value = mesh.vattr.get(verts[i], name);
+            for (int j = 0; j < dim; j++)
+            {
+                out[dim * i + j] = (float) value.get(j);
+            }
+        }
+
+        return out;
+    }
+
+    private void connect()
+    {
+        int nhedge = 3 * this.nface;
+
+        this.outOffset = new int[this.nvert + 1];
+        for (int h = 0; h < nhedge; h++)
+        {
+            this.outOffset[this.faces[h] + 1] += 1;
+        }
+        for (int v = 0; v < this.nvert; v++)
+        {
+            this.outOffset[v + 1] += this.outOffset[v];
+        }
+
+        this.outIndex = new int[nhedge];
+        int[] fill = Arrays.copyOf(this.outOffset, this.nvert);
+        for (int h = 0; h < nhedge; h++)
+        {
+            this.outIndex[fill[this.faces[h]]++] = h;
+        }
+
+        this.opposite = new int[nhedge];
+        for (int h = 0; h < nhedge; h++)
+        {
+            int tail = this.tail(h);
+            int head = this.head(h);
+
+            this.opposite[h] = -1;
+            for (int n = this.outOffset[head]; n < this.outOffset[head + 1]; n++)
+            {
+                int t = this.outIndex[n];
+                if (this.head(t) == tail)
+                {
+                    this.opposite[h] = t;
+                    break;
+                }
+            }
+        }
+
+        // each half-edge contributes its head to the tail's ring, and
+        // boundary half-edges also contribute their tail to the head's ring
+        this.ringOffset = new int[this.nvert + 1];
+        for (int h = 0; h < nhedge; h++)
+        {
+            this.ringOffset[this.tail(h) + 1] += 1;
+            if (this.opposite[h] < 0)
+            {
+                this.ringOffset[this.head(h) + 1] += 1;
+            }
+        }
+        for (int v = 0; v < this.nvert; v++)
+        {
+            this.ringOffset[v + 1] += this.ringOffset[v];
+        }
+
+        int[] ring = new int[this.ringOffset[this.nvert]];
+        fill = Arrays.copyOf(this.ringOffset, this.nvert);
+        for (int h = 0; h < nhedge; h++)
+        {
+            int tail = this.tail(h);
+            int head = this.head(h);
+
+            ring[fill[tail]++] = head;
+            if (this.opposite[h] < 0)
+            {
+                ring[fill[head]++] = tail;
+            }
+        }
+
+        // remove duplicates in place and compact the rows
+        int count = 0;
+        int start = 0;
+        for (int v = 0; v < this.nvert; v++)
+        {
+            int end = this.ringOffset[v + 1];
+            Arrays.sort(ring, start, end);
+
+            this.ringOffset[v] = count;
+            for (int n = start; n < end; n++)
+            {
+                if (n == start || ring[n] != ring[n - 1])
+                {
+                    ring[count++] = ring[n];
+                }
+            }
+            start = end;
+        }
+        this.ringOffset[this.nvert] = count;
+        this.ringIndex = Arrays.copyOf(ring, count);
+    }
+
+    /****************
+     * CONNECTIVITY *
+     ****************/
+
+    public int numVertex()
+    {
+        return this.nvert;
+    }
+
+    public int numFace()
+    {
+        return this.nface;
+    }
+
+    public int numHalfEdge()
+    {
+        return 3 * this.nface;
+    }
+
+    public int corner(int face, int c)
+    {
+        return this.faces[3 * face + c];
+    }
+
+    public int tail(int hedge)
+    {
+        return this.faces[hedge];
+    }
+
+    public int head(int hedge)
+    {
+        return this.faces[next(hedge)];
+    }
+
+    public int face(int hedge)
+    {
+        return hedge / 3;
+    }
+
+    public static int next(int hedge)
+    {
+        return hedge % 3 == 2 ? hedge - 2 : hedge + 1;
+    }
+
+    public static int prev(int hedge)
+    {
+        return hedge % 3 == 0 ? hedge + 2 : hedge - 1;
+    }
+
+    public int opposite(int hedge)
+    {
+        return this.opposite[hedge];
+    }
+
+    public boolean boundary(int hedge)
+    {
+        return this.opposite[hedge] < 0;
+    }
+
+    public int degree(int vert)
+    {
+        return this.ringOffset[vert + 1] - this.ringOffset[vert];
+    }
+
+    public int neighbor(int vert, int n)
+    {
+        return this.ringIndex[this.ringOffset[vert] + n];
+    }
+
+    public int numOut(int vert)
+    {
+        return this.outOffset[vert + 1] - this.outOffset[vert];
+    }
+
+    public int out(int vert, int n)
+    {
+        return this.outIndex[this.outOffset[vert] + n];
+    }
+
+    /**
+     * @return the raw triangle index buffer (three entries per face)
+     */
+    public int[] getFaces()
+    {
+        return this.faces;
+    }
+
+    /**
+     * @return the row offsets of the one-ring adjacency (numVertex() + 1 entries)
+     */
+    public int[] getRingOffsets()
+    {
+        return this.ringOffset;
+    }
+
+    /**
+     * @return the column indices of the one-ring adjacency
+     */
+    public int[] getRingIndices()
+    {
+        return this.ringIndex;
+    }
+
+    public Vertex getVertex(int idx)
+    {
+        return this.verts == null ? new Vertex(idx) : this.verts[idx];
+    }
+
+    /**************
+     * ATTRIBUTES *
+     **************/
+
+    public Set<String> attrs()
+    {
+        return this.attrs.keySet();
+    }
+
+    public boolean has(String name)
+    {
+        return this.attrs.containsKey(name);
+    }
+
+    public int dim(String name)
+    {
+        Global.assume(this.has(name), "attribute not found: " + name);
+        return this.dims.get(name);
+    }
+
+    /**
+     * @return the raw attribute buffer, which stores the channels of each vertex contiguously
+     */
+    public float[] get(String name)
+    {
+        Global.assume(this.has(name), "attribute not found: " + name);
+        return this.attrs.get(name);
+    }
+
+    public float[] add(String name, int dim)
+    {
+        if (this.has(name))
+        {
+            Global.assume(this.dim(name) == dim, "attribute dimension mismatch: " + name);
+            return this.get(name);
+        }
+
+        float[] values = new float[dim * this.nvert];
+        this.attrs.put(name, values);
+        this.dims.put(name, dim);
+
+        return values;
+    }
+
+    public void set(String name, float[] values, int dim)
+    {
+        Global.assume(values.length == dim * this.nvert, "attribute size mismatch: " + name);
+        this.attrs.put(name, values);
+        this.dims.put(name, dim);
+    }
+
+    public void copy(String from, String to)
+    {
+        int dim = this.dim(from);
+        float[] values = this.get(from);
+        System.arraycopy(values, 0, this.add(to, dim), 0, values.length);
+    }
+
+    /************
+     * GEOMETRY *
+     ************/
+
+    /**
+     * compute area-independent vertex normals by averaging the unit normals of adjacent faces
+     */
+    public void computeNormals(String input, String output)
+    {
+        Global.assume(this.dim(input) == 3, "normals require a three-dimensional attribute");
+
+        float[] coords = this.get(input);
+        float[] normals = this.add(output, 3);
+        Arrays.fill(normals, 0f);
+
+        for (int f = 0; f < this.nface; f++)
+        {
+            int a = 3 * this.faces[3 * f];
+            int b = 3 * this.faces[3 * f + 1];
+            int c = 3 * this.faces[3 * f + 2];
+
+            double bax = coords[b] - coords[a];
+            double bay = coords[b + 1] - coords[a + 1];
+            double baz = coords[b + 2] - coords[a + 2];
+            double cax = coords[c] - coords[a];
+            double cay = coords[c + 1] - coords[a + 1];
+            double caz = coords[c + 2] - coords[a + 2];
+
+            double nx = bay * caz - baz * cay;
+            double ny = baz * cax - bax * caz;
+            double nz = bax * cay - bay * cax;
+            double norm = Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+            if (norm > Global.DELTA * Global.DELTA)
+            {
+                nx /= norm;
+                ny /= norm;
+                nz /= norm;
+
+                for (int v : new int[]{a, b, c})
+                {
+                    normals[v] += nx;
+                    normals[v + 1] += ny;
+                    normals[v + 2] += nz;
+                }
+            }
+        }
+
+        for (int v = 0; v < 3 * this.nvert; v += 3)
+        {
+            double nx = normals[v];
+            double ny = normals[v + 1];
+            double nz = normals[v + 2];
+            double norm = Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+            if (norm > Global.DELTA)
+            {
+                normals[v] = (float) (nx / norm);
+                normals[v + 1] = (float) (ny / norm);
+                normals[v + 2] = (float) (nz / norm);
+            }
+        }
+    }
+
+    /**************
+     * CONVERSION *
+     **************/
+
+    /**
+     * write the given attributes back into a mesh, which must be the one this was created from
+     */
+    public void apply(Mesh mesh, String... names)
+    {
+        Global.assume(this.verts != null, "no source mesh vertices found");
+        Global.assume(mesh.graph.numVertex() == this.nvert, "mesh does not match");
+
+        for (String name : names)
+        {
+            int dim = this.dim(name);
+            float[] values = this.get(name);
+            mesh.vattr.add(name, new Vect(dim));
+
+            Vect buffer = new Vect(dim);
+            for (int i = 0; i < this.nvert; i++)
+            {
+                for (int j = 0; j < dim; j++)
+                {
+                    buffer.set(j, values[dim * i + j]);
+                }
+
+                mesh.vattr.set(this.verts[i], name, buffer);
+            }
+        }
+    }
+
+    public Mesh toMesh()
+    {
+        Mesh mesh = new Mesh();
+
+        Vertex[] handles = new Vertex[this.nvert];
+        for (int i = 0; i < this.nvert; i++)
+        {
+            handles[i] = new Vertex(i);
+            mesh.graph.add(handles[i]);
+            mesh.vattr.add(handles[i]);
+        }
+
+        for (int f = 0; f < this.nface; f++)
+        {
+            Vertex a = handles[this.faces[3 * f]];
+            Vertex b = handles[this.faces[3 * f + 1]];
+            Vertex c = handles[this.faces[3 * f + 2]];
+
+            try
+            {
+                mesh.graph.add(new Face(a, b, c));
+            }
+            catch (RuntimeException e)
+            {
+                // e.g. non-manifold faces, which the half-edge graph cannot store
+                Logging.info(String.format("warning, failed to add face: %d %d %d", a.id(), b.id(), c.id()));
+            }
+        }
+
+        Vertex[] source = this.verts;
+        this.verts = handles;
+        this.apply(mesh, this.attrs.keySet().toArray(new String[0]));
+        this.verts = source;
+
+        return mesh;
+    }
+}
@@ -0,0 +1,380 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mesh;
+
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mesh;
+import qit.math.structs.SparseMatrix;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * a mesh Laplacian operator that is assembled once into a sparse matrix and
+ * then applied to any number of vertex attributes at once.  The operator is
+ * stored as a symmetric stiffness matrix K = D - W, where W holds the edge
+ * weights and D their row sums, so explicit smoothing steps compute
+ * x + lambda * D^-1 (W x - D x), and implicit (backward Euler) steps solve
+ * (D + t K) x = D x0 by conjugate gradients.  Implicit steps are stable for any
+ * time step, so large amounts of smoothing need only a few solves.  Cotangent
+ * weights are clamped to be non-negative, which keeps the system positive
+ * definite on meshes with obtuse triangles.
+ */
+public class MeshLaplacian
+{
+    public enum MeshLaplacianWeights {Uniform, Cotangent}
+
+    public static final int MAX_ITERS = 1000;
+    public static final double TOLERANCE = 1e-6;
+
+    private MeshCompact mesh;
+    private MeshLaplacianWeights weights = MeshLaplacianWeights.Uniform;
+    private int threads = 1;
+
+    private SparseMatrix stiffness;
+    private double[] degree;
+
+    public MeshLaplacian withMesh(MeshCompact v)
+    {
+        this.mesh = v;
+        this.stiffness = null;
+
+        return this;
+    }
+
+    public MeshLaplacian withWeights(MeshLaplacianWeights v)
+    {
+        this.weights = v;
+        this.stiffness = null;
+
+        return this;
+    }
+
+    public MeshLaplacian withThreads(int v)
+    {
+        this.threads = v;
+
+        return this;
+    }
+
+    public SparseMatrix getStiffness()
+    {
+        this.init();
+        return this.stiffness;
+    }
+
+    private void init()
+    {
+        if (this.stiffness != null)
+        {
+            return;
+        }
+
+        Global.assume(this.mesh != null, "no mesh found");
+
+        int nvert = this.mesh.numVertex();
+        int[] ringOffsets = this.mesh.getRingOffsets();
+        int[] ringIndices = this.mesh.getRingIndices();
+
+        // each row stores the diagonal first and then the ring neighbors
+        int[] offsets = new int[nvert + 1];
+        for (int i = 0; i < nvert; i++)
+        {
+            offsets[i + 1] = offsets[i] + 1 + this.mesh.degree(i);
+        }
+
+        int[] cols = new int[offsets[nvert]];
+        double[] vals = new double[offsets[nvert]];
+        for (int i = 0; i < nvert; i++)
+        {
+            cols[offsets[i]] = i;
+            System.arraycopy(ringIndices, ringOffsets[i], cols, offsets[i] + 1, this.mesh.degree(i));
+        }
+
+        if (this.weights == MeshLaplacianWeights.Cotangent)
+        {
+            float[] coords = this.mesh.get(Mesh.COORD);
+
+            for (int h = 0; h < this.mesh.numHalfEdge(); h++)
+            {
+                int a = this.mesh.tail(h);
+                int b = this.mesh.head(h);
+                int c = this.mesh.tail(MeshCompact.prev(h));
+
+                double cax = coords[3 * a] - coords[3 * c];
+                double cay = coords[3 * a + 1] - coords[3 * c + 1];
+                double caz = coords[3 * a + 2] - coords[3 * c + 2];
+                double cbx = coords[3 * b] - coords[3 * c];
+                double cby = coords[3 * b + 1] - coords[3 * c + 1];
+                double cbz = coords[3 * b + 2] - coords[3 * c + 2];
+
+                double dot = cax * cbx + cay * cby + caz * cbz;
+                double crx = cay * cbz - caz * cby;
+                double cry = caz * cbx - cax * cbz;
+                double crz = cax * cby - cay * cbx;
+                double cross = Math.sqrt(crx * crx + cry * cry + crz * crz);
+
+                if (cross > Global.DELTA * Global.DELTA)
+                {
+                    double w = 0.5 * dot / cross;
+                    add(offsets, cols, vals, a, b, -w);
+                    add(offsets, cols, vals, b, a, -w);
+                }
+            }
+
+            for (int n = 0; n < vals.length; n++)
+            {
+                vals[n] = Math.min(0, vals[n]);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < nvert; i++)
+            {
+                for (int n = offsets[i] + 1; n < offsets[i + 1]; n++)
+                {
+                    vals[n] = -1.0;
+                }
+            }
+        }
+
+        this.degree = new double[nvert];
+        for (int i = 0; i < nvert; i++)
+        {
+            double sum = 0;
+            for (int n = offsets[i] + 1; n < offsets[i + 1]; n++)
+            {
+                sum -= vals[n];
+            }
+
+            vals[offsets[i]] = sum;
+            this.degree[i] = sum;
+        }
+
+        this.stiffness = new SparseMatrix(nvert, offsets, cols, vals);
+    }
+
+    private static void add(int[] offsets, int[] cols, double[] vals, int i, int j, double v)
+    {
+        for (int n = offsets[i] + 1; n < offsets[i + 1]; n++)
+        {
+            if (cols[n] == j)
+            {
+                vals[n] += v;
+                return;
+            }
+        }
+    }
+
+    private ExecutorService pool()
+    {
+        return this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+    }
+
+    /**
+     * apply explicit Laplacian smoothing steps to interleaved vertex values in
+     * place.  If mu is given, each step is followed by an inflation step with
+     * -mu, as in Taubin's method.
+     */
+    public void smooth(double[] values, int dim, double lambda, Double mu, int num)
+    {
+        this.init();
+
+        ExecutorService exec = this.pool();
+        try
+        {
+            double[] lap = new double[values.length];
+            for (int iter = 0; iter < num; iter++)
+            {
+                this.step(values, lap, dim, lambda, exec);
+
+                if (mu != null)
+                {
+                    this.step(values, lap, dim, -mu, exec);
+                }
+            }
+        }
+        finally
+        {
+            if (exec != null)
+            {
+                exec.shutdown();
+            }
+        }
+    }
+
+    private void step(double[] values, double[] buffer, int dim, double lambda, ExecutorService exec)
+    {
+        this.stiffness.times(values, buffer, dim, exec);
+
+        for (int i = 0; i < this.degree.length; i++)
+        {
+            double d = this.degree[i];
+            if (d > 0)
+            {
+                double scale = lambda / d;
+                for (int k = i * dim; k < (i + 1) * dim; k++)
+                {
+                    values[k] -= scale * buffer[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * apply implicit (backward Euler) diffusion steps with the given time step
+     * to interleaved vertex values in place
+     */
+    public void diffuse(double[] values, int dim, double time, int num)
+    {
+        this.init();
+
+        // vertices without edges would make the system singular, so they keep a unit mass
+        double[] mass = new double[this.degree.length];
+        for (int i = 0; i < mass.length; i++)
+        {
+            mass[i] = this.degree[i] > 0 ? this.degree[i] : 1.0;
+        }
+
+        SparseMatrix system = this.stiffness.plusDiag(mass, 1.0, time);
+
+        ExecutorService exec = this.pool();
+        try
+        {
+            double[] rhs = new double[values.length];
+            for (int iter = 0; iter < num; iter++)
+            {
+                for (int i = 0; i < mass.length; i++)
+                {
+                    for (int k = i * dim; k < (i + 1) * dim; k++)
+                    {
+                        rhs[k] = mass[i] * values[k];
+                    }
+                }
+
+                int iters = system.solve(rhs, values, dim, MAX_ITERS, TOLERANCE, exec);
+                Logging.info(String.format("... solved diffusion step %d/%d in %d iterations", iter + 1, num, iters));
+            }
+        }
+        finally
+        {
+            if (exec != null)
+            {
+                exec.shutdown();
+            }
+        }
+    }
+
+    /**
+     * pack the given attributes of a compact mesh into a single interleaved array
+     */
+    public static double[] pack(MeshCompact mesh, String[] names)
+    {
+        int dim = dim(mesh, names);
+        double[] out = new double[dim * mesh.numVertex()];
+
+        int offset = 0;
+        for (String name : names)
+        {
+            int adim = mesh.dim(name);
+            float[] values = mesh.get(name);
+            for (int i = 0; i < mesh.numVertex(); i++)
+            {
+                for (int j = 0; j < adim; j++)
+                {
+                    out[i * dim + offset + j] = values[i * adim + j];
+                }
+            }
+            offset += adim;
+        }
+
+        return out;
+    }
+
+    /**
+     * unpack an interleaved array into attributes of a compact mesh, which are created if needed
+     */
+    public static void unpack(double[] values, MeshCompact mesh, String[] names, int[] dims)
+    {
+        int dim = 0;
+        for (int d : dims)
+        {
+            dim += d;
+        }
+
+        int offset = 0;
+        for (int n = 0; n < names.length; n++)
+        {
+            int adim = dims[n];
+            float[] out = mesh.add(names[n], adim);
+            for (int i = 0; i < mesh.numVertex(); i++)
+            {
+                for (int j = 0; j < adim; j++)
+                {
+                    out[i * adim + j] = (float) values[i * dim + offset + j];
+                }
+            }
+            offset += adim;
+        }
+    }
+
+    public static int dim(MeshCompact mesh, String[] names)
+    {
+        int dim = 0;
+        for (String name : names)
+        {
+            dim += mesh.dim(name);
+        }
+
+        return dim;
+    }
+}
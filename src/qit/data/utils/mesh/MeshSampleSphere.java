@@ -50,6 +50,7 @@
 
 package qit.data.utils.mesh;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import qit.base.Global;
 import qit.base.Logging;
@@ -70,6 +71,7 @@ import qit.math.structs.Face;
 import qit.math.structs.Triangle;
 import qit.math.structs.Vertex;
 
+import java.util.List;
 import java.util.Set;
 import java.util.function.Function;
 
@@ -77,7 +79,7 @@ public class MeshSampleSphere
 {
     private enum VertexSearchType
     {
-        NAIVE, BIH, GRID
+        NAIVE, BIH, GRID, BVH
     }
 
     private Mesh input;
@@ -86,8 +88,9 @@ public class MeshSampleSphere
     private String outsphere = Mesh.COORD;
     private Set<String> labels = Sets.newHashSet();
     private Set<String> skip = Sets.newHashSet();
-    private VertexSearchType search = VertexSearchType.BIH;
-    
+    private VertexSearchType search = VertexSearchType.BVH;
+    private int threads = 1;
+
     public MeshSampleSphere()
     {
 
@@ -142,6 +145,13 @@ public class MeshSampleSphere
         return this;
     }
 
+    public MeshSampleSphere withThreads(int n)
+    {
+        this.threads = n;
+
+        return this;
+    }
+
     public MeshSampleSphere run()
     {
         Logging.info("using input sphere attribute: " + this.insphere);
@@ -159,6 +169,10 @@ public class MeshSampleSphere
         {
             this.grid();
         }
+        else if (VertexSearchType.BVH.equals(this.search))
+        {
+            this.bvh();
+        }
         else
         {
             Logging.error("invalid search type");
@@ -296,6 +310,60 @@ public class MeshSampleSphere
         Logging.info("100 percent processed");
     }
 
+    private void bvh()
+    {
+        Logging.info("building bounding volume hierarchy");
+        MeshBVH bvh = new MeshBVH(this.input, this.insphere);
+
+        // add the attributes first, so the vertices can be processed in parallel
+        List<String> names = Lists.newArrayList();
+        for (String name : this.input.vattr.attrs())
+        {
+            if (!name.equals(this.insphere) && !this.skip.contains(name))
+            {
+                Vect proto = this.input.vattr.proto(name);
+                if (this.output.vattr.has(name) && this.output.vattr.dim(name) != proto.size())
+                {
+                    this.output.vattr.remove(name);
+                }
+
+                this.output.vattr.add(name, proto);
+                names.add(name);
+            }
+        }
+        this.output.vattr.add(Mesh.DISTANCE, VectSource.create1D());
+
+        Logging.info("querying");
+        MeshUtils.vertices(this.output, () ->
+        {
+            MeshBVH.Query query = bvh.query();
+            return (vert) ->
+            {
+                Vect v = this.output.vattr.get(vert, this.outsphere);
+                bvh.closest(v, query);
+
+                Face face = bvh.face(query.face);
+                Bary bary = query.bary();
+
+                for (String name : names)
+                {
+                    Vect a = this.input.vattr.get(face.getA(), name);
+                    Vect b = this.input.vattr.get(face.getB(), name);
+                    Vect c = this.input.vattr.get(face.getC(), name);
+
+                    Triangle tri = new Triangle(a, b, c);
+
+                    // either nearest neighbor or linear
+                    Vect val = this.labels.contains(name) ? tri.nearest(bary) : tri.vect(bary);
+
+                    this.output.vattr.set(vert, name, val);
+                }
+
+                this.output.vattr.set(vert, Mesh.DISTANCE, VectSource.create1D(query.dist));
+            };
+        }, this.threads);
+    }
+
     private void grid()
     {
         Logging.info("building grid index");
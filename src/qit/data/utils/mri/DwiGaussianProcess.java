@@ -0,0 +1,725 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mri;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.utils.mri.structs.Gradients;
+import qit.math.utils.MathUtils;
+import smile.math.matrix.CholeskyDecomposition;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Gaussian process prediction of diffusion-weighted signals in q-space.  The
+ * kernel only depends on the gradients, so the prediction for a given set of
+ * training and target gradients is a fixed linear map of the normalized
+ * signal.  This map is factorized once per unique set of gradients and
+ * regularization, cached, and applied to blocks of voxels as a matrix product.
+ */
+public class DwiGaussianProcess
+{
+    public static final int BLOCK = 1024;
+    public static final int CACHE = 256;
+
+    private Gradients gradients;
+    private double alpha = 1.0;
+    private double beta = 1.0;
+    private int threads = 1;
+
+    // the kernel between every pair of input gradients
+    private double[][] table;
+
+    private Map<Key, double[][]> cache = new LinkedHashMap<Key, double[][]>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<Key, double[][]> eldest)
+        {
+            return this.size() > CACHE;
+        }
+    };
+
+    public DwiGaussianProcess withGradients(Gradients v)
+    {
+        this.gradients = v;
+        this.clear();
+
+        return this;
+    }
+
+    public DwiGaussianProcess withAlpha(double v)
+    {
+        this.alpha = v;
+        this.clear();
+
+        return this;
+    }
+
+    public DwiGaussianProcess withBeta(double v)
+    {
+        this.beta = v;
+        this.clear();
+
+        return this;
+    }
+
+    public DwiGaussianProcess withThreads(int v)
+    {
+        this.threads = v;
+
+        return this;
+    }
+
+    private void clear()
+    {
+        synchronized (this.cache)
+        {
+            this.cache.clear();
+            this.table = null;
+        }
+    }
+
+    private double[][] table()
+    {
+        synchronized (this.cache)
+        {
+            if (this.table == null)
+            {
+                int dim = this.gradients.size();
+                double[][] table = new double[dim][dim];
+                for (int i = 0; i < dim; i++)
+                {
+                    Vect ivec = this.gradients.getBvec(i);
+                    double ival = this.gradients.getBval(i);
+
+                    for (int j = 0; j <= i; j++)
+                    {
+                        double k = this.kernel(ivec, ival, this.gradients.getBvec(j), this.gradients.getBval(j));
+                        table[i][j] = k;
+                        table[j][i] = k;
+                    }
+                }
+
+                this.table = table;
+            }
+
+            return this.table;
+        }
+    }
+
+    /**
+     * the q-space kernel, which combines the angle between gradient directions
+     * and the difference in log b-value
+     */
+    public double kernel(Vect avec, double aval, Vect bvec, double bval)
+    {
+        double dot = Math.abs(avec.dot(bvec));
+        dot = Math.min(Math.max(dot, 0), 1);
+
+        double dvec = Math.acos(dot);
+        double dval = Math.abs(Math.log(aval + Global.DELTA) - Math.log(bval + Global.DELTA));
+
+        double cvec = MathUtils.zero(this.alpha) ? 1.0 : Math.exp(-dvec / this.alpha);
+        double cval = MathUtils.zero(this.beta) ? 1.0 : Math.exp(-dval / this.beta);
+
+        double k = cvec * cval;
+
+        Global.assume(!Double.isNaN(k), "invalid k");
+
+        return k;
+    }
+
+    private double[][] gram(int[] train, double lambda)
+    {
+        double[][] table = this.table();
+
+        int n = train.length;
+        double[][] gram = new double[n][n];
+        for (int i = 0; i < n; i++)
+        {
+            for (int j = 0; j < n; j++)
+            {
+                gram[i][j] = table[train[i]][train[j]];
+            }
+
+            gram[i][i] += lambda;
+        }
+
+        return gram;
+    }
+
+    private static CholeskyDecomposition factor(double[][] gram)
+    {
+        try
+        {
+            return new CholeskyDecomposition(gram);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Logging.error("the kernel matrix is not positive definite (try increasing lambda)");
+            return null;
+        }
+    }
+
+    /**
+     * get the linear map from normalized signals at the training gradients to
+     * predictions at the target gradients
+     *
+     * @param train the indices of the training gradients
+     * @param target the gradients to predict
+     * @param predict the indices of the target gradients to predict
+     * @param lambda the regularization parameter
+     * @return a matrix with a row for each prediction and a column for each training gradient
+     */
+    public double[][] predictor(int[] train, Gradients target, int[] predict, double lambda)
+    {
+        Key key = new Key(train, target, predict, lambda);
+
+        synchronized (this.cache)
+        {
+            double[][] cached = this.cache.get(key);
+            if (cached != null)
+            {
+                return cached;
+            }
+        }
+
+        CholeskyDecomposition chol = factor(this.gram(train, lambda));
+
+        double[][] table = target == this.gradients ? this.table() : null;
+
+        double[][] out = new double[predict.length][train.length];
+        double[] cross = new double[train.length];
+        for (int j = 0; j < predict.length; j++)
+        {
+            Vect jvec = target.getBvec(predict[j]);
+            double jval = target.getBval(predict[j]);
+
+            for (int i = 0; i < train.length; i++)
+            {
+                cross[i] = table != null ? table[train[i]][predict[j]] : this.kernel(this.gradients.getBvec(train[i]), this.gradients.getBval(train[i]), jvec, jval);
+            }
+
+            chol.solve(cross, out[j]);
+        }
+
+        synchronized (this.cache)
+        {
+            this.cache.put(key, out);
+        }
+
+        return out;
+    }
+
+    /**
+     * resample signals to the given gradients
+     *
+     * @param signals an array with a row for each voxel
+     * @param reference the gradients to resample
+     * @param lambda the regularization parameter
+     * @return an array with a row for each voxel and a column for each reference gradient
+     */
+    public double[][] resample(double[][] signals, Gradients reference, double lambda)
+    {
+        int[] train = indices(this.gradients.getDvecIdx());
+        int[] predict = indices(reference.getDvecIdx());
+        double[][] map = this.predictor(train, reference, predict, lambda);
+
+        int num = signals.length;
+        double[] baselines = this.baselines(signals);
+        double[][] pred = product(map, normalize(signals, baselines, train));
+
+        double[][] out = new double[num][reference.size()];
+        for (int b = 0; b < num; b++)
+        {
+            for (Integer idx : reference.getBaselineIdx())
+            {
+                out[b][idx] = baselines[b];
+            }
+
+            for (int i = 0; i < predict.length; i++)
+            {
+                out[b][predict[i]] = baselines[b] * pred[i][b];
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * detect outliers with a smooth model and replace them using a model that
+     * is trained on the inliers.  Voxels that share the same outliers share
+     * the same factorization.
+     *
+     * @param signals an array with a row for each voxel
+     * @param outlier the fractional change from the prediction that is considered an outlier
+     * @param include the minimum fraction of inliers for replacement
+     * @param lambdaDetect the regularization parameter for detection
+     * @param lambdaPredict the regularization parameter for replacement
+     * @param resample resample every signal value, not just the outliers
+     * @return an array with a row for each voxel
+     */
+    public double[][] outliers(double[][] signals, double outlier, double include, double lambdaDetect, double lambdaPredict, boolean resample)
+    {
+        int[] which = indices(this.gradients.getDvecIdx());
+        int dim = this.gradients.size();
+        int num = which.length;
+        int voxels = signals.length;
+
+        double[] baselines = this.baselines(signals);
+        double[][] y = normalize(signals, baselines, which);
+        double[][] detect = product(this.predictor(which, this.gradients, which, lambdaDetect), y);
+
+        Map<BitSet, List<Integer>> groups = Maps.newLinkedHashMap();
+        double[][] out = new double[voxels][dim];
+        for (int b = 0; b < voxels; b++)
+        {
+            for (Integer idx : this.gradients.getBaselineIdx())
+            {
+                out[b][idx] = baselines[b];
+            }
+
+            BitSet inliers = new BitSet(num);
+            for (int i = 0; i < num; i++)
+            {
+                double py = detect[i][b];
+                double vy = y[i][b];
+                double change = MathUtils.zero(vy) ? 1.0 : Math.abs(py - vy) / vy;
+
+                if (change < outlier)
+                {
+                    inliers.set(i);
+                }
+            }
+
+            if (inliers.cardinality() > include * dim)
+            {
+                groups.computeIfAbsent(inliers, k -> Lists.newArrayList()).add(b);
+            }
+            else
+            {
+                for (int i = 0; i < num; i++)
+                {
+                    out[b][which[i]] = signals[b][which[i]];
+                }
+            }
+        }
+
+        for (BitSet inliers : groups.keySet())
+        {
+            List<Integer> members = groups.get(inliers);
+
+            int[] train = new int[inliers.cardinality()];
+            int[] rows = new int[train.length];
+            for (int i = inliers.nextSetBit(0), t = 0; i >= 0; i = inliers.nextSetBit(i + 1), t++)
+            {
+                train[t] = which[i];
+                rows[t] = i;
+            }
+
+            double[][] sub = new double[train.length][members.size()];
+            for (int t = 0; t < train.length; t++)
+            {
+                for (int m = 0; m < members.size(); m++)
+                {
+                    sub[t][m] = y[rows[t]][members.get(m)];
+                }
+            }
+
+            // an outlier pattern that is unique to one voxel is cheaper to solve directly
+            double[][] pred = members.size() == 1 ? this.direct(train, which, lambdaPredict, sub) : product(this.predictor(train, this.gradients, which, lambdaPredict), sub);
+
+            for (int m = 0; m < members.size(); m++)
+            {
+                int b = members.get(m);
+                for (int i = 0; i < num; i++)
+                {
+                    int idx = which[i];
+                    out[b][idx] = !resample && inliers.get(i) ? signals[b][idx] : baselines[b] * pred[i][m];
+                }
+            }
+        }
+
+        return out;
+    }
+
+    private double[][] direct(int[] train, int[] predict, double lambda, double[][] y)
+    {
+        double[][] table = this.table();
+
+        double[] values = new double[train.length];
+        for (int i = 0; i < train.length; i++)
+        {
+            values[i] = y[i][0];
+        }
+
+        double[] w = new double[train.length];
+        factor(this.gram(train, lambda)).solve(values, w);
+
+        double[][] out = new double[predict.length][1];
+        for (int j = 0; j < predict.length; j++)
+        {
+            for (int i = 0; i < train.length; i++)
+            {
+                out[j][0] += w[i] * table[train[i]][predict[j]];
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * evaluate the model on a set of voxels, which is used for optimizing the
+     * hyperparameters.  This computes the mean log marginal likelihood of the
+     * normalized signals and the mean squared error of leave-one-out
+     * predictions, which are both obtained from a single factorization.
+     *
+     * @param signals an array with a row for each voxel
+     * @param lambda the regularization parameter
+     * @return the mean log marginal likelihood and the mean squared leave-one-out error
+     */
+    public double[] evaluate(double[][] signals, double lambda)
+    {
+        int[] which = indices(this.gradients.getDvecIdx());
+        int num = which.length;
+
+        CholeskyDecomposition chol = factor(this.gram(which, lambda));
+
+        double[][] inv = new double[num][num];
+        double[] unit = new double[num];
+        for (int i = 0; i < num; i++)
+        {
+            unit[i] = 1.0;
+            chol.solve(unit, inv[i]);
+            unit[i] = 0.0;
+        }
+
+        double logdet = 0;
+        double[][] lower = chol.getL();
+        for (int i = 0; i < num; i++)
+        {
+            logdet += 2.0 * Math.log(lower[i][i]);
+        }
+        final double norm = -0.5 * logdet - 0.5 * num * Math.log(2.0 * Math.PI);
+
+        List<Callable<double[]>> tasks = Lists.newArrayList();
+        for (int start = 0; start < signals.length; start += BLOCK)
+        {
+            final int fstart = start;
+            final int fend = Math.min(start + BLOCK, signals.length);
+            tasks.add(() ->
+            {
+                double[][] block = Arrays.copyOfRange(signals, fstart, fend);
+                double[] baselines = this.baselines(block);
+                double[][] y = normalize(block, baselines, which);
+                double[][] w = product(inv, y);
+
+                double loglik = 0;
+                double error = 0;
+                for (int b = 0; b < block.length; b++)
+                {
+                    double quad = 0;
+                    for (int i = 0; i < num; i++)
+                    {
+                        quad += y[i][b] * w[i][b];
+
+                        // the leave-one-out residual in signal units
+                        double delta = MathUtils.zero(baselines[b]) ? block[b][which[i]] : baselines[b] * w[i][b] / inv[i][i];
+                        error += delta * delta;
+                    }
+
+                    loglik += norm - 0.5 * quad;
+                }
+
+                return new double[]{loglik, error};
+            });
+        }
+
+        double loglik = 0;
+        double error = 0;
+        for (double[] result : this.invoke(tasks))
+        {
+            loglik += result[0];
+            error += result[1];
+        }
+
+        return new double[]{loglik / signals.length, error / (signals.length * num)};
+    }
+
+    /**
+     * resample the volume to the given gradients
+     */
+    public Volume resample(Volume input, Mask mask, Gradients reference, double lambda)
+    {
+        return this.apply(input, mask, reference.size(), block -> this.resample(block, reference, lambda));
+    }
+
+    /**
+     * detect and replace outliers in the volume
+     */
+    public Volume outliers(Volume input, Mask mask, double outlier, double include, double lambdaDetect, double lambdaPredict, boolean resample)
+    {
+        return this.apply(input, mask, this.gradients.size(), block -> this.outliers(block, outlier, include, lambdaDetect, lambdaPredict, resample));
+    }
+
+    private Volume apply(Volume input, Mask mask, int dim, Function<double[][], double[][]> function)
+    {
+        Global.assume(this.gradients != null, "gradients are required");
+        Global.assume(input.getDim() == this.gradients.size(), "channel mismatch");
+
+        List<Integer> voxels = Lists.newArrayList();
+        for (int idx = 0; idx < input.getSampling().size(); idx++)
+        {
+            if (input.valid(idx, mask))
+            {
+                voxels.add(idx);
+            }
+        }
+
+        Logging.info(String.format("resampling %d voxels with Gaussian processes", voxels.size()));
+
+        Volume out = input.proto(dim);
+
+        List<Callable<double[]>> tasks = Lists.newArrayList();
+        for (int start = 0; start < voxels.size(); start += BLOCK)
+        {
+            final List<Integer> block = voxels.subList(start, Math.min(start + BLOCK, voxels.size()));
+            tasks.add(() ->
+            {
+                // the input is read in its own layout, so planar volumes are scanned one channel at a time
+                double[][] signals = new double[block.size()][input.getDim()];
+                if (input.isInterleaved())
+                {
+                    for (int b = 0; b < block.size(); b++)
+                    {
+                        input.get(block.get(b), signals[b]);
+                    }
+                }
+                else
+                {
+                    for (int d = 0; d < input.getDim(); d++)
+                    {
+                        for (int b = 0; b < block.size(); b++)
+                        {
+                            signals[b][d] = input.get(block.get(b), d);
+                        }
+                    }
+                }
+
+                double[][] values = function.apply(signals);
+
+                for (int b = 0; b < block.size(); b++)
+                {
+                    for (int d = 0; d < dim; d++)
+                    {
+                        out.set(block.get(b), d, values[b][d]);
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        this.invoke(tasks);
+
+        return out;
+    }
+
+    private List<double[]> invoke(List<Callable<double[]>> tasks)
+    {
+        List<double[]> out = Lists.newArrayList();
+
+        if (this.threads <= 1 || tasks.size() <= 1)
+        {
+            try
+            {
+                for (Callable<double[]> task : tasks)
+                {
+                    out.add(task.call());
+                }
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            return out;
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(this.threads);
+        try
+        {
+            for (Future<double[]> future : exec.invokeAll(tasks))
+            {
+                out.add(future.get());
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+            Logging.error("failed to execute in concurrent mode");
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+
+        return out;
+    }
+
+    private double[] baselines(double[][] signals)
+    {
+        double[] out = new double[signals.length];
+        for (int b = 0; b < signals.length; b++)
+        {
+            out[b] = ModelUtils.baselineStats(this.gradients, new Vect(signals[b])).mean;
+        }
+
+        return out;
+    }
+
+    private static int[] indices(List<Integer> list)
+    {
+        int[] out = new int[list.size()];
+        for (int i = 0; i < out.length; i++)
+        {
+            out[i] = list.get(i);
+        }
+
+        return out;
+    }
+
+    private static double[][] normalize(double[][] signals, double[] baselines, int[] which)
+    {
+        double[][] out = new double[which.length][signals.length];
+        for (int i = 0; i < which.length; i++)
+        {
+            for (int b = 0; b < signals.length; b++)
+            {
+                out[i][b] = MathUtils.zero(baselines[b]) ? 0 : signals[b][which[i]] / baselines[b];
+            }
+        }
+
+        return out;
+    }
+
+    private static double[][] product(double[][] map, double[][] values)
+    {
+        int rows = map.length;
+        int inner = values.length;
+        int cols = inner == 0 ? 0 : values[0].length;
+
+        double[][] out = new double[rows][cols];
+        for (int i = 0; i < rows; i++)
+        {
+            double[] orow = out[i];
+            for (int k = 0; k < inner; k++)
+            {
+                double m = map[i][k];
+                double[] vrow = values[k];
+                for (int b = 0; b < cols; b++)
+                {
+                    orow[b] += m * vrow[b];
+                }
+            }
+        }
+
+        return out;
+    }
+
+    private static class Key
+    {
+        private final int[] train;
+        private final Gradients target;
+        private final int[] predict;
+        private final double lambda;
+
+        Key(int[] train, Gradients target, int[] predict, double lambda)
+        {
+            this.train = train;
+            this.target = target;
+            this.predict = predict;
+            this.lambda = lambda;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return this.target == other.target && this.lambda == other.lambda && Arrays.equals(this.train, other.train) && Arrays.equals(this.predict, other.predict);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * Arrays.hashCode(this.train) + Arrays.hashCode(this.predict)) + Double.hashCode(this.lambda) + System.identityHashCode(this.target);
+        }
+    }
+}
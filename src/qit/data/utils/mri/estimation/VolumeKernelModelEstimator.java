@@ -31,22 +31,44 @@
 package qit.data.utils.mri.estimation;
 
 import com.google.common.collect.Lists;
+import qit.base.Logging;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Sample;
 import qit.data.datasets.Sampling;
 import qit.data.datasets.Vect;
+import qit.data.datasets.Vects;
 import qit.data.datasets.Volume;
 import qit.data.utils.enums.KernelInterpolationType;
 import qit.data.utils.volume.VolumeInterpTrilinear;
 import qit.base.Model;
 import qit.data.utils.mri.structs.ModelEstimator;
+import qit.data.utils.volume.VolumeSample;
 import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Estimate models at arbitrary positions by blending the models of nearby
+ * voxels.  Each thread keeps its own neighbor buffers, so repeated queries do
+ * not allocate lists or neighbor models, and queries that fall on a voxel
+ * center only read that voxel.  Optionally, each thread can also keep a least
+ * recently used cache of blended models, where positions are quantized to a
+ * fraction of a voxel and the model is estimated at the center of the
+ * quantized cell, so nearby queries reuse the same model.
+ */
 public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
 {
+    // the distance to a voxel center (in voxels) for a query to be treated as aligned
+    private static final double ALIGNED = 1e-9;
+
     public Volume volume = null;
     public Mask mask = null;
     public ModelEstimator estimator = null;
@@ -57,6 +79,14 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
     public Double hval = null;
     public Double hsig = null;
 
+    // the number of models cached by each thread (or null to disable caching)
+    public Integer cache = null;
+
+    // the size of a cache cell in voxels
+    public double resolution = 0.1;
+
+    private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
     public VolumeKernelModelEstimator(M p)
     {
         this.init(3, p.getEncodingSize());
@@ -83,6 +113,123 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
     }
 
     public Vect estimate(Vect coord, Vect ref)
+    {
+        boolean adaptive = ref != null && (this.hval != null || this.hsig != null);
+        boolean cached = this.cache != null && this.cache > 0 && !(adaptive && KernelInterpolationType.Gaussian.equals(this.interp));
+
+        if (!cached)
+        {
+            return this.evaluate(coord, ref);
+        }
+
+        Workspace work = this.workspace.get();
+        work.check();
+
+        Vect voxel = this.volume.getSampling().voxel(coord);
+        long qi = Math.round(voxel.getX() / this.resolution);
+        long qj = Math.round(voxel.getY() / this.resolution);
+        long qk = Math.round(voxel.getZ() / this.resolution);
+        long key = ((qi & 0x1FFFFF) << 42) | ((qj & 0x1FFFFF) << 21) | (qk & 0x1FFFFF);
+
+        Vect value = work.lru.get(key);
+        if (value == null)
+        {
+            Vect center = new Vect(new double[]{qi * this.resolution, qj * this.resolution, qk * this.resolution});
+            value = this.evaluate(this.volume.getSampling().world(center), ref);
+
+            if (value == null)
+            {
+                return null;
+            }
+
+            work.lru.put(key, value.copy());
+        }
+        else
+        {
+            value = value.copy();
+        }
+
+        return value;
+    }
+
+    /**
+     * estimate models on a grid using the given number of threads
+     */
+    public Volume estimate(Sampling sampling, Mask mask, int threads)
+    {
+        VolumeSample sampler = new VolumeSample();
+        sampler.withSampling(sampling);
+        sampler.withMask(mask);
+        sampler.withFunction(this);
+        sampler.withThreads(threads);
+        sampler.withVerbose(false);
+
+        return sampler.run().output;
+    }
+
+    /**
+     * estimate models at each of the given positions using the given number of threads
+     */
+    public Vects estimate(Vects coords, int threads)
+    {
+        int num = coords.size();
+        Vect[] out = new Vect[num];
+
+        if (threads < 2 || num < 2)
+        {
+            for (int i = 0; i < num; i++)
+            {
+                out[i] = this.estimate(coords.get(i));
+            }
+        }
+        else
+        {
+            int step = Math.max(1, (num + 4 * threads - 1) / (4 * threads));
+
+            List<Callable<Void>> tasks = Lists.newArrayList();
+            for (int start = 0; start < num; start += step)
+            {
+                int fstart = start;
+                int fend = Math.min(num, start + step);
+                tasks.add(() ->
+                {
+                    for (int i = fstart; i < fend; i++)
+                    {
+                        out[i] = this.estimate(coords.get(i));
+                    }
+                    return null;
+                });
+            }
+
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            try
+            {
+                for (Future<Void> future : exec.invokeAll(tasks))
+                {
+                    future.get();
+                }
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                e.printStackTrace();
+                Logging.error("failed to estimate models: " + e.getMessage());
+            }
+            finally
+            {
+                exec.shutdown();
+            }
+        }
+
+        Vects vects = new Vects(num);
+        for (Vect v : out)
+        {
+            vects.add(v);
+        }
+
+        return vects;
+    }
+
+    private Vect evaluate(Vect coord, Vect ref)
     {
         switch(this.interp)
         {
@@ -114,8 +261,11 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
 
     public Vect estimateTrilinear(Vect coord)
     {
-        List<Double> weights = Lists.newArrayList();
-        List<Vect> models = Lists.newArrayList();
+        Workspace work = this.workspace.get();
+        work.check();
+
+        List<Double> weights = work.weights;
+        List<Vect> models = work.models;
         Sampling sampling = this.volume.getSampling();
 
         Vect voxel = sampling.voxel(coord);
@@ -132,16 +282,32 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
         int sz = (int) Math.floor(cz);
         double dz = cz - sz;
 
-        int length = 2;
-        double[] wx = new double[length];
-        double[] wy = new double[length];
-        double[] wz = new double[length];
-
         if (!sampling.contains(sx, sy, sz))
         {
             return new Vect(this.getDimOut());
         }
 
+        if (aligned(dx) && aligned(dy) && aligned(dz))
+        {
+            // the query is on a voxel center, so the other neighbors have no weight
+            int ax = dx < 0.5 ? sx : sx + 1;
+            int ay = dy < 0.5 ? sy : sy + 1;
+            int az = dz < 0.5 ? sz : sz + 1;
+
+            if (this.volume.valid(ax, ay, az, this.mask))
+            {
+                weights.add(1.0);
+                models.add(work.model(0, sampling.index(ax, ay, az)));
+
+                return this.estimator.run(weights, models);
+            }
+        }
+
+        int length = 2;
+        double[] wx = work.wx;
+        double[] wy = work.wy;
+        double[] wz = work.wz;
+
         for (int i = 0; i < length; i++)
         {
             wx[i] = VolumeInterpTrilinear.triangle(i - dx);
@@ -164,12 +330,11 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
                     int xidx = sx + i;
                     int yidx = sy + j;
                     int zidx = sz + k;
-                    Sample sample = new Sample(xidx, yidx, zidx);
 
-                    if (this.volume.valid(sample, this.mask))
+                    if (this.volume.valid(xidx, yidx, zidx, this.mask))
                     {
                         weights.add(weight);
-                        models.add(this.volume.get(sample));
+                        models.add(work.model(models.size(), sampling.index(xidx, yidx, zidx)));
                     }
                 }
             }
@@ -182,8 +347,11 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
 
     public Vect estimateGaussian(Vect coord, Vect ref)
     {
-        List<Double> weights = Lists.newArrayList();
-        List<Vect> models = Lists.newArrayList();
+        Workspace work = this.workspace.get();
+        work.check();
+
+        List<Double> weights = work.weights;
+        List<Vect> models = work.models;
         Sampling sampling = this.volume.getSampling();
         Sample nearest = sampling.nearest(coord);
 
@@ -196,11 +364,12 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
                     int ni = nearest.getI() + di;
                     int nj = nearest.getJ() + dj;
                     int nk = nearest.getK() + dk;
-                    Sample ns = new Sample(ni, nj, nk);
-                    Vect nv = sampling.world(ns);
 
-                    if (this.volume.valid(ns, this.mask))
+                    if (this.volume.valid(ni, nj, nk, this.mask))
                     {
+                        Vect nv = sampling.world(ni, nj, nk);
+                        Vect nref = work.model(models.size(), sampling.index(ni, nj, nk));
+
                         double weight = 1.0;
                         {
                             double d2 = nv.dist2(coord);
@@ -211,7 +380,6 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
 
                         if (this.hval != null && ref != null && !MathUtils.zero(this.hval))
                         {
-                            Vect nref = this.volume.get(ns);
                             M left = this.proto.proto().setEncoding(ref);
                             M right = this.proto.proto().setEncoding(nref);
 
@@ -223,7 +391,6 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
 
                         if (this.hsig != null && ref != null && !MathUtils.zero(this.hsig))
                         {
-                            Vect nref = this.volume.get(ns);
                             M left = this.proto.proto().setEncoding(ref);
                             M right = this.proto.proto().setEncoding(nref);
 
@@ -235,7 +402,7 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
                         }
 
                         weights.add(weight);
-                        models.add(this.volume.get(ns));
+                        models.add(nref);
                     }
                 }
             }
@@ -254,4 +421,66 @@ public class VolumeKernelModelEstimator<M extends Model<M>> extends VectFunction
             return this.estimator.run(weights, models);
         }
     }
-}
\ No newline at end of file
+
+    private static boolean aligned(double delta)
+    {
+        return delta < ALIGNED || delta > 1.0 - ALIGNED;
+    }
+
+    /**
+     * the buffers used by one thread, which are reset when the volume changes
+     */
+    private class Workspace
+    {
+        final List<Double> weights = Lists.newArrayList();
+        final List<Vect> models = Lists.newArrayList();
+        final List<Vect> buffers = Lists.newArrayList();
+        final double[] wx = new double[2];
+        final double[] wy = new double[2];
+        final double[] wz = new double[2];
+
+        Volume source = null;
+        int capacity = 0;
+        LinkedHashMap<Long, Vect> lru = null;
+
+        void check()
+        {
+            this.weights.clear();
+            this.models.clear();
+
+            Volume volume = VolumeKernelModelEstimator.this.volume;
+            Integer cache = VolumeKernelModelEstimator.this.cache;
+            int ncapacity = cache == null ? 0 : cache;
+
+            if (this.source != volume || this.capacity != ncapacity)
+            {
+                this.source = volume;
+                this.capacity = ncapacity;
+                this.buffers.clear();
+                this.lru = new LinkedHashMap<Long, Vect>(16, 0.75f, true)
+                {
+                    protected boolean removeEldestEntry(Map.Entry<Long, Vect> eldest)
+                    {
+                        return this.size() > Workspace.this.capacity;
+                    }
+                };
+            }
+        }
+
+        /**
+         * @return the given neighbor buffer filled with the model of the given voxel
+         */
+        Vect model(int which, int idx)
+        {
+            while (this.buffers.size() <= which)
+            {
+                this.buffers.add(new Vect(this.source.getDim()));
+            }
+
+            Vect out = this.buffers.get(which);
+            this.source.get(idx, out);
+
+            return out;
+        }
+    }
+}
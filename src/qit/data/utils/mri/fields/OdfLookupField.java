@@ -0,0 +1,438 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mri.fields;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import qit.base.Logging;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Vects;
+import qit.data.datasets.Volume;
+import qit.data.models.VectModel;
+import qit.data.source.VectSource;
+import qit.data.utils.mri.structs.StreamlineField;
+import qit.data.utils.volume.VolumeInterpTrilinear;
+import qit.math.structs.VectFunction;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An ODF field that is compiled into lookup tables before tracking.  The ODF
+ * amplitudes of every voxel are evaluated once and stored in a primitive
+ * table, and because the ODF is linear in the model parameters, interpolating
+ * the tabulated amplitudes matches interpolating the models and then
+ * evaluating the ODF.  When a direction is given, only the sphere points in a
+ * precomputed cone around it are interpolated.
+ */
+public class OdfLookupField extends StreamlineField
+{
+    private static final int BINS_THETA = 24;
+    private static final int BINS_PHI = 96;
+    private static final double MARGIN = 1.0;
+
+    private final Set<String> attrs = Sets.newHashSet(VectModel.AMP);
+
+    private final Vects points;
+    private final int num;
+    private final Sampling sampling;
+    private final double[] xfm;
+    private final boolean trilinear;
+    private final double min;
+
+    private final int[] rows;
+    private final float[] table;
+
+    private final double cone;
+    private final int[][] cones;
+
+    /**
+     * @param volume the model volume
+     * @param odfer a function mapping models to ODF amplitudes on the points (or null if the volume stores amplitudes)
+     * @param points the sphere points
+     * @param trilinear use trilinear interpolation (otherwise use the nearest voxel)
+     * @param angle the largest tracking angle in degrees, which sets the size of the precomputed cones
+     * @param min the smallest amplitude to report, since the tracker would reject the others
+     * @param threads the number of threads to use when compiling the tables
+     */
+    public OdfLookupField(Volume volume, VectFunction odfer, Vects points, boolean trilinear, double angle, double min, int threads)
+    {
+        this.points = points.copy();
+        this.num = points.size();
+        this.sampling = volume.getSampling();
+        this.xfm = transform(this.sampling);
+        this.trilinear = trilinear;
+        this.min = min;
+
+        // voxels with an empty model share the first row of zeros
+        int size = this.sampling.size();
+        this.rows = new int[size];
+        int count = 1;
+        for (int idx = 0; idx < size; idx++)
+        {
+            boolean empty = true;
+            for (int d = 0; d < volume.getDim() && empty; d++)
+            {
+                empty = volume.get(idx, d) == 0;
+            }
+
+            this.rows[idx] = empty ? 0 : count++;
+        }
+
+        Logging.info(String.format("compiling ODF lookup tables for %d voxels and %d points", count - 1, this.num));
+
+        this.table = new float[count * this.num];
+        parallel(size, threads, (start, end) ->
+        {
+            Vect model = volume.dproto();
+            for (int idx = start; idx < end; idx++)
+            {
+                int row = this.rows[idx];
+                if (row > 0)
+                {
+                    volume.get(idx, model);
+                    Vect odf = odfer == null ? model : odfer.apply(model);
+                    for (int p = 0; p < this.num; p++)
+                    {
+                        this.table[row * this.num + p] = (float) odf.get(p);
+                    }
+                }
+            }
+        });
+
+        this.cone = angle;
+        this.cones = cones(this.points, angle);
+    }
+
+    public List<StreamSample> getSamples(Vect pos)
+    {
+        return this.samples(pos, null);
+    }
+
+    public List<StreamSample> getSamples(Vect pos, Vect dir, double angle)
+    {
+        return this.samples(pos, dir != null && angle <= this.cone ? dir : null);
+    }
+
+    public String getAttr()
+    {
+        return VectModel.AMP;
+    }
+
+    private List<StreamSample> samples(Vect pos, Vect dir)
+    {
+        double[] m = this.xfm;
+        double x = pos.getX();
+        double y = pos.getY();
+        double z = pos.getZ();
+        double cx = m[0] * x + m[1] * y + m[2] * z + m[3];
+        double cy = m[4] * x + m[5] * y + m[6] * z + m[7];
+        double cz = m[8] * x + m[9] * y + m[10] * z + m[11];
+
+        int[] nrows = new int[8];
+        double[] nweights = new double[8];
+        int count = 0;
+
+        if (this.trilinear)
+        {
+            int sx = (int) Math.floor(cx);
+            int sy = (int) Math.floor(cy);
+            int sz = (int) Math.floor(cz);
+
+            if (this.sampling.contains(sx, sy, sz))
+            {
+                double dx = cx - sx;
+                double dy = cy - sy;
+                double dz = cz - sz;
+                double sumw = 0;
+
+                for (int k = 0; k < 2; k++)
+                {
+                    for (int j = 0; j < 2; j++)
+                    {
+                        for (int i = 0; i < 2; i++)
+                        {
+                            if (this.sampling.contains(sx + i, sy + j, sz + k))
+                            {
+                                double w = VolumeInterpTrilinear.triangle(i - dx) * VolumeInterpTrilinear.triangle(j - dy) * VolumeInterpTrilinear.triangle(k - dz);
+                                nrows[count] = this.rows[this.sampling.index(sx + i, sy + j, sz + k)];
+                                nweights[count] = w;
+                                sumw += w;
+                                count += 1;
+                            }
+                        }
+                    }
+                }
+
+                for (int n = 0; n < count; n++)
+                {
+                    nweights[n] = sumw > 0 ? nweights[n] / sumw : 0;
+                }
+            }
+        }
+        else
+        {
+            int i = (int) Math.round(cx);
+            int j = (int) Math.round(cy);
+            int k = (int) Math.round(cz);
+
+            if (this.sampling.contains(i, j, k))
+            {
+                nrows[0] = this.rows[this.sampling.index(i, j, k)];
+                nweights[0] = 1.0;
+                count = 1;
+            }
+        }
+
+        int[] candidates = dir == null ? null : this.cones[bin(dir.getX(), dir.getY(), dir.getZ())];
+        int total = candidates == null ? this.num : candidates.length;
+
+        List<StreamSample> out = Lists.newArrayListWithCapacity(total);
+
+        for (int c = 0; c < total; c++)
+        {
+            int p = candidates == null ? c : candidates[c];
+
+            double amp = 0;
+            for (int n = 0; n < count; n++)
+            {
+                if (nrows[n] > 0)
+                {
+                    amp += nweights[n] * this.table[nrows[n] * this.num + p];
+                }
+            }
+
+            if (amp >= this.min)
+            {
+                out.add(new PointSample(pos, this.points.get(p).copy(), amp));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @return the index of the cone bin for a line, where lines are mapped to the upper hemisphere
+     */
+    private static int bin(double x, double y, double z)
+    {
+        if (z < 0)
+        {
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+
+        double norm = Math.sqrt(x * x + y * y + z * z);
+        double theta = Math.acos(Math.min(1.0, norm > 0 ? z / norm : 1.0));
+        double phi = Math.atan2(y, x) + Math.PI;
+
+        int bt = Math.min(BINS_THETA - 1, (int) (theta / (0.5 * Math.PI) * BINS_THETA));
+        int bp = Math.min(BINS_PHI - 1, (int) (phi / (2 * Math.PI) * BINS_PHI));
+
+        return bt * BINS_PHI + bp;
+    }
+
+    /**
+     * @return for each bin, the points that may be within the angle of a line in the bin
+     */
+    private static int[][] cones(Vects points, double angle)
+    {
+        double dt = 0.5 * Math.PI / BINS_THETA;
+        double dp = 2 * Math.PI / BINS_PHI;
+
+        int[][] out = new int[BINS_THETA * BINS_PHI][];
+        int[] buffer = new int[points.size()];
+
+        for (int bt = 0; bt < BINS_THETA; bt++)
+        {
+            for (int bp = 0; bp < BINS_PHI; bp++)
+            {
+                Vect center = line(dt * (bt + 0.5), dp * (bp + 0.5) - Math.PI);
+
+                // the bin radius is bounded by the distance to its corners and edges
+                double radius = 0;
+                for (int a = 0; a <= 2; a++)
+                {
+                    for (int b = 0; b <= 2; b++)
+                    {
+                        Vect corner = line(dt * (bt + 0.5 * a), dp * (bp + 0.5 * b) - Math.PI);
+                        radius = Math.max(radius, center.angleLineDeg(corner));
+                    }
+                }
+
+                double thresh = angle + radius + MARGIN;
+                int count = 0;
+                for (int p = 0; p < points.size(); p++)
+                {
+                    if (center.angleLineDeg(points.get(p)) <= thresh)
+                    {
+                        buffer[count++] = p;
+                    }
+                }
+
+                int[] cone = new int[count];
+                System.arraycopy(buffer, 0, cone, 0, count);
+                out[bt * BINS_PHI + bp] = cone;
+            }
+        }
+
+        return out;
+    }
+
+    private static Vect line(double theta, double phi)
+    {
+        return VectSource.create3D(Math.sin(theta) * Math.cos(phi), Math.sin(theta) * Math.sin(phi), Math.cos(theta));
+    }
+
+    /**
+     * @return the affine transform from world to continuous voxel coordinates, stored as a row-major 3x4 matrix
+     */
+    private static double[] transform(Sampling sampling)
+    {
+        Vect origin = sampling.voxel(VectSource.create3D(0, 0, 0));
+        Vect[] axes = {
+                sampling.voxel(VectSource.create3D(1, 0, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 1, 0)).minus(origin),
+                sampling.voxel(VectSource.create3D(0, 0, 1)).minus(origin)};
+
+        double[] out = new double[12];
+        for (int r = 0; r < 3; r++)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                out[4 * r + c] = axes[c].get(r);
+            }
+            out[4 * r + 3] = origin.get(r);
+        }
+
+        return out;
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private static void parallel(int num, int threads, Block block)
+    {
+        if (threads < 2 || num < 2)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * threads);
+        int step = (num + blocks - 1) / blocks;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+
+    public class PointSample extends StreamSample
+    {
+        double amp;
+
+        public PointSample(Vect pos, Vect orient, double amp)
+        {
+            super(pos, orient, amp);
+            this.amp = amp;
+        }
+
+        public Set<String> getAttrs()
+        {
+            return OdfLookupField.this.attrs;
+        }
+
+        public Vect getAttr(String name)
+        {
+            if (VectModel.AMP.equals(name))
+            {
+                return VectSource.create1D(this.amp);
+            }
+
+            throw new RuntimeException("undefined attribute: " + name);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.mri.fields;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Sample;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.source.VectSource;
+import qit.data.utils.mri.structs.StreamlineField;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A peak field with nearest neighbor interpolation that is compiled into
+ * lookup tables before tracking.  The samples of the wrapped field only depend
+ * on the nearest voxel, so they are extracted once per voxel and stored in a
+ * primitive table, which saves repeating the peak extraction at every step.
+ */
+public class PeakLookupField extends StreamlineField
+{
+    private final String attr;
+    private final Sampling sampling;
+
+    // the attribute names and dimensions shared by all samples
+    private final Set<String> attrs = Sets.newLinkedHashSet();
+    private String[] names = new String[0];
+    private int[] dims = new int[0];
+    private int stride = 4;
+
+    // voxels map to slots, slots map to a range of entries, and slot zero is shared by empty voxels
+    private final int[] rows;
+    private int[] ptr;
+    private double[] table;
+
+    /**
+     * @param field the peak field to compile, which must use nearest neighbor interpolation of the volume
+     * @param volume the model volume
+     * @param threads the number of threads to use when compiling the tables
+     */
+    public PeakLookupField(StreamlineField field, Volume volume, int threads)
+    {
+        this.attr = field.getAttr();
+        this.sampling = volume.getSampling();
+
+        int size = this.sampling.size();
+        this.rows = new int[size];
+        int count = 1;
+        for (int idx = 0; idx < size; idx++)
+        {
+            boolean empty = true;
+            for (int d = 0; d < volume.getDim() && empty; d++)
+            {
+                empty = volume.get(idx, d) == 0;
+            }
+
+            this.rows[idx] = empty ? 0 : count++;
+        }
+
+        Logging.info(String.format("compiling peak lookup tables for %d voxels", count - 1));
+
+        // empty voxels produce the same samples as positions outside the volume
+        Vect outside = this.sampling.world(-2, -2, -2);
+        List<StreamSample> empty = field.getSamples(outside);
+        boolean found = this.schema(empty);
+        for (int idx = 0; idx < size && !found; idx++)
+        {
+            if (this.rows[idx] > 0)
+            {
+                found = this.schema(field.getSamples(this.sampling.world(idx)));
+            }
+        }
+
+        int blocks = Math.max(1, Math.min(size, 4 * threads));
+        int step = (size + blocks - 1) / blocks;
+        List<Chunk> chunks = Lists.newArrayList();
+        for (int start = 0; start < size; start += step)
+        {
+            chunks.add(new Chunk(start, Math.min(size, start + step)));
+        }
+
+        Chunk first = new Chunk(0, 0);
+        first.add(empty);
+
+        if (threads < 2)
+        {
+            for (Chunk chunk : chunks)
+            {
+                chunk.run(field);
+            }
+        }
+        else
+        {
+            List<Callable<Void>> tasks = Lists.newArrayList();
+            for (Chunk chunk : chunks)
+            {
+                tasks.add(() ->
+                {
+                    chunk.run(field);
+                    return null;
+                });
+            }
+
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            try
+            {
+                for (Future<Void> future : exec.invokeAll(tasks))
+                {
+                    future.get();
+                }
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                Logging.error("failed to compile lookup tables: " + e.getMessage());
+            }
+            finally
+            {
+                exec.shutdown();
+            }
+        }
+
+        chunks.add(0, first);
+
+        int entries = 0;
+        for (Chunk chunk : chunks)
+        {
+            entries += chunk.size / this.stride;
+        }
+
+        this.ptr = new int[count + 1];
+        this.table = new double[entries * this.stride];
+
+        int slot = 0;
+        int offset = 0;
+        for (Chunk chunk : chunks)
+        {
+            for (int c : chunk.counts)
+            {
+                this.ptr[slot + 1] = this.ptr[slot] + c;
+                slot += 1;
+            }
+
+            System.arraycopy(chunk.data, 0, this.table, offset, chunk.size);
+            offset += chunk.size;
+        }
+    }
+
+    public List<StreamSample> getSamples(Vect pos)
+    {
+        Sample sample = this.sampling.nearest(pos);
+        int slot = this.sampling.contains(sample) ? this.rows[this.sampling.index(sample)] : 0;
+
+        List<StreamSample> out = Lists.newArrayList();
+        for (int e = this.ptr[slot]; e < this.ptr[slot + 1]; e++)
+        {
+            out.add(new CachedSample(pos, e * this.stride));
+        }
+
+        return out;
+    }
+
+    public String getAttr()
+    {
+        return this.attr;
+    }
+
+    private boolean schema(List<StreamSample> samples)
+    {
+        if (samples.size() == 0)
+        {
+            return false;
+        }
+
+        StreamSample sample = samples.get(0);
+        List<String> nnames = Lists.newArrayList(sample.getAttrs());
+
+        this.names = nnames.toArray(new String[0]);
+        this.dims = new int[this.names.length];
+        this.stride = 4;
+        this.attrs.addAll(nnames);
+
+        for (int i = 0; i < this.names.length; i++)
+        {
+            this.dims[i] = sample.getAttr(this.names[i]).size();
+            this.stride += this.dims[i];
+        }
+
+        return true;
+    }
+
+    private class Chunk
+    {
+        final int start;
+        final int end;
+        final List<Integer> counts = Lists.newArrayList();
+        double[] data = new double[1024];
+        int size = 0;
+
+        Chunk(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        void run(StreamlineField field)
+        {
+            Sampling sampling = PeakLookupField.this.sampling;
+            int[] rows = PeakLookupField.this.rows;
+
+            for (int idx = this.start; idx < this.end; idx++)
+            {
+                if (rows[idx] > 0)
+                {
+                    this.add(field.getSamples(sampling.world(idx)));
+                }
+            }
+        }
+
+        void add(List<StreamSample> samples)
+        {
+            PeakLookupField self = PeakLookupField.this;
+            Global.assume(samples.size() == 0 || samples.get(0).getAttrs().size() == self.names.length, "inconsistent sample attributes");
+
+            int need = this.size + samples.size() * self.stride;
+            if (need > this.data.length)
+            {
+                this.data = Arrays.copyOf(this.data, Math.max(need, 2 * this.data.length));
+            }
+
+            for (StreamSample sample : samples)
+            {
+                Vect orient = sample.getOrientation();
+                this.data[this.size++] = orient.getX();
+                this.data[this.size++] = orient.getY();
+                this.data[this.size++] = orient.getZ();
+                this.data[this.size++] = sample.getProbability();
+
+                for (int i = 0; i < self.names.length; i++)
+                {
+                    Vect value = sample.getAttr(self.names[i]);
+                    Global.assume(value.size() == self.dims[i], "inconsistent sample attributes");
+                    for (int d = 0; d < self.dims[i]; d++)
+                    {
+                        this.data[this.size++] = value.get(d);
+                    }
+                }
+            }
+
+            this.counts.add(samples.size());
+        }
+    }
+
+    public class CachedSample extends StreamSample
+    {
+        private final int offset;
+
+        public CachedSample(Vect pos, int offset)
+        {
+            super(pos, VectSource.create3D(PeakLookupField.this.table[offset], PeakLookupField.this.table[offset + 1], PeakLookupField.this.table[offset + 2]), PeakLookupField.this.table[offset + 3]);
+            this.offset = offset;
+        }
+
+        public Set<String> getAttrs()
+        {
+            return PeakLookupField.this.attrs;
+        }
+
+        public Vect getAttr(String name)
+        {
+            PeakLookupField self = PeakLookupField.this;
+
+            int pos = this.offset + 4;
+            for (int i = 0; i < self.names.length; i++)
+            {
+                if (self.names[i].equals(name))
+                {
+                    Vect out = new Vect(self.dims[i]);
+                    for (int d = 0; d < self.dims[i]; d++)
+                    {
+                        out.set(d, self.table[pos + d]);
+                    }
+                    return out;
+                }
+
+                pos += self.dims[i];
+            }
+
+            throw new RuntimeException("undefined attribute: " + name);
+        }
+    }
+}
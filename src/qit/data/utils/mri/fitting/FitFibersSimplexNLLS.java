@@ -58,11 +58,14 @@ import qit.data.source.VectSource;
 import qit.data.utils.mri.CostType;
 import qit.data.utils.mri.ModelUtils;
 import qit.data.utils.mri.structs.Gradients;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 import qit.math.utils.MathUtils;
 import qit.math.utils.optim.jcobyla.Calcfc;
 import qit.math.utils.optim.jcobyla.Cobyla;
+import qit.math.utils.optim.lm.LevenbergMarquardt;
 
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class FitFibersSimplexNLLS implements Supplier<VectFunction>
@@ -83,6 +86,7 @@ public class FitFibersSimplexNLLS implements Supplier<VectFunction>
     public int comps = 1;
     public double lambda = 0.001;
     public double power = 1;
+    public boolean lm = false;
 
     public VectFunction get()
     {
@@ -92,6 +96,7 @@ public class FitFibersSimplexNLLS implements Supplier<VectFunction>
         lls.gradients = this.gradients;
         final VectFunction initter = lls.get();
         final VectFunction synther = Fibers.synther(this.comps, this.gradients);
+        final boolean levmar = this.lm && this.cost == CostType.SE;
 
         return new VectFunction()
         {
@@ -108,6 +113,17 @@ public class FitFibersSimplexNLLS implements Supplier<VectFunction>
                 double[] x = initParam.toArray();
                 final int mdim = (FitFibersSimplexNLLS.this.comps + 1) * 2;
 
+                if (levmar)
+                {
+                    optimize(s0, input, x);
+
+                    Fibers modelNLLS = model(new Vect(x));
+                    modelNLLS.setBaseline(modelNLLS.getBaseline() * s0);
+                    output.set(modelNLLS.getEncoding());
+
+                    return;
+                }
+
                 Calcfc func = new Calcfc()
                 {
                     @Override
@@ -152,6 +168,149 @@ public class FitFibersSimplexNLLS implements Supplier<VectFunction>
         }.init(this.gradients.size(), new Fibers(this.comps).getEncodingSize());
     }
 
+    /**
+     * minimize the same cost as the simplex search with Levenberg-Marquardt.
+     * The residuals are scaled by the baseline, and the sparsity penalty is
+     * included as one more residual whose square equals the penalty.  The
+     * diffusivity and fractions are bounded, and the fractions are rescaled
+     * when their sum exceeds one.
+     */
+    private void optimize(final double s0, Vect input, double[] x)
+    {
+        final int comps = this.comps;
+        final int num = this.gradients.size();
+        final int dim = 2 + 3 * comps;
+        final int edim = Fibers.size(comps);
+        final double lambda = this.lambda;
+        final double power = this.power;
+        final JacobianFunction synther = Fibers.jacobian(comps, this.gradients);
+        final double[] meas = input.toArray();
+        final double[] enc = new double[edim];
+        final double[] jenc = new double[num * edim];
+
+        JacobianFunction residuals = new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return dim;
+            }
+
+            public int getDimOut()
+            {
+                return num + 1;
+            }
+
+            public void apply(double[] x, double[] output, double[] jacobian)
+            {
+                enc[0] = x[0] * s0;
+                enc[1] = x[1] / DIFF_SCALE;
+
+                for (int j = 0; j < comps; j++)
+                {
+                    double theta = x[2 + 3 * j + 1];
+                    double phi = x[2 + 3 * j + 2];
+
+                    int idx = 2 + 6 * j;
+                    enc[idx] = x[2 + 3 * j];
+                    enc[idx + 3] = Math.sin(theta) * Math.cos(phi);
+                    enc[idx + 4] = Math.sin(theta) * Math.sin(phi);
+                    enc[idx + 5] = Math.cos(theta);
+                }
+
+                synther.apply(enc, output, jacobian == null ? null : jenc);
+
+                for (int i = 0; i < num; i++)
+                {
+                    output[i] = (output[i] - meas[i]) / s0;
+                }
+
+                double penalty = Global.DELTA;
+                for (int j = 0; j < comps; j++)
+                {
+                    penalty += lambda * Math.pow(Math.max(x[2 + 3 * j], 0), power);
+                }
+                penalty = Math.sqrt(penalty);
+                output[num] = penalty;
+
+                if (jacobian != null)
+                {
+                    for (int i = 0; i < num; i++)
+                    {
+                        int eoff = i * edim;
+                        int joff = i * dim;
+
+                        jacobian[joff] = jenc[eoff];
+                        jacobian[joff + 1] = jenc[eoff + 1] / DIFF_SCALE / s0;
+
+                        for (int j = 0; j < comps; j++)
+                        {
+                            double theta = x[2 + 3 * j + 1];
+                            double phi = x[2 + 3 * j + 2];
+                            double ct = Math.cos(theta);
+                            double st = Math.sin(theta);
+                            double cp = Math.cos(phi);
+                            double sp = Math.sin(phi);
+
+                            int idx = eoff + 2 + 6 * j;
+                            double dx = jenc[idx + 3];
+                            double dy = jenc[idx + 4];
+                            double dz = jenc[idx + 5];
+
+                            jacobian[joff + 2 + 3 * j] = jenc[idx] / s0;
+                            jacobian[joff + 2 + 3 * j + 1] = (dx * ct * cp + dy * ct * sp - dz * st) / s0;
+                            jacobian[joff + 2 + 3 * j + 2] = (-dx * st * sp + dy * st * cp) / s0;
+                        }
+                    }
+
+                    int poff = num * dim;
+                    jacobian[poff] = 0;
+                    jacobian[poff + 1] = 0;
+                    for (int j = 0; j < comps; j++)
+                    {
+                        double frac = Math.max(x[2 + 3 * j], Global.DELTA);
+                        jacobian[poff + 2 + 3 * j] = lambda * power * Math.pow(frac, power - 1) / (2.0 * penalty);
+                        jacobian[poff + 2 + 3 * j + 1] = 0;
+                        jacobian[poff + 2 + 3 * j + 2] = 0;
+                    }
+                }
+            }
+        };
+
+        double[] lower = new double[dim];
+        double[] upper = new double[dim];
+        Arrays.fill(lower, Double.NEGATIVE_INFINITY);
+        Arrays.fill(upper, Double.POSITIVE_INFINITY);
+        lower[1] = 0;
+        for (int j = 0; j < comps; j++)
+        {
+            lower[2 + 3 * j] = 0;
+            upper[2 + 3 * j] = 1;
+        }
+
+        LevenbergMarquardt solver = new LevenbergMarquardt(residuals);
+        solver.withLower(lower).withUpper(upper);
+        solver.withProjection((p) ->
+        {
+            double sum = 0;
+            for (int j = 0; j < comps; j++)
+            {
+                sum += p[2 + 3 * j];
+            }
+
+            if (sum > 1)
+            {
+                for (int j = 0; j < comps; j++)
+                {
+                    p[2 + 3 * j] /= sum;
+                }
+            }
+        });
+
+        double[] param = Arrays.copyOf(x, dim);
+        solver.run(param);
+        System.arraycopy(param, 0, x, 0, dim);
+    }
+
     private Fibers init(Tensor tensor)
     {
         Fibers fibers = new Fibers(FitFibersSimplexNLLS.this.comps);
@@ -83,7 +83,10 @@ public class FitOdfRichardsonLucy
     @ModuleDescription("the number of iterations")
     public int rlditers = DEFAULT_RLDITERS;
 
-    public VectFunction fitter(Gradients gradients, Vects points)
+    /**
+     * @return the deconvolution kernel, which maps an odf sampled at the points to the normalized signal
+     */
+    public Matrix kernel(Gradients gradients, Vects points)
     {
         Global.assume(points != null, "no encoding odf encoding directions were found");
 
@@ -114,6 +117,14 @@ public class FitOdfRichardsonLucy
             }
         }
 
+        return H;
+    }
+
+    public VectFunction fitter(Gradients gradients, Vects points)
+    {
+        final Matrix H = this.kernel(gradients, points);
+        int n = H.cols(); // output odf samples
+
         final Matrix HT = H.transpose();
         final Matrix HTH = HT.times(H);
         final Vect finit = VectSource.createND(n, 1.0 / n);
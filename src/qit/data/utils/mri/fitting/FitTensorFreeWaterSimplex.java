@@ -59,10 +59,13 @@ import qit.data.utils.MatrixUtils;
 import qit.data.utils.mri.CostType;
 import qit.data.utils.mri.ModelUtils;
 import qit.data.utils.mri.structs.Gradients;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 import qit.math.utils.optim.jcobyla.Calcfc;
 import qit.math.utils.optim.jcobyla.Cobyla;
+import qit.math.utils.optim.lm.LevenbergMarquardt;
 
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class FitTensorFreeWaterSimplex implements Supplier<VectFunction>
@@ -78,6 +81,7 @@ public class FitTensorFreeWaterSimplex implements Supplier<VectFunction>
     public CostType cost = DEFAULT_COST;
     public boolean baseline = false;
     public Double prior = 0.5;
+    public boolean lm = false;
 
     public VectFunction get()
     {
@@ -86,6 +90,7 @@ public class FitTensorFreeWaterSimplex implements Supplier<VectFunction>
         lls.gradients = this.gradients;
         final VectFunction initter = lls.get();
         final VectFunction synther = Tensor.synth(this.gradients);
+        final boolean levmar = this.lm && this.cost == CostType.SE;
 
         return new VectFunction()
         {
@@ -99,21 +104,36 @@ public class FitTensorFreeWaterSimplex implements Supplier<VectFunction>
                 int dim = x.length;
                 int cons = 2;
 
-                Calcfc func = new Calcfc()
+                if (levmar)
                 {
-                    @Override
-                    public double Compute(int n, int m, double[] x, double[] con)
+                    double[] lower = new double[dim];
+                    double[] upper = new double[dim];
+                    Arrays.fill(lower, Double.NEGATIVE_INFINITY);
+                    Arrays.fill(upper, Double.POSITIVE_INFINITY);
+                    lower[0] = 0;
+                    upper[0] = 1;
+
+                    LevenbergMarquardt solver = new LevenbergMarquardt(residuals(initModel.baseline(), input));
+                    solver.withLower(lower).withUpper(upper).run(x);
+                }
+                else
+                {
+                    Calcfc func = new Calcfc()
                     {
-                        Tensor model = model(initModel, new Vect(x));
-                        Vect pred = synther.apply(model.getEncoding());
+                        @Override
+                        public double Compute(int n, int m, double[] x, double[] con)
+                        {
+                            Tensor model = model(initModel, new Vect(x));
+                            Vect pred = synther.apply(model.getEncoding());
 
-                        con[0] = model.getFreeWater();
-                        con[1] = 1.0 - model.getFreeWater();
+                            con[0] = model.getFreeWater();
+                            con[1] = 1.0 - model.getFreeWater();
 
-                        return ModelUtils.cost(FitTensorFreeWaterSimplex.this.cost, gradients, input, pred);
-                    }
-                };
-                Cobyla.FindMinimum(func, dim, cons, x, RHOBEG, RHOEND, IPRINT, MAXITER);
+                            return ModelUtils.cost(FitTensorFreeWaterSimplex.this.cost, gradients, input, pred);
+                        }
+                    };
+                    Cobyla.FindMinimum(func, dim, cons, x, RHOBEG, RHOEND, IPRINT, MAXITER);
+                }
 
                 Tensor fitModel = FitTensorFreeWaterSimplex.this.model(initModel, new Vect(x));
                 double fitError = synther.apply(fitModel.getEncoding()).minus(input).norm2();
@@ -131,6 +151,107 @@ public class FitTensorFreeWaterSimplex implements Supplier<VectFunction>
         }.init(this.gradients.size(), new Tensor().getEncodingSize());
     }
 
+    /**
+     * create the residuals of the model computed by model(), including the
+     * free water prior, with derivatives with respect to its parameters
+     */
+    private JacobianFunction residuals(final double baseline, final Vect input)
+    {
+        final JacobianFunction synther = Tensor.jacobian(this.gradients);
+        final int num = this.gradients.size();
+        final int dim = 7;
+        final Double prior = this.prior;
+        final double[] meas = input.toArray();
+        final double[] chol = new double[6];
+        final double[] tissue = new double[6];
+        final double[] enc = new double[Tensor.DT_DIM];
+        final double[] jenc = new double[num * Tensor.DT_DIM];
+        final double[][] deriv = new double[6][6];
+
+        // the parameter index of each Cholesky factor entry, as the param() layout swaps L20 and L21
+        final int[] index = {1, 2, 3, 4, 6, 5};
+
+        // the tensor entries in encoding order that are on the diagonal
+        final boolean[] diag = {true, false, true, false, false, true};
+
+        return new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return dim;
+            }
+
+            public int getDimOut()
+            {
+                return num;
+            }
+
+            public void apply(double[] x, double[] output, double[] jacobian)
+            {
+                double frac = x[0];
+                for (int p = 0; p < 6; p++)
+                {
+                    chol[p] = x[index[p]];
+                }
+
+                FitTensorSimplexNLLS.cholesky(chol, 0, tissue, 0, deriv);
+
+                // the prior mixes the tensor with its mean diffusivity as in model()
+                double mix = 0;
+                double dmix = 0;
+                if (prior != null && frac > prior)
+                {
+                    double lin = (frac - prior) / (1.0 - prior);
+                    mix = lin * lin;
+                    dmix = 2.0 * lin / (1.0 - prior);
+                }
+
+                double mean = (tissue[0] + tissue[2] + tissue[5]) / 3.0;
+
+                enc[Tensor.DT_S0] = baseline;
+                enc[Tensor.DT_FW] = frac;
+                for (int e = 0; e < 6; e++)
+                {
+                    enc[Tensor.DT_XX + e] = (1.0 - mix) * tissue[e] + (diag[e] ? mix * mix * mean : 0);
+                }
+
+                synther.apply(enc, output, jacobian == null ? null : jenc);
+
+                for (int i = 0; i < num; i++)
+                {
+                    output[i] -= meas[i];
+                }
+
+                if (jacobian != null)
+                {
+                    for (int i = 0; i < num; i++)
+                    {
+                        int eoff = i * Tensor.DT_DIM + Tensor.DT_XX;
+
+                        double dfrac = jenc[i * Tensor.DT_DIM + Tensor.DT_FW];
+                        for (int e = 0; e < 6; e++)
+                        {
+                            dfrac += jenc[eoff + e] * dmix * ((diag[e] ? 2.0 * mix * mean : 0) - tissue[e]);
+                        }
+                        jacobian[i * dim] = dfrac;
+
+                        for (int p = 0; p < 6; p++)
+                        {
+                            double dmean = (deriv[p][0] + deriv[p][2] + deriv[p][5]) / 3.0;
+
+                            double sum = 0;
+                            for (int e = 0; e < 6; e++)
+                            {
+                                sum += jenc[eoff + e] * ((1.0 - mix) * deriv[p][e] + (diag[e] ? mix * mix * dmean : 0));
+                            }
+                            jacobian[i * dim + index[p]] = sum;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
     private static Vect param(Tensor tensor)
     {
         Vect out = VectSource.createND(7);
@@ -60,10 +60,13 @@ import qit.data.utils.MatrixUtils;
 import qit.data.utils.mri.CostType;
 import qit.data.utils.mri.ModelUtils;
 import qit.data.utils.mri.structs.Gradients;
+import qit.math.structs.JacobianFunction;
 import qit.math.structs.VectFunction;
 import qit.math.utils.optim.jcobyla.Calcfc;
 import qit.math.utils.optim.jcobyla.Cobyla;
+import qit.math.utils.optim.lm.LevenbergMarquardt;
 
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class FitTensorSimplexNLLS implements Supplier<VectFunction>
@@ -82,6 +85,7 @@ public class FitTensorSimplexNLLS implements Supplier<VectFunction>
     public Gradients gradients;
     public CostType cost = DEFAULT_COST;
     public boolean baseline = false;
+    public boolean lm = false;
 
     public VectFunction get()
     {
@@ -91,6 +95,7 @@ public class FitTensorSimplexNLLS implements Supplier<VectFunction>
         lls.gradients = this.gradients;
         final VectFunction initter = lls.get();
         final VectFunction synther = Tensor.synth(this.gradients);
+        final boolean levmar = this.lm && this.cost == CostType.SE;
 
         return new VectFunction()
         {
@@ -107,22 +112,29 @@ public class FitTensorSimplexNLLS implements Supplier<VectFunction>
                 double[] x = new double[NDIM];
                 paramLLS.get(x);
 
-                Calcfc func = new Calcfc()
+                if (levmar)
                 {
-                    @Override
-                    public double Compute(int n, int m, double[] x, double[] con)
+                    new LevenbergMarquardt(residuals(gradients, baseline, input)).run(x);
+                }
+                else
+                {
+                    Calcfc func = new Calcfc()
                     {
-                        Global.assume(n == NDIM, "invalid value dimension: " + n);
-                        Global.assume(m == MDIM, "invalid constraint dimension: " + m);
+                        @Override
+                        public double Compute(int n, int m, double[] x, double[] con)
+                        {
+                            Global.assume(n == NDIM, "invalid value dimension: " + n);
+                            Global.assume(m == MDIM, "invalid constraint dimension: " + m);
 
-                        Tensor model = model(baseline, new Vect(x));
-                        Vect pred = synther.apply(model.getEncoding());
+                            Tensor model = model(baseline, new Vect(x));
+                            Vect pred = synther.apply(model.getEncoding());
 
-                        double cost = ModelUtils.cost(FitTensorSimplexNLLS.this.cost, gradients, input, pred);
-                        return cost;
-                    }
-                };
-                Cobyla.FindMinimum(func, NDIM, MDIM, x, RHOBEG, RHOEND, IPRINT, MAXITER);
+                            double cost = ModelUtils.cost(FitTensorSimplexNLLS.this.cost, gradients, input, pred);
+                            return cost;
+                        }
+                    };
+                    Cobyla.FindMinimum(func, NDIM, MDIM, x, RHOBEG, RHOEND, IPRINT, MAXITER);
+                }
 
                 Tensor modelNLLS = model(modelLLS.getBaseline(), new Vect(x));
                 double errorNLLS = synther.apply(modelNLLS.getEncoding()).minus(input).norm2();
@@ -140,6 +152,111 @@ public class FitTensorSimplexNLLS implements Supplier<VectFunction>
         }.init(this.gradients.size(), new Tensor().getEncodingSize());
     }
 
+    /**
+     * create the residuals of the Cholesky parameterized tensor model with a fixed baseline
+     */
+    private static JacobianFunction residuals(Gradients gradients, final double baseline, final Vect input)
+    {
+        final JacobianFunction synther = Tensor.jacobian(gradients);
+        final int num = gradients.size();
+        final double[] meas = input.toArray();
+        final double[] enc = new double[Tensor.DT_DIM];
+        final double[] jenc = new double[num * Tensor.DT_DIM];
+        final double[][] deriv = new double[NDIM][NDIM];
+
+        return new JacobianFunction()
+        {
+            public int getDimIn()
+            {
+                return NDIM;
+            }
+
+            public int getDimOut()
+            {
+                return num;
+            }
+
+            public void apply(double[] x, double[] output, double[] jacobian)
+            {
+                enc[Tensor.DT_S0] = baseline;
+                enc[Tensor.DT_FW] = 0;
+                cholesky(x, 0, enc, Tensor.DT_XX, deriv);
+
+                synther.apply(enc, output, jacobian == null ? null : jenc);
+
+                for (int i = 0; i < num; i++)
+                {
+                    output[i] -= meas[i];
+                }
+
+                if (jacobian != null)
+                {
+                    for (int i = 0; i < num; i++)
+                    {
+                        for (int p = 0; p < NDIM; p++)
+                        {
+                            double sum = 0;
+                            for (int e = 0; e < NDIM; e++)
+                            {
+                                sum += jenc[i * Tensor.DT_DIM + Tensor.DT_XX + e] * deriv[p][e];
+                            }
+                            jacobian[i * NDIM + p] = sum;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * compute the tensor entries D = L L^T from the Cholesky factor entries
+     * (L00, L11, L22, L10, L21, L20) stored at the given offset.  The tensor
+     * entries are stored in the order of the tensor encoding (XX, XY, YY, XZ,
+     * YZ, ZZ), and deriv[p][e] is set to the derivative of entry e with respect
+     * to factor entry p.
+     */
+    public static void cholesky(double[] x, int xoff, double[] d, int doff, double[][] deriv)
+    {
+        double l00 = x[xoff];
+        double l11 = x[xoff + 1];
+        double l22 = x[xoff + 2];
+        double l10 = x[xoff + 3];
+        double l21 = x[xoff + 4];
+        double l20 = x[xoff + 5];
+
+        d[doff] = l00 * l00;
+        d[doff + 1] = l00 * l10;
+        d[doff + 2] = l10 * l10 + l11 * l11;
+        d[doff + 3] = l00 * l20;
+        d[doff + 4] = l10 * l20 + l11 * l21;
+        d[doff + 5] = l20 * l20 + l21 * l21 + l22 * l22;
+
+        for (double[] row : deriv)
+        {
+            Arrays.fill(row, 0);
+        }
+
+        deriv[0][0] = 2 * l00;
+        deriv[0][1] = l10;
+        deriv[0][3] = l20;
+
+        deriv[1][2] = 2 * l11;
+        deriv[1][4] = l21;
+
+        deriv[2][5] = 2 * l22;
+
+        deriv[3][1] = l00;
+        deriv[3][2] = 2 * l10;
+        deriv[3][4] = l20;
+
+        deriv[4][4] = l11;
+        deriv[4][5] = 2 * l21;
+
+        deriv[5][3] = l00;
+        deriv[5][4] = l10;
+        deriv[5][5] = 2 * l20;
+    }
+
     private static Vect param(Tensor tensor)
     {
         Vect out = VectSource.createND(6);
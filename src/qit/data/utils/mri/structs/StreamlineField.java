@@ -59,6 +59,13 @@ public abstract class StreamlineField
 {
     public abstract List<StreamSample> getSamples(Vect pos);
 
+    // the samples that may be within the given angle (in degrees) of a line, which fields can use to skip
+    // directions that the tracker would reject anyway (the tracker still checks the angle of each sample)
+    public List<StreamSample> getSamples(Vect pos, Vect dir, double angle)
+    {
+        return this.getSamples(pos);
+    }
+
     // the default attribute for terminating tracking
     public abstract String getAttr();
 
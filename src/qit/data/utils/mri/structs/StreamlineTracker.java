@@ -493,7 +493,7 @@ public class StreamlineTracker
         List<StreamlineField.StreamSample> samples = Lists.newArrayList();
 
         // select samples below the angle threshold
-        for (StreamlineField.StreamSample f : this.field.getSamples(pos))
+        for (StreamlineField.StreamSample f : this.field.getSamples(pos, dir, this.angle))
         {
             if (!this.valid(f))
             {
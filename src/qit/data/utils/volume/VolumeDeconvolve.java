@@ -0,0 +1,582 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Matrix;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.utils.mri.structs.Gradients;
+import qit.math.structs.VectFunction;
+import qit.math.utils.MathUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * batched Richardson-Lucy spherical deconvolution.  Voxels are processed in
+ * blocks, where the odfs of a block are stored as the columns of a matrix, so
+ * each iteration is a single matrix-matrix product with the normal matrix of
+ * the kernel instead of one matrix-vector product per voxel.  The kernel
+ * products are computed once, and a voxel is dropped from its block once the
+ * change in its odf relative to the odf mass falls below the tolerance.  With
+ * a zero tolerance, the results match FitOdfRichardsonLucy.  An optional
+ * transform is applied to each odf, e.g. to compute spherical harmonic
+ * coefficients, and if no kernel is given, only the transform is applied to
+ * the input.
+ */
+public class VolumeDeconvolve
+{
+    public static final int DEFAULT_BLOCK = 64;
+
+    private Volume input;
+    private Mask mask;
+    private Gradients gradients;
+    private VectFunction subset;
+    private Matrix kernel;
+    private Matrix transform;
+    private int iters = 500;
+    private double tol = 0;
+    private int block = DEFAULT_BLOCK;
+    private int threads = 1;
+
+    private Volume output;
+
+    public VolumeDeconvolve withInput(Volume v)
+    {
+        this.input = v;
+        return this;
+    }
+
+    public VolumeDeconvolve withMask(Mask v)
+    {
+        this.mask = v;
+        return this;
+    }
+
+    /**
+     * @param v the gradients used to normalize the signal by the baseline
+     */
+    public VolumeDeconvolve withGradients(Gradients v)
+    {
+        this.gradients = v;
+        return this;
+    }
+
+    /**
+     * @param v a function applied to each input signal before normalization, e.g. to select channels
+     */
+    public VolumeDeconvolve withSubset(VectFunction v)
+    {
+        this.subset = v;
+        return this;
+    }
+
+    /**
+     * @param v the kernel that maps the odf to the normalized signal
+     */
+    public VolumeDeconvolve withKernel(Matrix v)
+    {
+        this.kernel = v;
+        return this;
+    }
+
+    /**
+     * @param v a linear transform applied to each odf
+     */
+    public VolumeDeconvolve withTransform(Matrix v)
+    {
+        this.transform = v;
+        return this;
+    }
+
+    public VolumeDeconvolve withIters(int v)
+    {
+        this.iters = v;
+        return this;
+    }
+
+    public VolumeDeconvolve withTol(double v)
+    {
+        this.tol = v;
+        return this;
+    }
+
+    public VolumeDeconvolve withBlock(int v)
+    {
+        this.block = v;
+        return this;
+    }
+
+    public VolumeDeconvolve withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    public Volume getOutput()
+    {
+        return this.output;
+    }
+
+    public VolumeDeconvolve run()
+    {
+        Global.assume(this.input != null, "input is required");
+        Global.assume(this.kernel != null || this.transform != null, "a kernel or transform is required");
+        Global.assume(this.block > 0, "block size must be positive");
+
+        final int m = this.kernel != null ? this.kernel.rows() : this.transform.cols();
+        final int n = this.kernel != null ? this.kernel.cols() : m;
+        final int dim = this.transform != null ? this.transform.rows() : n;
+
+        Global.assume(this.transform == null || this.transform.cols() == n, "transform does not match the odf dimension");
+        Global.assume(this.subset != null || this.input.getDim() == m, "channel mismatch");
+        Global.assume(this.subset == null || this.subset.getDimOut() == m, "channel mismatch");
+
+        final double[] H = flatten(this.kernel);
+        final double[] HTH = this.kernel != null ? flatten(this.kernel.transpose().times(this.kernel)) : null;
+        final double[] T = flatten(this.transform);
+        final int[] baseline = this.kernel != null && this.gradients != null ? baseline(this.gradients) : null;
+
+        int size = this.input.getSampling().size();
+        int count = 0;
+        final int[] voxels = new int[size];
+        for (int idx = 0; idx < size; idx++)
+        {
+            if (this.input.valid(idx, this.mask))
+            {
+                voxels[count++] = idx;
+            }
+        }
+
+        this.output = this.input.proto(dim);
+
+        Logging.info(String.format("started batched deconvolution of %d voxels", count));
+
+        int num = (count + this.block - 1) / this.block;
+        if (this.threads <= 1)
+        {
+            Block worker = new Block(m, n, dim, H, HTH, T, baseline);
+            for (int b = 0; b < num; b++)
+            {
+                worker.run(voxels, b * this.block, Math.min(count, (b + 1) * this.block));
+            }
+        }
+        else
+        {
+            ExecutorService exec = Executors.newFixedThreadPool(this.threads);
+
+            for (int b = 0; b < num; b++)
+            {
+                final int start = b * this.block;
+                final int end = Math.min(count, (b + 1) * this.block);
+                exec.execute(() -> new Block(m, n, dim, H, HTH, T, baseline).run(voxels, start, end));
+            }
+
+            exec.shutdown();
+            try
+            {
+                exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Logging.error("failed to execute in concurrent mode");
+            }
+        }
+
+        Logging.info("finished batched deconvolution");
+
+        return this;
+    }
+
+    private static double[] flatten(Matrix matrix)
+    {
+        if (matrix == null)
+        {
+            return null;
+        }
+
+        int rows = matrix.rows();
+        int cols = matrix.cols();
+        double[] out = new double[rows * cols];
+        for (int i = 0; i < rows; i++)
+        {
+            for (int j = 0; j < cols; j++)
+            {
+                out[i * cols + j] = matrix.get(i, j);
+            }
+        }
+
+        return out;
+    }
+
+    private static int[] baseline(Gradients gradients)
+    {
+        List<Integer> idx = gradients.getBaselineIdx();
+        int[] out = new int[idx.size()];
+        for (int i = 0; i < out.length; i++)
+        {
+            out[i] = idx.get(i);
+        }
+
+        return out;
+    }
+
+    /**
+     * the buffers for processing one block of voxels, which are stored in
+     * row-major order with one column per voxel, so the inner loops run over
+     * contiguous voxels
+     */
+    private class Block
+    {
+        final int m;
+        final int n;
+        final int dim;
+        final int width;
+        final double[] H;
+        final double[] HTH;
+        final double[] T;
+        final int[] baseline;
+
+        final double[] signal;
+        final double[] odf;
+        final double[] hts;
+        final double[] hthf;
+        final int[] columns;
+
+        Block(int m, int n, int dim, double[] H, double[] HTH, double[] T, int[] baseline)
+        {
+            this.m = m;
+            this.n = n;
+            this.dim = dim;
+            this.width = VolumeDeconvolve.this.block;
+            this.H = H;
+            this.HTH = HTH;
+            this.T = T;
+            this.baseline = baseline;
+
+            this.signal = new double[m * this.width];
+            this.odf = new double[n * this.width];
+            this.hts = HTH != null ? new double[n * this.width] : null;
+            this.hthf = HTH != null ? new double[n * this.width] : null;
+            this.columns = new int[this.width];
+        }
+
+        void run(int[] voxels, int start, int end)
+        {
+            int active = end - start;
+            for (int c = 0; c < active; c++)
+            {
+                this.columns[c] = voxels[start + c];
+                this.load(c, voxels[start + c]);
+            }
+
+            if (this.HTH == null)
+            {
+                for (int c = 0; c < active; c++)
+                {
+                    this.store(this.signal, c);
+                }
+
+                return;
+            }
+
+            this.init(active);
+
+            int iters = VolumeDeconvolve.this.iters;
+            double tol = VolumeDeconvolve.this.tol;
+            for (int iter = 0; iter < iters && active > 0; iter++)
+            {
+                this.product(active);
+
+                for (int c = 0; c < active; c++)
+                {
+                    double change = this.update(c);
+
+                    if (change < tol)
+                    {
+                        // the voxel has converged, so move the last active voxel into its column
+                        this.store(this.odf, c);
+                        active -= 1;
+                        this.move(active, c);
+                        c -= 1;
+                    }
+                }
+            }
+
+            for (int c = 0; c < active; c++)
+            {
+                this.store(this.odf, c);
+            }
+        }
+
+        private void load(int c, int idx)
+        {
+            Volume input = VolumeDeconvolve.this.input;
+            VectFunction subset = VolumeDeconvolve.this.subset;
+            int w = this.width;
+
+            if (subset != null)
+            {
+                Vect s = subset.apply(input.get(idx));
+                for (int j = 0; j < this.m; j++)
+                {
+                    this.signal[j * w + c] = s.get(j);
+                }
+            }
+            else
+            {
+                for (int j = 0; j < this.m; j++)
+                {
+                    this.signal[j * w + c] = input.get(idx, j);
+                }
+            }
+
+            if (this.baseline != null)
+            {
+                // normalize by the mean baseline signal, matching Gradients.norm()
+                double sum = 0;
+                for (int j : this.baseline)
+                {
+                    sum += this.signal[j * w + c];
+                }
+                double zero = sum / this.baseline.length;
+
+                if (MathUtils.nonzero(zero))
+                {
+                    for (int j = 0; j < this.m; j++)
+                    {
+                        this.signal[j * w + c] /= zero;
+                    }
+                }
+            }
+        }
+
+        private void init(int active)
+        {
+            int w = this.width;
+            int n = this.n;
+
+            Arrays.fill(this.hts, 0);
+            for (int j = 0; j < this.m; j++)
+            {
+                int soff = j * w;
+                int hoff = j * n;
+                for (int i = 0; i < n; i++)
+                {
+                    double h = this.H[hoff + i];
+                    int off = i * w;
+                    for (int c = 0; c < active; c++)
+                    {
+                        this.hts[off + c] += h * this.signal[soff + c];
+                    }
+                }
+            }
+
+            double finit = 1.0 / n;
+            for (int i = 0; i < n; i++)
+            {
+                Arrays.fill(this.odf, i * w, i * w + active, finit);
+            }
+        }
+
+        private void product(int active)
+        {
+            int w = this.width;
+            int n = this.n;
+            double[] HTH = this.HTH;
+            double[] odf = this.odf;
+            double[] out = this.hthf;
+
+            // two output rows and four odf rows are accumulated at a time, which
+            // reduces the memory traffic per multiply-add
+            int i = 0;
+            for (; i + 1 < n; i += 2)
+            {
+                int a = i * w;
+                int b = a + w;
+                int ha = i * n;
+                int hb = ha + n;
+                Arrays.fill(out, a, a + active, 0);
+                Arrays.fill(out, b, b + active, 0);
+
+                int k = 0;
+                for (; k + 3 < n; k += 4)
+                {
+                    double a0 = HTH[ha + k];
+                    double a1 = HTH[ha + k + 1];
+                    double a2 = HTH[ha + k + 2];
+                    double a3 = HTH[ha + k + 3];
+                    double b0 = HTH[hb + k];
+                    double b1 = HTH[hb + k + 1];
+                    double b2 = HTH[hb + k + 2];
+                    double b3 = HTH[hb + k + 3];
+                    int k0 = k * w;
+                    int k1 = k0 + w;
+                    int k2 = k1 + w;
+                    int k3 = k2 + w;
+                    for (int c = 0; c < active; c++)
+                    {
+                        double f0 = odf[k0 + c];
+                        double f1 = odf[k1 + c];
+                        double f2 = odf[k2 + c];
+                        double f3 = odf[k3 + c];
+                        out[a + c] += a0 * f0 + a1 * f1 + a2 * f2 + a3 * f3;
+                        out[b + c] += b0 * f0 + b1 * f1 + b2 * f2 + b3 * f3;
+                    }
+                }
+
+                for (; k < n; k++)
+                {
+                    double ak = HTH[ha + k];
+                    double bk = HTH[hb + k];
+                    int koff = k * w;
+                    for (int c = 0; c < active; c++)
+                    {
+                        double f = odf[koff + c];
+                        out[a + c] += ak * f;
+                        out[b + c] += bk * f;
+                    }
+                }
+            }
+
+            for (; i < n; i++)
+            {
+                int a = i * w;
+                int ha = i * n;
+                Arrays.fill(out, a, a + active, 0);
+
+                for (int k = 0; k < n; k++)
+                {
+                    double ak = HTH[ha + k];
+                    int koff = k * w;
+                    for (int c = 0; c < active; c++)
+                    {
+                        out[a + c] += ak * odf[koff + c];
+                    }
+                }
+            }
+        }
+
+        /**
+         * apply the multiplicative update to a column
+         *
+         * @return the change in the odf relative to its total mass
+         */
+        private double update(int c)
+        {
+            int w = this.width;
+            double change = 0;
+            double total = 0;
+
+            for (int i = 0; i < this.n; i++)
+            {
+                int idx = i * w + c;
+                double d = this.hthf[idx];
+                double u = MathUtils.nonzero(d) ? this.hts[idx] / d : this.hts[idx];
+
+                double prev = this.odf[idx];
+                double next = prev * u;
+                this.odf[idx] = next;
+
+                change += Math.abs(next - prev);
+                total += Math.abs(next);
+            }
+
+            return MathUtils.nonzero(total) ? change / total : 0;
+        }
+
+        private void move(int from, int to)
+        {
+            int w = this.width;
+            for (int i = 0; i < this.n; i++)
+            {
+                this.odf[i * w + to] = this.odf[i * w + from];
+                this.hts[i * w + to] = this.hts[i * w + from];
+                this.hthf[i * w + to] = this.hthf[i * w + from];
+            }
+
+            this.columns[to] = this.columns[from];
+        }
+
+        private void store(double[] values, int c)
+        {
+            int w = this.width;
+            int cols = this.T != null ? this.T.length / this.dim : this.dim;
+            int idx = this.columns[c];
+            Volume output = VolumeDeconvolve.this.output;
+
+            for (int o = 0; o < this.dim; o++)
+            {
+                double v = 0;
+                if (this.T != null)
+                {
+                    int off = o * cols;
+                    for (int i = 0; i < cols; i++)
+                    {
+                        v += this.T[off + i] * values[i * w + c];
+                    }
+                }
+                else
+                {
+                    v = values[o * w + c];
+                }
+
+                output.set(idx, o, v);
+            }
+        }
+    }
+}
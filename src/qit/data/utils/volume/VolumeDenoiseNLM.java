@@ -0,0 +1,771 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import com.google.common.collect.Lists;
+import numerics.BesselFunctions;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.base.structs.Integers;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Volume;
+import qit.data.modules.volume.VolumeFilterGaussian;
+import qit.data.source.VolumeSource;
+import qit.math.utils.MathUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * a fast non-local means filter that computes patch distances with box sums.
+ * For each search offset, the squared differences between the volume and its
+ * shifted copy are summed over every patch at once with separable running
+ * sums, so the cost does not depend on the patch size.  Patches are aggregated
+ * blockwise, i.e. each weighted neighbor patch contributes to every voxel of
+ * the center patch, which amounts to a second box sum of the normalized
+ * weights for each offset.  Neighbors are pre-selected with the same local
+ * mean and variance ratio tests as the adaptive filter, and the bandwidth is
+ * either fixed or estimated from the local residuals.  Each voxel line and
+ * slice is independent, so the box sums and weights are split across a thread
+ * pool.
+ */
+public class VolumeDenoiseNLM
+{
+    private Volume input;
+    private Mask mask;
+    private Integer channel;
+    private Integers patch = new Integers(1, 1, 1);
+    private Integers search = new Integers(2, 2, 2);
+    private Integers stats = new Integers(2, 2, 2);
+    private Double h = null;
+    private double epsilon = 0.00001;
+    private double meanThresh = 0.95;
+    private double varThresh = 0.5;
+    private double factor = 1.0;
+    private boolean rician = false;
+    private int threads = 1;
+
+    private Volume output;
+    private Volume noise;
+
+    private Sampling sampling;
+    private ExecutorService exec;
+
+    public VolumeDenoiseNLM withInput(Volume v)
+    {
+        this.input = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withMask(Mask v)
+    {
+        this.mask = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withChannel(Integer v)
+    {
+        this.channel = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withPatch(Integers v)
+    {
+        this.patch = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withSearch(Integers v)
+    {
+        this.search = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withStats(Integers v)
+    {
+        this.stats = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withH(Double v)
+    {
+        this.h = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withEpsilon(double v)
+    {
+        this.epsilon = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withMeanThresh(double v)
+    {
+        this.meanThresh = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withVarThresh(double v)
+    {
+        this.varThresh = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withFactor(double v)
+    {
+        this.factor = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withRician(boolean v)
+    {
+        this.rician = v;
+        return this;
+    }
+
+    public VolumeDenoiseNLM withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    public Volume getOutput()
+    {
+        return this.output;
+    }
+
+    public Volume getNoise()
+    {
+        return this.noise;
+    }
+
+    public VolumeDenoiseNLM run()
+    {
+        Global.assume(this.input != null, "input is required");
+        Global.assume(this.patch.size() == 3 && this.search.size() == 3 && this.stats.size() == 3, "invalid radii");
+
+        this.sampling = this.input.getSampling();
+        this.output = VolumeSource.create(this.sampling, this.input.getDim());
+        this.noise = VolumeSource.create(this.sampling, 1);
+        this.exec = this.threads > 1 ? Executors.newFixedThreadPool(this.threads) : null;
+
+        try
+        {
+            for (int d = 0; d < this.input.getDim(); d++)
+            {
+                Logging.info(String.format("processing subvolume %d/%d", d + 1, this.input.getDim()));
+
+                if (this.channel != null && d != this.channel)
+                {
+                    for (int idx = 0; idx < this.sampling.size(); idx++)
+                    {
+                        if (this.input.valid(idx, this.mask))
+                        {
+                            this.output.set(idx, d, this.input.get(idx, d));
+                        }
+                    }
+                }
+                else
+                {
+                    this.process(d);
+                }
+            }
+        }
+        finally
+        {
+            if (this.exec != null)
+            {
+                this.exec.shutdown();
+            }
+        }
+
+        return this;
+    }
+
+    private void process(int channel)
+    {
+        final int num = this.sampling.size();
+        final boolean fixed = this.h != null;
+
+        final boolean[] valid = new boolean[num];
+        final float[] values = new float[num];
+        for (int idx = 0; idx < num; idx++)
+        {
+            valid[idx] = this.input.valid(idx, this.mask);
+            values[idx] = (float) this.input.get(idx, channel);
+        }
+
+        final float[] bufA = new float[num];
+        final float[] bufB = new float[num];
+        final float[] bufC = new float[num];
+
+        Logging.info("... computing volume statistics");
+        final float[] means = new float[num];
+        final float[] vars = new float[num];
+        {
+            this.slices((i, j, k, idx) ->
+            {
+                float v = valid[idx] ? values[idx] : 0;
+                bufA[idx] = valid[idx] ? 1 : 0;
+                means[idx] = v;
+                vars[idx] = v * v;
+            });
+
+            this.box(bufA, bufA, this.stats);
+            this.box(means, means, this.stats);
+            this.box(vars, vars, this.stats);
+
+            this.slices((i, j, k, idx) ->
+            {
+                if (valid[idx] && bufA[idx] > 0)
+                {
+                    float mean = means[idx] / bufA[idx];
+                    means[idx] = mean;
+                    vars[idx] = Math.max(0, vars[idx] / bufA[idx] - mean * mean);
+                }
+                else
+                {
+                    means[idx] = 0;
+                    vars[idx] = 0;
+                }
+            });
+        }
+
+        double maxValue = Double.MIN_VALUE;
+        for (int idx = 0; idx < num; idx++)
+        {
+            if (valid[idx])
+            {
+                maxValue = Math.max(maxValue, values[idx]);
+            }
+        }
+        final double maxGlobal = maxValue;
+
+        // centers with a flat neighborhood are only averaged over their own patch
+        final boolean[] low = new boolean[num];
+        for (int idx = 0; idx < num; idx++)
+        {
+            double mean = means[idx];
+            double cv = MathUtils.zero(mean) ? 0 : vars[idx] / mean;
+            low[idx] = mean <= this.epsilon || cv <= this.epsilon;
+        }
+
+        // the patch features are either the raw values or the residuals from the local mean
+        final float[] features = new float[num];
+        for (int idx = 0; idx < num; idx++)
+        {
+            features[idx] = fixed ? values[idx] : values[idx] - means[idx];
+        }
+
+        final List<int[]> offsets = Lists.newArrayList();
+        for (int k = -this.search.getK(); k <= this.search.getK(); k++)
+        {
+            for (int j = -this.search.getJ(); j <= this.search.getJ(); j++)
+            {
+                for (int i = -this.search.getI(); i <= this.search.getI(); i++)
+                {
+                    if (i != 0 || j != 0 || k != 0)
+                    {
+                        offsets.add(new int[]{i, j, k});
+                    }
+                }
+            }
+        }
+
+        final float[] noises = new float[num];
+        final float[] bands = new float[num];
+        if (fixed)
+        {
+            Arrays.fill(bands, (float) (this.factor * this.h * this.h));
+        }
+        else
+        {
+            Logging.info("... estimating noise");
+
+            // the mean squared residual of the patch around each voxel
+            this.slices((i, j, k, idx) ->
+            {
+                float r = features[idx];
+                bufA[idx] = valid[idx] ? r * r : 0;
+                bufB[idx] = valid[idx] ? 1 : 0;
+            });
+            this.box(bufA, bufA, this.patch);
+            this.box(bufB, bufB, this.patch);
+
+            final float[] resid = bufA;
+            this.slices((i, j, k, idx) ->
+            {
+                resid[idx] = bufB[idx] > 0 ? resid[idx] / bufB[idx] : Float.POSITIVE_INFINITY;
+                noises[idx] = Float.POSITIVE_INFINITY;
+            });
+
+            for (final int[] offset : offsets)
+            {
+                this.slices((i, j, k, idx) ->
+                {
+                    int sidx = this.shift(i, j, k, offset);
+                    if (sidx < 0 || !valid[idx] || low[idx] || !valid[sidx])
+                    {
+                        return;
+                    }
+
+                    if (means[sidx] <= this.epsilon || vars[sidx] <= this.epsilon)
+                    {
+                        return;
+                    }
+
+                    if (this.select(means, vars, maxGlobal, idx, sidx))
+                    {
+                        noises[idx] = Math.min(noises[idx], resid[sidx]);
+                    }
+                });
+            }
+
+            for (int idx = 0; idx < num; idx++)
+            {
+                if (!valid[idx] || low[idx])
+                {
+                    noises[idx] = 0;
+                }
+                else if (!Float.isFinite(noises[idx]))
+                {
+                    noises[idx] = 1.0f;
+                }
+
+                bands[idx] = (float) (this.factor * noises[idx]);
+            }
+        }
+
+        Logging.info("... computing patch weights");
+        final float[] sums = new float[num];
+        final float[] maxes = new float[num];
+        for (int n = 0; n < offsets.size(); n++)
+        {
+            Logging.infosub("...... processing offset %d of %d", n + 1, offsets.size());
+
+            final int[] offset = offsets.get(n);
+            this.distance(offset, features, valid, bufA, bufB);
+
+            this.slices((i, j, k, idx) ->
+            {
+                double weight = this.weight(offset, valid, low, means, vars, bands, bufA, maxGlobal, i, j, k, idx);
+                sums[idx] += weight;
+                maxes[idx] = (float) Math.max(maxes[idx], weight);
+            });
+        }
+
+        // the center patch is included with the largest weight of its neighbors
+        final float[] totals = sums;
+        final float[] selfs = maxes;
+        for (int idx = 0; idx < num; idx++)
+        {
+            if (!valid[idx])
+            {
+                totals[idx] = 1;
+                selfs[idx] = 0;
+            }
+            else if (low[idx])
+            {
+                totals[idx] = 1;
+                selfs[idx] = 1;
+            }
+            else
+            {
+                float maxWeight = MathUtils.zero(maxes[idx]) ? 1.0f : maxes[idx];
+                totals[idx] = sums[idx] + maxWeight;
+                selfs[idx] = maxWeight / totals[idx];
+            }
+        }
+
+        Logging.info("... aggregating patches");
+        final double[] estimates = new double[num];
+        for (int n = 0; n < offsets.size(); n++)
+        {
+            Logging.infosub("...... processing offset %d of %d", n + 1, offsets.size());
+
+            final int[] offset = offsets.get(n);
+            this.distance(offset, features, valid, bufA, bufB);
+
+            this.slices((i, j, k, idx) ->
+            {
+                double weight = this.weight(offset, valid, low, means, vars, bands, bufA, maxGlobal, i, j, k, idx);
+                bufC[idx] = (float) (weight / totals[idx]);
+            });
+            this.box(bufC, bufC, this.patch);
+
+            this.slices((i, j, k, idx) ->
+            {
+                int sidx = this.shift(i, j, k, offset);
+                if (sidx >= 0 && valid[idx] && valid[sidx])
+                {
+                    estimates[idx] += bufC[idx] * this.value(values[sidx]);
+                }
+            });
+        }
+
+        this.box(selfs, selfs, this.patch);
+
+        final float[] counts = bufA;
+        for (int idx = 0; idx < num; idx++)
+        {
+            counts[idx] = valid[idx] ? 1 : 0;
+        }
+        this.box(counts, counts, this.patch);
+
+        for (int idx = 0; idx < num; idx++)
+        {
+            if (valid[idx] && MathUtils.nonzero(counts[idx]))
+            {
+                double estimate = estimates[idx] + selfs[idx] * this.value(values[idx]);
+                this.output.set(idx, channel, estimate / counts[idx]);
+                this.noise.set(idx, 0, this.noise.get(idx, 0) + noises[idx] / this.input.getDim());
+            }
+        }
+
+        if (this.rician)
+        {
+            Logging.info("... removing Rician bias");
+
+            Volume noiseVolume = VolumeSource.create(this.sampling, 1);
+            for (int idx = 0; idx < num; idx++)
+            {
+                noiseVolume.set(idx, 0, noises[idx]);
+            }
+
+            VolumeFilterGaussian smoother = new VolumeFilterGaussian();
+            smoother.input = noiseVolume;
+            smoother.sigma = 1.0;
+            Volume smoothed = smoother.run().output;
+
+            for (int idx = 0; idx < num; idx++)
+            {
+                if (valid[idx])
+                {
+                    double noise = fixed ? this.h : smoothed.get(idx, 0);
+
+                    double snr = means[idx] / Math.sqrt(noise);
+                    double snrsq = snr * snr;
+
+                    double c1 = 2.0 + snrsq;
+                    double c2 = -0.125 * Math.PI * Math.exp(-0.5 * snrsq) * (2.0 + snrsq) * (2.0 + snrsq) * BesselFunctions.besselI0(0.25 * snrsq);
+                    double c3 = snrsq * BesselFunctions.besselI1(0.25 * snrsq);
+                    double sum = c1 + c2 + c3;
+
+                    double corr = 1.0;
+                    if (sum >= 0.001 && sum <= 10)
+                    {
+                        corr = sum;
+                    }
+
+                    double bias = 2.0 * noise / corr;
+
+                    double value = this.output.get(idx, channel);
+                    value -= bias;
+                    value = Math.sqrt(value);
+
+                    this.output.set(idx, channel, value);
+                }
+            }
+        }
+    }
+
+    private double value(double v)
+    {
+        return this.rician ? v * v : v;
+    }
+
+    private boolean select(float[] means, float[] vars, double maxGlobal, int cidx, int sidx)
+    {
+        double meanCenter = means[cidx];
+        double meanNeigh = means[sidx];
+
+        double meanRatio = meanCenter / meanNeigh;
+        double meanRatioInv = (maxGlobal - meanCenter) / (maxGlobal - meanNeigh);
+        double varRatio = vars[cidx] / (double) vars[sidx];
+
+        boolean passMeanRatio = meanRatio > this.meanThresh && meanRatio < 1.0 / this.meanThresh;
+        boolean passMeanRatioInv = meanRatioInv > this.meanThresh && meanRatioInv < 1.0 / this.meanThresh;
+        boolean passVarRatio = varRatio > this.varThresh && varRatio < 1.0 / this.varThresh;
+
+        return (passMeanRatio || passMeanRatioInv) && passVarRatio;
+    }
+
+    private double weight(int[] offset, boolean[] valid, boolean[] low, float[] means, float[] vars, float[] bands, float[] dists, double maxGlobal, int i, int j, int k, int idx)
+    {
+        int sidx = this.shift(i, j, k, offset);
+        if (sidx < 0 || !valid[idx] || low[idx] || !valid[sidx])
+        {
+            return 0;
+        }
+
+        double hh = bands[idx];
+        double dist = dists[idx];
+        if (!(hh > 0) || !(dist <= 3.0 * hh) || !this.select(means, vars, maxGlobal, idx, sidx))
+        {
+            return 0;
+        }
+
+        return Math.exp(-dist / hh);
+    }
+
+    /**
+     * compute the mean squared feature difference between the patch around each
+     * voxel and the patch displaced by the given offset
+     */
+    private void distance(int[] offset, float[] features, boolean[] valid, float[] dists, float[] counts)
+    {
+        this.slices((i, j, k, idx) ->
+        {
+            int sidx = this.shift(i, j, k, offset);
+            if (sidx >= 0 && valid[sidx])
+            {
+                float dv = features[idx] - features[sidx];
+                dists[idx] = dv * dv;
+                counts[idx] = 1;
+            }
+            else
+            {
+                dists[idx] = 0;
+                counts[idx] = 0;
+            }
+        });
+
+        this.box(dists, dists, this.patch);
+        this.box(counts, counts, this.patch);
+
+        this.slices((i, j, k, idx) ->
+        {
+            dists[idx] = counts[idx] > 0 ? dists[idx] / counts[idx] : Float.POSITIVE_INFINITY;
+        });
+    }
+
+    /**
+     * @return the index of the displaced voxel, or -1 if it falls outside the volume
+     */
+    private int shift(int i, int j, int k, int[] offset)
+    {
+        int si = i + offset[0];
+        int sj = j + offset[1];
+        int sk = k + offset[2];
+
+        if (si < 0 || sj < 0 || sk < 0 || si >= this.sampling.numI() || sj >= this.sampling.numJ() || sk >= this.sampling.numK())
+        {
+            return -1;
+        }
+
+        return this.sampling.index(si, sj, sk);
+    }
+
+    /**
+     * sum the values in a box around each voxel, clipped to the volume, using
+     * separable running sums.  The input and output may be the same array.
+     */
+    private void box(float[] in, float[] out, Integers radius)
+    {
+        final int ni = this.sampling.numI();
+        final int nj = this.sampling.numJ();
+        final int nk = this.sampling.numK();
+        final int max = Math.max(ni, Math.max(nj, nk));
+
+        if (in != out)
+        {
+            System.arraycopy(in, 0, out, 0, in.length);
+        }
+
+        if (radius.getI() > 0)
+        {
+            this.parallel(nk, (start, end) ->
+            {
+                double[] line = new double[max];
+                for (int k = start; k < end; k++)
+                {
+                    for (int j = 0; j < nj; j++)
+                    {
+                        line(out, line, this.sampling.index(0, j, k), 1, ni, radius.getI());
+                    }
+                }
+            });
+        }
+
+        if (radius.getJ() > 0)
+        {
+            this.parallel(nk, (start, end) ->
+            {
+                double[] line = new double[max];
+                for (int k = start; k < end; k++)
+                {
+                    for (int i = 0; i < ni; i++)
+                    {
+                        line(out, line, this.sampling.index(i, 0, k), ni, nj, radius.getJ());
+                    }
+                }
+            });
+        }
+
+        if (radius.getK() > 0)
+        {
+            this.parallel(nj, (start, end) ->
+            {
+                double[] line = new double[max];
+                for (int j = start; j < end; j++)
+                {
+                    for (int i = 0; i < ni; i++)
+                    {
+                        line(out, line, this.sampling.index(i, j, 0), ni * nj, nk, radius.getK());
+                    }
+                }
+            });
+        }
+    }
+
+    private static void line(float[] data, double[] line, int base, int stride, int num, int radius)
+    {
+        for (int n = 0; n < num; n++)
+        {
+            line[n] = data[base + n * stride];
+        }
+
+        double sum = 0;
+        for (int n = 0; n <= Math.min(radius, num - 1); n++)
+        {
+            sum += line[n];
+        }
+
+        for (int n = 0; n < num; n++)
+        {
+            data[base + n * stride] = (float) sum;
+
+            if (n + radius + 1 < num)
+            {
+                sum += line[n + radius + 1];
+            }
+
+            if (n - radius >= 0)
+            {
+                sum -= line[n - radius];
+            }
+        }
+    }
+
+    private interface Voxel
+    {
+        void apply(int i, int j, int k, int idx);
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private void slices(Voxel voxel)
+    {
+        final int ni = this.sampling.numI();
+        final int nj = this.sampling.numJ();
+
+        this.parallel(this.sampling.numK(), (start, end) ->
+        {
+            for (int k = start; k < end; k++)
+            {
+                for (int j = 0; j < nj; j++)
+                {
+                    int idx = this.sampling.index(0, j, k);
+                    for (int i = 0; i < ni; i++, idx++)
+                    {
+                        voxel.apply(i, j, k, idx);
+                    }
+                }
+            }
+        });
+    }
+
+    private void parallel(int num, Block block)
+    {
+        if (this.exec == null)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * this.threads);
+        int step = (num + blocks - 1) / Math.max(1, blocks);
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        try
+        {
+            for (Future<Void> future : this.exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+}
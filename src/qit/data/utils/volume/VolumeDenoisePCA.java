@@ -0,0 +1,457 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import Jama.EigenvalueDecomposition;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Volume;
+import qit.data.source.VolumeSource;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * patch-based principal component denoising with Marchenko-Pastur rank
+ * selection.  Patches are centered on a strided grid, and the denoised values
+ * of every voxel in a patch are aggregated with weights that favor patches
+ * with fewer signal components, so each voxel does not need its own
+ * decomposition.  Within a row of patches, the scatter matrix is updated by
+ * removing and adding the slabs that leave and enter the window, and rows are
+ * processed in parallel.
+ */
+public class VolumeDenoisePCA
+{
+    private Volume input;
+    private Mask mask;
+    private int window = 2;
+    private int stride = 2;
+    private boolean center = false;
+    private int threads = 1;
+
+    private Volume output;
+    private Volume noise;
+    private Volume comps;
+
+    public VolumeDenoisePCA withInput(Volume v)
+    {
+        this.input = v;
+        return this;
+    }
+
+    public VolumeDenoisePCA withMask(Mask v)
+    {
+        this.mask = v;
+        return this;
+    }
+
+    public VolumeDenoisePCA withWindow(int v)
+    {
+        this.window = v;
+        return this;
+    }
+
+    public VolumeDenoisePCA withStride(int v)
+    {
+        this.stride = v;
+        return this;
+    }
+
+    public VolumeDenoisePCA withCenter(boolean v)
+    {
+        this.center = v;
+        return this;
+    }
+
+    public VolumeDenoisePCA withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    public Volume getOutput()
+    {
+        return this.output;
+    }
+
+    public Volume getNoise()
+    {
+        return this.noise;
+    }
+
+    public Volume getComps()
+    {
+        return this.comps;
+    }
+
+    public VolumeDenoisePCA run()
+    {
+        Global.assume(this.input != null, "input is required");
+        Global.assume(this.window >= 1, "window must be positive");
+
+        // patches must overlap or touch to cover every voxel
+        int step = Math.max(1, Math.min(this.stride, 2 * this.window + 1));
+
+        final Sampling sampling = this.input.getSampling();
+        final int dim = this.input.getDim();
+
+        this.output = VolumeSource.create(sampling, dim);
+        this.noise = VolumeSource.create(sampling, 1);
+        this.comps = VolumeSource.create(sampling, 1);
+        final float[] weights = new float[sampling.size()];
+
+        final int[] ci = centers(sampling.numI(), this.window, step);
+        final int[] cj = centers(sampling.numJ(), this.window, step);
+        final int[] ck = centers(sampling.numK(), this.window, step);
+
+        // aggregation is guarded by one lock per slice, and only one is held at a time
+        final Object[] locks = new Object[sampling.numK()];
+        for (int k = 0; k < locks.length; k++)
+        {
+            locks[k] = new Object();
+        }
+
+        Logging.info(String.format("started patch denoising with %d patches", ci.length * cj.length * ck.length));
+
+        if (this.threads <= 1)
+        {
+            for (int k : ck)
+            {
+                for (int j : cj)
+                {
+                    new Row(dim, weights, locks).run(ci, j, k);
+                }
+            }
+        }
+        else
+        {
+            ExecutorService exec = Executors.newFixedThreadPool(this.threads);
+
+            for (int k : ck)
+            {
+                for (int j : cj)
+                {
+                    final int fj = j;
+                    final int fk = k;
+                    exec.execute(() -> new Row(dim, weights, locks).run(ci, fj, fk));
+                }
+            }
+
+            exec.shutdown();
+            try
+            {
+                exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Logging.error("failed to execute in concurrent mode");
+            }
+        }
+
+        for (int idx = 0; idx < weights.length; idx++)
+        {
+            double w = weights[idx];
+            if (w > 0)
+            {
+                for (int d = 0; d < dim; d++)
+                {
+                    this.output.set(idx, d, this.output.get(idx, d) / w);
+                }
+                this.noise.set(idx, 0, this.noise.get(idx, 0) / w);
+                this.comps.set(idx, 0, this.comps.get(idx, 0) / w);
+            }
+        }
+
+        Logging.info("finished patch denoising");
+
+        return this;
+    }
+
+    private static int[] centers(int num, int window, int step)
+    {
+        int first = Math.min(window, num - 1);
+        int last = Math.max(first, num - 1 - window);
+        int count = (last - first + step - 1) / step + 1;
+
+        int[] out = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            out[i] = Math.min(first + i * step, last);
+        }
+
+        return out;
+    }
+
+    /**
+     * the buffers for processing one row of patches along the i axis
+     */
+    private class Row
+    {
+        final int dim;
+        final float[] weights;
+        final Object[] locks;
+
+        final double[] scatter;
+        final double[] sum;
+        final double[] voxel;
+        final double[] mean;
+        final double[] coeffs;
+        final double[][] cov;
+        int count = 0;
+
+        Row(int dim, float[] weights, Object[] locks)
+        {
+            this.dim = dim;
+            this.weights = weights;
+            this.locks = locks;
+
+            this.scatter = new double[dim * dim];
+            this.sum = new double[dim];
+            this.voxel = new double[dim];
+            this.mean = new double[dim];
+            this.coeffs = new double[dim];
+            this.cov = new double[dim][dim];
+        }
+
+        void run(int[] ci, int j, int k)
+        {
+            Sampling sampling = VolumeDenoisePCA.this.input.getSampling();
+            int w = VolumeDenoisePCA.this.window;
+
+            int prevMin = 0;
+            int prevMax = -1;
+            for (int c : ci)
+            {
+                int imin = Math.max(0, c - w);
+                int imax = Math.min(sampling.numI() - 1, c + w);
+
+                if (imin > prevMax)
+                {
+                    // no overlap, so start from scratch
+                    Arrays.fill(this.scatter, 0);
+                    Arrays.fill(this.sum, 0);
+                    this.count = 0;
+                    this.update(imin, imax, j, k, 1.0);
+                }
+                else
+                {
+                    this.update(prevMin, imin - 1, j, k, -1.0);
+                    this.update(prevMax + 1, imax, j, k, 1.0);
+                }
+
+                prevMin = imin;
+                prevMax = imax;
+
+                if (this.count > 0)
+                {
+                    this.denoise(imin, imax, j, k);
+                }
+            }
+        }
+
+        private boolean load(int i, int j, int k)
+        {
+            Volume volume = VolumeDenoisePCA.this.input;
+            if (!volume.valid(i, j, k, VolumeDenoisePCA.this.mask))
+            {
+                return false;
+            }
+
+            int idx = volume.getSampling().index(i, j, k);
+            for (int d = 0; d < this.dim; d++)
+            {
+                this.voxel[d] = volume.get(idx, d);
+            }
+
+            return true;
+        }
+
+        private void update(int imin, int imax, int cj, int ck, double sign)
+        {
+            Sampling sampling = VolumeDenoisePCA.this.input.getSampling();
+            int w = VolumeDenoisePCA.this.window;
+
+            for (int k = Math.max(0, ck - w); k <= Math.min(sampling.numK() - 1, ck + w); k++)
+            {
+                for (int j = Math.max(0, cj - w); j <= Math.min(sampling.numJ() - 1, cj + w); j++)
+                {
+                    for (int i = imin; i <= imax; i++)
+                    {
+                        if (this.load(i, j, k))
+                        {
+                            // only the upper triangle of the symmetric scatter matrix is maintained
+                            for (int a = 0; a < this.dim; a++)
+                            {
+                                double va = sign * this.voxel[a];
+                                this.sum[a] += va;
+
+                                int offset = a * this.dim;
+                                for (int b = a; b < this.dim; b++)
+                                {
+                                    this.scatter[offset + b] += va * this.voxel[b];
+                                }
+                            }
+
+                            this.count += sign > 0 ? 1 : -1;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void denoise(int imin, int imax, int cj, int ck)
+        {
+            Sampling sampling = VolumeDenoisePCA.this.input.getSampling();
+            int w = VolumeDenoisePCA.this.window;
+            int m = this.dim;
+            int n = this.count;
+
+            for (int a = 0; a < m; a++)
+            {
+                this.mean[a] = VolumeDenoisePCA.this.center ? this.sum[a] / n : 0;
+            }
+
+            for (int a = 0; a < m; a++)
+            {
+                for (int b = a; b < m; b++)
+                {
+                    double v = this.scatter[a * m + b] - n * this.mean[a] * this.mean[b];
+                    this.cov[a][b] = v;
+                    this.cov[b][a] = v;
+                }
+            }
+
+            // the symmetric eigensolver returns eigenvalues in ascending order
+            EigenvalueDecomposition eig = new Jama.Matrix(this.cov).eig();
+            double[] vals = eig.getRealEigenvalues();
+            double[][] vecs = eig.getV().getArray();
+
+            // Marchenko-Pastur selection over the nonzero part of the spectrum,
+            // where the smallest cutoff components are taken to be noise
+            int r = Math.min(m, n);
+            int first = m - r;
+            double lamr = Math.max(vals[first], 0) / n;
+            double clam = 0;
+            double sigma2 = 0;
+            int cutoff = 0;
+
+            for (int p = 0; p < r; p++)
+            {
+                double lam = Math.max(vals[first + p], 0) / n;
+                clam += lam;
+
+                double gam = (double) (p + 1) / (double) n;
+                double sigsq1 = clam / (p + 1) / Math.max(gam, 1.0);
+                double sigsq2 = (lam - lamr) / 4.0 / Math.sqrt(gam);
+
+                if (sigsq2 < sigsq1)
+                {
+                    sigma2 = sigsq1;
+                    cutoff = p + 1;
+                }
+            }
+
+            int keep = first + cutoff;
+            int signal = m - keep;
+            float weight = (float) (1.0 / (1.0 + signal));
+            double level = Math.sqrt(sigma2);
+
+            Volume output = VolumeDenoisePCA.this.output;
+            for (int k = Math.max(0, ck - w); k <= Math.min(sampling.numK() - 1, ck + w); k++)
+            {
+                synchronized (this.locks[k])
+                {
+                    for (int j = Math.max(0, cj - w); j <= Math.min(sampling.numJ() - 1, cj + w); j++)
+                    {
+                        for (int i = imin; i <= imax; i++)
+                        {
+                            if (!this.load(i, j, k))
+                            {
+                                continue;
+                            }
+
+                            // project onto the signal components
+                            for (int c = keep; c < m; c++)
+                            {
+                                double dot = 0;
+                                for (int a = 0; a < m; a++)
+                                {
+                                    dot += vecs[a][c] * (this.voxel[a] - this.mean[a]);
+                                }
+                                this.coeffs[c] = dot;
+                            }
+
+                            int idx = sampling.index(i, j, k);
+                            for (int a = 0; a < m; a++)
+                            {
+                                double v = this.mean[a];
+                                for (int c = keep; c < m; c++)
+                                {
+                                    v += vecs[a][c] * this.coeffs[c];
+                                }
+
+                                output.set(idx, a, output.get(idx, a) + weight * v);
+                            }
+
+                            VolumeDenoisePCA.this.noise.set(idx, 0, VolumeDenoisePCA.this.noise.get(idx, 0) + weight * level);
+                            VolumeDenoisePCA.this.comps.set(idx, 0, VolumeDenoisePCA.this.comps.get(idx, 0) + weight * signal);
+                            this.weights[idx] += weight;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -52,18 +52,15 @@ package qit.data.utils.volume;
 
 import com.google.common.collect.Lists;
 import qit.base.Global;
-import qit.base.Logging;
+import qit.base.structs.Integers;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
+import qit.data.datasets.Neighborhood;
 import qit.data.datasets.Sampling;
 import qit.data.datasets.Volume;
 import qit.math.utils.MathUtils;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 public class VolumeFilter
 {
@@ -149,175 +146,95 @@ public class VolumeFilter
     {
         Global.assume(this.mask == null || this.mask.getSampling().num().equals(this.input.getSampling().num()), "invalid mask, must match dimensions of the image");
 
-        if (this.threads < 2)
-        {
-            int dim = this.input.getDim();
-            Sampling sampling = this.input.getSampling();
-            Sampling fsampling = this.filter.getSampling();
-            Volume out = this.input.copy();
+        int dim = this.input.getDim();
+        Sampling sampling = this.input.getSampling();
+        Sampling fsampling = this.filter.getSampling();
+        Volume out = this.input.copy();
 
-            int cx = (fsampling.numI() - 1) / 2;
-            int cy = (fsampling.numJ() - 1) / 2;
-            int cz = (fsampling.numK() - 1) / 2;
+        int cx = (fsampling.numI() - 1) / 2;
+        int cy = (fsampling.numJ() - 1) / 2;
+        int cz = (fsampling.numK() - 1) / 2;
 
-            for (int d = 0; d < dim; d++)
+        List<Integers> offsets = Lists.newArrayList();
+        double[] weights = new double[fsampling.size()];
+        for (int k = 0; k < fsampling.numK(); k++)
+        {
+            for (int j = 0; j < fsampling.numJ(); j++)
             {
-                for (Sample sample : sampling)
+                for (int i = 0; i < fsampling.numI(); i++)
                 {
-                    if (!out.valid(sample, this.mask))
-                    {
-                        if (this.pass)
-                        {
-                            out.set(sample, d, this.input.get(sample, d));
-                        }
+                    weights[offsets.size()] = this.filter.get(i, j, k, 0);
+                    offsets.add(new Integers(i - cx, j - cy, k - cz));
+                }
+            }
+        }
 
-                        continue;
-                    }
+        Neighborhood hood = Neighborhood.create(sampling, offsets);
+        int[] offset = hood.offset;
+
+        final Volume finput = this.input;
+        final Mask fmask = this.mask;
+        final Integer fchannel = this.channel;
+        final boolean fpass = this.pass;
+        final boolean fnormalize = this.normalize;
+        final boolean fboundary = this.boundary;
 
-                    if (this.channel != null && d != this.channel)
+        for (int d = 0; d < dim; d++)
+        {
+            final int fd = d;
+            sampling.visit(this.threads, (i, j, k, idx) ->
+            {
+                if (fmask != null && fmask.background(idx))
+                {
+                    if (fpass)
                     {
-                        out.set(sample, d, this.input.get(sample, d));
-                        continue;
+                        out.set(idx, fd, finput.get(idx, fd));
                     }
 
-                    boolean all = true;
+                    return;
+                }
 
-                    double pv = 0;
-                    double sf = 0;
-                    for (Sample fsample : fsampling)
-                    {
-                        int ni = sample.getI() + fsample.getI() - cx;
-                        int nj = sample.getJ() + fsample.getJ() - cy;
-                        int nk = sample.getK() + fsample.getK() - cz;
-                        Sample nsample = new Sample(ni, nj, nk);
-
-                        if (sampling.contains(nsample))
-                        {
-                            double v = this.input.get(nsample, d);
-                            double f = this.filter.get(fsample, 0);
-                            sf += f;
-                            pv += v * f;
-                        }
-                        else
-                        {
-                            all = false;
-                        }
-                    }
+                if (fchannel != null && fd != fchannel)
+                {
+                    out.set(idx, fd, finput.get(idx, fd));
+                    return;
+                }
+
+                boolean interior = hood.interior(i, j, k);
+                boolean all = true;
 
-                    if (this.normalize && !MathUtils.zero(sf))
+                double pv = 0;
+                double sf = 0;
+                for (int n = 0; n < offset.length; n++)
+                {
+                    if (interior || hood.contains(n, i, j, k))
                     {
-                        pv /= sf;
+                        double f = weights[n];
+                        sf += f;
+                        pv += finput.get(idx + offset[n], fd) * f;
                     }
-
-                    if (!all && !this.boundary)
+                    else
                     {
-                        pv = 0;
+                        all = false;
                     }
-
-                    out.set(sample, d, pv);
                 }
-            }
-
-            this.output = out;
-        }
-        else
-        {
-            ExecutorService exec = Executors.newFixedThreadPool(this.threads);
-
-            int dim = this.input.getDim();
-            Sampling sampling = this.input.getSampling();
-            Sampling fsampling = this.filter.getSampling();
-            Volume out = this.input.copy();
 
-            int cx = (fsampling.numI() - 1) / 2;
-            int cy = (fsampling.numJ() - 1) / 2;
-            int cz = (fsampling.numK() - 1) / 2;
-
-            final Volume finput = input;
-            final Mask fmask = this.mask;
-            final Integer fchannel = this.channel;
-            final boolean fpass = this.pass;
-            final boolean fnormalize = this.normalize;
-            final Volume ffilter = this.filter;
-
-            for (int d = 0; d < dim; d++)
-            {
-                final int fd = d;
-                for (int k = 0; k < sampling.numK(); k++)
+                if (fnormalize && !MathUtils.zero(sf))
                 {
-                    final int fk = k;
-
-                    for (int j = 0; j < sampling.numJ(); j++)
-                    {
-                        final int fj = j;
-
-                        Runnable runnable = () ->
-                        {
-                            for (int i = 0; i < sampling.numI(); i++)
-                            {
-                                Sample sample = new Sample(i, fj, fk);
-
-                                if (!out.valid(sample, fmask))
-                                {
-                                    if (fpass)
-                                    {
-                                        out.set(sample, fd, finput.get(sample, fd));
-                                    }
-
-                                    continue;
-                                }
-
-                                if (fchannel != null && fd != fchannel)
-                                {
-                                    out.set(sample, fd, finput.get(sample, fd));
-                                    continue;
-                                }
-
-                                double pv = 0;
-                                double sf = 0;
-                                for (Sample fsample : fsampling)
-                                {
-                                    int ni = sample.getI() + fsample.getI() - cx;
-                                    int nj = sample.getJ() + fsample.getJ() - cy;
-                                    int nk = sample.getK() + fsample.getK() - cz;
-                                    Sample nsample = new Sample(ni, nj, nk);
-
-                                    if (sampling.contains(nsample))
-                                    {
-                                        double v = finput.get(nsample, fd);
-                                        double f = ffilter.get(fsample, 0);
-                                        sf += f;
-                                        pv += v * f;
-                                    }
-                                }
-
-                                if (fnormalize && !MathUtils.zero(sf))
-                                {
-                                    pv /= sf;
-                                }
-
-                                out.set(sample, fd, pv);
-                            }
-                        };
-
-                        exec.execute(runnable);
-                    }
+                    pv /= sf;
                 }
-            }
 
-            exec.shutdown();
-            try
-            {
-                exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            }
-            catch (InterruptedException e)
-            {
-                Logging.error("failed to execute in concurrent mode");
-            }
+                if (!all && !fboundary)
+                {
+                    pv = 0;
+                }
 
-            this.output = out;
+                out.set(idx, fd, pv);
+            });
         }
 
+        this.output = out;
+
         return this;
     }
 
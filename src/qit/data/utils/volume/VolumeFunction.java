@@ -56,6 +56,7 @@ import qit.base.Logging;
 import qit.data.datasets.Mask;
 import qit.data.datasets.Sample;
 import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
 import qit.math.structs.VectFunction;
 
@@ -66,6 +67,9 @@ import java.util.function.Supplier;
 
 public class VolumeFunction
 {
+    // inputs with at least this many channels are interleaved, e.g. diffusion-weighted volumes
+    public static final int INTERLEAVE = 16;
+
     public Supplier<VectFunction> factory;
     public Volume input;
     public Mask mask;
@@ -73,6 +77,7 @@ public class VolumeFunction
     public boolean slice = true;
     public boolean messages = true;
     public boolean chatty = false;
+    public boolean interleave = false;
 
     public VolumeFunction(Supplier<VectFunction> v)
     {
@@ -115,6 +120,16 @@ public class VolumeFunction
         return this;
     }
 
+    /**
+     * @param v whether to read inputs with many channels from an interleaved copy, so each voxel is one contiguous read;
+     *          this is off by default, since the copy doubles the memory used by the input
+     */
+    public VolumeFunction withInterleave(boolean v)
+    {
+        this.interleave = v;
+        return this;
+    }
+
     public Volume run()
     {
         Global.assume(this.input != null, "input is required");
@@ -125,6 +140,9 @@ public class VolumeFunction
         Global.assume(this.input.getDim() == function.getDimIn(), "channel mismatch");
         final Volume out = this.input.proto(function.getDimOut());
 
+        // the input belongs to the caller, so an interleaved layout is only built in a private copy on request
+        final Volume input = this.interleave(this.input);
+
         if (this.messages)
         {
             Logging.info("started applying function to volume");
@@ -132,6 +150,7 @@ public class VolumeFunction
 
         if (this.threads <= 1)
         {
+            Vect buffer = input.dproto();
             for (int k = 0; k < sampling.numK(); k++)
             {
                 if (this.messages)
@@ -141,14 +160,15 @@ public class VolumeFunction
 
                 for (Sample sample : sampling.iterateK(k))
                 {
-                    if (this.input.valid(sample, this.mask))
+                    if (input.valid(sample, this.mask))
                     {
                         if (this.chatty)
                         {
                             Logging.info(String.format("...... processing voxel (%d, %d, %d)", sample.getI(), sample.getJ(), sample.getK()));
                         }
 
-                        out.set(sample, function.apply(this.input.get(sample)));
+                        input.get(sample, buffer);
+                        out.set(sample, function.apply(buffer));
                     }
                 }
             }
@@ -170,6 +190,7 @@ public class VolumeFunction
                     // functions can have data with side effects,
                     // so we require a new function to be created for each thread
                     VectFunction functionThread = VolumeFunction.this.factory.get();
+                    Vect buffer = input.dproto();
 
                     if (VolumeFunction.this.messages)
                     {
@@ -178,14 +199,15 @@ public class VolumeFunction
 
                     for (Sample sample : sampling.iterateK(fk))
                     {
-                        if (VolumeFunction.this.input.valid(sample, VolumeFunction.this.mask))
+                        if (input.valid(sample, VolumeFunction.this.mask))
                         {
                             if (VolumeFunction.this.chatty)
                             {
                                 Logging.info(String.format("...... processing voxel (%d, %d, %d)", sample.getI(), sample.getJ(), sample.getK()));
                             }
 
-                            out.set(sample, functionThread.apply(VolumeFunction.this.input.get(sample)));
+                            input.get(sample, buffer);
+                            out.set(sample, functionThread.apply(buffer));
                         }
                     }
                 });
@@ -222,6 +244,7 @@ public class VolumeFunction
                         // functions can have data with side effects,
                         // so we require a new function to be created for each thread
                         VectFunction functionThread = VolumeFunction.this.factory.get();
+                        Vect buffer = input.dproto();
 
                         if (VolumeFunction.this.messages)
                         {
@@ -230,9 +253,10 @@ public class VolumeFunction
 
                         for (int i = 0; i < sampling.numI(); i++)
                         {
-                            if (VolumeFunction.this.input.valid(i, fj, fk, VolumeFunction.this.mask))
+                            if (input.valid(i, fj, fk, VolumeFunction.this.mask))
                             {
-                                out.set(i, fj, fk, functionThread.apply(VolumeFunction.this.input.get(i, fj, fk)));
+                                input.get(i, fj, fk, buffer);
+                                out.set(i, fj, fk, functionThread.apply(buffer));
                             }
                         }
                     });
@@ -257,4 +281,22 @@ public class VolumeFunction
 
         return out;
     }
+
+    private Volume interleave(Volume volume)
+    {
+        int dim = volume.getDim();
+        long size = (long) volume.getSampling().size() * dim;
+
+        if (!this.interleave || dim < INTERLEAVE || volume.isInterleaved() || size > Integer.MAX_VALUE)
+        {
+            return volume;
+        }
+
+        if (this.messages)
+        {
+            Logging.info("interleaving input channels");
+        }
+
+        return volume.copyInterleaved(true);
+    }
 }
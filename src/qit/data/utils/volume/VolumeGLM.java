@@ -0,0 +1,1050 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.math3.distribution.FDistribution;
+import org.apache.commons.math3.distribution.TDistribution;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Matrix;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A voxelwise general linear model with permutation inference.  The data are
+ * packed as a contiguous subjects-by-voxels matrix, and the tested columns of
+ * the design are evaluated with a t-statistic (one column) or an F-statistic
+ * (several columns).  Nuisance columns are handled with the Freedman-Lane
+ * procedure: the data are residualized against the nuisance columns once, and
+ * each permutation of the residuals is refit with the full design through a
+ * precomputed pseudo-inverse.  Permutations are evaluated in batches that
+ * share each pass over the data matrix, and batches are spread across
+ * threads.  Family-wise error is controlled with the maximum statistic, and
+ * optionally with threshold-free cluster enhancement (TFCE) and cluster mass,
+ * which use a voxel adjacency graph.
+ */
+public class VolumeGLM
+{
+    private static final int BATCH = 8;
+    private static final int BLOCK = 512;
+
+    private double[][] design;
+    private int[] tested;
+    private float[] data;
+    private int subjects;
+    private int voxels;
+    private int[] nptr;
+    private int[] nidx;
+
+    private int permutations = 1000;
+    private boolean twosided = false;
+    private boolean tfce = false;
+    private double tfceE = 0.5;
+    private double tfceH = 2.0;
+    private int tfceSteps = 100;
+    private Double cluster = null;
+    private int threads = 1;
+    private Integer seed = null;
+
+    // the observed statistic and effects
+    public double[] stat;
+    public double[][] effect;
+
+    // uncorrected parametric and permutation p-values
+    public double[] pval;
+    public double[] perm;
+
+    // family-wise error corrected p-values
+    public double[] corrected;
+    public double[] tfceStat;
+    public double[] tfceCorrected;
+    public double[] clusterMass;
+    public double[] clusterCorrected;
+
+    /**
+     * set the design matrix with one row per subject (include an intercept column if needed)
+     */
+    public VolumeGLM withDesign(double[][] v)
+    {
+        this.design = v;
+
+        return this;
+    }
+
+    /**
+     * set the columns of the design that are tested, where the others are treated as nuisance
+     */
+    public VolumeGLM withTested(int[] v)
+    {
+        this.tested = v;
+
+        return this;
+    }
+
+    /**
+     * set the data matrix, stored row-major with one row per subject and one column per voxel (this is modified in place)
+     */
+    public VolumeGLM withData(float[] v, int subjects, int voxels)
+    {
+        Global.assume(v.length == (long) subjects * voxels, "invalid data matrix");
+
+        this.data = v;
+        this.subjects = subjects;
+        this.voxels = voxels;
+
+        return this;
+    }
+
+    /**
+     * set the voxel adjacency graph in compressed row format, which is needed for TFCE and cluster mass
+     */
+    public VolumeGLM withNeighbors(int[] ptr, int[] idx)
+    {
+        this.nptr = ptr;
+        this.nidx = idx;
+
+        return this;
+    }
+
+    /**
+     * set the number of permutations (including the identity)
+     */
+    public VolumeGLM withPermutations(int v)
+    {
+        this.permutations = v;
+
+        return this;
+    }
+
+    public VolumeGLM withTwoSided(boolean v)
+    {
+        this.twosided = v;
+
+        return this;
+    }
+
+    public VolumeGLM withTfce(boolean v)
+    {
+        this.tfce = v;
+
+        return this;
+    }
+
+    public VolumeGLM withTfceE(double v)
+    {
+        this.tfceE = v;
+
+        return this;
+    }
+
+    public VolumeGLM withTfceH(double v)
+    {
+        this.tfceH = v;
+
+        return this;
+    }
+
+    public VolumeGLM withTfceSteps(int v)
+    {
+        this.tfceSteps = v;
+
+        return this;
+    }
+
+    /**
+     * set the cluster forming threshold for cluster mass inference (or null to skip it)
+     */
+    public VolumeGLM withCluster(Double v)
+    {
+        this.cluster = v;
+
+        return this;
+    }
+
+    public VolumeGLM withThreads(int v)
+    {
+        this.threads = v;
+
+        return this;
+    }
+
+    public VolumeGLM withSeed(Integer v)
+    {
+        this.seed = v;
+
+        return this;
+    }
+
+    public VolumeGLM run()
+    {
+        int n = this.subjects;
+        int p = this.design[0].length;
+        int q = this.tested.length;
+        int dof = n - p;
+
+        Global.assume(this.design.length == n, "design rows must match the number of subjects");
+        Global.assume(q > 0 && q <= p, "invalid tested columns");
+        Global.assume(dof > 0, "not enough subjects for the design");
+        Global.assume(!(this.tfce || this.cluster != null) || this.nptr != null, "a neighborhood is required for TFCE and cluster mass");
+
+        Matrix x = new Matrix(this.design);
+        Global.assume(x.rank() == p, "the design matrix is rank deficient");
+
+        boolean[] isTested = new boolean[p];
+        for (int j : this.tested)
+        {
+            isTested[j] = true;
+        }
+
+        List<Integer> nuisance = Lists.newArrayList();
+        for (int j = 0; j < p; j++)
+        {
+            if (!isTested[j])
+            {
+                nuisance.add(j);
+            }
+        }
+
+        Logging.info(String.format("fitting a model with %d subjects, %d voxels, %d columns, and %d tested", n, this.voxels, p, q));
+
+        if (nuisance.size() > 0)
+        {
+            this.residualize(x.subcols(nuisance));
+        }
+
+        Matrix xtx = x.transpose().times(x);
+        Matrix xtxinv = xtx.inv();
+        Kernel kernel = new Kernel();
+        kernel.m = xtxinv.times(x.transpose()).toArray();
+        kernel.g = xtx.toArray();
+        kernel.p = p;
+        kernel.dof = dof;
+        kernel.tested = this.tested;
+
+        if (q == 1)
+        {
+            kernel.scale = xtxinv.get(this.tested[0], this.tested[0]);
+        }
+        else
+        {
+            Matrix sub = new Matrix(q, q);
+            for (int a = 0; a < q; a++)
+            {
+                for (int b = 0; b < q; b++)
+                {
+                    sub.set(a, b, xtxinv.get(this.tested[a], this.tested[b]));
+                }
+            }
+            kernel.a = sub.inv().toArray();
+        }
+
+        kernel.ss = new double[this.voxels];
+        for (int t = 0; t < n; t++)
+        {
+            int off = t * this.voxels;
+            for (int v = 0; v < this.voxels; v++)
+            {
+                double y = this.data[off + v];
+                kernel.ss[v] += y * y;
+            }
+        }
+
+        int[][] perms = this.permutations();
+        int nperm = perms.length;
+
+        Logging.info("computing the observed statistic");
+        Workspace observed = new Workspace(kernel);
+        observed.statistics(new int[][]{perms[0]}, 1);
+        this.stat = observed.maps[0].clone();
+        this.effect = new double[q][];
+        for (int a = 0; a < q; a++)
+        {
+            this.effect[a] = observed.effects[a].clone();
+        }
+
+        this.pval = new double[this.voxels];
+        if (q == 1)
+        {
+            TDistribution dist = new TDistribution(dof);
+            for (int v = 0; v < this.voxels; v++)
+            {
+                double t = this.stat[v];
+                this.pval[v] = this.twosided ? 2.0 * dist.cumulativeProbability(-Math.abs(t)) : 1.0 - dist.cumulativeProbability(t);
+            }
+        }
+        else
+        {
+            FDistribution dist = new FDistribution(q, dof);
+            for (int v = 0; v < this.voxels; v++)
+            {
+                this.pval[v] = 1.0 - dist.cumulativeProbability(this.stat[v]);
+            }
+        }
+
+        // with an F-statistic, the test is always one-sided
+        boolean abs = this.twosided && q == 1;
+
+        double dh = 0;
+        if (this.tfce)
+        {
+            double max = 0;
+            for (int v = 0; v < this.voxels; v++)
+            {
+                max = Math.max(max, abs ? Math.abs(this.stat[v]) : this.stat[v]);
+            }
+
+            dh = max > 0 ? max / this.tfceSteps : 1.0 / this.tfceSteps;
+            this.tfceStat = new double[this.voxels];
+            observed.tfce(this.stat, this.tfceStat, dh, abs);
+        }
+
+        if (this.cluster != null)
+        {
+            this.clusterMass = new double[this.voxels];
+            observed.clusters(this.stat, this.clusterMass, abs);
+        }
+
+        Logging.info(String.format("evaluating %d permutations", nperm));
+
+        double[] nullStat = new double[nperm];
+        double[] nullTfce = new double[nperm];
+        double[] nullCluster = new double[nperm];
+        int[] counts = new int[this.voxels];
+
+        final double fdh = dh;
+        AtomicInteger next = new AtomicInteger(0);
+        int nbatch = (nperm + BATCH - 1) / BATCH;
+        int nthreads = Math.max(1, Math.min(this.threads, nbatch));
+
+        List<Callable<int[]>> tasks = Lists.newArrayList();
+        for (int w = 0; w < nthreads; w++)
+        {
+            tasks.add(() ->
+            {
+                Workspace work = new Workspace(kernel);
+                int[] wcounts = new int[this.voxels];
+                double[] wtfce = this.tfce ? new double[this.voxels] : null;
+                double[] wcluster = this.cluster != null ? new double[this.voxels] : null;
+
+                for (int b = next.getAndIncrement(); b < nbatch; b = next.getAndIncrement())
+                {
+                    int start = b * BATCH;
+                    int size = Math.min(BATCH, nperm - start);
+                    int[][] batch = new int[size][];
+                    System.arraycopy(perms, start, batch, 0, size);
+
+                    work.statistics(batch, size);
+
+                    for (int k = 0; k < size; k++)
+                    {
+                        double[] map = work.maps[k];
+                        double max = 0;
+
+                        for (int v = 0; v < this.voxels; v++)
+                        {
+                            double s = abs ? Math.abs(map[v]) : map[v];
+                            double o = abs ? Math.abs(this.stat[v]) : this.stat[v];
+                            max = Math.max(max, s);
+
+                            if (s >= o)
+                            {
+                                wcounts[v] += 1;
+                            }
+                        }
+
+                        nullStat[start + k] = max;
+
+                        if (wtfce != null)
+                        {
+                            nullTfce[start + k] = work.tfce(map, wtfce, fdh, abs);
+                        }
+
+                        if (wcluster != null)
+                        {
+                            nullCluster[start + k] = work.clusters(map, wcluster, abs);
+                        }
+                    }
+
+                    if (b % Math.max(1, nbatch / 10) == 0)
+                    {
+                        Logging.info(String.format("... finished permutation batch %d of %d", b + 1, nbatch));
+                    }
+                }
+
+                return wcounts;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(nthreads);
+        try
+        {
+            for (Future<int[]> future : exec.invokeAll(tasks))
+            {
+                int[] wcounts = future.get();
+                for (int v = 0; v < this.voxels; v++)
+                {
+                    counts[v] += wcounts[v];
+                }
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+            Logging.error("failed to evaluate permutations: " + e.getMessage());
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+
+        this.perm = new double[this.voxels];
+        this.corrected = new double[this.voxels];
+        for (int v = 0; v < this.voxels; v++)
+        {
+            this.perm[v] = counts[v] / (double) nperm;
+            this.corrected[v] = exceed(nullStat, abs ? Math.abs(this.stat[v]) : this.stat[v]);
+        }
+
+        if (this.tfce)
+        {
+            this.tfceCorrected = new double[this.voxels];
+            for (int v = 0; v < this.voxels; v++)
+            {
+                this.tfceCorrected[v] = exceed(nullTfce, Math.abs(this.tfceStat[v]));
+            }
+        }
+
+        if (this.cluster != null)
+        {
+            this.clusterCorrected = new double[this.voxels];
+            for (int v = 0; v < this.voxels; v++)
+            {
+                double mass = Math.abs(this.clusterMass[v]);
+                this.clusterCorrected[v] = mass > 0 ? exceed(nullCluster, mass) : 1.0;
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the fraction of the null distribution that is at least the given value
+     */
+    private static double exceed(double[] dist, double value)
+    {
+        int count = 0;
+        for (double d : dist)
+        {
+            if (d >= value)
+            {
+                count += 1;
+            }
+        }
+
+        return count / (double) dist.length;
+    }
+
+    private int[][] permutations()
+    {
+        Random random = this.seed != null ? new Random(this.seed) : Global.RANDOM;
+        int n = this.subjects;
+
+        int[][] out = new int[Math.max(1, this.permutations)][];
+        for (int b = 0; b < out.length; b++)
+        {
+            int[] perm = new int[n];
+            for (int i = 0; i < n; i++)
+            {
+                perm[i] = i;
+            }
+
+            // the first permutation is the identity
+            if (b > 0)
+            {
+                for (int i = n - 1; i > 0; i--)
+                {
+                    int j = random.nextInt(i + 1);
+                    int tmp = perm[i];
+                    perm[i] = perm[j];
+                    perm[j] = tmp;
+                }
+            }
+
+            out[b] = perm;
+        }
+
+        return out;
+    }
+
+    /**
+     * replace the data with the residuals after regressing out the nuisance columns
+     */
+    private void residualize(Matrix z)
+    {
+        int n = this.subjects;
+        int r = z.cols();
+        double[][] zarr = z.toArray();
+        double[][] pinv = z.transpose().times(z).inv().times(z.transpose()).toArray();
+
+        Logging.info(String.format("regressing out %d nuisance columns", r));
+
+        int nblock = (this.voxels + BLOCK - 1) / BLOCK;
+        parallel(nblock, this.threads, b ->
+        {
+            int v0 = b * BLOCK;
+            int len = Math.min(BLOCK, this.voxels - v0);
+            double[][] gamma = new double[r][len];
+
+            for (int t = 0; t < n; t++)
+            {
+                int off = t * this.voxels + v0;
+                for (int j = 0; j < r; j++)
+                {
+                    double w = pinv[j][t];
+                    double[] g = gamma[j];
+                    for (int x = 0; x < len; x++)
+                    {
+                        g[x] += w * this.data[off + x];
+                    }
+                }
+            }
+
+            for (int t = 0; t < n; t++)
+            {
+                int off = t * this.voxels + v0;
+                for (int x = 0; x < len; x++)
+                {
+                    double fit = 0;
+                    for (int j = 0; j < r; j++)
+                    {
+                        fit += zarr[t][j] * gamma[j][x];
+                    }
+                    this.data[off + x] -= (float) fit;
+                }
+            }
+        });
+    }
+
+    private interface Block
+    {
+        void apply(int idx);
+    }
+
+    private static void parallel(int num, int threads, Block block)
+    {
+        if (threads < 2)
+        {
+            for (int i = 0; i < num; i++)
+            {
+                block.apply(i);
+            }
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger(0);
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int w = 0; w < threads; w++)
+        {
+            tasks.add(() ->
+            {
+                for (int i = next.getAndIncrement(); i < num; i = next.getAndIncrement())
+                {
+                    block.apply(i);
+                }
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * the quantities of the model that are shared by all permutations
+     */
+    private static class Kernel
+    {
+        double[][] m;
+        double[][] g;
+        double[][] a;
+        double[] ss;
+        double scale;
+        int p;
+        int dof;
+        int[] tested;
+    }
+
+    /**
+     * the buffers used by one thread to evaluate a batch of permutations
+     */
+    private class Workspace
+    {
+        final Kernel kernel;
+        final double[][] maps = new double[BATCH][VolumeGLM.this.voxels];
+        final double[][] effects;
+        final double[][] weights;
+        final double[][] acc;
+        final double[] beta;
+
+        // buffers for the connected components
+        final int[] parent = new int[VolumeGLM.this.voxels];
+        final int[] size = new int[VolumeGLM.this.voxels];
+        final int[] since = new int[VolumeGLM.this.voxels];
+        final int[] level = new int[VolumeGLM.this.voxels];
+        final double[] pot = new double[VolumeGLM.this.voxels];
+        final int[] order = new int[VolumeGLM.this.voxels];
+        final int[] path = new int[VolumeGLM.this.voxels];
+
+        Workspace(Kernel kernel)
+        {
+            this.kernel = kernel;
+            this.effects = new double[kernel.tested.length][VolumeGLM.this.voxels];
+            this.weights = new double[BATCH * kernel.p][VolumeGLM.this.subjects];
+            this.acc = new double[BATCH * kernel.p][BLOCK];
+            this.beta = new double[kernel.p];
+        }
+
+        /**
+         * compute the statistic maps of a batch of permutations, which shares each pass over the data
+         */
+        void statistics(int[][] perms, int count)
+        {
+            int n = VolumeGLM.this.subjects;
+            int nvox = VolumeGLM.this.voxels;
+            float[] data = VolumeGLM.this.data;
+            int p = this.kernel.p;
+            int rows = count * p;
+
+            // the permuted pseudo-inverse maps each data row to its coefficients
+            for (int k = 0; k < count; k++)
+            {
+                int[] perm = perms[k];
+                for (int i = 0; i < p; i++)
+                {
+                    double[] w = this.weights[k * p + i];
+                    double[] m = this.kernel.m[i];
+                    for (int s = 0; s < n; s++)
+                    {
+                        w[perm[s]] = m[s];
+                    }
+                }
+            }
+
+            for (int v0 = 0; v0 < nvox; v0 += BLOCK)
+            {
+                int len = Math.min(BLOCK, nvox - v0);
+
+                for (int r = 0; r < rows; r++)
+                {
+                    Arrays.fill(this.acc[r], 0, len, 0.0);
+                }
+
+                for (int t = 0; t < n; t++)
+                {
+                    int off = t * nvox + v0;
+                    for (int r = 0; r < rows; r++)
+                    {
+                        double w = this.weights[r][t];
+                        double[] a = this.acc[r];
+                        for (int x = 0; x < len; x++)
+                        {
+                            a[x] += w * data[off + x];
+                        }
+                    }
+                }
+
+                for (int k = 0; k < count; k++)
+                {
+                    double[] map = this.maps[k];
+                    for (int x = 0; x < len; x++)
+                    {
+                        for (int i = 0; i < p; i++)
+                        {
+                            this.beta[i] = this.acc[k * p + i][x];
+                        }
+
+                        map[v0 + x] = this.statistic(this.beta, this.kernel.ss[v0 + x]);
+
+                        if (count == 1)
+                        {
+                            for (int a = 0; a < this.kernel.tested.length; a++)
+                            {
+                                this.effects[a][v0 + x] = this.beta[this.kernel.tested[a]];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        double statistic(double[] b, double ss)
+        {
+            Kernel kern = this.kernel;
+            int p = kern.p;
+
+            double quad = 0;
+            for (int i = 0; i < p; i++)
+            {
+                double[] gi = kern.g[i];
+                double row = 0;
+                for (int j = 0; j < p; j++)
+                {
+                    row += gi[j] * b[j];
+                }
+                quad += b[i] * row;
+            }
+
+            double rss = ss - quad;
+            if (!(rss > 0))
+            {
+                return 0;
+            }
+
+            double sigma2 = rss / kern.dof;
+
+            if (kern.a == null)
+            {
+                return b[kern.tested[0]] / Math.sqrt(sigma2 * kern.scale);
+            }
+            else
+            {
+                int q = kern.tested.length;
+                double num = 0;
+                for (int i = 0; i < q; i++)
+                {
+                    double row = 0;
+                    for (int j = 0; j < q; j++)
+                    {
+                        row += kern.a[i][j] * b[kern.tested[j]];
+                    }
+                    num += b[kern.tested[i]] * row;
+                }
+
+                return num / q / sigma2;
+            }
+        }
+
+        /**
+         * compute the TFCE map of a statistic map (signed when two-sided) and return its maximum magnitude
+         */
+        double tfce(double[] map, double[] out, double dh, boolean abs)
+        {
+            Arrays.fill(out, 0);
+            double max = this.tfceSide(map, out, dh, 1.0);
+
+            if (abs)
+            {
+                max = Math.max(max, this.tfceSide(map, out, dh, -1.0));
+            }
+
+            return max;
+        }
+
+        /**
+         * integrate the cluster extents over thresholds from the top down, where components are tracked with a
+         * disjoint set that keeps a potential on each node, so that adding a value to a whole component only
+         * touches its root and each voxel's total is the sum of potentials along its path to the root
+         */
+        double tfceSide(double[] map, double[] out, double dh, double sign)
+        {
+            int nvox = VolumeGLM.this.voxels;
+            double e = VolumeGLM.this.tfceE;
+            double h = VolumeGLM.this.tfceH;
+
+            int top = 0;
+            for (int v = 0; v < nvox; v++)
+            {
+                double s = sign * map[v];
+                int l = s >= dh ? (int) Math.min(Integer.MAX_VALUE - 1, Math.floor(s / dh)) : 0;
+                this.level[v] = l;
+                top = Math.max(top, l);
+            }
+
+            if (top == 0)
+            {
+                return 0;
+            }
+
+            double[] prefix = new double[top + 1];
+            for (int j = 1; j <= top; j++)
+            {
+                prefix[j] = prefix[j - 1] + Math.pow(j * dh, h) * dh;
+            }
+
+            int count = this.bucket(top);
+
+            for (int c = 0; c < count; c++)
+            {
+                int v = this.order[c];
+                int k = this.level[v];
+
+                this.parent[v] = v;
+                this.size[v] = 1;
+                this.since[v] = k;
+                this.pot[v] = 0;
+                this.level[v] = -k;
+
+                for (int ni = VolumeGLM.this.nptr[v]; ni < VolumeGLM.this.nptr[v + 1]; ni++)
+                {
+                    int u = VolumeGLM.this.nidx[ni];
+                    if (this.level[u] < 0)
+                    {
+                        int ru = this.find(u);
+                        int rv = this.find(v);
+
+                        if (ru != rv)
+                        {
+                            this.flush(ru, k, prefix, e);
+                            this.flush(rv, k, prefix, e);
+
+                            int root = this.size[ru] >= this.size[rv] ? ru : rv;
+                            int child = root == ru ? rv : ru;
+
+                            this.pot[child] -= this.pot[root];
+                            this.parent[child] = root;
+                            this.size[root] += this.size[child];
+                            this.since[root] = k;
+                        }
+                    }
+                }
+            }
+
+            for (int c = 0; c < count; c++)
+            {
+                int v = this.order[c];
+                if (this.parent[v] == v)
+                {
+                    this.flush(v, 0, prefix, e);
+                }
+            }
+
+            double max = 0;
+            for (int c = 0; c < count; c++)
+            {
+                int v = this.order[c];
+                int root = this.find(v);
+                double value = v == root ? this.pot[v] : this.pot[v] + this.pot[root];
+
+                out[v] = sign * value;
+                max = Math.max(max, value);
+            }
+
+            return max;
+        }
+
+        /**
+         * sort the voxels with a positive level into descending order and return their number
+         */
+        int bucket(int top)
+        {
+            int nvox = VolumeGLM.this.voxels;
+            int[] starts = new int[top + 2];
+
+            for (int v = 0; v < nvox; v++)
+            {
+                if (this.level[v] > 0)
+                {
+                    starts[top - this.level[v] + 1] += 1;
+                }
+            }
+
+            for (int j = 1; j <= top + 1; j++)
+            {
+                starts[j] += starts[j - 1];
+            }
+
+            int count = starts[top + 1];
+            for (int v = 0; v < nvox; v++)
+            {
+                if (this.level[v] > 0)
+                {
+                    this.order[starts[top - this.level[v]]++] = v;
+                }
+            }
+
+            return count;
+        }
+
+        void flush(int root, int k, double[] prefix, double e)
+        {
+            this.pot[root] += Math.pow(this.size[root], e) * (prefix[this.since[root]] - prefix[k]);
+            this.since[root] = k;
+        }
+
+        /**
+         * find the root of a node and compress its path, keeping the path sums of the potentials
+         */
+        int find(int v)
+        {
+            int depth = 0;
+            int root = v;
+            while (this.parent[root] != root)
+            {
+                this.path[depth++] = root;
+                root = this.parent[root];
+            }
+
+            // walk down from the node nearest the root, accumulating the potentials above each node
+            double above = 0;
+            for (int d = depth - 1; d >= 0; d--)
+            {
+                int u = this.path[d];
+                above += this.pot[u];
+                this.pot[u] = above;
+                this.parent[u] = root;
+            }
+
+            return root;
+        }
+
+        /**
+         * compute the cluster mass of each suprathreshold voxel (signed when two-sided) and return the largest mass
+         */
+        double clusters(double[] map, double[] out, boolean abs)
+        {
+            Arrays.fill(out, 0);
+            double max = this.clusterSide(map, out, 1.0);
+
+            if (abs)
+            {
+                max = Math.max(max, this.clusterSide(map, out, -1.0));
+            }
+
+            return max;
+        }
+
+        double clusterSide(double[] map, double[] out, double sign)
+        {
+            int nvox = VolumeGLM.this.voxels;
+            double thresh = VolumeGLM.this.cluster;
+
+            for (int v = 0; v < nvox; v++)
+            {
+                boolean supra = sign * map[v] >= thresh;
+                this.level[v] = supra ? -1 : 0;
+                this.parent[v] = v;
+                this.pot[v] = supra ? sign * map[v] : 0;
+            }
+
+            for (int v = 0; v < nvox; v++)
+            {
+                if (this.level[v] < 0)
+                {
+                    for (int ni = VolumeGLM.this.nptr[v]; ni < VolumeGLM.this.nptr[v + 1]; ni++)
+                    {
+                        int u = VolumeGLM.this.nidx[ni];
+                        if (u < v && this.level[u] < 0)
+                        {
+                            int ru = this.root(u);
+                            int rv = this.root(v);
+
+                            if (ru != rv)
+                            {
+                                this.parent[rv] = ru;
+                                this.pot[ru] += this.pot[rv];
+                            }
+                        }
+                    }
+                }
+            }
+
+            double max = 0;
+            for (int v = 0; v < nvox; v++)
+            {
+                if (this.level[v] < 0)
+                {
+                    double mass = this.pot[this.root(v)];
+                    out[v] = sign * mass;
+                    max = Math.max(max, mass);
+                }
+            }
+
+            return max;
+        }
+
+        /**
+         * find the root of a node with path halving (without potentials)
+         */
+        int root(int v)
+        {
+            while (this.parent[v] != v)
+            {
+                this.parent[v] = this.parent[this.parent[v]];
+                v = this.parent[v];
+            }
+
+            return v;
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.source.VectSource;
+import qit.data.source.VolumeSource;
+import qit.math.structs.VectFunction;
+import qit.math.utils.MathUtils;
+import qit.math.utils.colormaps.ColormapDiscrete;
+import qit.math.utils.colormaps.ColormapScalar;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A headless CPU rasterizer for volume slices.  Colormaps are tabulated once
+ * into lookup tables of packed ARGB colors, and the background, label, and
+ * foreground layers are blended with integer arithmetic into a packed pixel
+ * buffer, so no vectors are allocated per voxel.  Lines of the output are
+ * rendered in parallel, and the same machinery is used to tile mosaics.
+ */
+public class VolumeRasterizer
+{
+    public static final int BINS = 4096;
+
+    private static final int OPAQUE = 0xFF000000;
+
+    private Volume background = null;
+    private Mask bgmask = null;
+    private ColormapScalar bgmap = null;
+
+    private Volume foreground = null;
+    private Mask fgmask = null;
+    private ColormapScalar fgmap = null;
+
+    private Mask labels = null;
+    private ColormapDiscrete discrete = null;
+
+    private double alpha = 1.0;
+    private int threads = 1;
+
+    public VolumeRasterizer withBackground(Volume v)
+    {
+        this.background = v;
+        return this;
+    }
+
+    public VolumeRasterizer withBackgroundMask(Mask v)
+    {
+        this.bgmask = v;
+        return this;
+    }
+
+    public VolumeRasterizer withBackgroundColormap(ColormapScalar v)
+    {
+        this.bgmap = v;
+        return this;
+    }
+
+    public VolumeRasterizer withForeground(Volume v)
+    {
+        this.foreground = v;
+        return this;
+    }
+
+    public VolumeRasterizer withForegroundMask(Mask v)
+    {
+        this.fgmask = v;
+        return this;
+    }
+
+    public VolumeRasterizer withForegroundColormap(ColormapScalar v)
+    {
+        this.fgmap = v;
+        return this;
+    }
+
+    public VolumeRasterizer withLabels(Mask v)
+    {
+        this.labels = v;
+        return this;
+    }
+
+    public VolumeRasterizer withLabelColormap(ColormapDiscrete v)
+    {
+        this.discrete = v;
+        return this;
+    }
+
+    public VolumeRasterizer withAlpha(double v)
+    {
+        this.alpha = v;
+        return this;
+    }
+
+    public VolumeRasterizer withThreads(int v)
+    {
+        this.threads = v;
+        return this;
+    }
+
+    /**
+     * render each voxel of the output sampling using the nearest voxel of the
+     * reference sampling, which all of the layers are indexed by
+     *
+     * @return packed ARGB colors in the index order of the output sampling
+     */
+    public int[] render(Sampling reference, Sampling output)
+    {
+        Global.assume(this.background == null || this.bgmap != null, "a background colormap is required");
+        Global.assume(this.foreground == null || this.fgmap != null, "a foreground colormap is required");
+        Global.assume(this.labels == null || this.discrete != null, "a label colormap is required");
+
+        final Lookup bglut = this.background == null ? null : Lookup.scalar(this.bgmap);
+        final Lookup fglut = this.foreground == null ? null : Lookup.scalar(this.fgmap);
+        final Lookup labellut = this.labels == null ? null : Lookup.discrete(this.discrete, this.labels);
+
+        final boolean blend = !MathUtils.unit(this.alpha);
+        final int weight = (int) Math.round(256 * Math.min(1.0, Math.max(0.0, this.alpha)));
+
+        final int ni = output.numI();
+        final int nj = output.numJ();
+        final int nk = output.numK();
+
+        // the output voxel to reference voxel mapping is affine, so it can be stepped
+        final Vect origin = reference.voxel(output.world(0, 0, 0));
+        final Vect di = reference.voxel(output.world(1, 0, 0)).minus(origin);
+        final Vect dj = reference.voxel(output.world(0, 1, 0)).minus(origin);
+        final Vect dk = reference.voxel(output.world(0, 0, 1)).minus(origin);
+
+        final int[] pixels = new int[output.size()];
+
+        parallel(nj * nk, this.threads, (start, end) ->
+        {
+            for (int line = start; line < end; line++)
+            {
+                int j = line % nj;
+                int k = line / nj;
+
+                double x = origin.get(0) + j * dj.get(0) + k * dk.get(0);
+                double y = origin.get(1) + j * dj.get(1) + k * dk.get(1);
+                double z = origin.get(2) + j * dj.get(2) + k * dk.get(2);
+
+                for (int i = 0; i < ni; i++)
+                {
+                    int ri = (int) Math.round(x + i * di.get(0));
+                    int rj = (int) Math.round(y + i * di.get(1));
+                    int rk = (int) Math.round(z + i * di.get(2));
+
+                    int color = OPAQUE;
+
+                    if (bglut != null && this.background.valid(ri, rj, rk, this.bgmask))
+                    {
+                        color = bglut.get(this.background.get(ri, rj, rk, 0));
+                    }
+
+                    if (labellut != null && this.labels.valid(ri, rj, rk, this.fgmask))
+                    {
+                        int value = this.labels.get(ri, rj, rk);
+                        if (value != 0)
+                        {
+                            int lcolor = labellut.get(value);
+                            color = blend ? blend(color, lcolor, weight) : lcolor;
+                        }
+                    }
+
+                    if (fglut != null && this.foreground.valid(ri, rj, rk, this.fgmask))
+                    {
+                        int fcolor = fglut.get(this.foreground.get(ri, rj, rk, 0));
+                        color = blend ? blend(color, fcolor, weight) : fcolor;
+                    }
+
+                    pixels[ni * line + i] = OPAQUE | color;
+                }
+            }
+        });
+
+        return pixels;
+    }
+
+    /**
+     * render the layers into an RGB volume with the given output sampling
+     */
+    public Volume volume(Sampling reference, Sampling output)
+    {
+        return volume(output, this.render(reference, output));
+    }
+
+    /**
+     * unpack ARGB pixels into an RGB volume with values from zero to one
+     */
+    public static Volume volume(Sampling sampling, int[] pixels)
+    {
+        Global.assume(pixels.length == sampling.size(), "invalid pixel buffer");
+
+        Volume out = VolumeSource.create(sampling, 3);
+        for (int idx = 0; idx < pixels.length; idx++)
+        {
+            int pixel = pixels[idx];
+            out.set(idx, 0, ((pixel >>> 16) & 0xFF) / 255.0);
+            out.set(idx, 1, ((pixel >>> 8) & 0xFF) / 255.0);
+            out.set(idx, 2, (pixel & 0xFF) / 255.0);
+        }
+
+        return out;
+    }
+
+    /**
+     * tile every slice of the volume along the given axis (0, 1, or 2) into a
+     * single planar image, where slices are flipped for radiological display
+     */
+    public static Volume mosaic(Volume volume, int axis, int threads)
+    {
+        Global.assume(axis >= 0 && axis < 3, "invalid axis: " + axis);
+
+        final Sampling sampling = volume.getSampling();
+        final int ni = sampling.numI();
+        final int nj = sampling.numJ();
+        final int nk = sampling.numK();
+
+        int slices = axis == 0 ? ni : axis == 1 ? nj : nk;
+        int size = (int) Math.ceil(Math.sqrt(slices));
+
+        final int gwidth = size;
+        final int gheight = size * (size - 1) >= slices ? size - 1 : size;
+
+        Logging.info("slice count: " + slices);
+        Logging.info("grid size: " + size);
+        Logging.info("grid width: " + gwidth);
+        Logging.info("grid height: " + gheight);
+
+        final int twidth = axis == 0 ? nj : ni;
+        final int theight = axis == 2 ? nj : nk;
+        final int width = gwidth * twidth;
+        final int dim = volume.getDim();
+
+        final Volume out = VolumeSource.create(width, gheight * theight, 1, dim);
+
+        parallel(slices, threads, (start, end) ->
+        {
+            for (int s = start; s < end; s++)
+            {
+                int mi = s % gwidth;
+                int mj = (s - mi) / gheight;
+
+                for (int b = 0; b < theight; b++)
+                {
+                    int row = width * (mj * theight + b) + mi * twidth;
+
+                    for (int a = 0; a < twidth; a++)
+                    {
+                        int idx;
+                        switch (axis)
+                        {
+                            case 0:
+                                idx = sampling.index(s, nj - 1 - a, nk - 1 - b);
+                                break;
+                            case 1:
+                                idx = sampling.index(ni - 1 - a, s, nk - 1 - b);
+                                break;
+                            default:
+                                idx = sampling.index(ni - 1 - a, nj - 1 - b, s);
+                                break;
+                        }
+
+                        for (int d = 0; d < dim; d++)
+                        {
+                            out.set(row + a, d, volume.get(idx, d));
+                        }
+                    }
+                }
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * blend two packed colors with a fixed point weight from 0 to 256
+     */
+    public static int blend(int base, int color, int weight)
+    {
+        int inv = 256 - weight;
+        int r = (((base >>> 16) & 0xFF) * inv + ((color >>> 16) & 0xFF) * weight + 128) >> 8;
+        int g = (((base >>> 8) & 0xFF) * inv + ((color >>> 8) & 0xFF) * weight + 128) >> 8;
+        int b = ((base & 0xFF) * inv + (color & 0xFF) * weight + 128) >> 8;
+
+        return OPAQUE | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * pack an RGB or RGBA color with channels from zero to one
+     */
+    public static int pack(Vect color)
+    {
+        int r = channel(color.get(0));
+        int g = channel(color.get(1));
+        int b = channel(color.get(2));
+        int a = color.size() > 3 ? channel(color.get(3)) : 255;
+
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int channel(double v)
+    {
+        return Double.isNaN(v) ? 0 : (int) Math.round(255 * Math.min(1.0, Math.max(0.0, v)));
+    }
+
+    /**
+     * a table of packed colors indexed by scalar value
+     */
+    public static class Lookup
+    {
+        private final int[] table;
+        private final double min;
+        private final double scale;
+
+        private Lookup(int[] table, double min, double scale)
+        {
+            this.table = table;
+            this.min = min;
+            this.scale = scale;
+        }
+
+        /**
+         * tabulate a scalar colormap over its range, outside of which it is constant
+         */
+        public static Lookup scalar(ColormapScalar colormap)
+        {
+            return of(colormap.getFunction(), colormap.getMin(), colormap.getMax(), BINS);
+        }
+
+        /**
+         * tabulate a colormap function of one variable over the given range
+         */
+        public static Lookup of(VectFunction function, double min, double max, int bins)
+        {
+            if (MathUtils.eq(min, max) || bins < 2)
+            {
+                return new Lookup(new int[]{pack(function.apply(VectSource.create1D(min)))}, min, 0);
+            }
+
+            int[] table = new int[bins];
+            Vect input = VectSource.create1D();
+            Vect output = new Vect(function.getDimOut());
+            for (int i = 0; i < bins; i++)
+            {
+                input.set(0, min + (max - min) * i / (double) (bins - 1));
+                function.apply(input, output);
+                table[i] = pack(output);
+            }
+
+            return new Lookup(table, min, (bins - 1) / (max - min));
+        }
+
+        /**
+         * tabulate a discrete colormap over the range of labels in the given mask
+         */
+        public static Lookup discrete(ColormapDiscrete colormap, Mask labels)
+        {
+            int low = 0;
+            int high = 0;
+            for (int idx = 0; idx < labels.getSampling().size(); idx++)
+            {
+                int label = labels.get(idx);
+                low = Math.min(low, label);
+                high = Math.max(high, label);
+            }
+
+            int[] table = new int[high - low + 1];
+            for (int label = low; label <= high; label++)
+            {
+                table[label - low] = pack(colormap.getColor(label));
+            }
+
+            return new Lookup(table, low, 1.0);
+        }
+
+        public int size()
+        {
+            return this.table.length;
+        }
+
+        public int get(double value)
+        {
+            int idx = (int) Math.round((value - this.min) * this.scale);
+            return this.table[Math.min(this.table.length - 1, Math.max(0, idx))];
+        }
+    }
+
+    private interface Block
+    {
+        void apply(int start, int end);
+    }
+
+    private static void parallel(int num, int threads, Block block)
+    {
+        if (threads < 2 || num < 2)
+        {
+            block.apply(0, num);
+            return;
+        }
+
+        // split into more blocks than threads to balance the load
+        int blocks = Math.min(num, 4 * threads);
+        int step = (num + blocks - 1) / blocks;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < num; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(num, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+}
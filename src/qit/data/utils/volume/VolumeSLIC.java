@@ -0,0 +1,859 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sample;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An engine for SLIC supervoxels that scales to large volumes.  Features are
+ * computed on the fly from the voxel coordinates and intensities instead of
+ * being stored in a feature volume, and centers are stored in a primitive
+ * array.  The volume is split into non-overlapping tiles along its outermost
+ * axis, and each tile is assigned independently by visiting only the centers
+ * whose search window overlaps the tile, so tiles can be processed in parallel
+ * without locking.  The center updates are accumulated per thread and reduced
+ * in a fixed order, so the result only depends on the number of threads
+ * through floating point rounding.  Connectivity is enforced afterwards with a
+ * two-pass component labeling over primitive arrays, and small components are
+ * merged into their largest neighbor.
+ */
+public class VolumeSLIC
+{
+    // the maximum number of voxels in the distance buffer of a tile
+    private static final int TILE = 1 << 22;
+
+    private Volume input;
+    private Mask mask;
+    private Volume gradient;
+    private int iters = 500;
+    private double error = 1e-3;
+    private double size = 20;
+    private double scale = 1.0;
+    private double merge = 10;
+    private int threads = 1;
+
+    // the feature coordinates of a voxel are start + i * stepI + j * stepJ + k * stepK
+    private double[] start;
+    private double[] stepI;
+    private double[] stepJ;
+    private double[] stepK;
+    private int fdim;
+    private int vdim;
+    private double factor;
+
+    private Sampling sampling;
+    private int ni;
+    private int nj;
+    private int nk;
+    private int wi;
+    private int wj;
+    private int wk;
+
+    public VolumeSLIC withInput(Volume v)
+    {
+        this.input = v;
+
+        return this;
+    }
+
+    public VolumeSLIC withMask(Mask v)
+    {
+        this.mask = v;
+
+        return this;
+    }
+
+    /**
+     * set a gradient magnitude volume, which is used to move the initial centers away from edges
+     */
+    public VolumeSLIC withGradient(Volume v)
+    {
+        this.gradient = v;
+
+        return this;
+    }
+
+    public VolumeSLIC withIters(int v)
+    {
+        this.iters = v;
+
+        return this;
+    }
+
+    public VolumeSLIC withError(double v)
+    {
+        this.error = v;
+
+        return this;
+    }
+
+    /**
+     * set the average size (along each dimension) of the supervoxels
+     */
+    public VolumeSLIC withSize(double v)
+    {
+        this.size = v;
+
+        return this;
+    }
+
+    /**
+     * set the scaling of intensities relative to positions
+     */
+    public VolumeSLIC withScale(double v)
+    {
+        this.scale = v;
+
+        return this;
+    }
+
+    /**
+     * set the volume threshold for merging small regions into their neighbors
+     */
+    public VolumeSLIC withMerge(double v)
+    {
+        this.merge = v;
+
+        return this;
+    }
+
+    public VolumeSLIC withThreads(int v)
+    {
+        this.threads = Math.max(1, v);
+
+        return this;
+    }
+
+    public Mask run()
+    {
+        Global.assume(this.input != null, "no input volume");
+
+        this.sampling = this.input.getSampling();
+        this.ni = this.sampling.numI();
+        this.nj = this.sampling.numJ();
+        this.nk = this.sampling.numK();
+        this.vdim = this.input.getDim();
+        this.fdim = 3 + this.vdim;
+        this.factor = this.scale * this.size;
+
+        this.wi = (int) Math.ceil(this.size / this.sampling.deltaI());
+        this.wj = (int) Math.ceil(this.size / this.sampling.deltaJ());
+        this.wk = (int) Math.ceil(this.size / this.sampling.deltaK());
+
+        Vect origin = this.sampling.world(0, 0, 0);
+        this.start = origin.toArray();
+        this.stepI = this.sampling.world(1, 0, 0).minus(origin).toArray();
+        this.stepJ = this.sampling.world(0, 1, 0).minus(origin).toArray();
+        this.stepK = this.sampling.world(0, 0, 1).minus(origin).toArray();
+
+        double[] centers = this.centers();
+        int num = centers.length / this.fdim;
+        Logging.info(String.format("...segmenting %d supervoxels", num));
+
+        Tiling tiling = new Tiling();
+        int[] labels = new int[this.sampling.size()];
+
+        for (int iter = 0; iter < this.iters; iter++)
+        {
+            double[][] sums = new double[tiling.parts][];
+            int[][] counts = new int[tiling.parts][];
+
+            double[] fcenters = centers;
+            int[][] lists = tiling.lists(fcenters);
+
+            List<Callable<Void>> tasks = Lists.newArrayList();
+            for (int p = 0; p < tiling.parts; p++)
+            {
+                final int part = p;
+                tasks.add(() ->
+                {
+                    double[] sum = new double[fcenters.length];
+                    int[] count = new int[fcenters.length / this.fdim];
+                    double[] dist = new double[tiling.buffer];
+                    double[] feature = new double[this.fdim];
+
+                    for (int t = tiling.first(part); t < tiling.first(part + 1); t++)
+                    {
+                        this.assign(tiling, t, lists[t], fcenters, labels, dist, feature);
+                        this.accumulate(tiling, t, labels, sum, count, feature);
+                    }
+
+                    sums[part] = sum;
+                    counts[part] = count;
+
+                    return null;
+                });
+            }
+
+            this.execute(tasks);
+
+            double[] sum = sums[0];
+            int[] count = counts[0];
+            for (int p = 1; p < tiling.parts; p++)
+            {
+                for (int c = 0; c < count.length; c++)
+                {
+                    count[c] += counts[p][c];
+                }
+
+                for (int f = 0; f < sum.length; f++)
+                {
+                    sum[f] += sums[p][f];
+                }
+            }
+
+            double residual = 0;
+            double[] ncenters = new double[centers.length];
+            for (int c = 0; c < num; c++)
+            {
+                int off = c * this.fdim;
+
+                if (count[c] == 0)
+                {
+                    // keep centers that lost all of their voxels
+                    System.arraycopy(centers, off, ncenters, off, this.fdim);
+                    continue;
+                }
+
+                double norm = 1.0 / count[c];
+                double d2 = 0;
+                for (int f = 0; f < this.fdim; f++)
+                {
+                    double value = sum[off + f] * norm;
+                    double delta = value - centers[off + f];
+                    ncenters[off + f] = value;
+                    d2 += delta * delta;
+                }
+
+                residual += Math.sqrt(d2);
+            }
+            residual /= num;
+            centers = ncenters;
+
+            Logging.info(String.format("iteration: %d, residual: %g", iter, residual));
+            if (residual < this.error)
+            {
+                break;
+            }
+        }
+
+        Logging.info("cleaning up connectivity");
+        int[] regions = this.connect(labels);
+
+        Mask out = new Mask(this.sampling);
+        for (int idx = 0; idx < regions.length; idx++)
+        {
+            if (regions[idx] != 0)
+            {
+                out.set(idx, regions[idx]);
+            }
+        }
+
+        return out;
+    }
+
+    private boolean valid(int idx)
+    {
+        return this.mask == null || this.mask.foreground(idx);
+    }
+
+    private void feature(int i, int j, int k, int idx, double[] out)
+    {
+        for (int d = 0; d < 3; d++)
+        {
+            out[d] = this.start[d] + i * this.stepI[d] + j * this.stepJ[d] + k * this.stepK[d];
+        }
+
+        for (int d = 0; d < this.vdim; d++)
+        {
+            out[3 + d] = this.factor * this.input.get(idx, d);
+        }
+    }
+
+    /**
+     * place centers on a regular grid and move each one to the lowest gradient in its neighborhood
+     */
+    private double[] centers()
+    {
+        int superNumI = (int) Math.max(1, Math.round(this.ni * this.sampling.deltaI() / this.size));
+        int superNumJ = (int) Math.max(1, Math.round(this.nj * this.sampling.deltaJ() / this.size));
+        int superNumK = (int) Math.max(1, Math.round(this.nk * this.sampling.deltaK() / this.size));
+
+        double[] feature = new double[this.fdim];
+        double[] out = new double[superNumI * superNumJ * superNumK * this.fdim];
+        int num = 0;
+
+        for (int i = 0; i < superNumI; i++)
+        {
+            for (int j = 0; j < superNumJ; j++)
+            {
+                for (int k = 0; k < superNumK; k++)
+                {
+                    int ci = (int) Math.round((this.ni - 1) * i / (double) (superNumI - 1));
+                    int cj = (int) Math.round((this.nj - 1) * j / (double) (superNumJ - 1));
+                    int ck = (int) Math.round((this.nk - 1) * k / (double) (superNumK - 1));
+
+                    if (!this.input.valid(ci, cj, ck, this.mask))
+                    {
+                        continue;
+                    }
+
+                    int mi = ci;
+                    int mj = cj;
+                    int mk = ck;
+
+                    if (this.gradient != null)
+                    {
+                        double min = this.gradient.get(ci, cj, ck, 0);
+
+                        for (int dk = -1; dk <= 1; dk++)
+                        {
+                            for (int dj = -1; dj <= 1; dj++)
+                            {
+                                for (int di = -1; di <= 1; di++)
+                                {
+                                    int ti = ci + di;
+                                    int tj = cj + dj;
+                                    int tk = ck + dk;
+
+                                    if (this.input.valid(ti, tj, tk, this.mask))
+                                    {
+                                        double value = this.gradient.get(ti, tj, tk, 0);
+                                        if (value < min)
+                                        {
+                                            min = value;
+                                            mi = ti;
+                                            mj = tj;
+                                            mk = tk;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+
+                    this.feature(mi, mj, mk, this.sampling.index(mi, mj, mk), feature);
+                    System.arraycopy(feature, 0, out, num * this.fdim, this.fdim);
+                    num += 1;
+                }
+            }
+        }
+
+        return Arrays.copyOf(out, num * this.fdim);
+    }
+
+    /**
+     * assign the voxels of a tile to the nearest center among those whose window covers them
+     */
+    private void assign(Tiling tiling, int tile, int[] list, double[] centers, int[] labels, double[] dist, double[] feature)
+    {
+        int begin = tiling.begin(tile);
+        int end = tiling.end(tile);
+        int base = tiling.offset(begin);
+
+        Arrays.fill(dist, 0, tiling.offset(end) - base, Double.MAX_VALUE);
+
+        for (int c : list)
+        {
+            int coff = c * this.fdim;
+            Sample nearest = this.sampling.nearest(new Vect(new double[]{centers[coff], centers[coff + 1], centers[coff + 2]}));
+
+            int i0 = Math.max(0, nearest.getI() - this.wi);
+            int i1 = Math.min(this.ni - 1, nearest.getI() + this.wi);
+            int j0 = Math.max(0, nearest.getJ() - this.wj);
+            int j1 = Math.min(this.nj - 1, nearest.getJ() + this.wj);
+            int k0 = Math.max(0, nearest.getK() - this.wk);
+            int k1 = Math.min(this.nk - 1, nearest.getK() + this.wk);
+
+            if (tiling.slices)
+            {
+                k0 = Math.max(k0, begin);
+                k1 = Math.min(k1, end - 1);
+            }
+            else
+            {
+                j0 = Math.max(j0, begin);
+                j1 = Math.min(j1, end - 1);
+            }
+
+            for (int k = k0; k <= k1; k++)
+            {
+                for (int j = j0; j <= j1; j++)
+                {
+                    int row = this.ni * (j + this.nj * k);
+                    for (int i = i0; i <= i1; i++)
+                    {
+                        int idx = row + i;
+                        if (!this.valid(idx))
+                        {
+                            continue;
+                        }
+
+                        this.feature(i, j, k, idx, feature);
+
+                        double d2 = 0;
+                        for (int f = 0; f < this.fdim; f++)
+                        {
+                            double delta = feature[f] - centers[coff + f];
+                            d2 += delta * delta;
+                        }
+
+                        double d = Math.sqrt(d2);
+                        int local = idx - base;
+                        if (labels[idx] == 0 || d < dist[local])
+                        {
+                            dist[local] = d;
+                            labels[idx] = c + 1;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void accumulate(Tiling tiling, int tile, int[] labels, double[] sum, int[] count, double[] feature)
+    {
+        int begin = tiling.begin(tile);
+        int end = tiling.end(tile);
+
+        int k0 = tiling.slices ? begin : 0;
+        int k1 = tiling.slices ? end : this.nk;
+        int j0 = tiling.slices ? 0 : begin;
+        int j1 = tiling.slices ? this.nj : end;
+
+        for (int k = k0; k < k1; k++)
+        {
+            for (int j = j0; j < j1; j++)
+            {
+                int row = this.ni * (j + this.nj * k);
+                for (int i = 0; i < this.ni; i++)
+                {
+                    int idx = row + i;
+                    int label = labels[idx];
+                    if (label == 0 || !this.valid(idx))
+                    {
+                        continue;
+                    }
+
+                    this.feature(i, j, k, idx, feature);
+
+                    int off = (label - 1) * this.fdim;
+                    for (int f = 0; f < this.fdim; f++)
+                    {
+                        sum[off + f] += feature[f];
+                    }
+                    count[label - 1] += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * split supervoxels into face-connected components, sort the components by
+     * size, and merge components that are too small into their largest neighbor
+     */
+    private int[] connect(int[] labels)
+    {
+        int size = labels.length;
+        int plane = this.ni * this.nj;
+
+        // first pass: provisional labels from the preceding neighbors, with equivalences in a disjoint set
+        int[] comps = new int[size];
+        int[] parent = new int[1024];
+        int num = 0;
+
+        for (int k = 0; k < this.nk; k++)
+        {
+            for (int j = 0; j < this.nj; j++)
+            {
+                int row = this.ni * (j + this.nj * k);
+                for (int i = 0; i < this.ni; i++)
+                {
+                    int idx = row + i;
+                    int label = labels[idx];
+                    if (label == 0)
+                    {
+                        continue;
+                    }
+
+                    int comp = 0;
+                    if (i > 0 && labels[idx - 1] == label)
+                    {
+                        comp = union(parent, comp, comps[idx - 1]);
+                    }
+                    if (j > 0 && labels[idx - this.ni] == label)
+                    {
+                        comp = union(parent, comp, comps[idx - this.ni]);
+                    }
+                    if (k > 0 && labels[idx - plane] == label)
+                    {
+                        comp = union(parent, comp, comps[idx - plane]);
+                    }
+
+                    if (comp == 0)
+                    {
+                        num += 1;
+                        if (num >= parent.length)
+                        {
+                            parent = Arrays.copyOf(parent, 2 * parent.length);
+                        }
+                        parent[num] = num;
+                        comp = num;
+                    }
+
+                    comps[idx] = comp;
+                }
+            }
+        }
+
+        // second pass: resolve the equivalences and count the voxels of each component
+        int[] counts = new int[num + 1];
+        for (int idx = 0; idx < size; idx++)
+        {
+            if (comps[idx] != 0)
+            {
+                comps[idx] = find(parent, comps[idx]);
+                counts[comps[idx]] += 1;
+            }
+        }
+
+        // relabel the components by decreasing size, breaking ties by their first voxel
+        Integer[] order = new Integer[num];
+        int roots = 0;
+        for (int c = 1; c <= num; c++)
+        {
+            if (counts[c] > 0)
+            {
+                order[roots++] = c;
+            }
+        }
+        int[] fcounts = counts;
+        Arrays.sort(order, 0, roots, (a, b) -> fcounts[a] != fcounts[b] ? Integer.compare(fcounts[b], fcounts[a]) : Integer.compare(a, b));
+
+        int[] lookup = new int[num + 1];
+        int[] sizes = new int[roots + 1];
+        for (int r = 0; r < roots; r++)
+        {
+            lookup[order[r]] = r + 1;
+            sizes[r + 1] = counts[order[r]];
+        }
+
+        for (int idx = 0; idx < size; idx++)
+        {
+            comps[idx] = lookup[comps[idx]];
+        }
+
+        Logging.info(String.format("...found %d components", roots));
+
+        // find the largest neighbor of each small component
+        double voxvol = this.sampling.voxvol();
+        int[] target = new int[roots + 1];
+        for (int r = 1; r <= roots; r++)
+        {
+            target[r] = voxvol * sizes[r] <= this.merge ? 0 : r;
+        }
+
+        for (int k = 0; k < this.nk; k++)
+        {
+            for (int j = 0; j < this.nj; j++)
+            {
+                int row = this.ni * (j + this.nj * k);
+                for (int i = 0; i < this.ni; i++)
+                {
+                    int idx = row + i;
+                    int comp = comps[idx];
+                    if (comp == 0)
+                    {
+                        continue;
+                    }
+
+                    if (i > 0)
+                    {
+                        adjacent(target, sizes, comp, comps[idx - 1]);
+                    }
+                    if (j > 0)
+                    {
+                        adjacent(target, sizes, comp, comps[idx - this.ni]);
+                    }
+                    if (k > 0)
+                    {
+                        adjacent(target, sizes, comp, comps[idx - plane]);
+                    }
+                }
+            }
+        }
+
+        for (int idx = 0; idx < size; idx++)
+        {
+            comps[idx] = target[comps[idx]];
+        }
+
+        return comps;
+    }
+
+    private static void adjacent(int[] target, int[] sizes, int a, int b)
+    {
+        if (b == 0 || a == b)
+        {
+            return;
+        }
+
+        consider(target, sizes, a, b);
+        consider(target, sizes, b, a);
+    }
+
+    private static void consider(int[] target, int[] sizes, int comp, int neighbor)
+    {
+        if (target[comp] == comp)
+        {
+            // this component is large enough to keep
+            return;
+        }
+
+        // components are sorted by size, so the lowest label is the largest neighbor
+        if (target[comp] == 0 || neighbor < target[comp])
+        {
+            target[comp] = neighbor;
+        }
+    }
+
+    private static int find(int[] parent, int v)
+    {
+        while (parent[v] != v)
+        {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+
+        return v;
+    }
+
+    private static int union(int[] parent, int a, int b)
+    {
+        int rb = find(parent, b);
+        if (a == 0)
+        {
+            return rb;
+        }
+
+        int ra = find(parent, a);
+        if (ra == rb)
+        {
+            return ra;
+        }
+
+        int root = Math.min(ra, rb);
+        parent[Math.max(ra, rb)] = root;
+
+        return root;
+    }
+
+    private void execute(List<Callable<Void>> tasks)
+    {
+        if (tasks.size() == 1)
+        {
+            try
+            {
+                tasks.get(0).call();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                Logging.error("failed to run SLIC: " + e.getMessage());
+            }
+            return;
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(tasks.size());
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            e.printStackTrace();
+            Logging.error("failed to run SLIC: " + e.getMessage());
+        }
+        finally
+        {
+            exec.shutdown();
+        }
+    }
+
+    /**
+     * a partition of the volume into tiles along its outermost axis, which are
+     * grouped into contiguous parts that are each processed by one thread
+     */
+    private class Tiling
+    {
+        // true if tiles are ranges of slices, otherwise they are ranges of rows of a single slice
+        final boolean slices;
+        final int length;
+        final int stride;
+        final int thick;
+        final int tiles;
+        final int parts;
+        final int window;
+        final int buffer;
+
+        Tiling()
+        {
+            VolumeSLIC self = VolumeSLIC.this;
+
+            this.slices = self.nk > 1;
+            this.length = this.slices ? self.nk : self.nj;
+            this.stride = this.slices ? self.ni * self.nj : self.ni;
+            this.window = this.slices ? self.wk : self.wj;
+
+            int limit = Math.max(1, TILE / this.stride);
+            this.thick = Math.max(1, Math.min(Math.min(this.window + 1, limit), (this.length + self.threads - 1) / self.threads));
+            this.tiles = (this.length + this.thick - 1) / this.thick;
+            this.parts = Math.min(self.threads, this.tiles);
+            this.buffer = this.thick * this.stride;
+        }
+
+        int begin(int tile)
+        {
+            return tile * this.thick;
+        }
+
+        int end(int tile)
+        {
+            return Math.min(this.length, (tile + 1) * this.thick);
+        }
+
+        int offset(int slice)
+        {
+            return slice * this.stride;
+        }
+
+        /**
+         * @return the first tile of the given part
+         */
+        int first(int part)
+        {
+            return (int) ((long) part * this.tiles / this.parts);
+        }
+
+        /**
+         * @return the centers whose search window overlaps each tile, in increasing order
+         */
+        int[][] lists(double[] centers)
+        {
+            VolumeSLIC self = VolumeSLIC.this;
+            int num = centers.length / self.fdim;
+
+            int[] lows = new int[num];
+            int[] highs = new int[num];
+            int[] counts = new int[this.tiles];
+
+            for (int c = 0; c < num; c++)
+            {
+                int off = c * self.fdim;
+                Sample nearest = self.sampling.nearest(new Vect(new double[]{centers[off], centers[off + 1], centers[off + 2]}));
+                int pos = this.slices ? nearest.getK() : nearest.getJ();
+
+                int low = Math.max(0, pos - this.window);
+                int high = Math.min(this.length - 1, pos + this.window);
+
+                if (low > high)
+                {
+                    lows[c] = 1;
+                    highs[c] = 0;
+                    continue;
+                }
+
+                lows[c] = low / this.thick;
+                highs[c] = high / this.thick;
+
+                for (int t = lows[c]; t <= highs[c]; t++)
+                {
+                    counts[t] += 1;
+                }
+            }
+
+            int[][] out = new int[this.tiles][];
+            for (int t = 0; t < this.tiles; t++)
+            {
+                out[t] = new int[counts[t]];
+                counts[t] = 0;
+            }
+
+            for (int c = 0; c < num; c++)
+            {
+                for (int t = lows[c]; t <= highs[c]; t++)
+                {
+                    out[t][counts[t]++] = c;
+                }
+            }
+
+            return out;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import com.google.common.collect.Lists;
+import qit.base.Logging;
+import qit.data.datasets.Volume;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A sequence of volumes that are read from disk one at a time as they are
+ * iterated, so only a bounded number of volumes is ever held in memory.
+ * Volumes can optionally be prefetched by background threads while the
+ * current one is processed.  Each iteration reads the files again, which
+ * allows multiple passes over a cohort that does not fit in memory.
+ */
+public class VolumeStream implements Iterable<Volume>
+{
+    private List<String> fns;
+    private int prefetch = 1;
+
+    public VolumeStream(List<String> fns)
+    {
+        this.fns = Lists.newArrayList(fns);
+    }
+
+    /**
+     * set the number of volumes that may be read concurrently (one reads them sequentially)
+     */
+    public VolumeStream withPrefetch(int v)
+    {
+        this.prefetch = Math.max(1, v);
+
+        return this;
+    }
+
+    public int size()
+    {
+        return this.fns.size();
+    }
+
+    public List<String> getFilenames()
+    {
+        return Lists.newArrayList(this.fns);
+    }
+
+    /**
+     * @return a stream of the first volumes in this stream
+     */
+    public VolumeStream head(int num)
+    {
+        return new VolumeStream(this.fns.subList(0, Math.min(num, this.fns.size()))).withPrefetch(this.prefetch);
+    }
+
+    public Iterator<Volume> iterator()
+    {
+        return new Reader();
+    }
+
+    private static Volume read(String fn)
+    {
+        try
+        {
+            Logging.info("reading: " + fn);
+            return Volume.read(fn);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("failed to read volume: " + fn, e);
+        }
+    }
+
+    private class Reader implements Iterator<Volume>
+    {
+        private final Deque<Future<Volume>> pending = new ArrayDeque<>();
+        private ExecutorService exec = null;
+        private int next = 0;
+
+        private Reader()
+        {
+            if (VolumeStream.this.prefetch > 1 && VolumeStream.this.fns.size() > 1)
+            {
+                this.exec = Executors.newFixedThreadPool(VolumeStream.this.prefetch, r ->
+                {
+                    // daemon threads so that abandoned iterations never block exit
+                    Thread thread = new Thread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+                while (this.pending.size() < VolumeStream.this.prefetch && this.submit())
+                {
+                    // fill the prefetch window
+                }
+            }
+        }
+
+        private boolean submit()
+        {
+            if (this.next >= VolumeStream.this.fns.size())
+            {
+                return false;
+            }
+
+            String fn = VolumeStream.this.fns.get(this.next++);
+            this.pending.add(this.exec.submit(() -> read(fn)));
+
+            return true;
+        }
+
+        public boolean hasNext()
+        {
+            return this.exec == null ? this.next < VolumeStream.this.fns.size() : !this.pending.isEmpty();
+        }
+
+        public Volume next()
+        {
+            if (!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            if (this.exec == null)
+            {
+                return read(VolumeStream.this.fns.get(this.next++));
+            }
+
+            Future<Volume> future = this.pending.poll();
+            this.submit();
+
+            try
+            {
+                return future.get();
+            }
+            catch (InterruptedException | ExecutionException e)
+            {
+                this.exec.shutdownNow();
+                throw new RuntimeException("failed to read volume: " + e.getMessage(), e);
+            }
+            finally
+            {
+                if (this.pending.isEmpty())
+                {
+                    this.exec.shutdown();
+                }
+            }
+        }
+    }
+}
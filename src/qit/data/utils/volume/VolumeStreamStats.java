@@ -0,0 +1,475 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.data.utils.volume;
+
+import qit.base.Global;
+import qit.base.Logging;
+import qit.data.datasets.Mask;
+import qit.data.datasets.Sampling;
+import qit.data.datasets.Vect;
+import qit.data.datasets.Volume;
+import qit.data.utils.vects.stats.VectStats;
+
+import java.util.Arrays;
+
+/**
+ * Voxelwise statistics of a cohort of volumes that are added one at a time,
+ * so memory does not grow with the number of volumes.  The min, max, sum,
+ * mean, variance, standard deviation, and coefficient of variation are
+ * updated online (the mean and variance with Welford's method).  Medians,
+ * quartiles, and robust statistics need every value of a voxel, so they are
+ * computed from a buffer: when the buffer can hold all values, they are
+ * collected while the volumes are added, and otherwise the volumes are read
+ * again in a few passes, each covering a block of voxels that fits in the
+ * buffer.  These give the same results as {@link VolumeStats}.
+ */
+public class VolumeStreamStats
+{
+    public Volume min;
+    public Volume max;
+    public Volume mean;
+    public Volume var;
+    public Volume sum;
+    public Volume std;
+    public Volume cv;
+    public Volume num;
+    public Volume median;
+    public Volume qlow;
+    public Volume qhigh;
+
+    public boolean norm = false;
+    public Mask mask;
+    public boolean robust = false;
+    public boolean quantiles = true;
+    public Integer expected = null;
+    public int buffer = 1024;
+
+    private Volume proto;
+    private int dim;
+    private int count;
+    private int[] voxels;
+    private double[] amean;
+    private double[] am2;
+    private double[] amin;
+    private double[] amax;
+    private double[] asum;
+    private double[] values;
+
+    public VolumeStreamStats withMask(Mask v)
+    {
+        this.mask = v;
+
+        return this;
+    }
+
+    public VolumeStreamStats withNorm(boolean v)
+    {
+        this.norm = v;
+
+        return this;
+    }
+
+    public VolumeStreamStats withRobust(boolean v)
+    {
+        this.robust = v;
+
+        return this;
+    }
+
+    /**
+     * specify whether to compute medians and quartiles (robust statistics need them regardless)
+     */
+    public VolumeStreamStats withQuantiles(boolean v)
+    {
+        this.quantiles = v;
+
+        return this;
+    }
+
+    /**
+     * specify the expected number of volumes, which allows values to be buffered while they are added
+     */
+    public VolumeStreamStats withExpected(Integer v)
+    {
+        this.expected = v;
+
+        return this;
+    }
+
+    /**
+     * specify the buffer size in megabytes for medians, quartiles, and robust statistics
+     */
+    public VolumeStreamStats withBuffer(int v)
+    {
+        this.buffer = v;
+
+        return this;
+    }
+
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    public VolumeStreamStats add(Volume volume)
+    {
+        if (this.count == 0)
+        {
+            this.init(volume);
+        }
+        else
+        {
+            Global.assume(volume.getSampling().num().equals(this.proto.getSampling().num()), "volume dimensions do not match");
+            Global.assume(this.norm || volume.getDim() == this.dim, "volume channels do not match");
+        }
+
+        int n = this.count + 1;
+        boolean buffered = this.values != null && this.count < this.expected;
+
+        for (int v = 0; v < this.voxels.length; v++)
+        {
+            int idx = this.voxels[v];
+
+            for (int d = 0; d < this.dim; d++)
+            {
+                double x = this.norm ? norm(volume, idx) : volume.get(idx, d);
+                int k = v * this.dim + d;
+
+                double delta = x - this.amean[k];
+                this.amean[k] += delta / n;
+                this.am2[k] += delta * (x - this.amean[k]);
+                this.asum[k] += x;
+                this.amin[k] = n == 1 ? x : Math.min(this.amin[k], x);
+                this.amax[k] = n == 1 ? x : Math.max(this.amax[k], x);
+
+                if (buffered)
+                {
+                    this.values[k * this.expected + this.count] = x;
+                }
+            }
+        }
+
+        if (this.values != null && !buffered)
+        {
+            Logging.info("warning: more volumes than expected, so values will be read again");
+            this.values = null;
+        }
+
+        this.count = n;
+
+        return this;
+    }
+
+    /**
+     * add every volume and compute the statistics
+     */
+    public VolumeStreamStats run(Iterable<Volume> inputs)
+    {
+        for (Volume volume : inputs)
+        {
+            this.add(volume);
+        }
+
+        return this.finish(inputs);
+    }
+
+    /**
+     * compute the statistics of the volumes that were added, where the inputs
+     * must provide the same volumes again in case they were not buffered
+     */
+    public VolumeStreamStats finish(Iterable<Volume> inputs)
+    {
+        Global.assume(this.count > 0, "no volumes were added");
+
+        this.num = this.proto.proto();
+        this.min = this.proto.proto();
+        this.max = this.proto.proto();
+        this.sum = this.proto.proto();
+        this.mean = this.proto.proto();
+        this.var = this.proto.proto();
+        this.std = this.proto.proto();
+        this.cv = this.proto.proto();
+        this.median = this.proto.proto();
+        this.qlow = this.proto.proto();
+        this.qhigh = this.proto.proto();
+
+        for (int v = 0; v < this.voxels.length; v++)
+        {
+            int idx = this.voxels[v];
+
+            for (int d = 0; d < this.dim; d++)
+            {
+                int k = v * this.dim + d;
+                double varv = this.count == 1 ? 0 : this.am2[k] / this.count;
+                double stdv = Math.sqrt(varv);
+
+                this.num.set(idx, d, this.count);
+                this.min.set(idx, d, this.amin[k]);
+                this.max.set(idx, d, this.amax[k]);
+                this.sum.set(idx, d, this.asum[k]);
+                this.mean.set(idx, d, this.amean[k]);
+                this.var.set(idx, d, varv);
+                this.std.set(idx, d, stdv);
+                this.cv.set(idx, d, this.count == 1 ? 0 : stdv / this.amean[k]);
+            }
+        }
+
+        if (this.quantiles || this.robust)
+        {
+            if (this.values != null)
+            {
+                this.buffered(this.values, this.expected, 0, this.voxels.length);
+            }
+            else
+            {
+                this.passes(inputs);
+            }
+        }
+
+        this.values = null;
+
+        return this;
+    }
+
+    private void init(Volume volume)
+    {
+        this.dim = this.norm ? 1 : volume.getDim();
+        this.proto = volume.proto(this.dim);
+
+        Sampling sampling = volume.getSampling();
+        int nvox = 0;
+        int[] buff = new int[sampling.size()];
+        for (int idx = 0; idx < sampling.size(); idx++)
+        {
+            if (volume.valid(idx, this.mask))
+            {
+                buff[nvox++] = idx;
+            }
+        }
+
+        this.voxels = new int[nvox];
+        System.arraycopy(buff, 0, this.voxels, 0, nvox);
+
+        int size = nvox * this.dim;
+        this.amean = new double[size];
+        this.am2 = new double[size];
+        this.amin = new double[size];
+        this.amax = new double[size];
+        this.asum = new double[size];
+
+        this.values = null;
+        if ((this.quantiles || this.robust) && this.expected != null && this.expected > 0)
+        {
+            long bytes = 8L * size * this.expected;
+            if (bytes <= this.limit() && bytes < Integer.MAX_VALUE)
+            {
+                this.values = new double[size * this.expected];
+            }
+        }
+    }
+
+    private long limit()
+    {
+        // never claim more than a quarter of the heap, which also holds the volumes and outputs
+        long heap = Runtime.getRuntime().maxMemory() / 4;
+        return Math.min(heap, Math.max(1L, (long) this.buffer) << 20);
+    }
+
+    private void passes(Iterable<Volume> inputs)
+    {
+        long per = 8L * this.dim * this.count;
+        int block = (int) Math.max(1, Math.min(this.voxels.length, Math.min(Integer.MAX_VALUE / per, this.limit() / per)));
+        int npass = (this.voxels.length + block - 1) / block;
+
+        Logging.info(String.format("computing quantiles with %d pass(es) over the volumes", npass));
+
+        for (int start = 0; start < this.voxels.length; start += block)
+        {
+            int end = Math.min(this.voxels.length, start + block);
+            double[] bvalues = new double[(end - start) * this.dim * this.count];
+
+            int j = 0;
+            for (Volume volume : inputs)
+            {
+                if (j >= this.count)
+                {
+                    break;
+                }
+
+                for (int v = start; v < end; v++)
+                {
+                    int idx = this.voxels[v];
+                    for (int d = 0; d < this.dim; d++)
+                    {
+                        int k = (v - start) * this.dim + d;
+                        bvalues[k * this.count + j] = this.norm ? norm(volume, idx) : volume.get(idx, d);
+                    }
+                }
+
+                j += 1;
+            }
+
+            Global.assume(j == this.count, "the volumes changed between passes");
+
+            this.buffered(bvalues, this.count, start, end);
+        }
+    }
+
+    private void buffered(double[] buff, int stride, int start, int end)
+    {
+        Vect slice = new Vect(this.count);
+        double[] sorted = new double[this.count];
+        double[] quants = new double[3];
+
+        for (int v = start; v < end; v++)
+        {
+            int idx = this.voxels[v];
+
+            for (int d = 0; d < this.dim; d++)
+            {
+                int offset = ((v - start) * this.dim + d) * stride;
+
+                if (this.robust)
+                {
+                    for (int j = 0; j < this.count; j++)
+                    {
+                        slice.set(j, buff[offset + j]);
+                    }
+
+                    VectStats vs = new VectStats().withInput(slice).withRobust(true).run();
+
+                    this.median.set(idx, d, vs.median);
+                    this.qlow.set(idx, d, vs.qlow);
+                    this.qhigh.set(idx, d, vs.qhigh);
+                    this.mean.set(idx, d, vs.mean);
+                    this.var.set(idx, d, vs.var);
+                    this.std.set(idx, d, vs.std);
+                    this.cv.set(idx, d, vs.cv);
+                }
+                else
+                {
+                    System.arraycopy(buff, offset, sorted, 0, this.count);
+                    Arrays.sort(sorted);
+                    quantiles(sorted, quants);
+
+                    this.qlow.set(idx, d, quants[0]);
+                    this.median.set(idx, d, quants[1]);
+                    this.qhigh.set(idx, d, quants[2]);
+                }
+            }
+        }
+    }
+
+    /**
+     * select the quartiles of sorted values with the same rule as {@link VectStats}
+     */
+    private static void quantiles(double[] sorted, double[] out)
+    {
+        int num = sorted.length;
+
+        if (num == 1)
+        {
+            out[0] = out[1] = out[2] = sorted[0];
+            return;
+        }
+
+        double weight = 1.0 / num;
+        double sumw = 0;
+        for (int i = 0; i < num; i++)
+        {
+            sumw += weight;
+        }
+
+        double inc = 0;
+        double step = sumw / num;
+        double qlow = 0.25 * sumw;
+        double qmed = 0.5 * sumw;
+        double qhigh = 0.75 * sumw;
+        boolean flow = true;
+        boolean fmed = true;
+        boolean fhigh = true;
+
+        for (int i = 0; i < num; i++)
+        {
+            inc += step;
+
+            if (flow && inc > qlow)
+            {
+                out[0] = sorted[i];
+                flow = false;
+            }
+
+            if (fmed && inc > qmed)
+            {
+                out[1] = sorted[i];
+                fmed = false;
+            }
+
+            if (fhigh && inc > qhigh)
+            {
+                out[2] = sorted[i];
+                fhigh = false;
+            }
+        }
+    }
+
+    private static double norm(Volume volume, int idx)
+    {
+        double sum = 0;
+        for (int d = 0; d < volume.getDim(); d++)
+        {
+            double x = volume.get(idx, d);
+            sum += x * x;
+        }
+
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.main;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import qit.base.CliMain;
+import qit.base.Global;
+import qit.base.Logging;
+import qit.base.Pipeline;
+import qit.base.cli.CliOption;
+import qit.base.cli.CliSpecification;
+import qit.base.cli.CliValues;
+
+import java.util.List;
+import java.util.Map;
+
+public class ModulePipeline implements CliMain
+{
+    public static void main(String[] args)
+    {
+        new ModulePipeline().run(Lists.newArrayList(args));
+    }
+
+    public void run(List<String> args)
+    {
+        try
+        {
+            Logging.info("starting " + this.getClass().getSimpleName());
+
+            String doc = "Run a pipeline of modules that are connected in memory.  The pipeline is a JSON file with a list of steps, where each step has a name, a module, and maps of parameters, inputs, and outputs.  An input may be a filename or a reference to the output of another step, e.g. @mask.output, and only the listed outputs are written to disk.  Values may include variables written as ${name}.";
+
+            CliSpecification cli = new CliSpecification();
+            cli.withName(this.getClass().getSimpleName());
+            cli.withDoc(doc);
+            cli.withOption(new CliOption().asInput().withName("input").withArg("<File>").withDoc("specify the pipeline JSON file"));
+            cli.withOption(new CliOption().asParameter().asOptional().withName("vars").withArg("name=value(s)").withDoc("specify values for the pipeline variables").withNoMax());
+            cli.withOption(new CliOption().asParameter().asOptional().withName("threads").withArg("<Integer>").withDoc("specify a number of threads for running independent steps").withDefault("1"));
+            cli.withOption(new CliOption().asParameter().asOptional().withName("share").withDoc("pass the same dataset to every step that uses it instead of copying it (only safe if no module modifies its inputs)"));
+            cli.withAuthor("Ryan Cabeen");
+
+            Logging.info("parsing arguments");
+            CliValues entries = cli.parse(args);
+
+            Logging.info("started");
+            String input = entries.keyed.get("input").get(0);
+            int threads = entries.keyed.containsKey("threads") ? Integer.valueOf(entries.keyed.get("threads").get(0)) : 1;
+            boolean share = entries.keyed.containsKey("share");
+
+            Map<String, String> vars = Maps.newLinkedHashMap();
+            if (entries.keyed.containsKey("vars"))
+            {
+                for (String arg : entries.keyed.get("vars"))
+                {
+                    String[] tokens = arg.split("=", 2);
+                    Global.assume(tokens.length == 2, "invalid variable: " + arg);
+                    vars.put(tokens[0], tokens[1]);
+                }
+            }
+
+            Logging.info("reading pipeline: " + input);
+            Pipeline.read(input, vars).withThreads(threads).withShare(share).run();
+
+            Logging.info("finished");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            Logging.error("an error occurred: " + e.getMessage());
+        }
+    }
+}
@@ -55,15 +55,16 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.commons.lang3.StringUtils;
 import org.python.util.PythonInterpreter;
-import org.reflections.Reflections;
 import qit.base.CliMain;
 import qit.base.Global;
 import qit.base.Interpreter;
+import qit.base.InterpreterPool;
 import qit.base.Logging;
 import qit.base.Module;
 import qit.base.annot.ModuleUnlisted;
 import qit.base.cli.CliModule;
 import qit.base.cli.CliUtils;
+import qit.base.utils.ModuleIndex;
 import qit.base.utils.ModuleUtils;
 import qit.base.utils.PathUtils;
 
@@ -73,6 +74,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class QitMain
 {
@@ -108,12 +114,8 @@ public class QitMain
     {
         try
         {
-            // disable info messages
-            Reflections.log = null;
-            Reflections reflections = new Reflections("qit");
-
             Map<String, CommandLineMainSource> out = Maps.newLinkedHashMap();
-            for (final Class<? extends CliMain> c : reflections.getSubTypesOf(CliMain.class))
+            for (final Class<? extends CliMain> c : ModuleIndex.commands())
             {
                 if (!c.equals(CliModule.class) && c.getAnnotation(ModuleUnlisted.class) == null)
                 {
@@ -138,7 +140,7 @@ public class QitMain
                     });
                 }
             }
-            for (final Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+            for (final Class<? extends Module> c : ModuleIndex.modules())
             {
                 if (c != null && c.getAnnotation(ModuleUnlisted.class) == null)
                 {
@@ -183,12 +185,8 @@ public class QitMain
         String name = "unknown";
         try
         {
-            // disable info messages
-            Reflections.log = null;
-            Reflections reflections = new Reflections("qit");
-
             // look for climain classes to run
-            for (final Class<? extends CliMain> c : reflections.getSubTypesOf(CliMain.class))
+            for (final Class<? extends CliMain> c : ModuleIndex.commands())
             {
                 if (!c.equals(CliModule.class) && c.getName().endsWith(args.get(0)))
                 {
@@ -232,14 +230,11 @@ public class QitMain
                 name = args.get(0);
 
                 // look for modules to run
-                for (final Class<? extends Module> c : reflections.getSubTypesOf(Module.class))
+                Class<? extends Module> c = ModuleIndex.module(name);
+                if (c != null)
                 {
-                    if (c != null && c.getSimpleName().equals(name))
-                    {
-                        args.remove(0);
-                        module = c.newInstance();
-                        break;
-                    }
+                    args.remove(0);
+                    module = c.newInstance();
                 }
 
                 if (module == null)
@@ -321,6 +316,102 @@ public class QitMain
         }
     }
 
+    // run batches with a pool of threads, where each jython batch is given its
+    // own interpreter and namespace from a pool that is shared by the threads
+    private static void runParallel(List<List<String>> batches, List<String> scripts, int threads, boolean cont)
+    {
+        int jython = 0;
+        for (List<String> batch : batches)
+        {
+            String cmd = batch.get(0);
+            if (scripts.contains(cmd) || PathUtils.exists(cmd))
+            {
+                jython += 1;
+            }
+        }
+
+        Logging.info(String.format("running %d batches with %d threads", batches.size(), threads));
+        InterpreterPool pool = jython > 0 ? new InterpreterPool(Math.min(threads, jython)) : null;
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int i = 0; i < batches.size(); i++)
+        {
+            final int fi = i;
+            final List<String> batch = batches.get(i);
+            tasks.add(() ->
+            {
+                Logging.info(String.format("starting batch: %d", (fi + 1)));
+                Logging.info(String.format("batch args: %s", StringUtils.join(batch, " ")));
+
+                try
+                {
+                    String cmd = batch.get(0);
+                    if (scripts.contains(cmd) || PathUtils.exists(cmd))
+                    {
+                        pool.run(interp -> runJython(batch, interp));
+                    }
+                    else
+                    {
+                        runCommand(batch);
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    if (cont)
+                    {
+                        Logging.info(String.format("skipping batch %d due to error: %s", fi + 1, e.getMessage()));
+                    }
+                    else
+                    {
+                        throw e;
+                    }
+                }
+
+                return null;
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (Callable<Void> task : tasks)
+            {
+                futures.add(exec.submit(task));
+            }
+
+            for (Future<Void> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // stop the remaining batches, as the sequential mode would
+            exec.shutdownNow();
+
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            exec.shutdown();
+
+            if (pool != null)
+            {
+                pool.close();
+            }
+        }
+    }
+
     // a layer to protect commands across multiple batches
     private static abstract class CommandLineMainSource
     {
@@ -441,8 +532,25 @@ public class QitMain
 
             boolean cont = argv.remove("--continue");
 
-            PythonInterpreter interp = null;
+            int threads = 1;
+            if (argv.contains("--batch-threads"))
+            {
+                int idx = argv.indexOf("--batch-threads");
+                Global.assume(idx + 1 < argv.size(), "expected an argument specifying the number of threads");
+
+                argv.remove(idx);
+                threads = Integer.valueOf(argv.remove(idx));
+            }
+
             List<List<String>> batches = CliUtils.batches(argv, "--batch", "--batch-var", "--batch-table", "--batch-product");
+
+            if (threads > 1 && batches.size() > 1)
+            {
+                runParallel(batches, scripts, threads, cont);
+                return;
+            }
+
+            PythonInterpreter interp = null;
             for (int i = 0; i < batches.size(); i++)
             {
                 List<String> batch = batches.get(i);
@@ -62,11 +62,9 @@ import qit.base.cli.CliUtils;
 import qit.base.cli.CliValues;
 import qit.base.utils.PathUtils;
 import qit.data.datasets.Mask;
-import qit.data.datasets.Sample;
-import qit.data.datasets.Vect;
 import qit.data.datasets.Volume;
-import qit.data.source.VectSource;
-import qit.data.utils.volume.VolumeStats;
+import qit.data.utils.volume.VolumeStream;
+import qit.data.utils.volume.VolumeStreamStats;
 import qit.math.utils.MathUtils;
 
 import java.util.List;
@@ -101,6 +99,8 @@ public class VolumeFuse implements CliMain
             cli.withOption(new CliOption().asParameter().asOptional().withName("robust").withDoc("use robust statistics"));
             cli.withOption(new CliOption().asParameter().asOptional().withName("exmulti").withDoc("exclude extra multi-channel volumes (load only the first one)"));
             cli.withOption(new CliOption().asParameter().asOptional().withName("norm").withDoc("use the vector norm (or absolute value)"));
+            cli.withOption(new CliOption().asParameter().asOptional().withName("prefetch").withArg("<Integer>").withDoc("the number of volumes to read concurrently with background threads (one reads them sequentially)").withDefault("1"));
+            cli.withOption(new CliOption().asParameter().asOptional().withName("buffer").withArg("<Integer>").withDoc("the memory in megabytes for buffering values when computing medians or robust statistics (larger cohorts are read in multiple passes)").withDefault("1024"));
             cli.withOption(new CliOption().asOutput().asOptional().withName("output-cat").withArg("<Volume>").withDoc("specify the output concatenated volume"));
             cli.withOption(new CliOption().asOutput().asOptional().withName("output-min").withArg("<Volume>").withDoc("specify the output min volume"));
             cli.withOption(new CliOption().asOutput().asOptional().withName("output-max").withArg("<Volume>").withDoc("specify the output max volume"));
@@ -125,6 +125,8 @@ public class VolumeFuse implements CliMain
             boolean robust = entries.keyed.containsKey("robust");
             boolean exmulti = entries.keyed.containsKey("exmulti");
             boolean norm = entries.keyed.containsKey("norm");
+            int prefetch = entries.keyed.containsKey("prefetch") ? Integer.valueOf(entries.keyed.get("prefetch").get(0)) : 1;
+            int buffer = entries.keyed.containsKey("buffer") ? Integer.valueOf(entries.keyed.get("buffer").get(0)) : 1024;
 
             Integer limit = Integer.MAX_VALUE;
             if (entries.keyed.containsKey("limit"))
@@ -150,10 +152,10 @@ public class VolumeFuse implements CliMain
             }
 
             Logging.info(String.format("found %d volumes", inputFns.size()));
-            List<Volume> input = Lists.newArrayList();
+            List<String> foundFns = Lists.newArrayList();
             for (String fn : inputFns)
             {
-                if (input.size() >= limit)
+                if (foundFns.size() >= limit)
                 {
                     Logging.info("warning: skipping subsequent volumes due to limit: " + limit);
                     break;
@@ -172,17 +174,11 @@ public class VolumeFuse implements CliMain
                     continue;
                 }
 
-                Logging.info("reading: " + fn);
-                Volume volume = Volume.read(fn);
-                input.add(volume);
-
-                if (exmulti && volume.getDim() > 1)
-                {
-                    Logging.info("warning: skipping subsequent volumes due to exmulti flag");
-                    break;
-                }
+                foundFns.add(fn);
             }
 
+            Global.assume(foundFns.size() > 0, "no volumes were found");
+
             Mask mask = null;
             if (entries.keyed.containsKey("mask"))
             {
@@ -191,128 +187,217 @@ public class VolumeFuse implements CliMain
                 mask = Mask.read(entries.keyed.get("mask").get(0));
             }
 
-            if (entries.keyed.containsKey("output-first"))
+            Double bg = null;
+            double gain = 1.0;
+            double offset = 0.0;
+
+            if (entries.keyed.containsKey("bg"))
             {
-                String fn = entries.keyed.get("output-first").get(0);
-                Logging.info("writing first: " + fn);
-                input.get(0).write(fn);
+                bg = Double.valueOf(entries.keyed.get("bg").get(0));
             }
 
-            if (entries.keyed.containsKey("output-last"))
+            if (entries.keyed.containsKey("gain"))
             {
-                String fn = entries.keyed.get("output-last").get(0);
-                Logging.info("writing first: " + fn);
-                input.get(input.size() - 1).write(fn);
+                gain = Double.valueOf(entries.keyed.get("gain").get(0));
             }
 
-            if (entries.keyed.containsKey("output-cat"))
+            if (entries.keyed.containsKey("offset"))
             {
-                String fn = entries.keyed.get("output-cat").get(0);
+                offset = Double.valueOf(entries.keyed.get("offset").get(0));
+            }
+
+            Set<String> stats = Sets.newHashSet();
+            stats.add("output-min");
+            stats.add("output-max");
+            stats.add("output-sum");
+            stats.add("output-var");
+            stats.add("output-std");
+            stats.add("output-mean");
+            stats.add("output-median");
+            stats.add("output-cv");
 
-                int dim = 0;
-                for (int i = 0; i < input.size(); i++)
+            boolean fuseit = false;
+            for (String stat : stats)
+            {
+                if (entries.keyed.containsKey(stat))
                 {
-                    dim += input.get(i).getDim();
+                    fuseit = true;
+                    break;
                 }
+            }
+
+            boolean docat = entries.keyed.containsKey("output-cat");
+            boolean dosoftmax = entries.keyed.containsKey("output-softmax");
+            boolean dosumnorm = entries.keyed.containsKey("output-sumnorm");
+
+            VolumeStreamStats fuser = null;
+            if (fuseit)
+            {
+                fuser = new VolumeStreamStats();
+                fuser.withRobust(robust);
+                fuser.withNorm(norm);
+                fuser.withQuantiles(entries.keyed.containsKey("output-median"));
+                fuser.withExpected(foundFns.size());
+                fuser.withBuffer(buffer);
 
-                Volume cat = input.get(0).proto(dim);
-                for (Sample sample : cat.getSampling())
+                if (mask != null)
                 {
-                    int idx = 0;
-                    for (int i = 0; i < input.size(); i++)
+                    fuser.withMask(mask);
+                }
+            }
+
+            // the volumes are streamed, so only the outputs are kept in memory
+            VolumeStream stream = new VolumeStream(foundFns).withPrefetch(prefetch);
+
+            int num = 0;
+            int catdim = 0;
+            Volume first = null;
+            Volume last = null;
+            Volume cat = null;
+            Volume softmax = null;
+            Volume sumnorm = null;
+            double[] softmaxDenom = null;
+            double[] sumnormDenom = null;
+
+            for (Volume volume : stream)
+            {
+                if (first == null)
+                {
+                    first = volume;
+                }
+                last = volume;
+
+                if (docat)
+                {
+                    if (cat == null)
+                    {
+                        cat = volume.proto(volume.getDim() * foundFns.size());
+                    }
+                    else if (catdim + volume.getDim() > cat.getDim())
+                    {
+                        cat = channels(cat, Math.max(2 * cat.getDim(), catdim + volume.getDim()));
+                    }
+
+                    for (int idx = 0; idx < volume.getSampling().size(); idx++)
                     {
-                        Volume volume = input.get(i);
                         for (int j = 0; j < volume.getDim(); j++)
                         {
-                            cat.set(sample, idx, volume.get(sample, j));
-                            idx += 1;
+                            cat.set(idx, catdim + j, volume.get(idx, j));
                         }
                     }
-                }
 
-                Logging.info("writing cat: " + fn);
-                cat.write(fn);
-            }
+                    catdim += volume.getDim();
+                }
 
-            if (entries.keyed.containsKey("output-softmax"))
-            {
-                String fn = entries.keyed.get("output-softmax").get(0);
+                if (dosoftmax)
+                {
+                    if (softmax == null)
+                    {
+                        softmax = volume.proto(foundFns.size());
+                        softmaxDenom = new double[volume.getSampling().size()];
+                    }
 
-                Double bg = null;
-                Double gain = 1.0;
-                Double offset = 0.0;
+                    for (int idx = 0; idx < volume.getSampling().size(); idx++)
+                    {
+                        double exp = Math.exp((volume.get(idx, 0) + offset) * gain);
+                        softmax.set(idx, num, exp);
+                        softmaxDenom[idx] += exp;
+                    }
+                }
 
-                if (entries.keyed.containsKey("bg"))
+                if (dosumnorm)
                 {
-                    bg = Double.valueOf(entries.keyed.get("bg").get(0));
+                    if (sumnorm == null)
+                    {
+                        sumnorm = volume.proto(foundFns.size());
+                        sumnormDenom = new double[volume.getSampling().size()];
+                    }
+
+                    for (int idx = 0; idx < volume.getSampling().size(); idx++)
+                    {
+                        double v = volume.get(idx, 0);
+                        sumnorm.set(idx, num, v);
+                        sumnormDenom[idx] += v;
+                    }
                 }
 
-                if (entries.keyed.containsKey("gain"))
+                if (fuser != null)
                 {
-                    gain = Double.valueOf(entries.keyed.get("gain").get(0));
+                    fuser.add(volume);
                 }
 
-                if (entries.keyed.containsKey("offset"))
+                num += 1;
+
+                if (exmulti && volume.getDim() > 1)
                 {
-                    offset = Double.valueOf(entries.keyed.get("offset").get(0));
+                    Logging.info("warning: skipping subsequent volumes due to exmulti flag");
+                    break;
                 }
+            }
 
-                Volume softmax = input.get(0).proto(input.size());
-                for (Sample sample : softmax.getSampling())
+            if (entries.keyed.containsKey("output-first"))
+            {
+                String fn = entries.keyed.get("output-first").get(0);
+                Logging.info("writing first: " + fn);
+                first.write(fn);
+            }
+
+            if (entries.keyed.containsKey("output-last"))
+            {
+                String fn = entries.keyed.get("output-last").get(0);
+                Logging.info("writing last: " + fn);
+                last.write(fn);
+            }
+
+            if (docat)
+            {
+                String fn = entries.keyed.get("output-cat").get(0);
+
+                if (cat.getDim() != catdim)
                 {
-                    Vect values = VectSource.createND(input.size());
+                    cat = channels(cat, catdim);
+                }
 
-                    for (int i = 0; i < input.size(); i++)
-                    {
-                        values.set(i, input.get(i).get(sample, 0));
-                    }
+                Logging.info("writing cat: " + fn);
+                cat.write(fn);
+            }
 
-                    Vect exp = values.plus(offset).times(gain).exp();
-                    double expsum = exp.sum();
+            if (dosoftmax)
+            {
+                String fn = entries.keyed.get("output-softmax").get(0);
+                double bgexp = bg != null ? Math.exp(gain * (bg + offset)) : 0;
 
-                    if (bg != null)
-                    {
-                        expsum += Math.exp(gain * (bg + offset));
-                    }
+                for (int idx = 0; idx < softmax.getSampling().size(); idx++)
+                {
+                    double expsum = softmaxDenom[idx] + bgexp;
 
                     if (MathUtils.zero(expsum))
                     {
                         expsum = 1.0;
                     }
 
-                    for (int i = 0; i < input.size(); i++)
+                    for (int i = 0; i < num; i++)
                     {
-                        softmax.set(sample, i, exp.get(i) / expsum);
+                        softmax.set(idx, i, softmax.get(idx, i) / expsum);
                     }
                 }
 
+                if (softmax.getDim() != num)
+                {
+                    softmax = channels(softmax, num);
+                }
+
                 Logging.info("writing softmax: " + fn);
                 softmax.write(fn);
             }
 
-            if (entries.keyed.containsKey("output-sumnorm"))
+            if (dosumnorm)
             {
                 String fn = entries.keyed.get("output-sumnorm").get(0);
 
-                Double bg = null;
-
-                if (entries.keyed.containsKey("bg"))
+                for (int idx = 0; idx < sumnorm.getSampling().size(); idx++)
                 {
-                    bg = Double.valueOf(entries.keyed.get("bg").get(0));
-                }
-
-                Volume softmax = input.get(0).proto(input.size());
-                for (Sample sample : softmax.getSampling())
-                {
-                    Vect values = VectSource.createND(input.size());
-
-                    for (int i = 0; i < input.size(); i++)
-                    {
-                        double v = input.get(i).get(sample, 0);
-                        values.set(i, v);
-                    }
-
-                    double sum = values.sum();
+                    double sum = sumnormDenom[idx];
 
                     if (bg != null)
                     {
@@ -324,55 +409,30 @@ public class VolumeFuse implements CliMain
                         sum = 1.0;
                     }
 
-                    for (int i = 0; i < input.size(); i++)
+                    for (int i = 0; i < num; i++)
                     {
-                        softmax.set(sample, i, values.get(i) / sum);
+                        sumnorm.set(idx, i, sumnorm.get(idx, i) / sum);
                     }
                 }
 
-                Logging.info("writing sumnorm: " + fn);
-                softmax.write(fn);
-            }
-
-            Set<String> stats = Sets.newHashSet();
-            stats.add("output-min");
-            stats.add("output-max");
-            stats.add("output-sum");
-            stats.add("output-var");
-            stats.add("output-std");
-            stats.add("output-mean");
-            stats.add("output-median");
-            stats.add("output-cv");
-
-            boolean fuseit = false;
-            for (String stat : stats)
-            {
-                if (entries.keyed.containsKey(stat))
+                if (sumnorm.getDim() != num)
                 {
-                    fuseit = true;
-                    break;
+                    sumnorm = channels(sumnorm, num);
                 }
+
+                Logging.info("writing sumnorm: " + fn);
+                sumnorm.write(fn);
             }
 
-            if (fuseit)
+            if (fuser != null)
             {
-                VolumeStats fuser = new VolumeStats();
-                fuser.withInput(input);
-                fuser.withRobust(robust);
-                fuser.withNorm(norm);
-
-                if (mask != null)
-                {
-                    fuser.withMask(mask);
-                }
-
                 Logging.info("started fuser");
-                fuser.run();
+                fuser.finish(stream.head(num));
 
                 if (entries.keyed.containsKey("output-min"))
                 {
                     String fn = entries.keyed.get("output-min").get(0);
-                    Logging.info("writing mean: " + fn);
+                    Logging.info("writing min: " + fn);
                     fuser.min.write(fn);
                 }
 
@@ -434,4 +494,20 @@ public class VolumeFuse implements CliMain
             Logging.error("an error occurred: " + e.getMessage());
         }
     }
+
+    private static Volume channels(Volume volume, int dim)
+    {
+        Volume out = volume.proto(dim);
+        int common = Math.min(dim, volume.getDim());
+
+        for (int idx = 0; idx < volume.getSampling().size(); idx++)
+        {
+            for (int j = 0; j < common; j++)
+            {
+                out.set(idx, j, volume.get(idx, j));
+            }
+        }
+
+        return out;
+    }
 }
@@ -69,38 +69,33 @@ public class BihSearch<E extends Boxable, F extends Boxable>
 
     public Set<E> intersections(F b)
     {
-        return this.intersections(b, this.root);
+        Set<E> out = new HashSet<E>();
+        this.intersections(b.box(), this.root, out);
+        return out;
     }
 
-    private Set<E> intersections(F b, BihNode n)
+    private void intersections(Box bbox, BihNode n, Set<E> out)
     {
-        Box bbox = b.box();
-
+        // accumulate into a single set to avoid copying at each level
         if (n.isLeaf)
         {
             if (bbox.intersects(n.box))
             {
-                return new HashSet<E>(n.data);
-            }
-            else
-            {
-                return new HashSet<E>();
+                out.addAll(n.data);
             }
         }
         else if (bbox.range(n.axis).getMax() < n.rightMin)
         {
-            return new HashSet<E>(this.intersections(b, n.left));
+            this.intersections(bbox, n.left, out);
         }
         else if (bbox.range(n.axis).getMin() > n.leftMax)
         {
-            return new HashSet<E>(this.intersections(b, n.right));
+            this.intersections(bbox, n.right, out);
         }
         else
         {
-            Set<E> ints = new HashSet<E>();
-            ints.addAll(this.intersections(b, n.left));
-            ints.addAll(this.intersections(b, n.right));
-            return ints;
+            this.intersections(bbox, n.left, out);
+            this.intersections(bbox, n.right, out);
         }
     }
 
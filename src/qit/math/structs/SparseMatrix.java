@@ -0,0 +1,340 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.math.structs;
+
+import com.google.common.collect.Lists;
+import qit.base.Global;
+import qit.base.Logging;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * a square sparse matrix in compressed sparse row format.  Dense operands hold
+ * several columns interleaved row by row, i.e. entry (i, d) of an n-by-dim
+ * operand is stored at index i * dim + d, so a single pass over the matrix
+ * handles every column at once.  Products may be split across a thread pool by
+ * rows, which needs no synchronization since each row is written once.
+ */
+public class SparseMatrix
+{
+    private final int size;
+    private final int[] offsets;
+    private final int[] cols;
+    private final double[] vals;
+
+    public SparseMatrix(int size, int[] offsets, int[] cols, double[] vals)
+    {
+        Global.assume(offsets.length == size + 1, "invalid row offsets");
+        Global.assume(cols.length == vals.length, "invalid column indices");
+        Global.assume(offsets[size] == cols.length, "invalid number of entries");
+
+        this.size = size;
+        this.offsets = offsets;
+        this.cols = cols;
+        this.vals = vals;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public int numEntries()
+    {
+        return this.cols.length;
+    }
+
+    public double get(int i, int j)
+    {
+        for (int n = this.offsets[i]; n < this.offsets[i + 1]; n++)
+        {
+            if (this.cols[n] == j)
+            {
+                return this.vals[n];
+            }
+        }
+
+        return 0;
+    }
+
+    public double[] diag()
+    {
+        double[] out = new double[this.size];
+        for (int i = 0; i < this.size; i++)
+        {
+            out[i] = this.get(i, i);
+        }
+
+        return out;
+    }
+
+    /**
+     * @return a matrix with the same sparsity pattern and entries a * D + b * this, where D is the given diagonal
+     */
+    public SparseMatrix plusDiag(double[] diag, double a, double b)
+    {
+        Global.assume(diag.length == this.size, "invalid diagonal");
+
+        double[] nvals = new double[this.vals.length];
+        for (int i = 0; i < this.size; i++)
+        {
+            boolean found = false;
+            for (int n = this.offsets[i]; n < this.offsets[i + 1]; n++)
+            {
+                nvals[n] = b * this.vals[n];
+
+                if (this.cols[n] == i)
+                {
+                    nvals[n] += a * diag[i];
+                    found = true;
+                }
+            }
+
+            Global.assume(found, "diagonal entry is missing from sparsity pattern");
+        }
+
+        return new SparseMatrix(this.size, this.offsets, this.cols, nvals);
+    }
+
+    /**
+     * compute out = this * in for interleaved operands with dim columns
+     *
+     * @param exec an optional thread pool (null means the product is computed on the calling thread)
+     */
+    public void times(double[] in, double[] out, int dim, ExecutorService exec)
+    {
+        Global.assume(in.length == this.size * dim && out.length == this.size * dim, "invalid operand size");
+        Global.assume(in != out, "the product cannot be computed in place");
+
+        rows(exec, (start, end) ->
+        {
+            for (int i = start; i < end; i++)
+            {
+                int oi = i * dim;
+                for (int d = 0; d < dim; d++)
+                {
+                    out[oi + d] = 0;
+                }
+
+                for (int n = this.offsets[i]; n < this.offsets[i + 1]; n++)
+                {
+                    double v = this.vals[n];
+                    int oj = this.cols[n] * dim;
+                    for (int d = 0; d < dim; d++)
+                    {
+                        out[oi + d] += v * in[oj + d];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * solve this * x = b with the Jacobi preconditioned conjugate gradient
+     * method, which requires the matrix to be symmetric positive definite.  Each
+     * column is solved independently, but all of them share each matrix pass.
+     * The input x is used as the initial guess.
+     *
+     * @return the number of iterations used
+     */
+    public int solve(double[] b, double[] x, int dim, int maxiter, double tol, ExecutorService exec)
+    {
+        int len = this.size * dim;
+        Global.assume(b.length == len && x.length == len, "invalid operand size");
+
+        double[] precond = this.diag();
+        for (int i = 0; i < this.size; i++)
+        {
+            Global.assume(precond[i] > 0, "matrix is not positive definite");
+            precond[i] = 1.0 / precond[i];
+        }
+
+        double[] r = new double[len];
+        double[] z = new double[len];
+        double[] p = new double[len];
+        double[] q = new double[len];
+
+        double[] rz = new double[dim];
+        double[] bnorm = new double[dim];
+        boolean[] done = new boolean[dim];
+
+        this.times(x, q, dim, exec);
+        for (int i = 0; i < len; i++)
+        {
+            int d = i % dim;
+            r[i] = b[i] - q[i];
+            z[i] = precond[i / dim] * r[i];
+            p[i] = z[i];
+            rz[d] += r[i] * z[i];
+            bnorm[d] += b[i] * b[i];
+        }
+
+        for (int d = 0; d < dim; d++)
+        {
+            bnorm[d] = Math.sqrt(bnorm[d]);
+        }
+
+        double[] pq = new double[dim];
+        double[] rr = new double[dim];
+        double[] nrz = new double[dim];
+
+        for (int iter = 0; iter < maxiter; iter++)
+        {
+            Arrays.fill(rr, 0);
+            for (int i = 0; i < len; i++)
+            {
+                rr[i % dim] += r[i] * r[i];
+            }
+
+            boolean finished = true;
+            for (int d = 0; d < dim; d++)
+            {
+                done[d] = Math.sqrt(rr[d]) <= tol * Math.max(bnorm[d], Global.DELTA);
+                finished &= done[d];
+            }
+
+            if (finished)
+            {
+                return iter;
+            }
+
+            this.times(p, q, dim, exec);
+
+            Arrays.fill(pq, 0);
+            for (int i = 0; i < len; i++)
+            {
+                pq[i % dim] += p[i] * q[i];
+            }
+
+            Arrays.fill(nrz, 0);
+            for (int i = 0; i < len; i++)
+            {
+                int d = i % dim;
+                if (!done[d] && pq[d] != 0)
+                {
+                    double alpha = rz[d] / pq[d];
+                    x[i] += alpha * p[i];
+                    r[i] -= alpha * q[i];
+                    z[i] = precond[i / dim] * r[i];
+                    nrz[d] += r[i] * z[i];
+                }
+            }
+
+            for (int i = 0; i < len; i++)
+            {
+                int d = i % dim;
+                if (!done[d] && rz[d] != 0)
+                {
+                    p[i] = z[i] + (nrz[d] / rz[d]) * p[i];
+                }
+            }
+
+            for (int d = 0; d < dim; d++)
+            {
+                if (!done[d])
+                {
+                    rz[d] = nrz[d];
+                }
+            }
+        }
+
+        Logging.info("warning: conjugate gradient did not converge");
+
+        return maxiter;
+    }
+
+    private interface RowBlock
+    {
+        void apply(int start, int end);
+    }
+
+    private void rows(ExecutorService exec, RowBlock block)
+    {
+        if (exec == null)
+        {
+            block.apply(0, this.size);
+            return;
+        }
+
+        // split the rows into more blocks than threads to balance the load
+        int blocks = Math.min(this.size, 64);
+        int step = (this.size + blocks - 1) / Math.max(1, blocks);
+
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (int start = 0; start < this.size; start += step)
+        {
+            final int fstart = start;
+            final int fend = Math.min(this.size, start + step);
+            tasks.add(() ->
+            {
+                block.apply(fstart, fend);
+                return null;
+            });
+        }
+
+        try
+        {
+            for (Future<Void> future : exec.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            Logging.error("failed to execute in concurrent mode");
+        }
+    }
+}
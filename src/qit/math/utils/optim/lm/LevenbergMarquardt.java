@@ -0,0 +1,457 @@
+/*******************************************************************************
+  *
+  * Quantitative Imaging Toolkit (QIT) (c) 2012-2022 Ryan Cabeen
+  * All rights reserved.
+  *
+  * The Software remains the property of Ryan Cabeen ("the Author").
+  *
+  * The Software is distributed "AS IS" under this Licence solely for
+  * non-commercial use in the hope that it will be useful, but in order
+  * that the Author as a charitable foundation protects its assets for
+  * the benefit of its educational and research purposes, the Author
+  * makes clear that no condition is made or to be implied, nor is any
+  * warranty given or to be implied, as to the accuracy of the Software,
+  * or that it will be suitable for any particular purpose or for use
+  * under any specific conditions. Furthermore, the Author disclaims
+  * all responsibility for the use which is made of the Software. It
+  * further disclaims any liability for the outcomes arising from using
+  * the Software.
+  *
+  * The Licensee agrees to indemnify the Author and hold the
+  * Author harmless from and against any and all claims, damages and
+  * liabilities asserted by third parties (including claims for
+  * negligence) which arise directly or indirectly from the use of the
+  * Software or the sale of any products based on the Software.
+  *
+  * No part of the Software may be reproduced, modified, transmitted or
+  * transferred in any form or by any means, electronic or mechanical,
+  * without the express permission of the Author. The permission of
+  * the Author is not required if the said reproduction, modification,
+  * transmission or transference is done without financial return, the
+  * conditions of this Licence are imposed upon the receiver of the
+  * product, and all original and amended source code is included in any
+  * transmitted product. You may be held legally responsible for any
+  * copyright infringement that is caused or encouraged by your failure to
+  * abide by these terms and conditions.
+  *
+  * You are not permitted under this Licence to use this Software
+  * commercially. Use for which any financial return is received shall be
+  * defined as commercial use, and includes (1) integration of all or part
+  * of the source code or the Software into a product for sale or license
+  * by or on behalf of Licensee to third parties or (2) use of the
+  * Software or any derivative of it for research with the final aim of
+  * developing software products for sale or license to a third party or
+  * (3) use of the Software or any derivative of it for research with the
+  * final aim of developing non-software products for sale or license to a
+  * third party, or (4) use of the Software to provide any service to an
+  * external organisation for which payment is received.
+  *
+  ******************************************************************************/
+
+package qit.math.utils.optim.lm;
+
+import qit.base.Global;
+import qit.math.structs.JacobianFunction;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * a Levenberg-Marquardt solver for bounded nonlinear least squares problems,
+ * which minimizes the sum of squared residuals of a function with an analytic
+ * Jacobian.  Each step solves the damped normal equations with Marquardt's
+ * diagonal scaling by a Cholesky factorization, and the damping is updated
+ * with Nielsen's gain ratio rule.  Bounds are enforced by projecting each
+ * trial point onto the box, followed by an optional user projection for other
+ * feasible sets.  All buffers are allocated when the solver is created, so a
+ * solver can be reused for any number of problems of the same size without
+ * allocating.
+ */
+public class LevenbergMarquardt
+{
+    public static final int DEFAULT_MAXITER = 100;
+    public static final double DEFAULT_FTOL = 1e-10;
+    public static final double DEFAULT_XTOL = 1e-10;
+    public static final double DEFAULT_GTOL = 1e-12;
+    public static final double DEFAULT_TAU = 1e-3;
+
+    private final JacobianFunction function;
+    private final int n;
+    private final int m;
+
+    private int maxiter = DEFAULT_MAXITER;
+    private double ftol = DEFAULT_FTOL;
+    private double xtol = DEFAULT_XTOL;
+    private double gtol = DEFAULT_GTOL;
+    private double tau = DEFAULT_TAU;
+    private double[] lower = null;
+    private double[] upper = null;
+    private Consumer<double[]> projection = null;
+
+    private double[] resid;
+    private double[] jac;
+    private double[] nresid;
+    private double[] njac;
+    private final double[] nx;
+    private final double[] normal;
+    private final double[] grad;
+    private final double[] scale;
+    private final double[] factor;
+    private final double[] step;
+
+    private double cost;
+    private int iters;
+
+    public LevenbergMarquardt(JacobianFunction function)
+    {
+        this.function = function;
+        this.n = function.getDimIn();
+        this.m = function.getDimOut();
+
+        this.resid = new double[this.m];
+        this.jac = new double[this.m * this.n];
+        this.nresid = new double[this.m];
+        this.njac = new double[this.m * this.n];
+        this.nx = new double[this.n];
+        this.normal = new double[this.n * this.n];
+        this.grad = new double[this.n];
+        this.scale = new double[this.n];
+        this.factor = new double[this.n * this.n];
+        this.step = new double[this.n];
+    }
+
+    public LevenbergMarquardt withMaxiter(int v)
+    {
+        this.maxiter = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withFtol(double v)
+    {
+        this.ftol = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withXtol(double v)
+    {
+        this.xtol = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withGtol(double v)
+    {
+        this.gtol = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withTau(double v)
+    {
+        this.tau = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withLower(double[] v)
+    {
+        Global.assume(v == null || v.length == this.n, "invalid lower bound");
+        this.lower = v;
+        return this;
+    }
+
+    public LevenbergMarquardt withUpper(double[] v)
+    {
+        Global.assume(v == null || v.length == this.n, "invalid upper bound");
+        this.upper = v;
+        return this;
+    }
+
+    /**
+     * @param v a function that moves a point onto the feasible set in place, which is applied after the bounds
+     */
+    public LevenbergMarquardt withProjection(Consumer<double[]> v)
+    {
+        this.projection = v;
+        return this;
+    }
+
+    /**
+     * @return the sum of squared residuals at the solution
+     */
+    public double getCost()
+    {
+        return this.cost;
+    }
+
+    /**
+     * @return the number of iterations used
+     */
+    public int getIters()
+    {
+        return this.iters;
+    }
+
+    /**
+     * minimize the sum of squared residuals starting from x, which is replaced with the solution
+     *
+     * @return the sum of squared residuals at the solution
+     */
+    public double run(double[] x)
+    {
+        Global.assume(x.length == this.n, "invalid parameter dimension");
+
+        this.project(x);
+        this.function.apply(x, this.resid, this.jac);
+        this.cost = dot(this.resid, this.resid);
+        this.iters = 0;
+
+        this.normal();
+
+        double mu = 0;
+        for (int i = 0; i < this.n; i++)
+        {
+            mu = Math.max(mu, this.normal[i * this.n + i]);
+        }
+        mu = this.tau * Math.max(mu, Global.DELTA);
+        double nu = 2;
+
+        while (this.iters < this.maxiter)
+        {
+            this.iters += 1;
+
+            if (maxabs(this.grad) <= this.gtol || this.cost == 0)
+            {
+                break;
+            }
+
+            for (int i = 0; i < this.n; i++)
+            {
+                this.scale[i] = Math.max(this.normal[i * this.n + i], Global.DELTA);
+            }
+
+            if (!this.solve(mu))
+            {
+                mu *= nu;
+                nu *= 2;
+                continue;
+            }
+
+            double xnorm = 0;
+            double snorm = 0;
+            for (int i = 0; i < this.n; i++)
+            {
+                this.nx[i] = x[i] + this.step[i];
+                xnorm += x[i] * x[i];
+            }
+
+            this.project(this.nx);
+
+            for (int i = 0; i < this.n; i++)
+            {
+                double d = this.nx[i] - x[i];
+                this.step[i] = d;
+                snorm += d * d;
+            }
+
+            if (Math.sqrt(snorm) <= this.xtol * (Math.sqrt(xnorm) + this.xtol))
+            {
+                break;
+            }
+
+            this.function.apply(this.nx, this.nresid, this.njac);
+            double ncost = dot(this.nresid, this.nresid);
+
+            // the reduction predicted by the linear model, which uses the projected step
+            double pred = 0;
+            for (int i = 0; i < this.n; i++)
+            {
+                pred -= 2.0 * this.step[i] * this.grad[i];
+                for (int j = 0; j < this.n; j++)
+                {
+                    pred -= this.step[i] * this.normal[i * this.n + j] * this.step[j];
+                }
+            }
+
+            double rho = pred > 0 ? (this.cost - ncost) / pred : -1;
+
+            if (ncost < this.cost && Double.isFinite(ncost))
+            {
+                double change = this.cost - ncost;
+
+                System.arraycopy(this.nx, 0, x, 0, this.n);
+                this.swap();
+                this.cost = ncost;
+                this.normal();
+
+                double r = 2.0 * Math.max(rho, 0) - 1.0;
+                mu *= Math.max(1.0 / 3.0, 1.0 - r * r * r);
+                nu = 2;
+
+                if (change <= this.ftol * ncost)
+                {
+                    break;
+                }
+            }
+            else
+            {
+                mu *= nu;
+                nu *= 2;
+            }
+        }
+
+        return this.cost;
+    }
+
+    private void swap()
+    {
+        double[] tresid = this.resid;
+        this.resid = this.nresid;
+        this.nresid = tresid;
+
+        double[] tjac = this.jac;
+        this.jac = this.njac;
+        this.njac = tjac;
+    }
+
+    private void project(double[] x)
+    {
+        for (int i = 0; i < this.n; i++)
+        {
+            if (this.lower != null)
+            {
+                x[i] = Math.max(this.lower[i], x[i]);
+            }
+
+            if (this.upper != null)
+            {
+                x[i] = Math.min(this.upper[i], x[i]);
+            }
+        }
+
+        if (this.projection != null)
+        {
+            this.projection.accept(x);
+        }
+    }
+
+    /**
+     * compute the normal matrix J^T J and the gradient J^T r
+     */
+    private void normal()
+    {
+        Arrays.fill(this.normal, 0);
+        Arrays.fill(this.grad, 0);
+
+        for (int k = 0; k < this.m; k++)
+        {
+            int offset = k * this.n;
+            double r = this.resid[k];
+
+            for (int i = 0; i < this.n; i++)
+            {
+                double ji = this.jac[offset + i];
+                if (ji == 0)
+                {
+                    continue;
+                }
+
+                this.grad[i] += ji * r;
+                for (int j = i; j < this.n; j++)
+                {
+                    this.normal[i * this.n + j] += ji * this.jac[offset + j];
+                }
+            }
+        }
+
+        for (int i = 0; i < this.n; i++)
+        {
+            for (int j = 0; j < i; j++)
+            {
+                this.normal[i * this.n + j] = this.normal[j * this.n + i];
+            }
+        }
+    }
+
+    /**
+     * solve (J^T J + mu S) step = -J^T r, where S is the diagonal scaling
+     *
+     * @return false if the damped system is not positive definite
+     */
+    private boolean solve(double mu)
+    {
+        int n = this.n;
+
+        for (int i = 0; i < n; i++)
+        {
+            for (int j = 0; j <= i; j++)
+            {
+                double sum = this.normal[i * n + j];
+                if (i == j)
+                {
+                    sum += mu * this.scale[i];
+                }
+
+                for (int k = 0; k < j; k++)
+                {
+                    sum -= this.factor[i * n + k] * this.factor[j * n + k];
+                }
+
+                if (i == j)
+                {
+                    if (!(sum > 0))
+                    {
+                        return false;
+                    }
+
+                    this.factor[i * n + i] = Math.sqrt(sum);
+                }
+                else
+                {
+                    this.factor[i * n + j] = sum / this.factor[j * n + j];
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            double sum = -this.grad[i];
+            for (int k = 0; k < i; k++)
+            {
+                sum -= this.factor[i * n + k] * this.step[k];
+            }
+            this.step[i] = sum / this.factor[i * n + i];
+        }
+
+        for (int i = n - 1; i >= 0; i--)
+        {
+            double sum = this.step[i];
+            for (int k = i + 1; k < n; k++)
+            {
+                sum -= this.factor[k * n + i] * this.step[k];
+            }
+            this.step[i] = sum / this.factor[i * n + i];
+        }
+
+        return true;
+    }
+
+    private static double dot(double[] a, double[] b)
+    {
+        double out = 0;
+        for (int i = 0; i < a.length; i++)
+        {
+            out += a[i] * b[i];
+        }
+
+        return out;
+    }
+
+    private static double maxabs(double[] a)
+    {
+        double out = 0;
+        for (double v : a)
+        {
+            out = Math.max(out, Math.abs(v));
+        }
+
+        return out;
+    }
+}
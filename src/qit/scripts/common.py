@@ -100,6 +100,15 @@ def safe_float(val):
     except ValueError:
         return None
 
+def parallel_map(func, items, threads=None):
+    """ apply a function to each item with a pool of threads, e.g. to run a
+        module on each subject, and return the results in order """
+    from qit.base import Interpreter
+    if threads is None:
+        return Interpreter.parallelMap(func, items)
+    else:
+        return Interpreter.parallelMap(func, items, threads)
+
 def vararg(option, opt_str, value, parser):
     assert value is None
     value = []
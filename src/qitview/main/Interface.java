@@ -53,7 +53,6 @@ package qitview.main;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import net.iharder.dnd.FileDrop;
-import org.reflections.Reflections;
 import qit.base.Global;
 import qit.base.Logging;
 import qit.base.Module;
@@ -1164,8 +1163,6 @@ public class Interface
         }
 
         {
-            // disable info messages
-            Reflections reflections = new Reflections("qit");
             final Map<String, Class<? extends Module>> unlistedModules = ModuleUtils.unlistedClasses();
             final Map<String, Class<? extends Module>> listedModules = ModuleUtils.listedClasses();
 
@@ -48,6 +48,7 @@ import qit.data.source.MeshSource;
 import qit.data.source.VectSource;
 import qit.data.source.VolumeSource;
 import qit.data.utils.mri.ModelUtils;
+import qit.data.utils.volume.VolumeRasterizer;
 import qit.math.structs.VectFunction;
 import qit.math.structs.Vertex;
 import qit.math.utils.colormaps.ColormapDiscrete;
@@ -230,6 +231,8 @@ public class RenderVolumeSlice<E extends SliceableView<?>>
     private String feature = FEATURE_NONE;
     private VectFunction colormap = null;
     private boolean tube = true;
+    private transient VectFunction lookupFunction = null;
+    private transient VolumeRasterizer.Lookup lookup = null;
     private transient UnitMapDialog opacityTransfer = new UnitMapDialog("Opacity", 0, 1);
     private transient VectFunction opacityFunction = null;
 
@@ -1400,10 +1403,23 @@ public class RenderVolumeSlice<E extends SliceableView<?>>
             return 0;
         }
 
+        Double max = value.max();
+
+        VolumeRasterizer.Lookup table = cdim == 1 ? this.lookup() : null;
+        if (table != null)
+        {
+            // scalar colormaps are tabulated, so there is no need to evaluate the function
+            int color = table.get(value.get(this.channel));
+            double calpha = ((color >>> 24) & 0xFF) / 255.0;
+            double alpha = this.nobg && (max == null || Math.abs(max) <= this.bglevel) ? 0 : this.opacity * op * calpha;
+
+            int a = (int) Math.round(alpha * 255);
+            return ((color & 0x00FFFFFF) << 8) | (a & 0xFF);
+        }
+
         Vect cval = (cdim == 1) ? VectSource.create1D(value.get(this.channel)) : value.copy(cdim);
         Vect vcolor = this.colormap.apply(cval);
 
-        Double max = value.max();
         double alpha = this.nobg && (max == null || Math.abs(max) <= this.bglevel) ? 0 : this.opacity * op * vcolor.get(3);
 
         // compute 0<->255 RGB values
@@ -1422,6 +1438,26 @@ public class RenderVolumeSlice<E extends SliceableView<?>>
         return icolor;
     }
 
+    /**
+     * @return a lookup table for the current colormap if it is the selected scalar colormap
+     */
+    private VolumeRasterizer.Lookup lookup()
+    {
+        if (this.lookupFunction != this.colormap)
+        {
+            this.lookupFunction = this.colormap;
+            this.lookup = null;
+
+            ColormapScalar scalar = this.comboColorScalar == null ? null : (ColormapScalar) this.comboColorScalar.getSelectedItem();
+            if (scalar != null && scalar.getFunction() == this.colormap)
+            {
+                this.lookup = VolumeRasterizer.Lookup.scalar(scalar);
+            }
+        }
+
+        return this.lookup;
+    }
+
     public synchronized void displaySliceI(GL2 gl)
     {
         Sampling sampling = this.getSampling();
@@ -86,6 +86,7 @@ import qit.data.modules.curves.MeshExtract;
 import qit.data.modules.mesh.*;
 import qit.data.source.VectSource;
 import qit.data.utils.MeshUtils;
+import qit.data.utils.mesh.MeshCompact;
 import qit.data.utils.mesh.MeshFunction;
 import qit.data.utils.vects.stats.VectOnlineStats;
 import qit.math.source.VectFunctionSource;
@@ -140,6 +141,7 @@ public class MeshView extends AbstractView<Mesh>
 
     private transient Set<String> toInclude = Sets.newLinkedHashSet();
     private transient boolean sort = false;
+    private transient MeshCompact compact = null;
 
     private transient BasicComboBox<String> comboCoordinate = new BasicComboBox<>();
     private transient BasicComboBox<String> comboAttribute = new BasicComboBox<>();
@@ -206,11 +208,24 @@ public class MeshView extends AbstractView<Mesh>
             }
         }
 
+        this.compact = null;
         super.setData(d);
 
         return this;
     }
 
+    private MeshCompact getCompact()
+    {
+        // the compact mesh is only used for queries, so it is rebuilt whenever the data or coordinates change
+        String coord = this.getCoord();
+        if (this.compact == null || !this.compact.has(coord))
+        {
+            this.compact = MeshCompact.create(this.data, coord);
+        }
+
+        return this.compact;
+    }
+
     @Override
     public Mesh getData()
     {
@@ -1090,6 +1105,7 @@ public class MeshView extends AbstractView<Mesh>
     {
         if (this.update && this.list != null)
         {
+            this.compact = null;
             gl.glDeleteLists(this.list, 1);
             this.list = null;
             this.update = false;
@@ -1446,9 +1462,11 @@ public class MeshView extends AbstractView<Mesh>
         double mindist = Double.MAX_VALUE;
         Line pressLine = Line.fromTwoPoints(mouse.press.point, mouse.press.hit);
 
-        for (Vertex vert : this.data.vattr)
+        float[] coords = this.getCompact().get(this.getCoord());
+        Vect pos = VectSource.create3D();
+        for (int i = 0; i < coords.length; i += 3)
         {
-            Vect pos = this.data.vattr.get(vert, this.getCoord());
+            pos.set(0, coords[i]).set(1, coords[i + 1]).set(2, coords[i + 2]);
             double distLine = pressLine.dist(pos);
 
             if (distLine < this.stencilRadius)
@@ -1529,60 +1547,66 @@ public class MeshView extends AbstractView<Mesh>
 
                 Vect hit = mouse.current == null ? mouse.press.hit : mouse.current.hit;
 
-                Map<Vertex, Map<String, Double>> found = Maps.newHashMap();
-                Vertex closestVert = null;
-                Double closestDist = null;
+                MeshCompact compact = this.getCompact();
+                float[] coords = compact.get(this.getCoord());
+                double hx = hit.getX();
+                double hy = hit.getY();
+                double hz = hit.getZ();
+
+                boolean[] inside = new boolean[compact.numVertex()];
+                int closestVert = -1;
+                double closestDist = Double.MAX_VALUE;
 
-                for (Vertex vert : this.data.vattr)
+                for (int v = 0; v < compact.numVertex(); v++)
                 {
-                    Vect p = this.data.vattr.get(vert, this.getCoord());
-                    double d = p.dist2(hit);
+                    double dx = coords[3 * v] - hx;
+                    double dy = coords[3 * v + 1] - hy;
+                    double dz = coords[3 * v + 2] - hz;
+                    double d = dx * dx + dy * dy + dz * dz;
 
                     if (d < this.stencilRadius)
                     {
-                        found.put(vert, null);
+                        inside[v] = true;
 
-                        if (closestDist == null || d < closestDist)
+                        if (d < closestDist)
                         {
                             closestDist = d;
-                            closestVert = vert;
+                            closestVert = v;
                         }
                     }
                 }
 
-                if (this.stencilConnected)
+                if (this.stencilConnected && closestVert >= 0)
                 {
-                    Stack<Vertex> search = new Stack();
+                    boolean[] connect = new boolean[compact.numVertex()];
+                    Stack<Integer> search = new Stack<>();
                     search.add(closestVert);
+                    connect[closestVert] = true;
 
-                    Set<Vertex> connect = Sets.newHashSet();
-
-                    try
+                    while (search.size() > 0)
                     {
-                        while (search.size() > 0)
-                        {
-                            Vertex vert = search.pop();
+                        int vert = search.pop();
 
-                            for (Vertex ring : this.data.graph.vertRing(vert))
+                        for (int n = 0; n < compact.degree(vert); n++)
+                        {
+                            int ring = compact.neighbor(vert, n);
+                            if (!connect[ring] && inside[ring])
                             {
-                                if (!connect.contains(ring) && found.containsKey(ring))
-                                {
-                                    search.add(ring);
-                                }
+                                connect[ring] = true;
+                                search.add(ring);
                             }
-
-                            connect.add(vert);
-                        }
-
-                        found.clear();
-                        for (Vertex vert : connect)
-                        {
-                            found.put(vert, null);
                         }
                     }
-                    catch (Exception e)
+
+                    inside = connect;
+                }
+
+                Map<Vertex, Map<String, Double>> found = Maps.newHashMap();
+                for (int v = 0; v < compact.numVertex(); v++)
+                {
+                    if (inside[v])
                     {
-                        // skip it when it fails
+                        found.put(compact.getVertex(v), null);
                     }
                 }
 
@@ -1669,8 +1693,9 @@ public class MeshView extends AbstractView<Mesh>
                     builder.append("\n");
 
                     {
-                        builder.append(String.format("Closest vertex (index %d):\n", closestVert.id()));
-                        Map<String, Double> map = found.get(closestVert);
+                        Vertex closest = compact.getVertex(closestVert);
+                        builder.append(String.format("Closest vertex (index %d):\n", closest.id()));
+                        Map<String, Double> map = found.get(closest);
                         for (String name : map.keySet())
                         {
                             builder.append(String.format("  %s: %g\n", name, map.get(name)));